@@ -0,0 +1 @@
+typeSearchIndex = [{"p":"org.aion.avm.userlib.abi","l":"ABIDecoder"},{"p":"org.aion.avm.userlib.abi","l":"ABIEncoder"},{"p":"org.aion.avm.userlib.abi","l":"ABIException"},{"p":"org.aion.avm.userlib.abi","l":"ABIStreamingEncoder"},{"p":"org.aion.avm.userlib.abi","l":"ABIToken"},{"p":"avm","l":"Address"},{"p":"org.aion.avm.userlib","l":"AionMap.AionAbstractCollection"},{"p":"org.aion.avm.userlib","l":"AionBuffer"},{"p":"org.aion.avm.userlib","l":"AionList"},{"p":"org.aion.avm.userlib","l":"AionList.AionListIterator"},{"p":"org.aion.avm.userlib","l":"AionMap"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapEntry"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapEntryIterator"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapEntrySet"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapIterator"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapKeyIterator"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapKeySet"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapValueIterator"},{"p":"org.aion.avm.userlib","l":"AionMap.AionMapValues"},{"p":"org.aion.avm.userlib","l":"AionSet"},{"l":"All Classes and Interfaces","u":"allclasses-index.html"},{"p":"org.aion.avm.userlib","l":"AionMap.BInternalNode"},{"p":"org.aion.avm.userlib","l":"AionMap.BLeafNode"},{"p":"avm","l":"Blockchain"},{"p":"org.aion.avm.userlib","l":"AionMap.BNode"},{"p":"avm","l":"Result"}];updateSearchResults();
\ No newline at end of file
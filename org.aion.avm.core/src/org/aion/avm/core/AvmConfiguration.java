@@ -1,5 +1,7 @@
 package org.aion.avm.core;
 
+import org.aion.parallel.IConcurrencyMetricsListener;
+
 
 /**
  * A class to describe how to configure an AVM instance, when requesting that it be created.
@@ -13,6 +15,22 @@ public class AvmConfiguration {
      * of data hazards.  The transaction restarts caused by these aborts may reduce throughput on such highly connected blocks.
      */
     public int threadCount;
+    /**
+     * If set to true, the number of executor threads actually used is adjusted after each batch, between minThreadCount and
+     * threadCount, based on the number of aborts the batch experienced:  threads are parked when contention is high and woken
+     * again when it is low.
+     * If false, all threadCount threads are always used.
+     */
+    public boolean enableAdaptiveThreadCount;
+    /**
+     * The lowest number of executor threads which will be used, if enableAdaptiveThreadCount is set (must be in [1, threadCount]).
+     */
+    public int minThreadCount;
+    /**
+     * If not null, is notified of every decision made by the adaptive thread count (only used if enableAdaptiveThreadCount is set).
+     * This is called on an executor thread.
+     */
+    public IConcurrencyMetricsListener concurrencyMetricsListener;
     /**
      * Decides if debug data and names need to be preserved during deployment transformation.
      * Note that this must be set to false as a requirement of the security model but that prohibits local debugging.  Hence, it
@@ -30,14 +48,160 @@ public class AvmConfiguration {
      * Enabling this is only really useful when actively modifying the concurrent executor.
      */
     public boolean enableVerboseConcurrentExecutor;
+    /**
+     * If set to true, each incoming batch is partitioned by the static address conflicts of its transactions (sender and
+     * destination) before it is run, and a transaction is only handed to an executor thread once every earlier transaction it
+     * conflicts with has committed.  This avoids most of the aborts seen on highly connected blocks.
+     * If false, transactions are handed out in index order, as soon as a thread is available, and conflicts are only discovered
+     * (and resolved by aborts) at runtime.
+     */
+    public boolean enableDependencyAwareScheduling;
+    /**
+     * If set to true, the transactions of each sender are all placed in the queue of a single executor thread, in nonce order, and
+     * another thread only takes one of them once no other transaction of that sender is queued or running.  This keeps several
+     * threads from taking them concurrently only to conflict on the sender, which helps blocks where a few senders submit many
+     * transactions.  Only the placement changes:  each transaction is still run and committed on its own, may be interleaved with
+     * those of other senders, and shares nothing else with the rest of its sender's transactions.
+     * This is ignored if enableDependencyAwareScheduling is set, since that already never runs transactions of the same sender
+     * concurrently.
+     */
+    public boolean enableSenderChainScheduling;
+    /**
+     * If set to true, transactions are run optimistically:  they don't acquire the addresses they touch but record every value they
+     * read and, once every earlier transaction in the batch has committed, are validated against the committed state.  A
+     * transaction which read stale data is aborted and re-run, so the results are still those of serial execution.
+     * This is faster on blocks with few conflicts but wastes more work on highly connected ones.
+     * If false, transactions acquire the addresses they touch, at runtime, and abort later transactions holding them.
+     */
+    public boolean enableOptimisticExecution;
+    /**
+     * If set to true, a new batch can be passed to run() before every result of the previous batch has been consumed.  The new
+     * batch starts executing immediately, speculatively on top of the state of the batches still in flight, and its transactions
+     * only commit once every earlier batch has committed.  Any transaction which read state that an earlier batch later changed is
+     * re-run.
+     * Note that the kernel passed for a batch must observe the commits of the batches still in flight (it is either the same
+     * kernel or a child of it) and the kernels of in-flight batches must not be modified outside the AVM.
+     * If false, every result of a batch must be consumed before the next batch can be passed to run().
+     */
+    public boolean enablePipelinedExecution;
+    /**
+     * If set to true, the DApps called by a batch are loaded into the DApp cache (and their object graphs read), on a separate pool
+     * of prefetchThreadCount threads, as soon as the batch is submitted, so that the executor threads find them ready.
+     * This is read-only and has no effect on the results or the energy billed.
+     * Note that the kernel passed to run() must tolerate being read from another thread while the batch runs (the same requirement
+     * the executor threads already impose).
+     */
+    public boolean enablePrefetch;
+    /**
+     * If set to true, a committing transaction only enqueues its writes, which a dedicated committer thread then applies to the
+     * kernel, in order.  The executor threads move on to their next transaction immediately, only waiting for the write-back when
+     * they read an address which still has writes in the queue.  This helps when the kernel is slow to write (writing through to
+     * a database, for example).
+     * Note that the writes of a batch are only guaranteed to be visible in the kernel passed to run() once the last result of the
+     * batch is available.  The kernel must tolerate being read by the executor threads while the committer thread writes to it.
+     * If false, each transaction writes back to the kernel as it commits.
+     */
+    public boolean enableAsynchronousCommit;
+    /**
+     * The number of threads used to prefetch DApps, if enablePrefetch is set.
+     */
+    public int prefetchThreadCount;
+    /**
+     * If set to true, the storage values read by a block are remembered (as are the keys found to be absent), so that a key read by
+     * many of its transactions is only read from the kernel once.  Writes committed by the block update what is remembered.
+     * Note that the kernel passed to run() must not be modified outside the AVM while the batch runs.
+     * The cache is replaced at the start of each block (it is shared by pipelined batches committing to the same kernel).
+     */
+    public boolean enableStorageReadCache;
+    /**
+     * The maximum number of storage keys remembered by the cache, if enableStorageReadCache is set (the least recently used are
+     * evicted first).
+     */
+    public int storageReadCacheSize;
+    /**
+     * If set to true and the kernel passed to run() is an IWriteBatchKernel (such as TestingKernel), every write committed by a batch
+     * is held back by the kernel and written to its store as one batch once the last transaction of the batch commits.  Only the
+     * final value of each thing written is stored, so a key written by many transactions of a block is only written once.
+     * Reads during the batch still see every commit made so far.
+     * Note that, if pipelining, the batches in flight together are written as one (the writes of a batch are only stored once no
+     * later batch is still running).
+     * If false, each transaction writes to the kernel's store as it commits.
+     */
+    public boolean enableGroupCommit;
+    /**
+     * If set to true, saving a DApp's object graph reuses its unchanged instances:  the encoding of each instance which wasn't written
+     * by the call is copied from the graph which was loaded, instead of walking the instance's fields again.
+     * This only reduces the CPU spent serializing the graph:  the entire graph is still written to the kernel after each call, and
+     * billed by its full size, exactly as if this were false (the saved graph is identical either way).
+     * Note that this relies on the write barrier which is only compiled into DApps deployed since it was introduced:  the graph of a
+     * DApp deployed before then is always serialized again (apart from any stubs it never used, if it was loaded lazily).
+     * If false, the entire graph is serialized again after each call.
+     */
+    public boolean enableUnchangedInstanceReuse;
+    /**
+     * If set to true, a DApp's object graph is loaded lazily:  the DApp's own instances and reference arrays are only created when the
+     * graph is loaded, and each is populated from the graph when the call first uses it.  The cost of populating the graph then
+     * depends on how much of it the call touches, rather than on its size.  Any instance never used is copied, as it was, when the
+     * graph is saved.  What is billed for reading and writing the graph is unchanged.
+     * Note that the graph is still walked once, when it is loaded, to create its instances (the format doesn't say where each starts).
+     * If false, every instance is populated when the graph is loaded.
+     */
+    public boolean enableLazyGraphLoading;
+    /**
+     * The block number of the fork from which DApps save their object graphs in the compact format:  each class name is stored once,
+     * in a table at the start of the graph, and the primitives and references are variable-length.  Graphs of many small instances are
+     * much smaller this way (which is also cheaper, since reading and writing the graph is billed by its size).
+     * The format is decided by the block the DApp is deployed in and recorded with its code, and its graph is always saved and read in
+     * that format, so DApps deployed before the fork keep the original format.
+     * Note that this is a protocol rule, not a local option:  the format changes the stored code and graphs, and the energy billed for
+     * them, so every node on a network must use the same fork schedule.
+     * Long.MAX_VALUE means the fork isn't scheduled (every DApp uses the original format).
+     */
+    public long compactGraphEncodingBlockNumber;
+    /**
+     * The block number of the fork from which the compact graphs of DApps deployed in it, or later, are also compressed before they
+     * are saved (unless that doesn't make them any smaller).  The compression is implemented in Java, so the result is the same on
+     * every node.
+     * This only applies to DApps which use the compact format (see compactGraphEncodingBlockNumber) and is a protocol rule in the same way.
+     * Long.MAX_VALUE means the fork isn't scheduled.
+     */
+    public long graphCompressionBlockNumber;
 
     public AvmConfiguration() {
         // 4 threads is generally a safe, yet useful, number.
         this.threadCount = 4;
+        // By default, we always use every thread (and, if adaptive, we still keep at least 1).
+        this.enableAdaptiveThreadCount = false;
+        this.minThreadCount = 1;
+        this.concurrencyMetricsListener = null;
         // By default, we MUST reparent user code and discard debug data!  This is part of the security model so it should only be enabled to enable local contract debugging.
         this.preserveDebuggability = false;
         // By default, none of our verbose options are enabled.
         this.enableVerboseContractErrors = false;
         this.enableVerboseConcurrentExecutor = false;
+        // By default, we use first-come scheduling.
+        this.enableDependencyAwareScheduling = false;
+        this.enableSenderChainScheduling = false;
+        // By default, we acquire addresses pessimistically.
+        this.enableOptimisticExecution = false;
+        // By default, batches are run in lock-step.
+        this.enablePipelinedExecution = false;
+        // By default, executor threads load everything they need on demand (a couple of threads is enough to prefetch, if enabled).
+        this.enablePrefetch = false;
+        this.prefetchThreadCount = 2;
+        // By default, the committing executor thread writes back to the kernel itself.
+        this.enableAsynchronousCommit = false;
+        // By default, every storage read goes to the kernel (if enabled, the cache is large enough for the hot keys of a big block).
+        this.enableStorageReadCache = false;
+        this.storageReadCacheSize = 16 * 1024;
+        // By default, each commit is written to the kernel's store as it happens.
+        this.enableGroupCommit = false;
+        // By default, the entire graph is serialized after each call (older DApps don't have the write barrier).
+        this.enableUnchangedInstanceReuse = false;
+        // By default, the entire graph is populated when it is loaded.
+        this.enableLazyGraphLoading = false;
+        // By default, the graph encoding forks aren't scheduled, so graphs are saved in the original format.
+        this.compactGraphEncodingBlockNumber = Long.MAX_VALUE;
+        this.graphCompressionBlockNumber = Long.MAX_VALUE;
     }
 }
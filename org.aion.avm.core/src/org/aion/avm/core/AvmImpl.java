@@ -8,8 +8,17 @@ import java.lang.ref.SoftReference;
 import java.math.BigInteger;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 
+import org.aion.avm.core.persistence.GraphBuffers;
+import org.aion.avm.core.persistence.GraphEncoding;
 import org.aion.avm.core.persistence.LoadedDApp;
 import org.aion.avm.core.util.ByteArrayWrapper;
 import org.aion.avm.core.util.SoftCache;
@@ -18,8 +27,14 @@ import org.aion.avm.internal.IInstrumentationFactory;
 import org.aion.avm.internal.InstrumentationHelpers;
 import org.aion.avm.internal.JvmError;
 import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.parallel.AdaptiveThreadCountController;
 import org.aion.parallel.AddressResourceMonitor;
+import org.aion.parallel.BatchStatistics;
+import org.aion.parallel.DependencyAwareTaskScheduler;
+import org.aion.parallel.ITaskScheduler;
+import org.aion.parallel.OptimisticResourceMonitor;
 import org.aion.parallel.TransactionTask;
+import org.aion.parallel.WorkStealingTaskScheduler;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.KernelInterface;
 import org.aion.vm.api.interfaces.SimpleFuture;
@@ -41,10 +56,31 @@ public class AvmImpl implements AvmInternal {
     // Long-lived state which is book-ended by the startup/shutdown calls.
     private static AvmImpl currentAvm;  // (only here for testing - makes sure that we properly clean these up between invocations)
     private SoftCache<ByteArrayWrapper, LoadedDApp> hotCache;
+    // Shared by every DApp with the same code (unlike the hotCache, which holds one DApp per address).
+    private ImmortalDappModuleCache moduleCache;
     private HandoffMonitor handoff;
-
-    // Short-lived state which is reset for each batch of transaction request.
+    // Null if prefetch isn't enabled.
+    private DAppPrefetcher prefetcher;
+    // Null if commits are written back synchronously.
+    private WriteBackPipeline writeBackPipeline;
+    // The storage cache of the current block and the kernel it reads (only used if enableStorageReadCache).
+    private StorageCachingKernel storageCache;
+    private KernelInterface storageCachedKernel;
+    // Null until the first batch is run with a result consumer.
+    private ExecutorService resultDeliveryThread;
+
+    // Short-lived state which is reset for each batch of transaction request (or, if pipelining, once no batch is in flight).
     private AddressResourceMonitor resourceMonitor;
+    private volatile BatchStatistics batchStatistics;
+    private final ConcurrentHashMap<Long, BatchStatistics> inFlightStatistics;
+    // The kernel holding back the writes of each batch in flight (only if enableGroupCommit and the kernel supports it).
+    private final ConcurrentHashMap<Long, IWriteBatchKernel> openWriteBatches;
+    private long nextBatchId;
+    private long nextCommitSequence;
+    // Shared by the kernels of all pipelined batches since a later batch may read state an earlier one is committing to.
+    private final ReadWriteLock pipelineKernelLock;
+    // Null if the thread count isn't adaptive.
+    private final AdaptiveThreadCountController threadCountController;
 
     // Used in the case of a fatal JvmError in the background threads.  A shutdown() is the only option from this point.
     private AvmFailedException backgroundFatalError;
@@ -53,6 +89,21 @@ public class AvmImpl implements AvmInternal {
     private final boolean preserveDebuggability;
     private final boolean enableVerboseContractErrors;
     private final boolean enableVerboseConcurrentExecutor;
+    private final boolean enableDependencyAwareScheduling;
+    private final boolean enableSenderChainScheduling;
+    private final boolean enableOptimisticExecution;
+    private final boolean enablePipelinedExecution;
+    private final boolean enablePrefetch;
+    private final int prefetchThreadCount;
+    private final boolean enableAsynchronousCommit;
+    private final boolean enableStorageReadCache;
+    private final int storageReadCacheSize;
+    private final boolean enableGroupCommit;
+    private final boolean enableUnchangedInstanceReuse;
+    private final boolean enableLazyGraphLoading;
+    // The forks from which newly deployed DApps save their graphs in the compact format, and compress them (see graphEncodingForBlock()).
+    private final long compactGraphEncodingBlockNumber;
+    private final long graphCompressionBlockNumber;
 
     public AvmImpl(IInstrumentationFactory instrumentationFactory, IExternalCapabilities capabilities, AvmConfiguration configuration) {
         this.instrumentationFactory = instrumentationFactory;
@@ -62,9 +113,40 @@ public class AvmImpl implements AvmInternal {
             throw new IllegalArgumentException("Thread count must be a positive integer");
         }
         this.threadCount = configuration.threadCount;
+        if (configuration.enableAdaptiveThreadCount) {
+            if ((configuration.minThreadCount < 1) || (configuration.minThreadCount > configuration.threadCount)) {
+                throw new IllegalArgumentException("Minimum thread count must be a positive integer no greater than the thread count");
+            }
+            this.threadCountController = new AdaptiveThreadCountController(configuration.minThreadCount, configuration.threadCount, configuration.concurrencyMetricsListener);
+        } else {
+            this.threadCountController = null;
+        }
         this.preserveDebuggability = configuration.preserveDebuggability;
         this.enableVerboseContractErrors = configuration.enableVerboseContractErrors;
         this.enableVerboseConcurrentExecutor = configuration.enableVerboseConcurrentExecutor;
+        this.enableDependencyAwareScheduling = configuration.enableDependencyAwareScheduling;
+        this.enableSenderChainScheduling = configuration.enableSenderChainScheduling;
+        this.enableOptimisticExecution = configuration.enableOptimisticExecution;
+        this.enablePipelinedExecution = configuration.enablePipelinedExecution;
+        if (configuration.enablePrefetch && (configuration.prefetchThreadCount < 1)) {
+            throw new IllegalArgumentException("Prefetch thread count must be a positive integer");
+        }
+        this.enablePrefetch = configuration.enablePrefetch;
+        this.prefetchThreadCount = configuration.prefetchThreadCount;
+        this.enableAsynchronousCommit = configuration.enableAsynchronousCommit;
+        if (configuration.enableStorageReadCache && (configuration.storageReadCacheSize < 1)) {
+            throw new IllegalArgumentException("Storage read cache size must be a positive integer");
+        }
+        this.enableStorageReadCache = configuration.enableStorageReadCache;
+        this.storageReadCacheSize = configuration.storageReadCacheSize;
+        this.enableGroupCommit = configuration.enableGroupCommit;
+        this.enableUnchangedInstanceReuse = configuration.enableUnchangedInstanceReuse;
+        this.enableLazyGraphLoading = configuration.enableLazyGraphLoading;
+        this.compactGraphEncodingBlockNumber = configuration.compactGraphEncodingBlockNumber;
+        this.graphCompressionBlockNumber = configuration.graphCompressionBlockNumber;
+        this.inFlightStatistics = new ConcurrentHashMap<>();
+        this.openWriteBatches = new ConcurrentHashMap<>();
+        this.pipelineKernelLock = new ReentrantReadWriteLock();
     }
 
     private class AvmExecutorThread extends Thread{
@@ -77,12 +159,16 @@ public class AvmImpl implements AvmInternal {
         public void run() {
             IInstrumentation instrumentation = AvmImpl.this.instrumentationFactory.createInstrumentation();
             InstrumentationHelpers.attachThread(instrumentation);
+            // Graphs are serialized into buffers this thread keeps for every transaction it runs.
+            GraphBuffers graphBuffers = new GraphBuffers();
             try {
                 // Run as long as we have something to do (null means shutdown).
                 AvmTransactionResult outgoingResult = null;
                 TransactionTask incomingTask = AvmImpl.this.handoff.blockingPollForTransaction(null, null);
                 while (null != incomingTask) {
                     int abortCounter = 0;
+                    // Note that the statistics are published before the tasks of a batch are handed out and only dropped once its last task commits.
+                    BatchStatistics statistics = AvmImpl.this.inFlightStatistics.get(incomingTask.getBatchId());
 
                     do {
                         if (AvmImpl.this.enableVerboseConcurrentExecutor) {
@@ -91,7 +177,7 @@ public class AvmImpl implements AvmInternal {
 
                         // TODO (AKI-112):  Determine if we can coalesce the IInstrumentation and TransactionTask to avoid this attach/detach.
                         incomingTask.startNewTransaction();
-                        incomingTask.attachInstrumentationForThread();
+                        incomingTask.attachInstrumentationForThread(graphBuffers);
                         outgoingResult = AvmImpl.this.backgroundProcessTransaction(incomingTask);
                         incomingTask.detachInstrumentationForThread();
 
@@ -100,12 +186,29 @@ public class AvmImpl implements AvmInternal {
                             // this is the point where that is "handled".
                             // Note that this is safe to do here since the instrumentation isn't exposed to any other threads.
                             instrumentation.clearAbortState();
+                            statistics.recordAbort();
                             
                             if (AvmImpl.this.enableVerboseConcurrentExecutor) {
                                 System.out.println(this.getName() + " abort  " + incomingTask.getIndex() + " counter " + (++abortCounter));
                             }
                         }
                     }while (AvmTransactionResult.Code.FAILED_ABORT == outgoingResult.getResultCode());
+                    if (statistics.recordCommit(incomingTask)) {
+                        // The caller can read the kernel once it has the last result of the batch so everything must be written back first.
+                        if (null != AvmImpl.this.writeBackPipeline) {
+                            AvmImpl.this.writeBackPipeline.flush();
+                        }
+                        // Every write of the batch is now in the kernel so it can store them (in one batch).
+                        IWriteBatchKernel writeBatch = AvmImpl.this.openWriteBatches.remove(incomingTask.getBatchId());
+                        if (null != writeBatch) {
+                            writeBatch.commitWriteBatch();
+                        }
+                        AvmImpl.this.inFlightStatistics.remove(incomingTask.getBatchId());
+                        // This is the last commit of the batch so decide how many threads the following batches should use.
+                        if (null != AvmImpl.this.threadCountController) {
+                            AvmImpl.this.threadCountController.batchCompleted(statistics);
+                        }
+                    }
 
                     if (AvmImpl.this.enableVerboseConcurrentExecutor) {
                         System.out.println(this.getName() + " finish " + incomingTask.getIndex() + " " + outgoingResult.getResultCode());
@@ -139,17 +242,34 @@ public class AvmImpl implements AvmInternal {
         
         RuntimeAssertionError.assertTrue(null == this.hotCache);
         this.hotCache = new SoftCache<>();
+        RuntimeAssertionError.assertTrue(null == this.moduleCache);
+        this.moduleCache = new ImmortalDappModuleCache();
+
+        RuntimeAssertionError.assertTrue(null == this.prefetcher);
+        if (this.enablePrefetch) {
+            this.prefetcher = new DAppPrefetcher(this.hotCache, this.moduleCache, this.prefetchThreadCount, this.preserveDebuggability);
+        }
+
+        RuntimeAssertionError.assertTrue(null == this.writeBackPipeline);
+        if (this.enableAsynchronousCommit) {
+            this.writeBackPipeline = new WriteBackPipeline();
+        }
 
         RuntimeAssertionError.assertTrue(null == this.resourceMonitor);
-        this.resourceMonitor = new AddressResourceMonitor();
+        this.resourceMonitor = this.enableOptimisticExecution
+                ? new OptimisticResourceMonitor()
+                : new AddressResourceMonitor();
 
         Set<Thread> executorThreads = new HashSet<>();
         for (int i = 0; i < this.threadCount; i++){
             executorThreads.add(new AvmExecutorThread("AVM Executor Thread " + i));
         }
 
+        ITaskScheduler scheduler = this.enableDependencyAwareScheduling
+                ? new DependencyAwareTaskScheduler()
+                : new WorkStealingTaskScheduler(this.threadCount, this.enableSenderChainScheduling);
         RuntimeAssertionError.assertTrue(null == this.handoff);
-        this.handoff = new HandoffMonitor(executorThreads);
+        this.handoff = new HandoffMonitor(executorThreads, scheduler, this.enablePipelinedExecution);
         this.handoff.startExecutorThreads();
     }
 
@@ -158,8 +278,17 @@ public class AvmImpl implements AvmInternal {
         if (null != this.backgroundFatalError) {
             throw this.backgroundFatalError;
         }
-        // Clear the states of resources
-        this.resourceMonitor.clear();
+        // If an earlier batch is still in flight, this batch runs speculatively on top of its (not yet fully committed) state.
+        boolean isSpeculative = this.enablePipelinedExecution && this.handoff.hasBatchesInFlight();
+        if (!isSpeculative) {
+            // Clear the states of resources (when pipelining, the commit order continues across the batches in flight).
+            this.resourceMonitor.clear();
+            this.nextCommitSequence = 0L;
+            // This is also the only point where no task is running so we can apply the latest thread count decision.
+            if (null != this.threadCountController) {
+                this.handoff.setActiveThreadCount(this.threadCountController.getActiveThreadCount());
+            }
+        }
 
         // Clear the hot cache
         if (transactions.length > 0) {
@@ -169,15 +298,110 @@ public class AvmImpl implements AvmInternal {
         
         // Filter these transactions into the safe kind we use internally (the type passed in may not be well-formed).
         AvmTransaction[] safeTransactions = checkTransactions(transactions);
+        // In optimistic or pipelined mode, the kernel is read by some executor threads while others commit to it so every access must be atomic.
+        KernelInterface sharedKernel = kernel;
+        if (this.enablePipelinedExecution) {
+            sharedKernel = new LockingKernel(kernel, this.pipelineKernelLock);
+        } else if (this.enableOptimisticExecution) {
+            sharedKernel = new LockingKernel(kernel);
+        }
+        // Commits into the kernel are only enqueued if there is a committer thread to apply them.
+        if (null != this.writeBackPipeline) {
+            sharedKernel = new WriteBehindKernel(sharedKernel, this.writeBackPipeline);
+        }
+        // The cache goes on top so that it is updated as soon as a commit is enqueued (the commits of a block all pass through it).
+        if (this.enableStorageReadCache) {
+            if (!isSpeculative) {
+                this.storageCache = new StorageCachingKernel(sharedKernel, this.storageReadCacheSize);
+                this.storageCachedKernel = kernel;
+            }
+            // A speculative batch can only share the cache if it commits to the same kernel (a child would leave the cache stale).
+            if (kernel == this.storageCachedKernel) {
+                sharedKernel = this.storageCache;
+            }
+        }
+        // Start warming the DApps this batch will call while the tasks are being created and handed out.
+        if (null != this.prefetcher) {
+            this.prefetcher.prefetch(sharedKernel, safeTransactions);
+        }
+        // Speculative tasks track what they read so that they are re-run if the earlier batch didn't end in the state they observed.
+        boolean trackReadSet = this.enableOptimisticExecution || isSpeculative;
         // Create tasks for these new transactions and send them off to be asynchronously executed.
+        long batchId = this.nextBatchId++;
+        // The kernel holds back every write the batch commits until its last transaction has committed (an empty batch has no such point).
+        if (this.enableGroupCommit && (kernel instanceof IWriteBatchKernel) && (transactions.length > 0)) {
+            IWriteBatchKernel writeBatch = (IWriteBatchKernel) kernel;
+            writeBatch.beginWriteBatch();
+            this.openWriteBatches.put(batchId, writeBatch);
+        }
         TransactionTask[] tasks = new TransactionTask[transactions.length];
         for (int i = 0; i < transactions.length; i++){
-            tasks[i] = new TransactionTask(kernel, safeTransactions[i], i, safeTransactions[i].senderAddress);
+            tasks[i] = new TransactionTask(sharedKernel, safeTransactions[i], i, safeTransactions[i].senderAddress, batchId, this.nextCommitSequence + i);
+            if (trackReadSet) {
+                tasks[i].enableReadSetTracking();
+            }
         }
+        this.nextCommitSequence += tasks.length;
 
+        // Publish the statistics before the hand-off so the executor threads always see the instance for the tasks they receive.
+        BatchStatistics statistics = new BatchStatistics(tasks.length);
+        this.inFlightStatistics.put(batchId, statistics);
+        this.batchStatistics = statistics;
         return this.handoff.sendTransactionsAsynchronously(tasks);
     }
 
+    /**
+     * Runs the given transactions just like {@link #run(KernelInterface, TransactionInterface[])} but, instead of returning a future
+     * for each result, passes each result to the given consumer as soon as that transaction has committed (see
+     * {@link IResultConsumer}).  This returns as soon as the transactions have been handed off.
+     * 
+     * Unless pipelining is enabled, the next batch can only be run once the returned stage has completed.
+     * 
+     * @param kernel The kernel to run the transactions against.
+     * @param transactions The transactions to run.
+     * @param consumer Receives each result, in index order.
+     * @return A stage which completes once every result has been delivered (exceptionally if the batch failed or the consumer threw,
+     * in which case no further results are delivered).
+     */
+    public CompletionStage<Void> run(KernelInterface kernel, TransactionInterface[] transactions, IResultConsumer consumer) throws IllegalStateException {
+        SimpleFuture<TransactionResult>[] results = run(kernel, transactions);
+        if (null == this.resultDeliveryThread) {
+            this.resultDeliveryThread = Executors.newSingleThreadExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "AVM Result Delivery Thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        // The delivery thread consumes the results in order, just as the external thread would, so each result is delivered as soon as it is published.
+        CompletableFuture<Void> delivered = new CompletableFuture<>();
+        this.resultDeliveryThread.execute(() -> {
+            Throwable consumerFailure = null;
+            try {
+                for (int i = 0; i < results.length; ++i) {
+                    // Every result is consumed, even once the consumer has failed, so that the batch is no longer in flight.
+                    TransactionResult result = results[i].get();
+                    if (null == consumerFailure) {
+                        try {
+                            consumer.resultAvailable(i, result);
+                        } catch (Throwable t) {
+                            consumerFailure = t;
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                // The batch itself failed (this is also reported by the next call to run() or shutdown()).
+                delivered.completeExceptionally(t);
+                return;
+            }
+            if (null != consumerFailure) {
+                delivered.completeExceptionally(consumerFailure);
+            } else {
+                delivered.complete(null);
+            }
+        });
+        return delivered;
+    }
+
     private AvmTransaction[] checkTransactions(TransactionInterface[] transactions) {
         AvmTransaction[] result = new AvmTransaction[transactions.length];
         for (int i = 0; i < result.length; ++i) {
@@ -259,9 +483,29 @@ public class AvmImpl implements AvmInternal {
             errorDuringShutdown = e;
         }
         this.handoff = null;
+        if (null != this.prefetcher) {
+            this.prefetcher.shutdown();
+            this.prefetcher = null;
+        }
+        if (null != this.writeBackPipeline) {
+            try {
+                this.writeBackPipeline.shutdown();
+            } catch (RuntimeException e) {
+                exceptionDuringShutdown = (null != exceptionDuringShutdown) ? exceptionDuringShutdown : e;
+            } catch (Error e) {
+                errorDuringShutdown = (null != errorDuringShutdown) ? errorDuringShutdown : e;
+            }
+            this.writeBackPipeline = null;
+        }
+        if (null != this.resultDeliveryThread) {
+            // The caller is expected to have waited for its deliveries so this is just idle (and a daemon, in case it isn't).
+            this.resultDeliveryThread.shutdown();
+            this.resultDeliveryThread = null;
+        }
         RuntimeAssertionError.assertTrue(this == AvmImpl.currentAvm);
         AvmImpl.currentAvm = null;
         this.hotCache = null;
+        this.moduleCache = null;
         
         // Note that we don't want to hide the background exception, if one happened, but we do want to complete the shutdown, so we do this at the end.
         if (null != errorDuringShutdown) {
@@ -301,7 +545,7 @@ public class AvmImpl implements AvmInternal {
         Address sender = tx.senderAddress;
         long energyPrice = tx.energyPrice;
         BigInteger value = tx.value;
-        BigInteger transactionCost = BigInteger.valueOf(tx.energyLimit).multiply(BigInteger.valueOf(energyPrice)).add(value);
+        BigInteger transactionCost = energyCost(tx.energyLimit, energyPrice).add(value);
         if (!parentKernel.accountBalanceIsAtLeast(sender, transactionCost)) {
             error = AvmTransactionResult.Code.REJECTED_INSUFFICIENT_BALANCE;
         }
@@ -318,17 +562,18 @@ public class AvmImpl implements AvmInternal {
          */
 
         // Deduct the total energy cost
-        parentKernel.adjustBalance(sender, BigInteger.valueOf(tx.energyLimit).multiply(BigInteger.valueOf(energyPrice).negate()));
+        // (the energy limit is positive, so negating it can't overflow)
+        parentKernel.adjustBalance(sender, energyCost(-tx.energyLimit, energyPrice));
 
         // Run the common logic with the parent kernel as the top-level one.
         AvmTransactionResult result = commonInvoke(parentKernel, task, tx, BillingRules.getBasicTransactionCost(tx.data));
 
         // Refund energy for transaction
-        BigInteger refund = BigInteger.valueOf(result.getEnergyRemaining()).multiply(BigInteger.valueOf(energyPrice));
+        BigInteger refund = energyCost(result.getEnergyRemaining(), energyPrice);
         parentKernel.refundAccount(sender, refund);
 
         // Transfer fees to miner
-        parentKernel.adjustBalance(parentKernel.getMinerAddress(), BigInteger.valueOf(result.getEnergyUsed()).multiply(BigInteger.valueOf(energyPrice)));
+        parentKernel.adjustBalance(parentKernel.getMinerAddress(), energyCost(result.getEnergyUsed(), energyPrice));
 
         if (!result.getResultCode().isSuccess()) {
             task.peekSideEffects().getExecutionLogs().clear();
@@ -367,7 +612,9 @@ public class AvmImpl implements AvmInternal {
 
         // do nothing for balance transfers of which the recipient is not a DApp address.
         if (tx.isCreate) {
-            DAppCreator.create(this.capabilities, thisTransactionKernel, this, task, tx, result, this.preserveDebuggability, this.enableVerboseContractErrors);
+            // (the graph encoding is a protocol rule, decided by the block the DApp is deployed in, and is then recorded with its code)
+            GraphEncoding graphEncoding = graphEncodingForBlock(thisTransactionKernel.getBlockNumber());
+            DAppCreator.create(this.capabilities, thisTransactionKernel, this, task, tx, result, this.preserveDebuggability, this.enableVerboseContractErrors, graphEncoding);
         } else { // call
             // See if this call is trying to reenter one already on this call-stack.  If so, we will need to partially resume its state.
             ReentrantDAppStack.ReentrantState stateToResume = task.getReentrantDAppStack().tryShareState(recipient);
@@ -378,7 +625,7 @@ public class AvmImpl implements AvmInternal {
             if ((null != stateToResume) && (null != thisTransactionKernel.getTransformedCode(recipient))) {
                 dapp = stateToResume.dApp;
                 // Call directly and don't interact with DApp cache (we are reentering the state, not the origin of it).
-                DAppExecutor.call(this.capabilities, thisTransactionKernel, this, dapp, stateToResume, task, tx, result, this.enableVerboseContractErrors);
+                DAppExecutor.call(this.capabilities, thisTransactionKernel, this, dapp, stateToResume, task, tx, result, this.enableVerboseContractErrors, this.enableUnchangedInstanceReuse, this.enableLazyGraphLoading);
             } else {
                 // If we didn't find it there (that is only for reentrant calls so it is rarely found in the stack), try the hot DApp cache.
                 ByteArrayWrapper addressWrapper = new ByteArrayWrapper(recipient.toBytes());
@@ -390,7 +637,7 @@ public class AvmImpl implements AvmInternal {
                 if (null == dapp) {
                     // If we didn't find it there, just load it.
                     try {
-                        dapp = DAppLoader.loadFromGraph(thisTransactionKernel.getTransformedCode(recipient), this.preserveDebuggability);
+                        dapp = DAppLoader.loadFromGraph(thisTransactionKernel.getTransformedCode(recipient), this.preserveDebuggability, this.moduleCache);
 
                         // If the dapp is freshly loaded, we set the block num
                         if (null != dapp){
@@ -403,10 +650,15 @@ public class AvmImpl implements AvmInternal {
                 }
                 // Run the call and, if successful, check this into the hot DApp cache.
                 if (null != dapp) {
-                    DAppExecutor.call(this.capabilities, thisTransactionKernel, this, dapp, stateToResume, task, tx, result, this.enableVerboseContractErrors);
+                    DAppExecutor.call(this.capabilities, thisTransactionKernel, this, dapp, stateToResume, task, tx, result, this.enableVerboseContractErrors, this.enableUnchangedInstanceReuse, this.enableLazyGraphLoading);
                     if (AvmTransactionResult.Code.SUCCESS == result.getResultCode()) {
                         dapp.cleanForCache();
-                        this.hotCache.checkin(addressWrapper, dapp);
+                        if (this.enableOptimisticExecution || (null != this.prefetcher)) {
+                            // Concurrent tasks (or the prefetcher) can load the same DApp (each with their own instance) so only the first one is cached.
+                            this.hotCache.checkinIfAbsent(addressWrapper, dapp);
+                        } else {
+                            this.hotCache.checkin(addressWrapper, dapp);
+                        }
                     }
                 }
             }
@@ -420,6 +672,25 @@ public class AvmImpl implements AvmInternal {
         return result;
     }
 
+    /**
+     * Returns the execution statistics (abort count and wall time) of the most recent batch passed to run().
+     * Note that these are only final once every result of that batch has been consumed.
+     *
+     * @return The statistics of the last batch, or null if no batch has been run.
+     */
+    public BatchStatistics getLastBatchStatistics() {
+        return this.batchStatistics;
+    }
+
+    /**
+     * Returns the storage cache of the current block, which reports how many storage reads it answered (and how many it missed).
+     *
+     * @return The storage cache used by the most recent batch passed to run(), or null if enableStorageReadCache isn't set.
+     */
+    public StorageCachingKernel getStorageCache() {
+        return this.storageCache;
+    }
+
     @Override
     public AddressResourceMonitor getResourceMonitor() {
         if (null != this.backgroundFatalError) {
@@ -428,6 +699,29 @@ public class AvmImpl implements AvmInternal {
         return resourceMonitor;
     }
 
+    private static BigInteger energyCost(long energy, long energyPrice) {
+        // This is computed on every transaction so only fall back to multiplying BigIntegers if the product doesn't fit in a long.
+        long high = Math.multiplyHigh(energy, energyPrice);
+        long low = energy * energyPrice;
+        return (high == (low >> 63))
+                ? BigInteger.valueOf(low)
+                : BigInteger.valueOf(energy).multiply(BigInteger.valueOf(energyPrice));
+    }
+
+    /**
+     * @param blockNumber The block a DApp is being deployed in.
+     * @return The format the DApp will save its graph in, under the graph encoding forks.
+     */
+    private GraphEncoding graphEncodingForBlock(long blockNumber) {
+        GraphEncoding encoding = GraphEncoding.ORIGINAL;
+        if (blockNumber >= this.compactGraphEncodingBlockNumber) {
+            encoding = (blockNumber >= this.graphCompressionBlockNumber)
+                    ? GraphEncoding.COMPACT_COMPRESSED
+                    : GraphEncoding.COMPACT;
+        }
+        return encoding;
+    }
+
     private void validateCodeCache(long blockNum){
         Predicate<SoftReference<LoadedDApp>> condition = (v) -> null != v.get() && v.get().getLoadedBlockNum() >= blockNum;
         this.hotCache.removeValueIf(condition);
@@ -16,6 +16,8 @@ import org.aion.avm.core.miscvisitors.PreRenameClassAccessRules;
 import org.aion.avm.core.miscvisitors.StrictFPVisitor;
 import org.aion.avm.core.miscvisitors.UserClassMappingVisitor;
 import org.aion.avm.core.persistence.AutomaticGraphVisitor;
+import org.aion.avm.core.persistence.GraphCodecVisitor;
+import org.aion.avm.core.persistence.GraphEncoding;
 import org.aion.avm.core.persistence.LoadedDApp;
 import org.aion.avm.core.rejection.MainMethodChecker;
 import org.aion.avm.core.rejection.RejectedClassException;
@@ -163,9 +165,12 @@ public class DAppCreator {
         }
 
         String javaLangObjectSlashName = PackageConstants.kShadowSlashPrefix + "java/lang/Object";
+        // This is also where we generate the graph serialization code, since no later pass changes the fields (see GraphCodecVisitor).
+        Set<String> instanceCodecClassSlashNames = findInstanceCodecClasses(transformedClasses, javaLangObjectSlashName);
         for (String name : transformedClasses.keySet()) {
             byte[] bytecode = new ClassToolchain.Builder(transformedClasses.get(name), parsingOptions)
                     .addNextVisitor(new InterfaceFieldMappingVisitor(generatedClassesSink, userInterfaceSlashNames, javaLangObjectSlashName))
+                    .addNextVisitor(new GraphCodecVisitor(instanceCodecClassSlashNames))
                     .addWriter(new TypeAwareClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, classHierarchy, preserveDebuggability))
                     .build()
                     .runAndGetBytecode();
@@ -176,7 +181,33 @@ public class DAppCreator {
         return processedClasses;
     }
 
-    public static void create(IExternalCapabilities capabilities, KernelInterface kernel, AvmInternal avm, TransactionTask task, AvmTransaction tx, AvmTransactionResult result, boolean preserveDebuggability, boolean verboseErrors) {
+    /**
+     * Finds the classes which can have generated instance serialization code:  those whose superclasses, up to the shadow Object, are
+     * all DApp classes (the others are left to the automatic implementation, see GraphCodecVisitor).
+     * 
+     * @param transformedClasses The transformed DApp classes, by .-style name.
+     * @param shadowObjectSlashName The /-style name of the shadow Object.
+     * @return The /-style names of these classes.
+     */
+    private static Set<String> findInstanceCodecClasses(Map<String, byte[]> transformedClasses, String shadowObjectSlashName) {
+        Map<String, String> superClassSlashNames = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : transformedClasses.entrySet()) {
+            superClassSlashNames.put(Helpers.fulllyQualifiedNameToInternalName(entry.getKey()), new ClassReader(entry.getValue()).getSuperName());
+        }
+        Set<String> instanceCodecClassSlashNames = new HashSet<>();
+        for (String classSlashName : superClassSlashNames.keySet()) {
+            String superClassSlashName = superClassSlashNames.get(classSlashName);
+            while (superClassSlashNames.containsKey(superClassSlashName)) {
+                superClassSlashName = superClassSlashNames.get(superClassSlashName);
+            }
+            if (shadowObjectSlashName.equals(superClassSlashName)) {
+                instanceCodecClassSlashNames.add(classSlashName);
+            }
+        }
+        return instanceCodecClassSlashNames;
+    }
+
+    public static void create(IExternalCapabilities capabilities, KernelInterface kernel, AvmInternal avm, TransactionTask task, AvmTransaction tx, AvmTransactionResult result, boolean preserveDebuggability, boolean verboseErrors, GraphEncoding graphEncoding) {
         // Expose the DApp outside the try so we can detach from it, when we exit.
         LoadedDApp dapp = null;
         try {
@@ -218,7 +249,7 @@ public class DAppCreator {
             Map<String, byte[]> transformedClasses = transformClasses(rawDapp.classes, dappClassesForest, rawDapp.classHierarchy, preserveDebuggability);
             TransformedDappModule transformedDapp = TransformedDappModule.fromTransformedClasses(transformedClasses, rawDapp.mainClass);
 
-            dapp = DAppLoader.fromTransformed(transformedDapp, preserveDebuggability);
+            dapp = DAppLoader.fromTransformed(transformedDapp, preserveDebuggability, graphEncoding);
             
             // We start the nextHashCode at 1.
             int nextHashCode = 1;
@@ -244,7 +275,8 @@ public class DAppCreator {
                         .runAndGetBytecode();
                 immortalClasses.put(className, immortalClass);
             }
-            ImmortalDappModule immortalDapp = ImmortalDappModule.fromImmortalClasses(immortalClasses, transformedDapp.mainClass);
+            // (the DApp's graph is saved in this AVM's format from now on, so it is recorded with the code)
+            ImmortalDappModule immortalDapp = ImmortalDappModule.fromImmortalClasses(immortalClasses, transformedDapp.mainClass, graphEncoding);
 
             // store deployed code
             kernel.putCode(dappAddress, codeAndArguments.code);
@@ -256,7 +288,7 @@ public class DAppCreator {
             dapp.forceInitializeAllClasses();
 
             // Save back the state before we return.
-            byte[] rawGraphData = dapp.saveEntireGraph(threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE);
+            byte[] rawGraphData = dapp.saveEntireGraph(threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE, null, dapp.getGraphEncoding(), task.getGraphBuffers());
             // Bill for writing this size.
             threadInstrumentation.chargeEnergy(StorageFees.WRITE_PRICE_PER_BYTE * rawGraphData.length);
             kernel.putObjectGraph(dappAddress, rawGraphData);
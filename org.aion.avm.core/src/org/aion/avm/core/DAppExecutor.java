@@ -1,12 +1,17 @@
 package org.aion.avm.core;
 
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
 import org.aion.avm.RuntimeMethodFeeSchedule;
 import org.aion.avm.StorageFees;
+import org.aion.avm.core.persistence.GraphEncoding;
 import org.aion.avm.core.persistence.LoadedDApp;
 import org.aion.avm.core.persistence.ReentrantGraph;
 import org.aion.avm.core.util.Helpers;
 import org.aion.avm.internal.*;
 import org.aion.kernel.AvmTransactionResult;
+import org.aion.kernel.IObjectGraphReader;
 import org.aion.parallel.TransactionTask;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.KernelInterface;
@@ -20,13 +25,13 @@ public class DAppExecutor {
 
     public static void call(IExternalCapabilities capabilities, KernelInterface kernel, AvmInternal avm, LoadedDApp dapp,
                             ReentrantDAppStack.ReentrantState stateToResume, TransactionTask task,
-                            AvmTransaction tx, AvmTransactionResult result, boolean verboseErrors) {
+                            AvmTransaction tx, AvmTransactionResult result, boolean verboseErrors, boolean enableUnchangedInstanceReuse, boolean enableLazyGraphLoading) {
         Address dappAddress = tx.destinationAddress;
         
         // If this is a reentrant call, we need to serialize the graph of the parent frame.  This is required to both copy-back our changes but also
         // is required in case we want to revert the state.
         ReentrantGraph callerState = (null != stateToResume)
-                ? dapp.captureStateAsCaller(stateToResume.getNextHashCode(), StorageFees.MAX_GRAPH_SIZE)
+                ? dapp.captureStateAsCaller(stateToResume.getNextHashCode(), StorageFees.MAX_GRAPH_SIZE, task.getGraphBuffers())
                 : null;
         
         // Note that the instrumentation is just a per-thread access to the state stack - we can grab it at any time as it never changes for this thread.
@@ -38,10 +43,20 @@ public class DAppExecutor {
             : new InternedClasses();
 
         // We are now ready to load the graph (note that we can't do any billing until after we install the InstrumentationHelpers new stack frame).
-        byte[] rawGraphData = (null != callerState)
-                ? callerState.rawState
-                : kernel.getObjectGraph(dappAddress);
-        int nextHashCode = dapp.loadEntireGraph(initialClassWrappers, rawGraphData);
+        // (when the kernel allows it, the graph is read in place rather than copied out of the kernel)
+        ByteBuffer rawGraphData = (null != callerState)
+                ? ByteBuffer.wrap(callerState.rawState)
+                : IObjectGraphReader.readObjectGraph(kernel, dappAddress);
+        int graphLength = rawGraphData.remaining();
+        // (only a graph loaded from the kernel can have its unchanged instances reused, or be loaded lazily, since that is the only one saved back to it)
+        // (and only if the DApp was deployed with the write barrier, since that is what records the instances a call writes)
+        boolean keepGraphSnapshot = enableUnchangedInstanceReuse && dapp.hasWriteBarrier() && (null == callerState);
+        boolean loadGraphLazily = enableLazyGraphLoading && (null == callerState);
+        // (the stored graph is in the format recorded when the DApp was deployed, while the caller's state is always in the original format)
+        GraphEncoding rawGraphEncoding = (null != callerState)
+                ? GraphEncoding.ORIGINAL
+                : dapp.getGraphEncoding();
+        int nextHashCode = dapp.loadEntireGraph(initialClassWrappers, rawGraphData, rawGraphEncoding, keepGraphSnapshot, loadGraphLazily);
         
         // Note that we need to store the state of this invocation on the reentrant stack in case there is another call into the same app.
         // This is required so that the call() mechanism can access it to save/reload its ContractEnvironmentState and so that the underlying
@@ -51,12 +66,14 @@ public class DAppExecutor {
         task.getReentrantDAppStack().pushState(thisState);
         
         InstrumentationHelpers.pushNewStackFrame(dapp.runtimeSetup, dapp.loader, tx.energyLimit - result.getEnergyUsed(), nextHashCode, initialClassWrappers);
+        // (if the graph was loaded lazily, its stubs are populated by this loader when the DApp first uses them)
+        threadInstrumentation.attachInstanceLoader(dapp.getInstanceLoader());
         IBlockchainRuntime previousRuntime = dapp.attachBlockchainRuntime(new BlockchainRuntimeImpl(capabilities, kernel, avm, thisState, task, tx, tx.data, dapp.runtimeSetup));
 
         try {
             // It is now safe for us to bill for the cost of loading the graph (the cost is the same, whether this came from the caller or the disk).
             // (note that we do this under the try since aborts can happen here)
-            threadInstrumentation.chargeEnergy(StorageFees.READ_PRICE_PER_BYTE * rawGraphData.length);
+            threadInstrumentation.chargeEnergy(StorageFees.READ_PRICE_PER_BYTE * graphLength);
             
             // Call the main within the DApp.
             byte[] ret = dapp.callMain();
@@ -64,7 +81,7 @@ public class DAppExecutor {
             // Save back the state before we return.
             if (null != stateToResume) {
                 int updatedNextHashCode = threadInstrumentation.peekNextHashCode();
-                ReentrantGraph calleeState = dapp.captureStateAsCallee(updatedNextHashCode, StorageFees.MAX_GRAPH_SIZE);
+                ReentrantGraph calleeState = dapp.captureStateAsCallee(updatedNextHashCode, StorageFees.MAX_GRAPH_SIZE, task.getGraphBuffers());
                 // Bill for writing this size.
                 threadInstrumentation.chargeEnergy(StorageFees.WRITE_PRICE_PER_BYTE * calleeState.rawState.length);
                 // Now, commit this back into the callerState.
@@ -73,7 +90,11 @@ public class DAppExecutor {
                 stateToResume.updateNextHashCode(updatedNextHashCode);
             } else {
                 // We are at the "top" so write this back to disk.
-                byte[] postCallGraphData = dapp.saveEntireGraph(threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE);
+                // (any instance which wasn't written by this call, or any stub it never used, is copied from the graph we loaded, if we kept it and it is in the same format)
+                BitSet writtenInstances = (enableUnchangedInstanceReuse && dapp.hasWriteBarrier())
+                        ? threadInstrumentation.getWrittenInstances()
+                        : null;
+                byte[] postCallGraphData = dapp.saveEntireGraph(threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE, writtenInstances, dapp.getGraphEncoding(), task.getGraphBuffers());
                 // Bill for writing this size.
                 threadInstrumentation.chargeEnergy(StorageFees.WRITE_PRICE_PER_BYTE * postCallGraphData.length);
                 kernel.putObjectGraph(dappAddress, postCallGraphData);
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.persistence.GraphEncoding;
 import org.aion.avm.core.persistence.LoadedDApp;
 import org.aion.avm.core.types.ImmortalDappModule;
 import org.aion.avm.core.types.TransformedDappModule;
@@ -25,13 +26,28 @@ public class DAppLoader {
      * @throws IOException If there was a failure decoding the code from the kernel.
      */
     public static LoadedDApp loadFromGraph(byte[] immortalDappJar, boolean preserveDebuggability) throws IOException {
+        return loadFromGraph(immortalDappJar, preserveDebuggability, null);
+    }
+
+    /**
+     * Called to load an immortal DApp from the code storage provided by the kernel, reusing the parsed module of any other DApp with
+     * the same code.
+     * 
+     * @param immortalDappJar The contract jar.
+     * @param moduleCache The cache of parsed modules (null if the jar should always be parsed).
+     * @return The DApp instance, or NULL if not exist
+     * @throws IOException If there was a failure decoding the code from the kernel.
+     */
+    public static LoadedDApp loadFromGraph(byte[] immortalDappJar, boolean preserveDebuggability, ImmortalDappModuleCache moduleCache) throws IOException {
         // normal account or account with no code?
         if (immortalDappJar == null || immortalDappJar.length == 0) {
             return null;
         }
 
-        // parse the code
-        ImmortalDappModule app = ImmortalDappModule.readFromJar(immortalDappJar);
+        // parse the code (the module is only shared, not the class loader, since each DApp has its own static state)
+        ImmortalDappModule app = (null != moduleCache)
+                ? moduleCache.readFromJar(immortalDappJar)
+                : ImmortalDappModule.readFromJar(immortalDappJar);
         
         // We now need all the classes which will loaded within the class loader for this DApp (includes Helper and userlib classes we add).
         Map<String, byte[]> allClasses = Helpers.mapIncludingHelperBytecode(app.classes, Helpers.loadDefaultHelperBytecode());
@@ -44,16 +60,19 @@ public class DAppLoader {
         List<Class<?>> aphabeticalContractClasses = Helpers.getAlphabeticalUserTransformedDappClasses(classLoader, app.classes.keySet());
 
         // We now have all the information to describe the LoadedDApp.
-        return new LoadedDApp(classLoader, aphabeticalContractClasses, app.mainClass, preserveDebuggability);
+        // (DApps deployed before the write barrier existed don't have it, so their unchanged instances can't be reused when the graph is saved)
+        // (the format of the graph is also recorded in the module, since it can't be safely told from the graph itself)
+        return new LoadedDApp(classLoader, aphabeticalContractClasses, app.mainClass, preserveDebuggability, app.hasWriteBarrier, app.graphEncoding);
     }
 
     /**
      * Called to create a temporary DApp from transformed classes, in-memory.
      * 
      * @param app The transformed module.
+     * @param graphEncoding The format the DApp's graph will be saved in.
      * @return The DApp instance.
      */
-    public static LoadedDApp fromTransformed(TransformedDappModule app, boolean preserveDebuggability) {
+    public static LoadedDApp fromTransformed(TransformedDappModule app, boolean preserveDebuggability, GraphEncoding graphEncoding) {
         // We now need all the classes which will loaded within the class loader for this DApp (includes Helper and userlib classes we add).
         Map<String, byte[]> allClasses = Helpers.mapIncludingHelperBytecode(app.classes, Helpers.loadDefaultHelperBytecode());
         
@@ -65,6 +84,6 @@ public class DAppLoader {
         List<Class<?>> aphabeticalContractClasses = Helpers.getAlphabeticalUserTransformedDappClasses(classLoader, app.classes.keySet());
 
         // We now have all the information to describe the LoadedDApp.
-        return new LoadedDApp(classLoader, aphabeticalContractClasses, app.mainClass, preserveDebuggability);
+        return new LoadedDApp(classLoader, aphabeticalContractClasses, app.mainClass, preserveDebuggability, true, graphEncoding);
     }
 }
@@ -0,0 +1,102 @@
+package org.aion.avm.core;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aion.avm.core.persistence.LoadedDApp;
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.core.util.SoftCache;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * Warms the state the executor threads will need for a batch, on a separate pool of threads, as soon as the batch is submitted.
+ * For every distinct destination of a call in the batch, this loads the DApp into the hot DApp cache (if it isn't already there)
+ * and reads the object graph, so that the kernel's backing store has it at hand when the executor thread reads it.
+ *
+ * This is strictly read-only and best-effort:  the executor threads still read everything they use through their own
+ * transactional kernel (and are billed for it), and only use a cached DApp once they have confirmed that the destination still
+ * has code.  Hence, whether or not a prefetch completes in time has no effect on the results.
+ */
+public class DAppPrefetcher {
+    private final SoftCache<ByteArrayWrapper, LoadedDApp> hotCache;
+    private final ImmortalDappModuleCache moduleCache;
+    private final boolean preserveDebuggability;
+    private final ExecutorService pool;
+
+    public DAppPrefetcher(SoftCache<ByteArrayWrapper, LoadedDApp> hotCache, ImmortalDappModuleCache moduleCache, int threadCount, boolean preserveDebuggability) {
+        RuntimeAssertionError.assertTrue(threadCount > 0);
+        this.hotCache = hotCache;
+        this.moduleCache = moduleCache;
+        this.preserveDebuggability = preserveDebuggability;
+        AtomicInteger nextThreadNumber = new AtomicInteger(0);
+        this.pool = Executors.newFixedThreadPool(threadCount, (runnable) -> {
+            Thread thread = new Thread(runnable, "AVM Prefetch Thread " + nextThreadNumber.getAndIncrement());
+            // These never hold anything which needs to be completed so they shouldn't keep the process alive.
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Called by the external thread when a batch is submitted to queue up the prefetch of its destinations.  Returns immediately.
+     *
+     * @param kernel The kernel the batch will run against (must be safe to read concurrently with the executor threads).
+     * @param transactions The transactions of the batch.
+     */
+    public void prefetch(KernelInterface kernel, AvmTransaction[] transactions) {
+        long blockNumber = kernel.getBlockNumber();
+        Set<ByteArrayWrapper> destinations = new HashSet<>();
+        for (AvmTransaction transaction : transactions) {
+            // A create has no code to load, yet.
+            if (!transaction.isCreate) {
+                Address destination = transaction.destinationAddress;
+                if (destinations.add(new ByteArrayWrapper(destination.toBytes()))) {
+                    this.pool.execute(() -> prefetchDestination(kernel, destination, blockNumber));
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the external thread to stop the pool.  Only returns once any running prefetch has completed.
+     */
+    public void shutdown() {
+        this.pool.shutdownNow();
+        try {
+            this.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // We don't use interruption.
+            RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+
+    private void prefetchDestination(KernelInterface kernel, Address destination, long blockNumber) {
+        try {
+            // Note that we only read the graph of accounts with code since some kernels create the account when its graph is read.
+            byte[] code = kernel.getTransformedCode(destination);
+            if (null != code) {
+                ByteArrayWrapper key = new ByteArrayWrapper(destination.toBytes());
+                // Checking the DApp out is the only way to see if it is cached so we just put it back, if it was.
+                LoadedDApp dapp = this.hotCache.checkout(key);
+                if (null == dapp) {
+                    dapp = DAppLoader.loadFromGraph(code, this.preserveDebuggability, this.moduleCache);
+                    dapp.setLoadedBlockNum(blockNumber);
+                }
+                // (an executor thread may have checked in its own instance in the meantime, which is equally valid)
+                this.hotCache.checkinIfAbsent(key, dapp);
+                kernel.getObjectGraph(destination);
+            }
+        } catch (IOException | RuntimeException e) {
+            // This is only an optimization:  if anything goes wrong, the executor thread will just load the DApp itself.
+        }
+    }
+}
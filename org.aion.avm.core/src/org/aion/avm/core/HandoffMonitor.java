@@ -2,101 +2,155 @@ package org.aion.avm.core;
 
 import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.kernel.AvmTransactionResult;
+import org.aion.parallel.ITaskScheduler;
 import org.aion.parallel.TransactionTask;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
 import org.aion.vm.api.interfaces.SimpleFuture;
 import org.aion.vm.api.interfaces.TransactionResult;
 
 
 /**
  * Used by the AvmImpl to manage communication between its internal execution thread and the external calling thread.
- * This just provides monitor-protected blocking input/output variables, exception handling, and a safe way to shutdown.
+ * This just provides blocking input/output hand-off, exception handling, and a safe way to shutdown.
  * Note that once an instance of this has been shutdown, it can't be started back up.
  * 
+ * There is no common lock between the executor threads:  tasks are handed out by the (thread-safe) {@link ITaskScheduler} and
+ * each result is published through its own completion signal, so only the external thread waiting on that specific result is
+ * woken.  An executor thread which finds no ready task parks until new tasks become ready or a shutdown is requested.
+ * 
+ * If pipelining is allowed, a new batch can be sent before every result of the previous one has been consumed.  Each batch is
+ * identified by the batch id of its tasks and its results are tracked separately until they have all been consumed.
+ * 
+ * Only the executor threads with an index below the active thread count poll for tasks:  the others stay parked until the count
+ * is raised.  The count can only be changed between batches.
+ * 
  * NOTE:  This currently assumes only one external thread is interacting with it at any given time.  This means that
  * attempting to send transactions from multiple threads or shutdown with one thread while running a transaction on another
- * would result in undefined behaviour.
+ * would result in undefined behaviour.  The results of a batch may be consumed on a different thread from the one which sent it,
+ * though, so long as they are consumed in order by that one thread.
  */
 public class HandoffMonitor {
-    private Set<Thread> internalThreads;
-    private TransactionTask[] incomingTransactionTasks;
+    private volatile Set<Thread> internalThreads;
+    private final Map<Thread, Integer> workerIndices;
+    private final ConcurrentLinkedQueue<Thread> idleThreads;
+    private volatile int activeThreadCount;
 
-    private Queue<TransactionTask> taskQueue;
+    private final ITaskScheduler scheduler;
 
-    private AvmTransactionResult[] outgoingResults;
-    private Throwable backgroundThrowable;
-    //private int nextTransactionIndex;
+    private final boolean allowPipelining;
+    private final ConcurrentHashMap<Long, InFlightBatch> inFlightBatches;
+    private volatile Throwable backgroundThrowable;
 
-    public HandoffMonitor(Set<Thread> threadSet) {
+    public HandoffMonitor(Set<Thread> threadSet, ITaskScheduler scheduler) {
+        this(threadSet, scheduler, false);
+    }
+
+    public HandoffMonitor(Set<Thread> threadSet, ITaskScheduler scheduler, boolean allowPipelining) {
         this.internalThreads = threadSet;
-        this.taskQueue = new LinkedList<>();
+        // Each executor thread is identified to the scheduler by a stable index.
+        this.workerIndices = new HashMap<>();
+        for (Thread thread : threadSet) {
+            this.workerIndices.put(thread, this.workerIndices.size());
+        }
+        this.idleThreads = new ConcurrentLinkedQueue<>();
+        this.activeThreadCount = threadSet.size();
+        this.scheduler = scheduler;
+        this.allowPipelining = allowPipelining;
+        this.inFlightBatches = new ConcurrentHashMap<>();
     }
 
     /**
      * Called by the external thread.
      * Called to send new transactions to the internal thread.
      * 
-     * @param tasks The tasks for each transaction to run.
+     * @param tasks The tasks for each transaction to run (all with the same batch id).
      * @return The result of the transactions in the given tasks as a corresponding array of asynchronous futures.
      */
-    public synchronized SimpleFuture<TransactionResult>[] sendTransactionsAsynchronously(TransactionTask[] tasks) {
-        // We lock-step these, so there can't already be a transaction in the hand-off.
-        RuntimeAssertionError.assertTrue(this.taskQueue.isEmpty());
-        RuntimeAssertionError.assertTrue(null == this.outgoingResults);
+    public SimpleFuture<TransactionResult>[] sendTransactionsAsynchronously(TransactionTask[] tasks) {
+        // Unless we are pipelining, we lock-step these, so there can't already be a transaction in the hand-off.
+        if (!this.allowPipelining) {
+            RuntimeAssertionError.assertTrue(this.scheduler.isEmpty());
+            RuntimeAssertionError.assertTrue(this.inFlightBatches.isEmpty());
+        }
         RuntimeAssertionError.assertTrue(tasks.length > 0);
         // Also, we can't have already been shut down.
         if (null == this.internalThreads) {
             throw new IllegalStateException("Thread already stopped");
         }
 
-        this.incomingTransactionTasks = new TransactionTask[tasks.length];
+        long batchId = tasks[0].getBatchId();
+        InFlightBatch batch = new InFlightBatch(tasks);
+        // The futures must be published before the tasks are visible to the executor threads, since they complete them.
+        InFlightBatch previous = this.inFlightBatches.putIfAbsent(batchId, batch);
+        RuntimeAssertionError.assertTrue(null == previous);
+        ResultWaitFuture[] results = batch.outgoingResults;
 
-        // Enqueue the new tasks and wake up the background thread.
-        for (int i = 0; i < tasks.length; ++i ) {
-            this.incomingTransactionTasks[i] = tasks[i];
-            this.taskQueue.add(tasks[i]);
-        }
+        // Enqueue the new tasks and wake up the background threads.
+        this.scheduler.addBatch(tasks);
+        wakeIdleThreads();
 
-        this.outgoingResults = new AvmTransactionResult[tasks.length];
-        this.notifyAll();
+        // If a background thread failed before seeing these futures, we need to fail them here.
+        if (null != this.backgroundThrowable) {
+            failOutstandingResults(results, this.backgroundThrowable);
+        }
         
         // Return the future result, which will do the waiting for us.
-        ResultWaitFuture[] results = new ResultWaitFuture[tasks.length];
-        for (int i = 0; i < results.length; ++i ) {
-            results[i] = new ResultWaitFuture(i);
-        }
         return results;
     }
 
-    public synchronized AvmTransactionResult blockingConsumeResult(int index) {
+    /**
+     * Called by the external thread.
+     * 
+     * @return True if there is any batch whose results have not yet all been consumed.
+     */
+    public boolean hasBatchesInFlight() {
+        return !this.inFlightBatches.isEmpty();
+    }
+
+    /**
+     * Called by the external thread.
+     * Changes how many of the executor threads poll for transactions.  This can only be called when no batch is in flight.
+     * 
+     * @param activeThreadCount The number of executor threads to use for the following batches (in [1, thread count]).
+     */
+    public void setActiveThreadCount(int activeThreadCount) {
+        RuntimeAssertionError.assertTrue((activeThreadCount > 0) && (activeThreadCount <= this.workerIndices.size()));
+        RuntimeAssertionError.assertTrue(this.scheduler.isEmpty());
+        RuntimeAssertionError.assertTrue(this.inFlightBatches.isEmpty());
+        this.scheduler.setActiveWorkerCount(activeThreadCount);
+        this.activeThreadCount = activeThreadCount;
+    }
+
+    public AvmTransactionResult blockingConsumeResult(long batchId, int index) {
+        InFlightBatch batch = this.inFlightBatches.get(batchId);
         // Wait until we have the result or something went wrong.
-        while ((null == this.outgoingResults[index]) && (null == this.backgroundThrowable)) {
-            // Otherwise, wait until state changes.
-            try {
-                this.wait();
-            } catch (InterruptedException e) {
-                // We don't use interruption.
-                RuntimeAssertionError.unexpected(e);
-            }
+        AvmTransactionResult result = null;
+        try {
+            result = batch.outgoingResults[index].completion.join();
+        } catch (CompletionException e) {
+            // This is only used to report a background failure, which is re-thrown below.
         }
         
         // Throw an exception, if there is one.
         handleThrowable();
         
         // Consume the result and return it.
-        AvmTransactionResult result = this.outgoingResults[index];
-        result.getSideEffects().merge(incomingTransactionTasks[index].popSideEffects());
-        RuntimeAssertionError.assertTrue(incomingTransactionTasks[index].isSideEffectsStackEmpty());
-        this.incomingTransactionTasks[index] = null;
-        this.outgoingResults[index] = null;
+        result.getSideEffects().merge(batch.incomingTransactionTasks[index].popSideEffects());
+        RuntimeAssertionError.assertTrue(batch.incomingTransactionTasks[index].isSideEffectsStackEmpty());
+        batch.incomingTransactionTasks[index] = null;
         // If this is the last one in the list, drop it.
         // (note that this assumes the the results are consumed in-order - this requirement exists in more fundamental parts of the system, though).
-        if ((index + 1) == this.outgoingResults.length) {
-            this.incomingTransactionTasks = null;
-            this.outgoingResults = null;
+        if ((index + 1) == batch.outgoingResults.length) {
+            this.inFlightBatches.remove(batchId);
         }
         return result;
     }
@@ -109,32 +163,43 @@ public class HandoffMonitor {
      * @param previousResult The result of the previous transaction returned by this call.
      * @return The next transaction to run or null if we should shut down.
      */
-    public synchronized TransactionTask blockingPollForTransaction(AvmTransactionResult previousResult, TransactionTask previousTask) {
-        // We may have been given these transactions as a list but we hand them out to the caller individually.
-        
+    public TransactionTask blockingPollForTransaction(AvmTransactionResult previousResult, TransactionTask previousTask) {
+        Thread currentThread = Thread.currentThread();
+        Integer workerIndex = this.workerIndices.get(currentThread);
+        RuntimeAssertionError.assertTrue(null != workerIndex);
+
         // First, write-back any results that we have and notify anyone listening for that, on the front.
         if (null != previousResult) {
-            this.outgoingResults[previousTask.getIndex()] = previousResult;
+            // The task is committed so the scheduler can release anything which was waiting on it.
+            // (this must happen before the result is published since the external thread can start the next batch once it has every result)
+            int newlyReady = this.scheduler.taskFinished(previousTask);
+            resultFor(previousTask).completion.complete(previousResult);
+            // We are about to take one of these ourselves so we only need help if there is more than one.
+            if (newlyReady > 1) {
+                wakeIdleThreads();
+            }
         }
-        this.notifyAll();
         
-        // This means that we only actually block when the incoming transactions are null (we make it null when we consume the last element and it becomes non-null when new data enqueued).
-        while ((null != this.internalThreads) && (this.taskQueue.isEmpty())) {
-            try {
-                this.wait();
-            } catch (InterruptedException e) {
-                // We don't use interruption.
-                RuntimeAssertionError.unexpected(e);
+        // This means that we only actually block when the scheduler has no ready task (either because the batch is fully handed out or because everything left depends on an unfinished task).
+        TransactionTask nextTask = null;
+        while ((null != this.internalThreads) && (null == (nextTask = pollIfActive(workerIndex)))) {
+            // Register as idle before checking again so that a task becoming ready concurrently can't be missed.
+            this.idleThreads.add(currentThread);
+            if ((null != this.internalThreads) && (null == (nextTask = pollIfActive(workerIndex)))) {
+                LockSupport.park(this);
+            }
+            this.idleThreads.remove(currentThread);
+            if (null != nextTask) {
+                break;
             }
         }
         
-        // Unless this was a shutdown request, get the next transaction.
-        TransactionTask nextTask = null;
+        // Unless this was a shutdown request, hand out the next transaction.
         if (null != this.internalThreads) {
             // Make sure that we don't already have a response for the transaction we want to hand out.
-            RuntimeAssertionError.assertTrue(null == this.outgoingResults[this.taskQueue.peek().getIndex()]);
-
-            nextTask = this.taskQueue.poll();
+            RuntimeAssertionError.assertTrue(!resultFor(nextTask).completion.isDone());
+        } else {
+            nextTask = null;
         }
         return nextTask;
     }
@@ -145,17 +210,19 @@ public class HandoffMonitor {
      * 
      * @param throwable The exception (expected to be RuntimeException or Error).
      */
-    public synchronized void setBackgroundThrowable(Throwable throwable) {
+    public void setBackgroundThrowable(Throwable throwable) {
         // This will terminate anything the foreground is doing so notify them.
         this.backgroundThrowable = throwable;
-        this.notifyAll();
+        for (InFlightBatch batch : this.inFlightBatches.values()) {
+            failOutstandingResults(batch.outgoingResults, throwable);
+        }
     }
 
     /**
      * Called by the external thread.
      * Requests all the internal executor threads start.
      */
-    public synchronized void startExecutorThreads(){
+    public void startExecutorThreads(){
         for (Thread t: this.internalThreads){
             t.start();
         }
@@ -168,15 +235,13 @@ public class HandoffMonitor {
     public void stopAndWaitForShutdown() {
         // (called by the foreground thread)
         // Stop the thread and wait for it to join.
-        Set<Thread> backgroundThreads = null;
-        synchronized (this) {
-            backgroundThreads = this.internalThreads;
-            this.internalThreads = null;
-            this.notifyAll();
+        Set<Thread> backgroundThreads = this.internalThreads;
+        this.internalThreads = null;
+        for (Thread t : backgroundThreads){
+            LockSupport.unpark(t);
         }
         
         // Join on the thread and throw any exceptions left over.
-        // (note that we can't join under monitor since the thread needs the monitor to exit).
         try {
             for (Thread t : backgroundThreads){
                 t.join();
@@ -193,7 +258,7 @@ public class HandoffMonitor {
      * Called by the external thread.
      */
     private void handleThrowable() {
-        // WARNING:  This is not always called under monitor but this should be safe so long as backgroundThrowable saturates to non-null.
+        // Note that this is safe without a lock so long as backgroundThrowable saturates to non-null.
         if (null != this.backgroundThrowable) {
             // Only RuntimeExceptions and Errors can actually be handled here.
             try {
@@ -210,17 +275,63 @@ public class HandoffMonitor {
     }
 
 
+    private TransactionTask pollIfActive(int workerIndex) {
+        // An inactive thread just stays parked (it is still woken with the others but goes straight back to sleep).
+        return (workerIndex < this.activeThreadCount)
+                ? this.scheduler.pollReadyTask(workerIndex)
+                : null;
+    }
+
+    private ResultWaitFuture resultFor(TransactionTask task) {
+        return this.inFlightBatches.get(task.getBatchId()).outgoingResults[task.getIndex()];
+    }
+
+    private void wakeIdleThreads() {
+        // Waking every idle thread is simplest and the set is bounded by the thread count (any which find nothing just park again).
+        Thread idle = this.idleThreads.poll();
+        while (null != idle) {
+            LockSupport.unpark(idle);
+            idle = this.idleThreads.poll();
+        }
+    }
+
+    private static void failOutstandingResults(ResultWaitFuture[] results, Throwable throwable) {
+        for (ResultWaitFuture result : results) {
+            result.completion.completeExceptionally(throwable);
+        }
+    }
+
+
+    private class InFlightBatch {
+        private final TransactionTask[] incomingTransactionTasks;  // (only accessed by the external thread)
+        private final ResultWaitFuture[] outgoingResults;
+        public InFlightBatch(TransactionTask[] tasks) {
+            this.incomingTransactionTasks = new TransactionTask[tasks.length];
+            this.outgoingResults = new ResultWaitFuture[tasks.length];
+            for (int i = 0; i < tasks.length; ++i ) {
+                this.incomingTransactionTasks[i] = tasks[i];
+                this.outgoingResults[i] = new ResultWaitFuture(tasks[i].getBatchId(), i);
+            }
+        }
+    }
+
+
     private class ResultWaitFuture implements SimpleFuture<TransactionResult> {
+        private final long batchId;
         private final int index;
+        // Completed by the executor thread which ran the task (only the external thread consuming this result is ever waiting on it).
+        private final CompletableFuture<AvmTransactionResult> completion;
         // We will cache the result.
         private AvmTransactionResult cachedResult;
-        public ResultWaitFuture(int index) {
+        public ResultWaitFuture(long batchId, int index) {
+            this.batchId = batchId;
             this.index = index;
+            this.completion = new CompletableFuture<>();
         }
         @Override
         public AvmTransactionResult get() {
             if (null == this.cachedResult) {
-                this.cachedResult = HandoffMonitor.this.blockingConsumeResult(this.index);
+                this.cachedResult = HandoffMonitor.this.blockingConsumeResult(this.batchId, this.index);
             }
             return this.cachedResult;
         }
@@ -0,0 +1,22 @@
+package org.aion.avm.core;
+
+import org.aion.vm.api.interfaces.TransactionResult;
+
+
+/**
+ * Receives the results of a batch passed to {@link AvmImpl#run(org.aion.vm.api.interfaces.KernelInterface, org.aion.vm.api.interfaces.TransactionInterface[], IResultConsumer)}.
+ * Results are delivered one at a time, in index order, on the AVM's result delivery thread, as soon as each transaction has
+ * committed.
+ *
+ * Note that the delivery thread is shared by every batch so an implementation which takes a long time to return delays the results
+ * of the batches after it (but not the execution of their transactions).
+ */
+public interface IResultConsumer {
+    /**
+     * Called with the result of a transaction, once all the results before it have been delivered.
+     *
+     * @param index The index of the transaction within its batch.
+     * @param result The result of the transaction.
+     */
+    void resultAvailable(int index, TransactionResult result);
+}
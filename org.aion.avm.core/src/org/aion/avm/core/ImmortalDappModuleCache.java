@@ -0,0 +1,50 @@
+package org.aion.avm.core;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aion.avm.core.types.ImmortalDappModule;
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.core.util.Helpers;
+
+
+/**
+ * Caches the parsed form of each distinct DApp JAR, keyed by the hash of the JAR, so that DApps deployed at many addresses with the
+ * same code are only parsed once.
+ *
+ * Unlike the cache of LoadedDApp instances (which hold per-address state so must be checked out by one thread at a time), a module
+ * is never modified once read so one instance is shared by every DApp with that code, on any thread.  Like that cache, the modules
+ * are only softly referenced so they can be collected under memory pressure.
+ */
+public class ImmortalDappModuleCache {
+    private final ConcurrentHashMap<ByteArrayWrapper, SoftReference<ImmortalDappModule>> modules;
+
+    public ImmortalDappModuleCache() {
+        this.modules = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the module for the given JAR, reading it only if a JAR with the same contents hasn't already been read.
+     *
+     * @param immortalDappJar The contract JAR.
+     * @return The module, or null if the contents of the JAR were insufficient for a Dapp.
+     * @throws IOException An error occurred while reading the JAR contents.
+     */
+    public ImmortalDappModule readFromJar(byte[] immortalDappJar) throws IOException {
+        ByteArrayWrapper hash = new ByteArrayWrapper(Helpers.sha256(immortalDappJar));
+        SoftReference<ImmortalDappModule> reference = this.modules.get(hash);
+        ImmortalDappModule module = (null != reference)
+                ? reference.get()
+                : null;
+        if (null == module) {
+            // Concurrent misses each read their own module, which is harmless since they are equivalent (and the last one is kept).
+            // (this also replaces a reference which was cleared)
+            module = ImmortalDappModule.readFromJar(immortalDappJar);
+            if (null != module) {
+                this.modules.put(hash, new SoftReference<>(module));
+            }
+        }
+        return module;
+    }
+}
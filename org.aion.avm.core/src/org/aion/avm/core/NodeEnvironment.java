@@ -351,6 +351,22 @@ public class NodeEnvironment {
             public boolean isLoadedByCurrentClassLoader(java.lang.Class userClass) {
                 throw RuntimeAssertionError.unreachable("Not expected here.");
             }
+            @Override
+            public void noteInstanceWrite(int readIndex) {
+                throw RuntimeAssertionError.unreachable("Nobody should be calling this");
+            }
+            @Override
+            public java.util.BitSet getWrittenInstances() {
+                throw RuntimeAssertionError.unreachable("Nobody should be calling this");
+            }
+            @Override
+            public void attachInstanceLoader(org.aion.avm.internal.IInstanceLoader loader) {
+                throw RuntimeAssertionError.unreachable("Nobody should be calling this");
+            }
+            @Override
+            public void loadInstance(java.lang.Object instance, int readIndex) {
+                throw RuntimeAssertionError.unreachable("Nobody should be calling this");
+            }
         };
 
         // Load all the classes - even just mentioning these might cause them to be loaded, even before the Class.forName().
@@ -54,6 +54,7 @@ public class LoadedJar {
     private static LoadedJar safeLoadFromBytes(ByteArrayInputStream byteReader) throws IOException, SizeException {
         Map<String, byte[]> classBytesByQualifiedNames = new HashMap<>();
         String mainClassName = null;
+        Attributes attributes = new Attributes();
         
         boolean verify = true;
         try (JarInputStream jarReader = new JarInputStream(byteReader, verify)) {
@@ -63,6 +64,7 @@ public class LoadedJar {
                 Attributes mainAttributes = manifest.getMainAttributes();
                 if (null != mainAttributes) {
                     mainClassName = mainAttributes.getValue(Attributes.Name.MAIN_CLASS);
+                    attributes = mainAttributes;
                 }
             }
             
@@ -90,16 +92,23 @@ public class LoadedJar {
                 }
             }
         }
-        return new LoadedJar(classBytesByQualifiedNames, mainClassName);
+        return new LoadedJar(classBytesByQualifiedNames, mainClassName, attributes);
     }
 
 
     public final Map<String, byte[]> classBytesByQualifiedNames;
     public final String mainClassName;
+    // All the main attributes of the manifest (empty if it had none), for anything beyond the main class recorded there.
+    public final Attributes mainAttributes;
 
     public LoadedJar(Map<String, byte[]> classBytesByQualifiedNames, String mainClassName) {
+        this(classBytesByQualifiedNames, mainClassName, new Attributes());
+    }
+
+    public LoadedJar(Map<String, byte[]> classBytesByQualifiedNames, String mainClassName, Attributes mainAttributes) {
         this.classBytesByQualifiedNames = Collections.unmodifiableMap(classBytesByQualifiedNames);
         this.mainClassName = mainClassName;
+        this.mainAttributes = mainAttributes;
     }
 
 
@@ -16,10 +16,10 @@ import org.objectweb.asm.tree.analysis.Frame;
  * Specifically, this means the following transformations:
  * 1)  Add a special constructor, which cannot already be present, just calling its superclass counterpart.
  * 2)  Remove "final" from all fields (at least instance fields - we may be able to treat static fields differently).
- * 3)  Prepend all PUTFIELD/GETFIELD instructions with a call to "lazyLoad()" on the receiver object (unless "this" in a constructor).
+ * 3)  Prepend all PUTFIELD/GETFIELD instructions with a call to "lazyLoadForWrite()"/"lazyLoad()" on the receiver object (unless "this" in a constructor).
  * 
- * Note that this transformation doesn't depend on the persistence model being applied.  So long as "lazyLoad()" is a safe no-op,
- * there is no harm in enabling this without the corresponding persistence logic.
+ * Note that this transformation doesn't depend on the persistence model being applied.  Since "lazyLoad()" only does anything on a
+ * stub (which only exists if the graph was loaded lazily), there is no harm in enabling this without the corresponding persistence logic.
  * This should probably be put late in the pipeline since these transformations are substantial, and could change energy and stack
  * accounting in pretty large ways for what are essentially our own implementation details.
  */
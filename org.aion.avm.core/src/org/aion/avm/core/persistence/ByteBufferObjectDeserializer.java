@@ -16,13 +16,31 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
     private final IPersistenceNameMapper classNameMapper;
     // Note that this will be null if this is our pre-pass where we are merely walking through the buffer to find the instance types.
     private final List<Object> instanceList;
+    // Null unless the deserializer is recording where the instance references are, so unchanged instances can be reused when the graph is saved.
+    private final GraphSnapshot snapshot;
+    // The class table, if reading a compact graph (null if reading the original format).
+    private final List<String> classTable;
 
     public ByteBufferObjectDeserializer(ByteBuffer buffer, List<Object> instanceList, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper) {
+        this(buffer, instanceList, cache, resolver, classNameMapper, null, null);
+    }
+
+    public ByteBufferObjectDeserializer(ByteBuffer buffer, List<Object> instanceList, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper, GraphSnapshot snapshot) {
+        this(buffer, instanceList, cache, resolver, classNameMapper, snapshot, null);
+    }
+
+    /**
+     * Creates the deserializer, as above, but reading the compact format (see CompactGraphFormat) if given the graph's class table
+     * (which the caller has already read, since it precedes everything this deserializer reads).
+     */
+    public ByteBufferObjectDeserializer(ByteBuffer buffer, List<Object> instanceList, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper, GraphSnapshot snapshot, List<String> classTable) {
         this.buffer = buffer;
         this.cache = cache;
         this.resolver = resolver;
         this.classNameMapper = classNameMapper;
         this.instanceList = instanceList;
+        this.snapshot = snapshot;
+        this.classTable = classTable;
     }
 
     @Override
@@ -37,17 +55,23 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
 
     @Override
     public short readShort() {
-        return this.buffer.getShort();
+        return (null == this.classTable)
+                ? this.buffer.getShort()
+                : (short) CompactGraphFormat.getSignedVarint(this.buffer);
     }
 
     @Override
     public char readChar() {
-        return this.buffer.getChar();
+        return (null == this.classTable)
+                ? this.buffer.getChar()
+                : (char) CompactGraphFormat.getVarint(this.buffer);
     }
 
     @Override
     public int readInt() {
-        return this.buffer.getInt();
+        return (null == this.classTable)
+                ? this.buffer.getInt()
+                : (int) CompactGraphFormat.getSignedVarint(this.buffer);
     }
 
     @Override
@@ -57,7 +81,9 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
 
     @Override
     public long readLong() {
-        return this.buffer.getLong();
+        return (null == this.classTable)
+                ? this.buffer.getLong()
+                : CompactGraphFormat.getSignedVarint(this.buffer);
     }
 
     @Override
@@ -68,7 +94,14 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
     @Override
     public Object readObject() {
         // NOTE:  If the instance list is null, this is a pre-pass, meaning we shouldn't try to create/resolve the objects, since we will do this again.
-        byte refType = this.buffer.get();
+        // (in the compact format, the whole reference is one varint, which is where the snapshot records it)
+        int referencePosition = this.buffer.position();
+        long encodedReference = (null == this.classTable)
+                ? this.buffer.get()
+                : CompactGraphFormat.getVarint(this.buffer);
+        byte refType = (null == this.classTable)
+                ? (byte) encodedReference
+                : CompactGraphFormat.getReferenceType(encodedReference);
         Object result = null;
         switch (refType) {
             case ReferenceConstants.REF_NULL: {
@@ -76,21 +109,37 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
                 break;
             }
             case ReferenceConstants.REF_CLASS: {
-                String internalClassName = internalReadClassName();
+                String internalClassName = null;
+                if (null == this.classTable) {
+                    internalClassName = internalReadClassName();
+                } else {
+                    // Class indices depend on the graph being written so the snapshot needs to know where they are, too.
+                    if (null != this.snapshot) {
+                        this.snapshot.addReference(referencePosition);
+                    }
+                    internalClassName = this.classTable.get(CompactGraphFormat.getReferenceValue(encodedReference));
+                }
                 result = (null != this.instanceList)
                         ? this.resolver.getClassObjectForInternalName(internalClassName)
                         : null;
                 break;
             }
             case ReferenceConstants.REF_CONSTANT: {
-                int constantIdentifier = this.buffer.getInt();
+                int constantIdentifier = (null == this.classTable)
+                        ? this.buffer.getInt()
+                        : CompactGraphFormat.getReferenceValue(encodedReference);
                 result = (null != this.instanceList)
                         ? this.resolver.getConstantForIdentifier(constantIdentifier)
                         : null;
                 break;
             }
             case ReferenceConstants.REF_NORMAL: {
-                int instanceIndex = this.buffer.getInt();
+                if (null != this.snapshot) {
+                    this.snapshot.addReference((null == this.classTable) ? this.buffer.position() : referencePosition);
+                }
+                int instanceIndex = (null == this.classTable)
+                        ? this.buffer.getInt()
+                        : CompactGraphFormat.getReferenceValue(encodedReference);
                 result = (null != this.instanceList)
                         ? this.instanceList.get(instanceIndex)
                         : null;
@@ -104,7 +153,9 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
 
     @Override
     public String readClassName() {
-        return internalReadClassName();
+        return (null == this.classTable)
+                ? internalReadClassName()
+                : this.classTable.get(CompactGraphFormat.getCount(this.buffer));
     }
 
     @Override
@@ -166,12 +217,23 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
     }
 
     private String internalReadClassName() {
+        return readClassName(this.buffer, this.classNameMapper);
+    }
+
+    /**
+     * Reads a class name, as it is written in the original format (and in the class table of the compact format).
+     * 
+     * @param buffer The buffer to read.
+     * @param classNameMapper Maps the name the class is stored as to its name.
+     * @return The name of the class.
+     */
+    public static String readClassName(ByteBuffer buffer, IPersistenceNameMapper classNameMapper) {
         // We limit class names to 255 UTF-8 bytes so read the length byte.
-        int length = (0xff & this.buffer.get());
+        int length = (0xff & buffer.get());
         RuntimeAssertionError.assertTrue(length > 0);
         byte[] utf8 = new byte[length];
-        this.buffer.get(utf8);
+        buffer.get(utf8);
         String storageClassName = new String(utf8, StandardCharsets.UTF_8);
-        return this.classNameMapper.getInternalClassName(storageClassName);
+        return classNameMapper.getInternalClassName(storageClassName);
     }
 }
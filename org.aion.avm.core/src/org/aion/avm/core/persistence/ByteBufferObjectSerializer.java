@@ -4,6 +4,7 @@ import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Queue;
 
 import org.aion.avm.internal.IObjectSerializer;
@@ -16,13 +17,25 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
     private final IGlobalResolver resolver;
     private final IPersistenceNameMapper classNameMapper;
     private final InstanceIndexMapper instanceMapper;
+    // The index of each class in the class table, in the order they were added, if writing a compact graph (null if writing the original format).
+    private final Map<String, Integer> classTable;
 
     public ByteBufferObjectSerializer(ByteBuffer buffer, Queue<Object> out_ToProcessQueue, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper) {
+        this(buffer, out_ToProcessQueue, cache, resolver, classNameMapper, null);
+    }
+
+    /**
+     * Creates the serializer, as above, but writing the compact format (see CompactGraphFormat) if given a class table.
+     * Classes are added to the table as they are first written so it must be written out, ahead of what this serializer wrote, once
+     * the whole graph has been serialized.
+     */
+    public ByteBufferObjectSerializer(ByteBuffer buffer, Queue<Object> out_ToProcessQueue, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper, Map<String, Integer> classTable) {
         this.buffer = buffer;
         this.cache = cache;
         this.resolver = resolver;
         this.classNameMapper = classNameMapper;
         this.instanceMapper = new InstanceIndexMapper(out_ToProcessQueue);
+        this.classTable = classTable;
     }
 
     @Override
@@ -37,17 +50,29 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
 
     @Override
     public void writeShort(short value) {
-        this.buffer.putShort(value);
+        if (null == this.classTable) {
+            this.buffer.putShort(value);
+        } else {
+            CompactGraphFormat.putSignedVarint(this.buffer, value);
+        }
     }
 
     @Override
     public void writeChar(char value) {
-        this.buffer.putChar(value);
+        if (null == this.classTable) {
+            this.buffer.putChar(value);
+        } else {
+            CompactGraphFormat.putVarint(this.buffer, value);
+        }
     }
 
     @Override
     public void writeInt(int value) {
-        this.buffer.putInt(value);
+        if (null == this.classTable) {
+            this.buffer.putInt(value);
+        } else {
+            CompactGraphFormat.putSignedVarint(this.buffer, value);
+        }
     }
 
     @Override
@@ -57,7 +82,11 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
 
     @Override
     public void writeLong(long value) {
-        this.buffer.putLong(value);
+        if (null == this.classTable) {
+            this.buffer.putLong(value);
+        } else {
+            CompactGraphFormat.putSignedVarint(this.buffer, value);
+        }
     }
 
     @Override
@@ -73,21 +102,23 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
         // 3) Class - Classes need to be interned, so they can't just be instantiated like normal instances
         // 4) Instance - Regular instances are the final case since they only have meaning within a graph
         if (null == value) {
-            this.buffer.put(ReferenceConstants.REF_NULL);
+            writeReference(ReferenceConstants.REF_NULL, 0);
         } else {
             int constantIdentifier = this.resolver.getAsConstant(value);
             if (0 != constantIdentifier) {
-                this.buffer.put(ReferenceConstants.REF_CONSTANT);
-                this.buffer.putInt(constantIdentifier);
+                writeReference(ReferenceConstants.REF_CONSTANT, constantIdentifier);
             } else {
                 String internalClassName = this.resolver.getAsInternalClassName(value);
                 if (null != internalClassName) {
-                    this.buffer.put(ReferenceConstants.REF_CLASS);
-                    internalWriteClassName(internalClassName);
+                    if (null == this.classTable) {
+                        this.buffer.put(ReferenceConstants.REF_CLASS);
+                        internalWriteClassName(internalClassName);
+                    } else {
+                        writeReference(ReferenceConstants.REF_CLASS, getClassIndex(internalClassName));
+                    }
                 } else {
                     int instanceIndex = instanceMapper.getIndexForInstance(value);
-                    this.buffer.put(ReferenceConstants.REF_NORMAL);
-                    this.buffer.putInt(instanceIndex);
+                    writeReference(ReferenceConstants.REF_NORMAL, instanceIndex);
                 }
             }
         }
@@ -95,7 +126,22 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
 
     @Override
     public void writeClassName(String internalClassName) {
-        internalWriteClassName(internalClassName);
+        if (null == this.classTable) {
+            internalWriteClassName(internalClassName);
+        } else {
+            CompactGraphFormat.putCount(this.buffer, getClassIndex(internalClassName));
+        }
+    }
+
+    /**
+     * Writes an instance which is unchanged since it was loaded by copying its encoding (including its class name) from the snapshot.
+     * The instances it references are indexed (and enqueued) exactly as serializing it would.
+     * 
+     * @param snapshot The snapshot of the graph the instance was loaded from.
+     * @param readIndex The instance's readIndex.
+     */
+    public void writeUnchangedInstance(GraphSnapshot snapshot, int readIndex) {
+        snapshot.copyInstance(this.buffer, readIndex, this.instanceMapper::getIndexForInstance, this::getClassIndex);
     }
 
     @Override
@@ -156,14 +202,46 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
         }
     }
 
+    private void writeReference(byte referenceType, int value) {
+        if (null == this.classTable) {
+            this.buffer.put(referenceType);
+            // (a null reference is only the type)
+            if (ReferenceConstants.REF_NULL != referenceType) {
+                this.buffer.putInt(value);
+            }
+        } else {
+            CompactGraphFormat.putReference(this.buffer, referenceType, value);
+        }
+    }
+
+    private int getClassIndex(String internalClassName) {
+        Integer index = this.classTable.get(internalClassName);
+        if (null == index) {
+            index = this.classTable.size();
+            this.classTable.put(internalClassName, index);
+        }
+        return index;
+    }
+
     private void internalWriteClassName(String internalClassName) {
-        String storageName = this.classNameMapper.getStorageClassName(internalClassName);
+        writeClassName(this.buffer, this.classNameMapper, internalClassName);
+    }
+
+    /**
+     * Writes a class name, as it is written in the original format (and in the class table of the compact format).
+     * 
+     * @param buffer The buffer to write.
+     * @param classNameMapper Maps the class name to the name it is stored as.
+     * @param internalClassName The name of the class.
+     */
+    public static void writeClassName(ByteBuffer buffer, IPersistenceNameMapper classNameMapper, String internalClassName) {
+        String storageName = classNameMapper.getStorageClassName(internalClassName);
         byte[] utf8 = storageName.getBytes(StandardCharsets.UTF_8);
         // We limit class names to 255 UTF-8 bytes so read the length byte.
         RuntimeAssertionError.assertTrue(utf8.length > 0);
         RuntimeAssertionError.assertTrue(utf8.length <= 255);
-        this.buffer.put((byte) utf8.length);
-        this.buffer.put(utf8);
+        buffer.put((byte) utf8.length);
+        buffer.put(utf8);
     }
 
 
@@ -0,0 +1,177 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.ByteBuffer;
+
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * The compact graph format (version 2), which a graph can be saved in instead of the original format (see GraphEncoding).
+ *
+ * A compact graph starts with a header:  the int MARKER, the VERSION byte, and a flags byte.  The header is only checked, never used to
+ * decide which format a graph is in (a graph in the original format starts with its nextHashCode, which could wrap around to anything):
+ * the format of a DApp's graph is recorded with its code when it is deployed (see GraphEncoding).
+ * If FLAG_COMPRESSED is set, the header is followed by the length of the payload and then the payload, compressed (see
+ * GraphCompression).  Otherwise, the payload directly follows the header.
+ *
+ * The payload has the same layout as a graph in the original format, except that:
+ * -the nextHashCode is followed by the class table:  the number of classes and then their names.  Each instance, and each class
+ *  reference, refers to its class by index into this table (classes are added in the order they are first used so the table can only
+ *  be written once the rest of the graph has been)
+ * -shorts, chars, ints, and longs (including the nextHashCode and the counts) are varints, all zigzag-encoded except for chars
+ * -a reference is a single varint:  the instance index, constant identifier, or class index is shifted left by 2 bits, with the
+ *  reference type (see ReferenceConstants) in the low 2 bits
+ * Booleans, bytes, floats, and doubles are written as they are in the original format.
+ */
+public class CompactGraphFormat {
+    public static final int MARKER = 0;
+    public static final byte VERSION = 2;
+    public static final byte FLAG_COMPRESSED = 0x1;
+    private static final int HEADER_SIZE = Integer.BYTES + 2;
+    private static final int REFERENCE_TYPE_BITS = 2;
+    private static final int REFERENCE_TYPE_MASK = (1 << REFERENCE_TYPE_BITS) - 1;
+
+    /**
+     * Note that this can't tell the formats apart (a graph in the original format can start the same way) so it is only a check on a
+     * graph which is already known to be compact.
+     *
+     * @param graph A serialized graph, from its position to its limit.
+     * @return True if the graph starts with the compact graph header.
+     */
+    public static boolean hasCompactHeader(ByteBuffer graph) {
+        int start = graph.position();
+        return (graph.remaining() >= HEADER_SIZE)
+                && (MARKER == graph.getInt(start))
+                && (VERSION == graph.get(start + Integer.BYTES));
+    }
+
+    /**
+     * @param graph A compact graph, from its position to its limit.
+     * @return The payload of the graph (decompressed, if it was compressed), from position 0.
+     */
+    public static ByteBuffer readPayload(ByteBuffer graph) {
+        RuntimeAssertionError.assertTrue(hasCompactHeader(graph));
+        ByteBuffer input = graph.duplicate();
+        input.position(graph.position() + HEADER_SIZE - 1);
+        byte flags = input.get();
+        ByteBuffer payload = null;
+        if (0 != (FLAG_COMPRESSED & flags)) {
+            byte[] decompressed = new byte[getCount(input)];
+            GraphCompression.decompress(input, decompressed);
+            payload = ByteBuffer.wrap(decompressed);
+        } else {
+            payload = input.slice();
+        }
+        return payload;
+    }
+
+    /**
+     * Writes the header and then the given payload, compressing it if requested (and if that makes it smaller).
+     *
+     * @param outputBuffer The buffer to write.
+     * @param payload The payload of the graph.
+     * @param length The length of the payload, from the start of the array.
+     * @param compressionBuffer Where to compress the payload (at least GraphCompression.maxCompressedLength(length) bytes), or null if
+     * it shouldn't be compressed.
+     */
+    public static void writeGraph(ByteBuffer outputBuffer, byte[] payload, int length, byte[] compressionBuffer) {
+        boolean compress = (null != compressionBuffer);
+        int compressedLength = 0;
+        if (compress) {
+            compressedLength = GraphCompression.compress(payload, length, compressionBuffer);
+        }
+        // (the compressed payload also needs its length so it is only used if that is still smaller)
+        boolean isCompressed = compress && ((compressedLength + getVarintSize(length)) < length);
+        outputBuffer.putInt(MARKER);
+        outputBuffer.put(VERSION);
+        outputBuffer.put(isCompressed ? FLAG_COMPRESSED : 0);
+        if (isCompressed) {
+            putCount(outputBuffer, length);
+            outputBuffer.put(compressionBuffer, 0, compressedLength);
+        } else {
+            outputBuffer.put(payload, 0, length);
+        }
+    }
+
+    public static void putVarint(ByteBuffer buffer, long value) {
+        long remaining = value;
+        while (0 != (remaining & ~0x7fL)) {
+            buffer.put((byte) (0x80 | (remaining & 0x7f)));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    public static long getVarint(ByteBuffer buffer) {
+        long value = 0L;
+        int shift = 0;
+        byte next = (byte) 0x80;
+        while (0 != (0x80 & next)) {
+            // A long never needs more than 10 bytes.
+            RuntimeAssertionError.assertTrue(shift < Long.SIZE);
+            next = buffer.get();
+            value |= (long) (0x7f & next) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    public static void putSignedVarint(ByteBuffer buffer, long value) {
+        // Zigzag-encoding maps small negative values to small positive ones:  0, -1, 1, -2... become 0, 1, 2, 3...
+        putVarint(buffer, (value << 1) ^ (value >> (Long.SIZE - 1)));
+    }
+
+    public static long getSignedVarint(ByteBuffer buffer) {
+        long encoded = getVarint(buffer);
+        return (encoded >>> 1) ^ -(encoded & 1L);
+    }
+
+    public static void putCount(ByteBuffer buffer, int count) {
+        RuntimeAssertionError.assertTrue(count >= 0);
+        putVarint(buffer, count);
+    }
+
+    public static int getCount(ByteBuffer buffer) {
+        long count = getVarint(buffer);
+        RuntimeAssertionError.assertTrue((count >= 0L) && (count <= Integer.MAX_VALUE));
+        return (int) count;
+    }
+
+    /**
+     * Writes a reference.
+     *
+     * @param buffer The buffer to write.
+     * @param referenceType The type of the reference (see ReferenceConstants).
+     * @param value The instance index, constant identifier, or class index (0 for REF_NULL).
+     */
+    public static void putReference(ByteBuffer buffer, byte referenceType, int value) {
+        putVarint(buffer, (Integer.toUnsignedLong(value) << REFERENCE_TYPE_BITS) | referenceType);
+    }
+
+    /**
+     * @param encodedReference A reference, as read by getVarint().
+     * @return The type of the reference (see ReferenceConstants).
+     */
+    public static byte getReferenceType(long encodedReference) {
+        return (byte) (encodedReference & REFERENCE_TYPE_MASK);
+    }
+
+    /**
+     * @param encodedReference A reference, as read by getVarint().
+     * @return The instance index, constant identifier, or class index of the reference.
+     */
+    public static int getReferenceValue(long encodedReference) {
+        return (int) (encodedReference >>> REFERENCE_TYPE_BITS);
+    }
+
+
+    private static int getVarintSize(long value) {
+        int size = 1;
+        long remaining = value >>> 7;
+        while (0L != remaining) {
+            size += 1;
+            remaining >>>= 7;
+        }
+        return size;
+    }
+}
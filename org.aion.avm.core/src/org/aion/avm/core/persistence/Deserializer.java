@@ -1,8 +1,6 @@
 package org.aion.avm.core.persistence;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -14,33 +12,67 @@ import org.aion.avm.internal.RuntimeAssertionError;
 
 public class Deserializer {
     public static int deserializeEntireGraphAndNextHashCode(ByteBuffer inputBuffer, List<Object> existingObjectIndex, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, Class<?>[] sortedRoots) {
+        return deserializeEntireGraphAndNextHashCode(inputBuffer, existingObjectIndex, null, resolver, cache, classNameMapper, sortedRoots);
+    }
+
+    /**
+     * Deserializes the graph, as above, but also records where each instance (and each reference to an instance) was read into the given
+     * snapshot, so that its unchanged instances can be reused when the graph is saved.
+     * If the snapshot installs stubs, the instances it decides are stubs are only created, not populated (see LazyGraphLoader).
+     * Note that the snapshot can only be recorded when loading a complete graph (not when deserializing back into existing objects).
+     */
+    public static int deserializeEntireGraphAndNextHashCode(ByteBuffer inputBuffer, List<Object> existingObjectIndex, GraphSnapshot snapshot, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, Class<?>[] sortedRoots) {
+        return deserializeEntireGraphAndNextHashCode(inputBuffer, existingObjectIndex, snapshot, false, resolver, cache, classNameMapper, sortedRoots);
+    }
+
+    /**
+     * Deserializes the graph, as above, reading the payload of a compact graph (see CompactGraphFormat) if isCompact is set.
+     */
+    public static int deserializeEntireGraphAndNextHashCode(ByteBuffer inputBuffer, List<Object> existingObjectIndex, GraphSnapshot snapshot, boolean isCompact, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, Class<?>[] sortedRoots) {
+        RuntimeAssertionError.assertTrue((null == existingObjectIndex) || (null == snapshot));
         // We define the storage as big-endian.
         RuntimeAssertionError.assertTrue(ByteOrder.BIG_ENDIAN == inputBuffer.order());
         
+        // The graph starts with the hashcode (and, in the compact format, the class table which everything after it refers to).
+        int nextHashCode = 0;
+        List<String> classTable = null;
+        if (isCompact) {
+            nextHashCode = (int) CompactGraphFormat.getSignedVarint(inputBuffer);
+            int classCount = CompactGraphFormat.getCount(inputBuffer);
+            classTable = new ArrayList<>(classCount);
+            for (int i = 0; i < classCount; ++i) {
+                classTable.add(ByteBufferObjectDeserializer.readClassName(inputBuffer, classNameMapper));
+            }
+        } else {
+            nextHashCode = inputBuffer.getInt();
+        }
+        int bodyStart = inputBuffer.position();
+        
         // Deserialization requires that we walk the input data twice, since we need to create all the instances on the first pass and attach them all on the second.
-        // So, we skip the hashcode on the first pass.
-        inputBuffer.getInt();
-        // Create the pre-pass deserializer, just to walk consistently.
-        ByteBufferObjectDeserializer prePassDeserializer = new ByteBufferObjectDeserializer(inputBuffer, null, cache, resolver, classNameMapper);
+        // Create the pre-pass deserializer, just to walk consistently (this is also where the snapshot is recorded, since this pass walks every instance).
+        // (any references read from the statics are ignored by the snapshot since the statics are always serialized in full)
+        ByteBufferObjectDeserializer prePassDeserializer = new ByteBufferObjectDeserializer(inputBuffer, null, cache, resolver, classNameMapper, snapshot, classTable);
         // Now, we need walk the statics, but only to advance the cursor through the buffer (since we will read the same data, but just won't be able to find the instances).
         deserializeClassStatics(prePassDeserializer, cache, sortedRoots);
         
         // Now, walk the rest of the data, deserializing each object, but this is just to find out the instance types and advance through the buffer, consistently.
-        List<Object> instanceList = createAllInstancesFromBuffer(prePassDeserializer, existingObjectIndex, cache, classNameMapper);
+        List<Object> instanceList = createAllInstancesFromBuffer(prePassDeserializer, inputBuffer, existingObjectIndex, snapshot, cache, classNameMapper);
+        if (null != snapshot) {
+            snapshot.finish(instanceList, classTable, inputBuffer.position());
+        }
         
         // Now, we have enough information to build the graph.
-        // Reset the buffer and read it again.
-        inputBuffer.rewind();
+        // Go back to the statics and read them again.
+        inputBuffer.position(bodyStart);
         
-        int nextHashCode = inputBuffer.getInt();
         // Create te real deserializer (this one has the instance list for building the connections from that index).
-        ByteBufferObjectDeserializer objectDeserializer = new ByteBufferObjectDeserializer(inputBuffer, instanceList, cache, resolver, classNameMapper);
+        ByteBufferObjectDeserializer objectDeserializer = new ByteBufferObjectDeserializer(inputBuffer, instanceList, cache, resolver, classNameMapper, null, classTable);
         
         // Next, we deserialize all the class statics for the user's classes.
         deserializeClassStatics(objectDeserializer, cache, sortedRoots);
         
         // We can now use the real deserializer to populate all instance fields and connections.
-        populateAllInstancesFromBuffer(objectDeserializer, instanceList, cache);
+        populateAllInstancesFromBuffer(objectDeserializer, inputBuffer, snapshot, instanceList, cache);
         
         return nextHashCode;
     }
@@ -90,17 +122,19 @@ public class Deserializer {
 
     private static void deserializeOneClass(ByteBufferObjectDeserializer objectDeserializer, SortedFieldCache cache, Class<?> clazz) {
         // Note that we don't serialize the class name - the roots are in the same sorted order for reading and writing.
-        // First, we serialize the constants.
-        Field[] constants = cache.getConstantFields(clazz);
-        deserializeFieldsForClass(objectDeserializer, constants);
-        
-        // Then, we serialize the user-defined static fields.
-        Field[] fields = cache.getUserStaticFields(clazz);
-        deserializeFieldsForClass(objectDeserializer, fields);
+        // If the class has generated statics code, that reads them all, in the order below.
+        if (!cache.deserializeStatics(clazz, objectDeserializer)) {
+            // First, we serialize the constants.
+            Field[] constants = cache.getConstantFields(clazz);
+            deserializeFieldsForClass(objectDeserializer, constants);
+            
+            // Then, we serialize the user-defined static fields.
+            Field[] fields = cache.getUserStaticFields(clazz);
+            deserializeFieldsForClass(objectDeserializer, fields);
+        }
     }
 
-    private static List<Object> createAllInstancesFromBuffer(ByteBufferObjectDeserializer objectDeserializer, List<Object> existingObjectIndex, SortedFieldCache cache, IPersistenceNameMapper classNameMapper) {
-        Method deserializeSelfMethod = cache.getDeserializeSelfMethod();
+    private static List<Object> createAllInstancesFromBuffer(ByteBufferObjectDeserializer objectDeserializer, ByteBuffer inputBuffer, List<Object> existingObjectIndex, GraphSnapshot snapshot, SortedFieldCache cache, IPersistenceNameMapper classNameMapper) {
         List<Object> instanceList = new ArrayList<>();
         // We want to tell each instance which index we read them as - this is useful in the case of reentrant calls so we can track the
         // instance we can write back into.
@@ -112,49 +146,51 @@ public class Deserializer {
         boolean isDeserializingIntoCallerObjects = (null != existingObjectIndex);
         
         // We walk the entire buffer, ending when we fall off the end (the exception).
-        try {
-            boolean keepRunning = true;
-            while (keepRunning) {
-                // We only expect the error when reading the class name, so only check it there (other cases would be errors).
-                String internalClassName = null;
-                try {
-                    internalClassName = objectDeserializer.readClassName();
-                } catch (BufferUnderflowException done) {
-                    // This was expected - means we fell off the end of the buffer.
-                    keepRunning = false;
-                }
-                if (keepRunning) {
-                    // Note that we might be re-using an old instance (if we are returning from a reentrant call).
-                    // Even if there is a different object instance we want to re-use, we still need to create the instance in order to advance the stream.
-                    Object instance = (isDeserializingIntoCallerObjects && (null != existingObjectIndex.get(readIndex)))
-                            ? existingObjectIndex.get(readIndex)
-                            : cache.getNewInstance(internalClassName, isDeserializingIntoCallerObjects ? -1 : readIndex);
-                    deserializeSelfMethod.invoke(instance, null, objectDeserializer);
-                    instanceList.add(instance);
-                    readIndex += 1;
+        boolean keepRunning = true;
+        while (keepRunning) {
+            // We only expect the error when reading the class name, so only check it there (other cases would be errors).
+            String internalClassName = null;
+            int instanceStart = inputBuffer.position();
+            try {
+                internalClassName = objectDeserializer.readClassName();
+            } catch (BufferUnderflowException done) {
+                // This was expected - means we fell off the end of the buffer.
+                keepRunning = false;
+            }
+            if (keepRunning) {
+                // Note that we might be re-using an old instance (if we are returning from a reentrant call).
+                // Even if there is a different object instance we want to re-use, we still need to create the instance in order to advance the stream.
+                Object instance = (isDeserializingIntoCallerObjects && (null != existingObjectIndex.get(readIndex)))
+                        ? existingObjectIndex.get(readIndex)
+                        : cache.getNewInstance(internalClassName, isDeserializingIntoCallerObjects ? -1 : readIndex);
+                if ((null != snapshot) && snapshot.beginInstance(instanceStart, instance.getClass())) {
+                    // This is a stub:  it will only be populated when lazyLoad() is first called on it.
+                    // (a graph can't hold enough instances for the offset to collide with a real readIndex - see STUB_READ_INDEX_BASE)
+                    RuntimeAssertionError.assertTrue(readIndex < org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
+                    cache.setReadIndex(instance, readIndex + org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
                 }
+                cache.deserializeInstance(instance, objectDeserializer);
+                instanceList.add(instance);
+                readIndex += 1;
             }
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            // Reflection errors can't happen since we set this up so we could access it.
-            throw RuntimeAssertionError.unexpected(e);
         }
         return instanceList;
     }
 
-    private static void populateAllInstancesFromBuffer(ByteBufferObjectDeserializer objectDeserializer, List<Object> instanceList, SortedFieldCache cache) {
-        Method deserializeSelfMethod = cache.getDeserializeSelfMethod();
-        
+    private static void populateAllInstancesFromBuffer(ByteBufferObjectDeserializer objectDeserializer, ByteBuffer inputBuffer, GraphSnapshot snapshot, List<Object> instanceList, SortedFieldCache cache) {
         // We walk the entire instanceList, assuming that it is the full content of the storage.
-        try {
-            for (Object instance : instanceList) {
+        for (int i = 0; i < instanceList.size(); ++i) {
+            // Stubs are skipped (they are populated when first used) so, if there are any, we need to find where each instance starts.
+            boolean isStub = (null != snapshot) && snapshot.isStub(i);
+            if (!isStub) {
+                if (null != snapshot) {
+                    inputBuffer.position(snapshot.getInstanceStart(i));
+                }
                 // Read the class name, but just to advance the cursor.
                 objectDeserializer.readClassName();
                 // Now, deserialize the instance.
-                deserializeSelfMethod.invoke(instance, null, objectDeserializer);
+                cache.deserializeInstance(instanceList.get(i), objectDeserializer);
             }
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            // Reflection errors can't happen since we set this up so we could access it.
-            throw RuntimeAssertionError.unexpected(e);
         }
     }
 
@@ -0,0 +1,124 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.aion.avm.internal.OutOfEnergyException;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * The buffers a thread serializes object graphs into, kept from one graph (and one transaction) to the next so that saving or capturing
+ * a graph doesn't allocate buffers of the maximum graph size every time.
+ * The buffers start small and grow, up to the maximum size of the graph being serialized, whenever a graph doesn't fit:  the graph is
+ * then serialized again, from the start, so the result is the same as if the buffers had been big enough to begin with.
+ *
+ * These are owned by one thread (see AvmImpl's executor threads, which attach them to each TransactionTask they run) so they are not
+ * safe to share.
+ */
+public class GraphBuffers {
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    // The size the buffers have grown to (each attempt uses the smaller of this and the maximum size of the graph).
+    private int size;
+    private int attemptSize;
+    private boolean isSerializing;
+    private ByteBuffer graphBuffer;
+    private ByteBuffer bodyBuffer;
+    private ByteBuffer payloadBuffer;
+    private byte[] compressionBuffer;
+
+    public GraphBuffers() {
+        this.size = INITIAL_SIZE;
+    }
+
+    /**
+     * Serializes a graph, with the given writer, into these buffers and returns a copy of what it wrote.
+     *
+     * @param maximumSizeInBytes The size limit on the serialized graph.
+     * @param writer Writes the graph into the buffer it is given (it may be called more than once so it must start over each time).
+     * @return The serialized graph.
+     * @throws OutOfEnergyException The graph is larger than maximumSizeInBytes.
+     */
+    public byte[] serialize(int maximumSizeInBytes, IGraphWriter writer) {
+        // The scratch buffers are only valid for the graph being serialized so this isn't reentrant.
+        RuntimeAssertionError.assertTrue(!this.isSerializing);
+        this.isSerializing = true;
+        try {
+            byte[] graph = null;
+            while (null == graph) {
+                this.attemptSize = Math.min(this.size, maximumSizeInBytes);
+                this.graphBuffer = prepare(this.graphBuffer, this.attemptSize);
+                try {
+                    writer.writeGraph(this.graphBuffer);
+                    graph = Arrays.copyOf(this.graphBuffer.array(), this.graphBuffer.position());
+                } catch (OutOfEnergyException e) {
+                    // The serializer reports running off the end of the buffer as out of energy, which is only true at the maximum size.
+                    if (this.attemptSize >= maximumSizeInBytes) {
+                        throw e;
+                    }
+                    this.size = (int) Math.min(2L * this.attemptSize, maximumSizeInBytes);
+                }
+            }
+            return graph;
+        } finally {
+            this.isSerializing = false;
+        }
+    }
+
+    /**
+     * @return A scratch buffer, the same size as the graph buffer, for the body of a compact graph (see Serializer.serializeCompactGraph()).
+     */
+    public ByteBuffer getBodyBuffer() {
+        RuntimeAssertionError.assertTrue(this.isSerializing);
+        this.bodyBuffer = prepare(this.bodyBuffer, this.attemptSize);
+        return this.bodyBuffer;
+    }
+
+    /**
+     * @return A scratch buffer, the same size as the graph buffer, for the payload of a compact graph (see Serializer.serializeCompactGraph()).
+     */
+    public ByteBuffer getPayloadBuffer() {
+        RuntimeAssertionError.assertTrue(this.isSerializing);
+        this.payloadBuffer = prepare(this.payloadBuffer, this.attemptSize);
+        return this.payloadBuffer;
+    }
+
+    /**
+     * @param length The number of bytes to be compressed.
+     * @return A scratch array big enough to compress that many bytes into (see CompactGraphFormat.writeGraph()).
+     */
+    public byte[] getCompressionBuffer(int length) {
+        RuntimeAssertionError.assertTrue(this.isSerializing);
+        int required = GraphCompression.maxCompressedLength(length);
+        if ((null == this.compressionBuffer) || (this.compressionBuffer.length < required)) {
+            this.compressionBuffer = new byte[required];
+        }
+        return this.compressionBuffer;
+    }
+
+
+    private static ByteBuffer prepare(ByteBuffer buffer, int size) {
+        ByteBuffer prepared = buffer;
+        if ((null == prepared) || (prepared.capacity() < size)) {
+            prepared = ByteBuffer.allocate(size);
+        } else {
+            prepared.clear();
+            // (the buffer may have grown for a bigger graph but running off the end of this one must still be detected)
+            prepared.limit(size);
+        }
+        return prepared;
+    }
+
+
+    /**
+     * Writes a graph into a buffer.
+     */
+    public interface IGraphWriter {
+        /**
+         * @param outputBuffer The buffer to write, from position 0.
+         * @throws OutOfEnergyException If the graph didn't fit in the buffer.
+         */
+        void writeGraph(ByteBuffer outputBuffer);
+    }
+}
@@ -0,0 +1,284 @@
+package org.aion.avm.core.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.aion.avm.core.ClassToolchain;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+
+/**
+ * Generates the code which serializes and deserializes the instances and statics of a DApp class, so that saving and loading the
+ * graph doesn't need to walk the class's fields with reflection:
+ * 1)  "serializeSelf()"/"deserializeSelf()" are overridden to write/read the fields this class declares, after its superclass has
+ *  handled its own.
+ * 2)  "serializeStatics()"/"deserializeStatics()" are added to write/read the static fields of the class (see SortedFieldCache).
+ *
+ * The encoding is exactly what the automatic (reflection-based) implementation produces:  the fields of each class, from the top of the
+ * hierarchy down, each sorted by name and the constants (statics) before the other statics.  This means the classes of DApps deployed
+ * before this existed, which don't have the generated code, still use the automatic implementation for the same graph.
+ *
+ * Note that the instance methods can only be generated where every superclass, up to the shadow Object, also has them since the
+ * automatic implementation would otherwise need to walk the fields of the classes in between (a DApp class which extends a shadow
+ * JDK exception, for example).  The caller provides the set of these classes.
+ * This must be run after any other transformation which changes the fields of the class (it is also after the energy and stack
+ * accounting since this is our own implementation detail, which isn't billed).
+ */
+public class GraphCodecVisitor extends ClassToolchain.ToolChainClassVisitor {
+    public static final String SERIALIZE_STATICS_NAME = "serializeStatics";
+    public static final String DESERIALIZE_STATICS_NAME = "deserializeStatics";
+
+    private static final String SERIALIZE_SELF_NAME = "serializeSelf";
+    private static final String DESERIALIZE_SELF_NAME = "deserializeSelf";
+    private static final String SERIALIZER_NAME = "org/aion/avm/internal/IObjectSerializer";
+    private static final String DESERIALIZER_NAME = "org/aion/avm/internal/IObjectDeserializer";
+    private static final String SERIALIZE_SELF_DESCRIPTOR = "(Ljava/lang/Class;L" + SERIALIZER_NAME + ";)V";
+    private static final String DESERIALIZE_SELF_DESCRIPTOR = "(Ljava/lang/Class;L" + DESERIALIZER_NAME + ";)V";
+    private static final String SERIALIZE_STATICS_DESCRIPTOR = "(L" + SERIALIZER_NAME + ";)V";
+    private static final String DESERIALIZE_STATICS_DESCRIPTOR = "(L" + DESERIALIZER_NAME + ";)V";
+
+    private final Set<String> instanceCodecClassNames;
+    private boolean isInterface;
+    private String className;
+    private String superClassName;
+    private final List<FieldEntry> instanceFields;
+    private final List<FieldEntry> staticFields;
+
+    /**
+     * @param instanceCodecClassNames The /-style names of the classes which can have generated instance methods (see above).
+     */
+    public GraphCodecVisitor(Set<String> instanceCodecClassNames) {
+        super(Opcodes.ASM6);
+        this.instanceCodecClassNames = instanceCodecClassNames;
+        this.instanceFields = new ArrayList<>();
+        this.staticFields = new ArrayList<>();
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.isInterface = (0 != (Opcodes.ACC_INTERFACE & access));
+        this.className = name;
+        this.superClassName = superName;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        FieldEntry entry = new FieldEntry(name, descriptor);
+        if (0 != (Opcodes.ACC_STATIC & access)) {
+            this.staticFields.add(entry);
+        } else {
+            this.instanceFields.add(entry);
+        }
+        return super.visitField(access, name, descriptor, signature, value);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        // The user's methods are all renamed so nothing should already be using our names.
+        RuntimeAssertionError.assertTrue(!SERIALIZE_SELF_NAME.equals(name) && !DESERIALIZE_SELF_NAME.equals(name));
+        RuntimeAssertionError.assertTrue(!SERIALIZE_STATICS_NAME.equals(name) && !DESERIALIZE_STATICS_NAME.equals(name));
+        return super.visitMethod(access, name, descriptor, signature, exceptions);
+    }
+
+    @Override
+    public void visitEnd() {
+        // Interfaces have no instances and their statics are moved into a generated class (see InterfaceFieldMappingVisitor).
+        if (!this.isInterface) {
+            // Sort the fields in the order the automatic implementation uses (see SortedFieldCache).
+            this.instanceFields.sort((f1, f2) -> f1.name.compareTo(f2.name));
+            List<FieldEntry> sortedStatics = new ArrayList<>();
+            List<FieldEntry> userStatics = new ArrayList<>();
+            for (FieldEntry entry : this.staticFields) {
+                if (entry.name.startsWith(SortedFieldCache.CONSTANT_FIELD_PREFIX)) {
+                    sortedStatics.add(entry);
+                } else {
+                    userStatics.add(entry);
+                }
+            }
+            sortedStatics.sort((f1, f2) -> f1.name.compareTo(f2.name));
+            userStatics.sort((f1, f2) -> f1.name.compareTo(f2.name));
+            sortedStatics.addAll(userStatics);
+
+            if (this.instanceCodecClassNames.contains(this.className)) {
+                generateSerializeSelf();
+                generateDeserializeSelf();
+            }
+            generateSerializeStatics(sortedStatics);
+            generateDeserializeStatics(sortedStatics);
+        }
+        super.visitEnd();
+    }
+
+
+    private void generateSerializeSelf() {
+        MethodVisitor methodVisitor = super.visitMethod(Opcodes.ACC_PUBLIC, SERIALIZE_SELF_NAME, SERIALIZE_SELF_DESCRIPTOR, null, null);
+        methodVisitor.visitCode();
+        // super.serializeSelf((null == firstRealImplementation) ? ThisClass.class : firstRealImplementation, serializer);
+        // (this means that the superclass leaves the fields of this class, and any subclass, for us to write)
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+        pushFirstRealImplementation(methodVisitor);
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 2);
+        methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, this.superClassName, SERIALIZE_SELF_NAME, SERIALIZE_SELF_DESCRIPTOR, false);
+        for (FieldEntry entry : this.instanceFields) {
+            methodVisitor.visitVarInsn(Opcodes.ALOAD, 2);
+            methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+            methodVisitor.visitFieldInsn(Opcodes.GETFIELD, this.className, entry.name, entry.descriptor);
+            writeValue(methodVisitor, entry.descriptor);
+        }
+        methodVisitor.visitInsn(Opcodes.RETURN);
+        methodVisitor.visitMaxs(0, 0);
+        methodVisitor.visitEnd();
+    }
+
+    private void generateDeserializeSelf() {
+        MethodVisitor methodVisitor = super.visitMethod(Opcodes.ACC_PUBLIC, DESERIALIZE_SELF_NAME, DESERIALIZE_SELF_DESCRIPTOR, null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+        pushFirstRealImplementation(methodVisitor);
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 2);
+        methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, this.superClassName, DESERIALIZE_SELF_NAME, DESERIALIZE_SELF_DESCRIPTOR, false);
+        for (FieldEntry entry : this.instanceFields) {
+            methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+            methodVisitor.visitVarInsn(Opcodes.ALOAD, 2);
+            readValue(methodVisitor, entry.descriptor);
+            methodVisitor.visitFieldInsn(Opcodes.PUTFIELD, this.className, entry.name, entry.descriptor);
+        }
+        methodVisitor.visitInsn(Opcodes.RETURN);
+        methodVisitor.visitMaxs(0, 0);
+        methodVisitor.visitEnd();
+    }
+
+    private void generateSerializeStatics(List<FieldEntry> sortedStatics) {
+        MethodVisitor methodVisitor = super.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, SERIALIZE_STATICS_NAME, SERIALIZE_STATICS_DESCRIPTOR, null, null);
+        methodVisitor.visitCode();
+        for (FieldEntry entry : sortedStatics) {
+            methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+            methodVisitor.visitFieldInsn(Opcodes.GETSTATIC, this.className, entry.name, entry.descriptor);
+            writeValue(methodVisitor, entry.descriptor);
+        }
+        methodVisitor.visitInsn(Opcodes.RETURN);
+        methodVisitor.visitMaxs(0, 0);
+        methodVisitor.visitEnd();
+    }
+
+    private void generateDeserializeStatics(List<FieldEntry> sortedStatics) {
+        MethodVisitor methodVisitor = super.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, DESERIALIZE_STATICS_NAME, DESERIALIZE_STATICS_DESCRIPTOR, null, null);
+        methodVisitor.visitCode();
+        for (FieldEntry entry : sortedStatics) {
+            methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+            readValue(methodVisitor, entry.descriptor);
+            methodVisitor.visitFieldInsn(Opcodes.PUTSTATIC, this.className, entry.name, entry.descriptor);
+        }
+        methodVisitor.visitInsn(Opcodes.RETURN);
+        methodVisitor.visitMaxs(0, 0);
+        methodVisitor.visitEnd();
+    }
+
+    private void pushFirstRealImplementation(MethodVisitor methodVisitor) {
+        Label useArgument = new Label();
+        Label done = new Label();
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 1);
+        methodVisitor.visitJumpInsn(Opcodes.IFNONNULL, useArgument);
+        methodVisitor.visitLdcInsn(Type.getObjectType(this.className));
+        methodVisitor.visitJumpInsn(Opcodes.GOTO, done);
+        methodVisitor.visitLabel(useArgument);
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 1);
+        methodVisitor.visitLabel(done);
+    }
+
+    private static void writeValue(MethodVisitor methodVisitor, String descriptor) {
+        // Expects (serializer, value) on the stack.
+        String methodName = null;
+        switch (descriptor.charAt(0)) {
+            case 'Z':
+                methodName = "writeBoolean";
+                break;
+            case 'B':
+                methodName = "writeByte";
+                break;
+            case 'S':
+                methodName = "writeShort";
+                break;
+            case 'C':
+                methodName = "writeChar";
+                break;
+            case 'I':
+                methodName = "writeInt";
+                break;
+            case 'F':
+                methodName = "writeFloat";
+                break;
+            case 'J':
+                methodName = "writeLong";
+                break;
+            case 'D':
+                methodName = "writeDouble";
+                break;
+            default:
+                methodName = "writeObject";
+                break;
+        }
+        String methodDescriptor = "writeObject".equals(methodName)
+                ? "(Ljava/lang/Object;)V"
+                : "(" + descriptor + ")V";
+        methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, SERIALIZER_NAME, methodName, methodDescriptor, true);
+    }
+
+    private static void readValue(MethodVisitor methodVisitor, String descriptor) {
+        // Expects (deserializer) on the stack and leaves the value, of the field's type.
+        String methodName = null;
+        switch (descriptor.charAt(0)) {
+            case 'Z':
+                methodName = "readBoolean";
+                break;
+            case 'B':
+                methodName = "readByte";
+                break;
+            case 'S':
+                methodName = "readShort";
+                break;
+            case 'C':
+                methodName = "readChar";
+                break;
+            case 'I':
+                methodName = "readInt";
+                break;
+            case 'F':
+                methodName = "readFloat";
+                break;
+            case 'J':
+                methodName = "readLong";
+                break;
+            case 'D':
+                methodName = "readDouble";
+                break;
+            default:
+                methodName = "readObject";
+                break;
+        }
+        if ("readObject".equals(methodName)) {
+            methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, DESERIALIZER_NAME, methodName, "()Ljava/lang/Object;", true);
+            methodVisitor.visitTypeInsn(Opcodes.CHECKCAST, Type.getType(descriptor).getInternalName());
+        } else {
+            methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, DESERIALIZER_NAME, methodName, "()" + descriptor, true);
+        }
+    }
+
+
+    private static class FieldEntry {
+        public final String name;
+        public final String descriptor;
+
+        public FieldEntry(String name, String descriptor) {
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * The block compression used by compact graphs (see CompactGraphFormat):  a simple LZ77 scheme, in the style of LZ4.
+ * This is implemented here, instead of using java.util.zip, since the compressed graph is what is stored, billed, and hashed so it
+ * must be exactly the same on every node (what Deflater produces depends on the zlib the JDK happens to use).
+ *
+ * A block is a sequence of pairs, each made of literals and a match.  Each pair starts with a token byte:  the high nibble is the
+ * number of literals and the low nibble is the length of the match, less MIN_MATCH (a nibble of 15 means that more bytes follow,
+ * each adding up to 255 more, until one is less than 255).  The literals follow the token and are followed by the 2-byte distance back
+ * to the start of the match.  The last pair only has literals (if any).
+ */
+public class GraphCompression {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int HASH_BITS = 14;
+    private static final int NIBBLE_MAX = 15;
+
+    /**
+     * @param length The number of bytes to compress.
+     * @return The size of the largest block compress() can produce for that many bytes.
+     */
+    public static int maxCompressedLength(int length) {
+        // At worst, everything is a literal:  that costs a token and the bytes extending its length.
+        return length + (length / 255) + 16;
+    }
+
+    /**
+     * Compresses the given bytes, deterministically.
+     *
+     * @param input The bytes to compress.
+     * @param length The number of bytes, from the start of input, to compress.
+     * @param output Where to write the block (must be at least maxCompressedLength(length) bytes).
+     * @return The size of the block written.
+     */
+    public static int compress(byte[] input, int length, byte[] output) {
+        // The position where each hash of 4 bytes was last seen.
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int outputPosition = 0;
+        int literalStart = 0;
+        int position = 0;
+        while (position <= (length - MIN_MATCH)) {
+            int sequence = readInt(input, position);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = table[hash];
+            table[hash] = position;
+            if ((candidate >= 0) && ((position - candidate) <= MAX_DISTANCE) && (readInt(input, candidate) == sequence)) {
+                int matchLength = MIN_MATCH;
+                while (((position + matchLength) < length) && (input[candidate + matchLength] == input[position + matchLength])) {
+                    matchLength += 1;
+                }
+                outputPosition = writePair(input, literalStart, position - literalStart, position - candidate, matchLength, output, outputPosition);
+                position += matchLength;
+                literalStart = position;
+            } else {
+                position += 1;
+            }
+        }
+        // Whatever is left is written as literals (there is nothing to write if the input ended with a match).
+        int literalLength = length - literalStart;
+        if (literalLength > 0) {
+            output[outputPosition] = (byte) (Math.min(literalLength, NIBBLE_MAX) << 4);
+            outputPosition = writeLengthExtension(literalLength, output, outputPosition + 1);
+            System.arraycopy(input, literalStart, output, outputPosition, literalLength);
+            outputPosition += literalLength;
+        }
+        return outputPosition;
+    }
+
+    /**
+     * Decompresses a block written by compress().
+     *
+     * @param input The block, from its position to its limit.
+     * @param output Where to write the decompressed bytes (must be exactly as many as were compressed).
+     */
+    public static void decompress(ByteBuffer input, byte[] output) {
+        int outputPosition = 0;
+        while (outputPosition < output.length) {
+            int token = (0xff & input.get());
+            int literalLength = readLengthExtension(token >>> 4, input);
+            input.get(output, outputPosition, literalLength);
+            outputPosition += literalLength;
+            // Only the last pair has no match and that is the one which fills the output.
+            if (outputPosition < output.length) {
+                int distance = ((0xff & input.get()) << 8) | (0xff & input.get());
+                int matchLength = readLengthExtension(token & NIBBLE_MAX, input) + MIN_MATCH;
+                RuntimeAssertionError.assertTrue((distance > 0) && (distance <= outputPosition));
+                RuntimeAssertionError.assertTrue((outputPosition + matchLength) <= output.length);
+                // (the match can overlap what it is writing so this must be copied a byte at a time)
+                int matchStart = outputPosition - distance;
+                for (int i = 0; i < matchLength; ++i) {
+                    output[outputPosition + i] = output[matchStart + i];
+                }
+                outputPosition += matchLength;
+            }
+        }
+        RuntimeAssertionError.assertTrue(!input.hasRemaining());
+    }
+
+
+    private static int writePair(byte[] input, int literalStart, int literalLength, int distance, int matchLength, byte[] output, int outputPosition) {
+        int matchExtension = matchLength - MIN_MATCH;
+        output[outputPosition] = (byte) ((Math.min(literalLength, NIBBLE_MAX) << 4) | Math.min(matchExtension, NIBBLE_MAX));
+        int position = writeLengthExtension(literalLength, output, outputPosition + 1);
+        System.arraycopy(input, literalStart, output, position, literalLength);
+        position += literalLength;
+        output[position] = (byte) (distance >>> 8);
+        output[position + 1] = (byte) distance;
+        return writeLengthExtension(matchExtension, output, position + 2);
+    }
+
+    private static int writeLengthExtension(int length, byte[] output, int outputPosition) {
+        int position = outputPosition;
+        if (length >= NIBBLE_MAX) {
+            int remaining = length - NIBBLE_MAX;
+            while (remaining >= 255) {
+                output[position] = (byte) 255;
+                position += 1;
+                remaining -= 255;
+            }
+            output[position] = (byte) remaining;
+            position += 1;
+        }
+        return position;
+    }
+
+    private static int readLengthExtension(int nibble, ByteBuffer input) {
+        int length = nibble;
+        if (NIBBLE_MAX == nibble) {
+            int next = 255;
+            while (255 == next) {
+                next = (0xff & input.get());
+                length += next;
+            }
+        }
+        return length;
+    }
+
+    private static int readInt(byte[] input, int position) {
+        return ((0xff & input[position]) << 24)
+                | ((0xff & input[position + 1]) << 16)
+                | ((0xff & input[position + 2]) << 8)
+                | (0xff & input[position + 3]);
+    }
+}
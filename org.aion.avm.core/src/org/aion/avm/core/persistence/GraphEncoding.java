@@ -0,0 +1,26 @@
+package org.aion.avm.core.persistence;
+
+
+/**
+ * The formats a DApp's object graph can be saved in (see CompactGraphFormat).
+ * A DApp's format is chosen when it is deployed and recorded with its code (see ImmortalDappModule.GRAPH_ENCODING_ATTRIBUTE):  its graph
+ * is always saved, and read, in that format.
+ */
+public enum GraphEncoding {
+    /**
+     * The original format:  fixed-width primitives and references, with the full class name of every instance.
+     */
+    ORIGINAL,
+    /**
+     * The compact format:  a class table, referenced by index, and variable-length primitives and references.
+     */
+    COMPACT,
+    /**
+     * The compact format, with the payload also compressed (unless that doesn't make it any smaller).
+     */
+    COMPACT_COMPRESSED;
+
+    public boolean isCompact() {
+        return (ORIGINAL != this);
+    }
+}
@@ -0,0 +1,297 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aion.avm.arraywrapper.ObjectArray;
+
+
+/**
+ * The serialized graph, as it was loaded, along with where each instance was encoded within it.
+ * This allows the unchanged instances to be reused when the graph is saved:  any instance which hasn't been written since it was loaded (see
+ * IInstrumentation.noteInstanceWrite()) still has exactly the encoding it was loaded from, except for the indices of the instances it
+ * references, so that encoding is copied instead of walking the instance's fields again.
+ *
+ * Note that this is only sound for instances where every field write goes through the write barrier, which is what
+ * {@link #isTracked(Class)} checks.
+ *
+ * The snapshot is also what allows the graph to be loaded lazily:  instances which can be stubs are only created when the graph is
+ * loaded, and are populated from the snapshot when they are first used (see LazyGraphLoader).  A stub which was never used is, by
+ * definition, unchanged so it is always copied when saving.
+ *
+ * For a compact graph (see CompactGraphFormat), the snapshot is of the payload and also keeps the class table.  An instance can only
+ * be copied into a graph being written in the same format.
+ */
+public class GraphSnapshot {
+    private final byte[] rawGraph;
+    private final Class<?> rootClass;
+    // Whether each class seen is tracked by the write barrier (the DApp's classes are the keys which start as true).
+    private final Map<Class<?>, Boolean> trackedClasses;
+    private final boolean installStubs;
+    private final BitSet stubs;
+    private List<Object> instances;
+    // The class table, if this is a compact graph (null if it is in the original format).
+    private List<String> classTable;
+    private BitSet writtenInstances;
+
+    // The encoding of instance i is rawGraph[instanceStarts[i], instanceStarts[i+1]).
+    private int[] instanceStarts;
+    // The offsets of the REF_NORMAL indices within the encoding of instance i are referenceOffsets[referenceStarts[i], referenceStarts[i+1]).
+    // (in a compact graph, these are the offsets of the whole REF_NORMAL and REF_CLASS references, since both are varints)
+    private int[] referenceStarts;
+    private int[] referenceOffsets;
+    private int instanceCount;
+    private int referenceCount;
+
+    /**
+     * Creates the snapshot, to be populated as the graph is deserialized.
+     *
+     * @param rawGraph The serialized graph (which must not be modified while the snapshot is in use).
+     * @param rootClass The class at the root of the instance hierarchy (the shadow Object), which implements the write barrier.
+     * @param sortedRoots The classes of the DApp, all of which are instrumented with the write barrier.
+     */
+    public GraphSnapshot(byte[] rawGraph, Class<?> rootClass, Class<?>[] sortedRoots) {
+        this(rawGraph, rootClass, sortedRoots, false);
+    }
+
+    /**
+     * Creates the snapshot, as above, optionally deciding which instances are installed as stubs.
+     *
+     * @param rawGraph The serialized graph (which must not be modified while the snapshot is in use).
+     * @param rootClass The class at the root of the instance hierarchy (the shadow Object), which implements the write barrier.
+     * @param sortedRoots The classes of the DApp, all of which are instrumented with the write barrier.
+     * @param installStubs True if the instances which are only accessed through lazyLoad() should be installed as stubs.
+     */
+    public GraphSnapshot(byte[] rawGraph, Class<?> rootClass, Class<?>[] sortedRoots, boolean installStubs) {
+        this.rawGraph = rawGraph;
+        this.installStubs = installStubs;
+        this.stubs = new BitSet();
+        this.rootClass = rootClass;
+        this.trackedClasses = new HashMap<>();
+        for (Class<?> clazz : sortedRoots) {
+            this.trackedClasses.put(clazz, true);
+        }
+        this.instanceStarts = new int[16];
+        this.referenceStarts = new int[16];
+        this.referenceOffsets = new int[16];
+    }
+
+    /**
+     * Called by the deserializer once it has read the class name of the next instance (and created it).
+     *
+     * @param position The position of the instance (its class name) within the graph.
+     * @param instanceClass The class of the instance.
+     * @return True if the instance should be installed as a stub.
+     */
+    public boolean beginInstance(int position, Class<?> instanceClass) {
+        if (this.instanceCount + 1 >= this.instanceStarts.length) {
+            this.instanceStarts = Arrays.copyOf(this.instanceStarts, 2 * this.instanceStarts.length);
+            this.referenceStarts = Arrays.copyOf(this.referenceStarts, 2 * this.referenceStarts.length);
+        }
+        this.instanceStarts[this.instanceCount] = position;
+        this.referenceStarts[this.instanceCount] = this.referenceCount;
+        // Only instances whose every field access goes through lazyLoad() can be stubs:  the DApp's own classes and the reference arrays
+        // (the other runtime classes, the primitive arrays for example, are accessed directly by the runtime).
+        boolean isStub = this.installStubs && (ObjectArray.class.isAssignableFrom(instanceClass) || isTracked(instanceClass));
+        if (isStub) {
+            this.stubs.set(this.instanceCount);
+        }
+        this.instanceCount += 1;
+        return isStub;
+    }
+
+    /**
+     * Called by the deserializer when it reads a REF_NORMAL reference, within the current instance (or the statics, before the first instance).
+     * If this is a compact graph, it is also called for REF_CLASS references.
+     *
+     * @param position The position of the instance index within the graph (of the whole reference, if this is a compact graph).
+     */
+    public void addReference(int position) {
+        if (this.referenceCount == this.referenceOffsets.length) {
+            this.referenceOffsets = Arrays.copyOf(this.referenceOffsets, 2 * this.referenceOffsets.length);
+        }
+        this.referenceOffsets[this.referenceCount] = position;
+        this.referenceCount += 1;
+    }
+
+    /**
+     * Called once the whole graph has been deserialized.
+     *
+     * @param instances The instances, in the order they were read (so an instance's readIndex is its index in this list).
+     * @param classTable The class table, if this is a compact graph (null if it is in the original format).
+     * @param endPosition The position of the end of the last instance.
+     */
+    public void finish(List<Object> instances, List<String> classTable, int endPosition) {
+        this.instances = instances;
+        this.classTable = classTable;
+        this.instanceStarts[this.instanceCount] = endPosition;
+        this.referenceStarts[this.instanceCount] = this.referenceCount;
+    }
+
+    /**
+     * @param readIndex The index of an instance within the graph.
+     * @return True if the instance was installed as a stub (even if it has since been loaded).
+     */
+    public boolean isStub(int readIndex) {
+        return this.stubs.get(readIndex);
+    }
+
+    /**
+     * @param readIndex The index of an instance within the graph.
+     * @return The position of the instance (its class name) within the graph.
+     */
+    public int getInstanceStart(int readIndex) {
+        return this.instanceStarts[readIndex];
+    }
+
+    /**
+     * @return The serialized graph.
+     */
+    public byte[] getRawGraph() {
+        return this.rawGraph;
+    }
+
+    /**
+     * @return The class table, if this is a compact graph (null if it is in the original format).
+     */
+    public List<String> getClassTable() {
+        return this.classTable;
+    }
+
+    /**
+     * @return True if this is a compact graph (only valid once finish() has been called).
+     */
+    public boolean isCompact() {
+        return (null != this.classTable);
+    }
+
+    /**
+     * @return The instances, in the order they were read (only valid once finish() has been called).
+     */
+    public List<Object> getInstances() {
+        return this.instances;
+    }
+
+    /**
+     * Called before the graph is saved.
+     *
+     * @param writtenInstances The readIndex of every instance written since the graph was loaded (null if only the stubs, which were
+     * never loaded, are known to be unchanged).
+     */
+    public void setWrittenInstances(BitSet writtenInstances) {
+        this.writtenInstances = writtenInstances;
+    }
+
+    /**
+     * Checks if the given instance is unchanged since it was loaded, and so can be copied from the snapshot.
+     *
+     * @param instance The instance about to be serialized.
+     * @param readIndex The instance's readIndex.
+     * @return True if the instance was loaded into this snapshot and is either a stub or is tracked by the write barrier and hasn't been written.
+     */
+    public boolean isUnchanged(Object instance, int readIndex) {
+        boolean isStub = (readIndex >= org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
+        int index = isStub
+                ? (readIndex - org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE)
+                : readIndex;
+        return (index >= 0)
+                && (index < this.instanceCount)
+                && (this.instances.get(index) == instance)
+                && (isStub || ((null != this.writtenInstances) && !this.writtenInstances.get(index) && isTracked(instance.getClass())));
+    }
+
+    /**
+     * Writes the encoding of an unchanged instance (including its class name), mapping each instance it references through the given
+     * indexer, exactly as serializing it would.
+     *
+     * @param outputBuffer The buffer to write (in the same format as this graph).
+     * @param readIndex The instance's readIndex.
+     * @param indexer Returns the index of the given instance in the graph being written.
+     * @param classIndexer Returns the index of the given class in the class table of the graph being written (only used if this is a compact graph).
+     */
+    public void copyInstance(ByteBuffer outputBuffer, int readIndex, IInstanceIndexer indexer, IClassIndexer classIndexer) {
+        // (a stub's readIndex is offset until it is loaded)
+        int index = (readIndex >= org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE)
+                ? (readIndex - org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE)
+                : readIndex;
+        if (null == this.classTable) {
+            copyOriginalInstance(outputBuffer, index, indexer);
+        } else {
+            copyCompactInstance(outputBuffer, index, indexer, classIndexer);
+        }
+    }
+
+
+    private void copyOriginalInstance(ByteBuffer outputBuffer, int index, IInstanceIndexer indexer) {
+        int start = this.instanceStarts[index];
+        int outputStart = outputBuffer.position();
+        outputBuffer.put(this.rawGraph, start, this.instanceStarts[index + 1] - start);
+        ByteBuffer input = ByteBuffer.wrap(this.rawGraph);
+        for (int i = this.referenceStarts[index]; i < this.referenceStarts[index + 1]; ++i) {
+            int offset = this.referenceOffsets[i];
+            int oldIndex = input.getInt(offset);
+            int newIndex = indexer.getIndexForInstance(this.instances.get(oldIndex));
+            if (newIndex != oldIndex) {
+                outputBuffer.putInt(outputStart + (offset - start), newIndex);
+            }
+        }
+    }
+
+    private void copyCompactInstance(ByteBuffer outputBuffer, int index, IInstanceIndexer indexer, IClassIndexer classIndexer) {
+        // Every index can have a different length in the graph being written so the encoding is copied in pieces, between them.
+        // (this maps the instance's class and then its references in the order they were written, exactly as serializing it would)
+        ByteBuffer input = ByteBuffer.wrap(this.rawGraph);
+        input.position(this.instanceStarts[index]);
+        int classIndex = CompactGraphFormat.getCount(input);
+        CompactGraphFormat.putCount(outputBuffer, classIndexer.getIndexForClass(this.classTable.get(classIndex)));
+        for (int i = this.referenceStarts[index]; i < this.referenceStarts[index + 1]; ++i) {
+            int offset = this.referenceOffsets[i];
+            outputBuffer.put(this.rawGraph, input.position(), offset - input.position());
+            input.position(offset);
+            long encodedReference = CompactGraphFormat.getVarint(input);
+            byte referenceType = CompactGraphFormat.getReferenceType(encodedReference);
+            int oldValue = CompactGraphFormat.getReferenceValue(encodedReference);
+            int newValue = (ReferenceConstants.REF_NORMAL == referenceType)
+                    ? indexer.getIndexForInstance(this.instances.get(oldValue))
+                    : classIndexer.getIndexForClass(this.classTable.get(oldValue));
+            CompactGraphFormat.putReference(outputBuffer, referenceType, newValue);
+        }
+        outputBuffer.put(this.rawGraph, input.position(), this.instanceStarts[index + 1] - input.position());
+    }
+
+    private boolean isTracked(Class<?> instanceClass) {
+        Boolean isTracked = this.trackedClasses.get(instanceClass);
+        if (null == isTracked) {
+            // Only the DApp's own classes are instrumented with the write barrier so every class between this one and the root must be one
+            // of those (this excludes arrays and the JDK shadows, for example, which are modified without the barrier).
+            isTracked = true;
+            Class<?> clazz = instanceClass;
+            while (isTracked && (this.rootClass != clazz)) {
+                isTracked = (null != clazz) && (this.trackedClasses.get(clazz) == Boolean.TRUE);
+                clazz = isTracked ? clazz.getSuperclass() : null;
+            }
+            this.trackedClasses.put(instanceClass, isTracked);
+        }
+        return isTracked;
+    }
+
+
+    /**
+     * The mapping from an instance to its index in the graph being written.
+     */
+    public interface IInstanceIndexer {
+        int getIndexForInstance(Object instance);
+    }
+
+
+    /**
+     * The mapping from a class to its index in the class table of the compact graph being written.
+     */
+    public interface IClassIndexer {
+        int getIndexForClass(String internalClassName);
+    }
+}
@@ -0,0 +1,59 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.aion.avm.internal.IInstanceLoader;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * Populates the stubs installed when a graph is loaded lazily (see GraphSnapshot), reading each one from the graph it was loaded from
+ * when lazyLoad() is first called on it.
+ * This means that the cost of populating the graph only depends on how much of it the call actually uses.
+ * 
+ * Note that a stub is populated exactly as the Deserializer would have populated it (any instance it references was already created,
+ * possibly as another stub), so nothing else needs to know which instances were loaded this way.
+ */
+public class LazyGraphLoader implements IInstanceLoader {
+    private final GraphSnapshot snapshot;
+    private final SortedFieldCache cache;
+    private final ByteBuffer inputBuffer;
+    private final ByteBufferObjectDeserializer objectDeserializer;
+
+    public LazyGraphLoader(GraphSnapshot snapshot, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper) {
+        this.snapshot = snapshot;
+        this.cache = cache;
+        this.inputBuffer = ByteBuffer.wrap(snapshot.getRawGraph());
+        this.objectDeserializer = new ByteBufferObjectDeserializer(this.inputBuffer, snapshot.getInstances(), cache, resolver, classNameMapper, null, snapshot.getClassTable());
+    }
+
+    @Override
+    public void loadInstance(Object instance, int readIndex) {
+        RuntimeAssertionError.assertTrue(this.snapshot.isStub(readIndex));
+        RuntimeAssertionError.assertTrue(this.snapshot.getInstances().get(readIndex) == instance);
+        this.inputBuffer.position(this.snapshot.getInstanceStart(readIndex));
+        // Read the class name, but just to advance the cursor.
+        this.objectDeserializer.readClassName();
+        this.cache.deserializeInstance(instance, this.objectDeserializer);
+    }
+
+    /**
+     * Populates every stub which hasn't yet been loaded.
+     * This is required before anything walks the graph without going through lazyLoad() (capturing the state for a reentrant call,
+     * for example).
+     */
+    public void loadAllInstances() {
+        List<Object> instances = this.snapshot.getInstances();
+        for (int i = 0; i < instances.size(); ++i) {
+            if (this.snapshot.isStub(i)) {
+                Object instance = instances.get(i);
+                if (this.cache.getReadIndex(instance) >= org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE) {
+                    // Clear the flag, as lazyLoad() would.
+                    this.cache.setReadIndex(instance, i);
+                    loadInstance(instance, i);
+                }
+            }
+        }
+    }
+}
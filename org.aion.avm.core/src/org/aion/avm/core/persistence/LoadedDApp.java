@@ -5,6 +5,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
 import java.util.List;
 
 import org.aion.avm.core.util.DebugNameResolver;
@@ -73,6 +75,14 @@ public class LoadedDApp {
     private Method mainMethod;
     private long loadedBlockNum;
     private final boolean preserveDebuggability;
+    // True if the classes were transformed with the write barrier (so the instances written by a call are known and the rest can be copied).
+    private final boolean hasWriteBarrier;
+    // The format the DApp's graph is saved in, recorded when it was deployed (so this is also the format its stored graph is read in).
+    private final GraphEncoding graphEncoding;
+    // The graph as it was loaded, if it was loaded to reuse its unchanged instances when saved (null once anything other than the DApp's own code might have changed it).
+    private GraphSnapshot snapshot;
+    // Populates the stubs of the graph, if it was loaded lazily (null if the graph was loaded entirely).
+    private LazyGraphLoader lazyLoader;
 
     /**
      * Creates the LoadedDApp to represent the classes related to DApp at address.
@@ -81,6 +91,18 @@ public class LoadedDApp {
      * @param classes The list of classes to populate.
      */
     public LoadedDApp(ClassLoader loader, List<Class<?>> classes, String originalMainClassName, boolean preserveDebuggability) {
+        this(loader, classes, originalMainClassName, preserveDebuggability, true, GraphEncoding.ORIGINAL);
+    }
+
+    /**
+     * Creates the LoadedDApp to represent the classes related to DApp at address.
+     * 
+     * @param loader The class loader to look up shape.
+     * @param classes The list of classes to populate.
+     * @param hasWriteBarrier True if the classes were transformed with the write barrier (false for DApps deployed before it existed).
+     * @param graphEncoding The format the DApp's graph is saved in (ORIGINAL for DApps deployed before the compact format existed).
+     */
+    public LoadedDApp(ClassLoader loader, List<Class<?>> classes, String originalMainClassName, boolean preserveDebuggability, boolean hasWriteBarrier, GraphEncoding graphEncoding) {
         this.loader = loader;
         // Note that the storage system defines the classes as being sorted alphabetically.
         this.sortedClasses = classes.stream()
@@ -89,6 +111,8 @@ public class LoadedDApp {
         this.originalMainClassName = originalMainClassName;
         this.fieldCache = new SortedFieldCache(this.loader, SERIALIZE_SELF, DESERIALIZE_SELF, FIELD_READ_INDEX);
         this.preserveDebuggability = preserveDebuggability;
+        this.hasWriteBarrier = hasWriteBarrier;
+        this.graphEncoding = graphEncoding;
         // We also know that we need the runtimeSetup, meaning we also need the helperClass.
         try {
             String helperClassName = Helper.RUNTIME_HELPER_NAME;
@@ -102,7 +126,7 @@ public class LoadedDApp {
     }
 
     /**
-     * Requests that the Classes in the receiver be populated with data from the rawGraphData.
+     * Requests that the Classes in the receiver be populated with data from the rawGraphData (in the original format).
      * NOTE:  The caller is expected to manage billing - none of that is done in here.
      * 
      * @param internedClassMap The interned classes, in case class references need to be instantiated.
@@ -110,14 +134,121 @@ public class LoadedDApp {
      * @return The nextHashCode serialized within the graph.
      */
     public int loadEntireGraph(InternedClasses internedClassMap, byte[] rawGraphData) {
-        ByteBuffer inputBuffer = ByteBuffer.wrap(rawGraphData);
+        return loadEntireGraph(internedClassMap, ByteBuffer.wrap(rawGraphData));
+    }
+
+    /**
+     * Requests that the Classes in the receiver be populated with data from the graphBuffer (in the original format), reading it in
+     * place (so the buffer can be a view of where the kernel stores the graph, such as a mapped file, rather than a copy).
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param internedClassMap The interned classes, in case class references need to be instantiated.
+     * @param graphBuffer The buffer from which to read the graph, from its current position to its limit (note that this must encompass all and only a completely serialized graph.
+     * @return The nextHashCode serialized within the graph.
+     */
+    public int loadEntireGraph(InternedClasses internedClassMap, ByteBuffer graphBuffer) {
+        return loadEntireGraph(internedClassMap, graphBuffer, false);
+    }
+
+    /**
+     * Requests that the Classes in the receiver be populated with data from the graphBuffer, as above, optionally keeping a snapshot
+     * of the graph so that the next saveEntireGraph() can copy the instances which weren't written, instead of serializing them again.
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param internedClassMap The interned classes, in case class references need to be instantiated.
+     * @param graphBuffer The buffer from which to read the graph, from its current position to its limit (note that this must encompass all and only a completely serialized graph.
+     * @param keepSnapshot True if the graph should be kept to reuse its unchanged instances when saved (only valid if the DApp was deployed with the write barrier).
+     * @return The nextHashCode serialized within the graph.
+     */
+    public int loadEntireGraph(InternedClasses internedClassMap, ByteBuffer graphBuffer, boolean keepSnapshot) {
+        return loadEntireGraph(internedClassMap, graphBuffer, keepSnapshot, false);
+    }
+
+    /**
+     * Requests that the Classes in the receiver be populated with data from the graphBuffer, as above, optionally loading it lazily:
+     * the instances which can be stubs are only created, and are populated from the graph when they are first used (through the
+     * loader returned by getInstanceLoader(), which must be attached to the frame running the DApp).
+     * Loading lazily always keeps the snapshot (since that is where the stubs are populated from) but it is only used to save the
+     * instances written since the graph was loaded if keepSnapshot is set.
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param internedClassMap The interned classes, in case class references need to be instantiated.
+     * @param graphBuffer The buffer from which to read the graph, from its current position to its limit (note that this must encompass all and only a completely serialized graph.
+     * @param keepSnapshot True if the graph should be kept to reuse its unchanged instances when saved (only valid if the DApp was deployed with the write barrier).
+     * @param loadLazily True if the instances which can be stubs should only be populated when they are first used.
+     * @return The nextHashCode serialized within the graph.
+     */
+    public int loadEntireGraph(InternedClasses internedClassMap, ByteBuffer graphBuffer, boolean keepSnapshot, boolean loadLazily) {
+        return loadEntireGraph(internedClassMap, graphBuffer, GraphEncoding.ORIGINAL, keepSnapshot, loadLazily);
+    }
+
+    /**
+     * Requests that the Classes in the receiver be populated with data from the graphBuffer, as above, but the graph is in the given
+     * format.  The format is never guessed from the graph itself:  a DApp's stored graph is in the format recorded when it was deployed
+     * (see getGraphEncoding()).
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param internedClassMap The interned classes, in case class references need to be instantiated.
+     * @param graphBuffer The buffer from which to read the graph, from its current position to its limit (note that this must encompass all and only a completely serialized graph.
+     * @param encoding The format the graph was saved in (either compact encoding reads a compact graph, compressed or not).
+     * @param keepSnapshot True if the graph should be kept to reuse its unchanged instances when saved (only valid if the DApp was deployed with the write barrier).
+     * @param loadLazily True if the instances which can be stubs should only be populated when they are first used.
+     * @return The nextHashCode serialized within the graph.
+     */
+    public int loadEntireGraph(InternedClasses internedClassMap, ByteBuffer graphBuffer, GraphEncoding encoding, boolean keepSnapshot, boolean loadLazily) {
+        // The deserializer reads from the start of the buffer it is given, in big-endian order, so give it a view with those properties.
+        ByteBuffer inputBuffer = graphBuffer.slice().order(ByteOrder.BIG_ENDIAN);
+        // A compact graph is read from its payload (decompressed, if need be), from here on.
+        boolean isCompact = encoding.isCompact();
+        if (isCompact) {
+            inputBuffer = CompactGraphFormat.readPayload(inputBuffer);
+        }
+        GraphSnapshot snapshot = null;
+        if (keepSnapshot || loadLazily) {
+            // The snapshot needs the graph to stay as it is, for as long as it is in use, so we take our own copy unless we were given an array.
+            boolean isWholeArray = inputBuffer.hasArray() && (0 == inputBuffer.arrayOffset()) && (inputBuffer.array().length == inputBuffer.remaining());
+            byte[] rawGraph = null;
+            if (isWholeArray) {
+                rawGraph = inputBuffer.array();
+            } else {
+                rawGraph = new byte[inputBuffer.remaining()];
+                inputBuffer.duplicate().get(rawGraph);
+                inputBuffer = ByteBuffer.wrap(rawGraph);
+            }
+            snapshot = new GraphSnapshot(rawGraph, org.aion.avm.shadow.java.lang.Object.class, this.sortedClasses, loadLazily);
+        }
         List<Object> existingObjectIndex = null;
         StandardGlobalResolver resolver = new StandardGlobalResolver(internedClassMap, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
-        int nextHashCode = Deserializer.deserializeEntireGraphAndNextHashCode(inputBuffer, existingObjectIndex, resolver, this.fieldCache, classNameMapper, this.sortedClasses);
+        int nextHashCode = Deserializer.deserializeEntireGraphAndNextHashCode(inputBuffer, existingObjectIndex, snapshot, isCompact, resolver, this.fieldCache, classNameMapper, this.sortedClasses);
+        this.snapshot = snapshot;
+        this.lazyLoader = loadLazily
+                ? new LazyGraphLoader(snapshot, resolver, this.fieldCache, classNameMapper)
+                : null;
         return nextHashCode;
     }
 
+    /**
+     * @return The format the DApp's graph is saved in (and so the format its stored graph is read in).
+     */
+    public GraphEncoding getGraphEncoding() {
+        return this.graphEncoding;
+    }
+
+    /**
+     * @return True if the classes were transformed with the write barrier, so unchanged instances can be reused when the graph is saved.
+     */
+    public boolean hasWriteBarrier() {
+        return this.hasWriteBarrier;
+    }
+
+    /**
+     * @return The loader which populates the stubs of the graph, if it was loaded lazily (null if it was loaded entirely).
+     */
+    public LazyGraphLoader getInstanceLoader() {
+        return this.lazyLoader;
+    }
+
     /**
      * Requests that the Classes in the receiver be walked and all referenced objects be serialized into a graph.
      * NOTE:  The caller is expected to manage billing - none of that is done in here.
@@ -127,37 +258,115 @@ public class LoadedDApp {
      * @return The enter serialized object graph.
      */
     public byte[] saveEntireGraph(int nextHashCode, int maximumSizeInBytes) {
-        ByteBuffer outputBuffer = ByteBuffer.allocate(maximumSizeInBytes);
-        List<Object> out_instanceIndex = null;
-        List<Integer> out_calleeToCallerIndexMap = null;
+        this.snapshot = null;
+        return saveEntireGraph(nextHashCode, maximumSizeInBytes, null);
+    }
+
+    /**
+     * Requests that the Classes in the receiver be walked and all referenced objects be serialized into a graph, as above, but any
+     * instance which was loaded with a snapshot (see loadEntireGraph()) and hasn't been written since is copied from that snapshot.
+     * The result is identical to serializing the entire graph.
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param nextHashCode The nextHashCode to serialize into the graph so that this can be resumed in the future.
+     * @param maximumSizeInBytes The size limit on the serialized graph size (this is a parameter for testing but also to allow the caller to impose energy-based limits).
+     * @param writtenInstances The readIndex of every instance written since the graph was loaded (see IInstrumentation.getWrittenInstances()).
+     * @return The enter serialized object graph.
+     */
+    public byte[] saveEntireGraph(int nextHashCode, int maximumSizeInBytes, BitSet writtenInstances) {
+        return saveEntireGraph(nextHashCode, maximumSizeInBytes, writtenInstances, GraphEncoding.ORIGINAL);
+    }
+
+    /**
+     * Requests that the Classes in the receiver be walked and all referenced objects be serialized into a graph, as above, but in the
+     * given format (see CompactGraphFormat).  The graph loaded can be in either format, whichever the graph is saved in.
+     * An instance can only be copied from the snapshot if the graph is saved in the same format it was loaded in.
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param nextHashCode The nextHashCode to serialize into the graph so that this can be resumed in the future.
+     * @param maximumSizeInBytes The size limit on the serialized graph size (this is a parameter for testing but also to allow the caller to impose energy-based limits).
+     * @param writtenInstances The readIndex of every instance written since the graph was loaded (see IInstrumentation.getWrittenInstances()).
+     * @param encoding The format to save the graph in.
+     * @return The enter serialized object graph.
+     */
+    public byte[] saveEntireGraph(int nextHashCode, int maximumSizeInBytes, BitSet writtenInstances, GraphEncoding encoding) {
+        return saveEntireGraph(nextHashCode, maximumSizeInBytes, writtenInstances, encoding, new GraphBuffers());
+    }
+
+    /**
+     * Requests that the Classes in the receiver be walked and all referenced objects be serialized into a graph, as above, but the graph
+     * is serialized into the given buffers, which the calling thread keeps from one graph to the next.
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param nextHashCode The nextHashCode to serialize into the graph so that this can be resumed in the future.
+     * @param maximumSizeInBytes The size limit on the serialized graph size (this is a parameter for testing but also to allow the caller to impose energy-based limits).
+     * @param writtenInstances The readIndex of every instance written since the graph was loaded (see IInstrumentation.getWrittenInstances()).
+     * @param encoding The format to save the graph in.
+     * @param buffers The calling thread's serialization buffers.
+     * @return The enter serialized object graph.
+     */
+    public byte[] saveEntireGraph(int nextHashCode, int maximumSizeInBytes, BitSet writtenInstances, GraphEncoding encoding, GraphBuffers buffers) {
+        // The snapshot only describes the graph we loaded so it can only be used once (and only to write the same format).
+        GraphSnapshot snapshot = ((null != this.snapshot) && (this.snapshot.isCompact() == encoding.isCompact()))
+                ? this.snapshot
+                : null;
+        this.snapshot = null;
+        if (null != snapshot) {
+            // Without the write barrier, nothing records which instances were written so only the stubs still untouched can be copied.
+            snapshot.setWrittenInstances(this.hasWriteBarrier ? writtenInstances : null);
+        } else if (null != this.lazyLoader) {
+            // Without the snapshot, any stubs left would have to be serialized from their fields, so they must be loaded first.
+            this.lazyLoader.loadAllInstances();
+        }
         StandardGlobalResolver resolver = new StandardGlobalResolver(null, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
-        Serializer.serializeEntireGraph(outputBuffer, out_instanceIndex, out_calleeToCallerIndexMap, resolver, this.fieldCache, classNameMapper, nextHashCode, this.sortedClasses);
-        
-        byte[] finalBytes = new byte[outputBuffer.position()];
-        System.arraycopy(outputBuffer.array(), 0, finalBytes, 0, finalBytes.length);
-        return finalBytes;
+        return buffers.serialize(maximumSizeInBytes, (outputBuffer) -> {
+            if (encoding.isCompact()) {
+                boolean compress = (GraphEncoding.COMPACT_COMPRESSED == encoding);
+                Serializer.serializeCompactGraph(outputBuffer, buffers, snapshot, resolver, this.fieldCache, classNameMapper, nextHashCode, this.sortedClasses, compress);
+            } else {
+                List<Object> out_instanceIndex = null;
+                List<Integer> out_calleeToCallerIndexMap = null;
+                Serializer.serializeEntireGraph(outputBuffer, out_instanceIndex, out_calleeToCallerIndexMap, snapshot, resolver, this.fieldCache, classNameMapper, nextHashCode, this.sortedClasses);
+            }
+        });
     }
 
     public ReentrantGraph captureStateAsCaller(int nextHashCode, int maxGraphSize) {
+        return captureStateAsCaller(nextHashCode, maxGraphSize, new GraphBuffers());
+    }
+
+    public ReentrantGraph captureStateAsCaller(int nextHashCode, int maxGraphSize, GraphBuffers buffers) {
+        // The caller's graph is walked without lazyLoad() (and the callee might change any of it) so any stubs left must be loaded now.
+        if (null != this.lazyLoader) {
+            this.lazyLoader.loadAllInstances();
+        }
         StandardGlobalResolver resolver = new StandardGlobalResolver(null, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
-        return ReentrantGraph.captureCallerState(resolver, this.fieldCache, classNameMapper, maxGraphSize, nextHashCode, this.sortedClasses);
+        return ReentrantGraph.captureCallerState(buffers, resolver, this.fieldCache, classNameMapper, maxGraphSize, nextHashCode, this.sortedClasses);
     }
 
     public ReentrantGraph captureStateAsCallee(int updatedNextHashCode, int maxGraphSize) {
+        return captureStateAsCallee(updatedNextHashCode, maxGraphSize, new GraphBuffers());
+    }
+
+    public ReentrantGraph captureStateAsCallee(int updatedNextHashCode, int maxGraphSize, GraphBuffers buffers) {
         StandardGlobalResolver resolver = new StandardGlobalResolver(null, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
-        return ReentrantGraph.captureCalleeState(resolver, this.fieldCache, classNameMapper, maxGraphSize, updatedNextHashCode, this.sortedClasses);
+        return ReentrantGraph.captureCalleeState(buffers, resolver, this.fieldCache, classNameMapper, maxGraphSize, updatedNextHashCode, this.sortedClasses);
     }
 
     public void commitReentrantChanges(InternedClasses internedClassMap, ReentrantGraph callerState, ReentrantGraph calleeState) {
+        // The callee's changes are written into the caller's instances without the write barrier.
+        this.snapshot = null;
         StandardGlobalResolver resolver = new StandardGlobalResolver(internedClassMap, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
         callerState.commitChangesToState(resolver, this.fieldCache, classNameMapper, this.sortedClasses, calleeState);
     }
 
     public void revertToCallerState(InternedClasses internedClassMap, ReentrantGraph callerState) {
+        // The caller's instances are restored without the write barrier.
+        this.snapshot = null;
         StandardGlobalResolver resolver = new StandardGlobalResolver(internedClassMap, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
         callerState.revertChangesToState(resolver, this.fieldCache, classNameMapper, this.sortedClasses);
@@ -282,6 +491,8 @@ public class LoadedDApp {
      * Called before the DApp is about to be put into a cache.  This is so it can put itself into a "resumable" state.
      */
     public void cleanForCache() {
+        this.snapshot = null;
+        this.lazyLoader = null;
         Deserializer.cleanClassStatics(this.fieldCache, this.sortedClasses);
     }
 
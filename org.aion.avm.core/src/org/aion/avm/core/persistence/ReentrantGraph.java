@@ -11,24 +11,38 @@ import java.util.List;
  */
 public class ReentrantGraph {
     public static ReentrantGraph captureCallerState(IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int maximumSizeInBytes, int nextHashCode, Class<?>[] sortedRoots) {
-        ByteBuffer buffer = ByteBuffer.allocate(maximumSizeInBytes);
+        return captureCallerState(new GraphBuffers(), resolver, cache, classNameMapper, maximumSizeInBytes, nextHashCode, sortedRoots);
+    }
+
+    /**
+     * Captures the caller state, as above, but serializes it into the given thread's buffers.
+     */
+    public static ReentrantGraph captureCallerState(GraphBuffers buffers, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int maximumSizeInBytes, int nextHashCode, Class<?>[] sortedRoots) {
         List<Object> existingObjectIndex = new ArrayList<>();
-        Serializer.serializeEntireGraph(buffer, existingObjectIndex, null, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
-        byte[] finalBytes = new byte[buffer.position()];
-        System.arraycopy(buffer.array(), 0, finalBytes, 0, finalBytes.length);
+        byte[] finalBytes = buffers.serialize(maximumSizeInBytes, (buffer) -> {
+            // (this is built again if the graph didn't fit)
+            existingObjectIndex.clear();
+            Serializer.serializeEntireGraph(buffer, existingObjectIndex, null, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
+        });
         return new ReentrantGraph(finalBytes, existingObjectIndex, null);
     }
 
     public static ReentrantGraph captureCalleeState(IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int maximumSizeInBytes, int nextHashCode, Class<?>[] sortedRoots) {
-        ByteBuffer calleeBuffer = ByteBuffer.allocate(maximumSizeInBytes);
+        return captureCalleeState(new GraphBuffers(), resolver, cache, classNameMapper, maximumSizeInBytes, nextHashCode, sortedRoots);
+    }
+
+    /**
+     * Captures the callee state, as above, but serializes it into the given thread's buffers.
+     */
+    public static ReentrantGraph captureCalleeState(GraphBuffers buffers, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int maximumSizeInBytes, int nextHashCode, Class<?>[] sortedRoots) {
         List<Integer> calleeToCallerMapping = new ArrayList<>();
-        Serializer.serializeEntireGraph(calleeBuffer, null, calleeToCallerMapping, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
-        byte[] calleeBytes = new byte[calleeBuffer.position()];
-        System.arraycopy(calleeBuffer.array(), 0, calleeBytes, 0, calleeBytes.length);
+        byte[] calleeBytes = buffers.serialize(maximumSizeInBytes, (buffer) -> {
+            calleeToCallerMapping.clear();
+            Serializer.serializeEntireGraph(buffer, null, calleeToCallerMapping, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
+        });
         return new ReentrantGraph(calleeBytes, null, calleeToCallerMapping);
     }
 
-
     public final byte[] rawState;
     private final List<Object> existingObjectIndex;
     private final List<Integer> calleeToCallerMapping;
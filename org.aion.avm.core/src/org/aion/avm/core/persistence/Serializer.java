@@ -1,13 +1,13 @@
 package org.aion.avm.core.persistence;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 import org.aion.avm.internal.OutOfEnergyException;
@@ -17,12 +17,22 @@ import org.aion.avm.internal.RuntimeAssertionError;
 public class Serializer {
     // (Should make this Map a list since the graph is probably dense?)
     public static void serializeEntireGraph(ByteBuffer outputBuffer, List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int nextHashCode, Class<?>[] sortedRoots) {
+        serializeEntireGraph(outputBuffer, out_instanceIndex, out_calleeToCallerIndexMap, null, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
+    }
+
+    /**
+     * Serializes the graph, as above, but any instance which the snapshot reports as unchanged since it was loaded is copied from the
+     * snapshot, instead of being serialized again.  The result is byte-identical to serializing everything.
+     */
+    public static void serializeEntireGraph(ByteBuffer outputBuffer, List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, GraphSnapshot snapshot, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int nextHashCode, Class<?>[] sortedRoots) {
         // We define the storage as big-endian.
         RuntimeAssertionError.assertTrue(ByteOrder.BIG_ENDIAN == outputBuffer.order());
         // We cannot be both serializing to build an index (that is done when serializing caller state before entering a callee frame)
         // and serializing to build a mapping (that is done when serializing the callee frame before using it to interpret remap the caller's graph).
         // In the common case, we are doing neither (these arguments are only used for reentrant calls).
         RuntimeAssertionError.assertTrue((null == out_instanceIndex) || (null == out_calleeToCallerIndexMap));
+        // The snapshot is only used when saving the graph to storage, which is the common case (and must be of a graph in this format).
+        RuntimeAssertionError.assertTrue((null == snapshot) || ((null == out_instanceIndex) && (null == out_calleeToCallerIndexMap) && !snapshot.isCompact()));
         
         // We can write the next hash, first, since we already know it.
         outputBuffer.putInt(nextHashCode);
@@ -36,7 +46,41 @@ public class Serializer {
         serializeClassStatics(objectSerializer, cache, sortedRoots);
         
         // Finally, we serialize the rest of the graph.
-        serializeGraphFromWorkQueue(out_instanceIndex, out_calleeToCallerIndexMap, objectSerializer, cache, toProcessQueue);
+        serializeGraphFromWorkQueue(out_instanceIndex, out_calleeToCallerIndexMap, snapshot, objectSerializer, cache, toProcessQueue);
+    }
+
+    /**
+     * Serializes the graph, as above, but in the compact format (see CompactGraphFormat), optionally compressing it.
+     * This is only used when saving the graph to storage so the snapshot, if given, must also be of a compact graph.
+     * The graph is assembled in the scratch buffers of the given GraphBuffers (which outputBuffer is expected to come from).
+     */
+    public static void serializeCompactGraph(ByteBuffer outputBuffer, GraphBuffers scratchBuffers, GraphSnapshot snapshot, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int nextHashCode, Class<?>[] sortedRoots, boolean compress) {
+        RuntimeAssertionError.assertTrue((null == snapshot) || snapshot.isCompact());
+        
+        // The class table precedes everything which refers to it, but is only complete once the whole graph has been walked, so we
+        // write the statics and instances first, into their own buffer.
+        ByteBuffer bodyBuffer = scratchBuffers.getBodyBuffer();
+        Map<String, Integer> classTable = new LinkedHashMap<>();
+        Queue<Object> toProcessQueue = new LinkedList<>();
+        ByteBufferObjectSerializer objectSerializer = new ByteBufferObjectSerializer(bodyBuffer, toProcessQueue, cache, resolver, classNameMapper, classTable);
+        serializeClassStatics(objectSerializer, cache, sortedRoots);
+        serializeGraphFromWorkQueue(null, null, snapshot, objectSerializer, cache, toProcessQueue);
+        
+        try {
+            // Now, we can assemble the payload:  the hashcode, the class table (in index order), then the body.
+            ByteBuffer payloadBuffer = scratchBuffers.getPayloadBuffer();
+            CompactGraphFormat.putSignedVarint(payloadBuffer, nextHashCode);
+            CompactGraphFormat.putCount(payloadBuffer, classTable.size());
+            for (String internalClassName : classTable.keySet()) {
+                ByteBufferObjectSerializer.writeClassName(payloadBuffer, classNameMapper, internalClassName);
+            }
+            payloadBuffer.put(bodyBuffer.array(), 0, bodyBuffer.position());
+            byte[] compressionBuffer = compress ? scratchBuffers.getCompressionBuffer(payloadBuffer.position()) : null;
+            CompactGraphFormat.writeGraph(outputBuffer, payloadBuffer.array(), payloadBuffer.position(), compressionBuffer);
+        } catch (BufferOverflowException e) {
+            // This is if we run off the end of the buffer, which is an example of out of energy.
+            throw new OutOfEnergyException();
+        }
     }
 
 
@@ -54,48 +98,41 @@ public class Serializer {
 
     private static void serializeOneClass(ByteBufferObjectSerializer objectSerializer, SortedFieldCache cache, Class<?> clazz) {
         // Note that we don't serialize the class name - the roots are in the same sorted order for reading and writing.
-        // First, we serialize the constants.
-        Field[] constants = cache.getConstantFields(clazz);
-        serializeFieldsForClass(objectSerializer, constants);
-        
-        // Then, we serialize the user-defined static fields.
-        Field[] fields = cache.getUserStaticFields(clazz);
-        serializeFieldsForClass(objectSerializer, fields);
+        // If the class has generated statics code, that writes them all, in the order below.
+        if (!cache.serializeStatics(clazz, objectSerializer)) {
+            // First, we serialize the constants.
+            Field[] constants = cache.getConstantFields(clazz);
+            serializeFieldsForClass(objectSerializer, constants);
+            
+            // Then, we serialize the user-defined static fields.
+            Field[] fields = cache.getUserStaticFields(clazz);
+            serializeFieldsForClass(objectSerializer, fields);
+        }
     }
 
-    private static void serializeGraphFromWorkQueue(List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, ByteBufferObjectSerializer objectSerializer, SortedFieldCache cache, Queue<Object> toProcessQueue) {
-        Method serializeSelfMethod = cache.getSerializeSelfMethod();
-        Field readIndexField = cache.getReadIndexField();
-        
+    private static void serializeGraphFromWorkQueue(List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, GraphSnapshot snapshot, ByteBufferObjectSerializer objectSerializer, SortedFieldCache cache, Queue<Object> toProcessQueue) {
         try {
             while (!toProcessQueue.isEmpty()) {
                 Object instance = toProcessQueue.remove();
-                // We first need to serialize the class name.
-                String internalClassName = instance.getClass().getName();
-                objectSerializer.writeClassName(internalClassName);
-                serializeSelfMethod.invoke(instance, null, objectSerializer);
+                int readIndex = cache.getReadIndex(instance);
+                if ((null != snapshot) && snapshot.isUnchanged(instance, readIndex)) {
+                    // This instance hasn't changed since it was loaded so we can copy its encoding (this still enqueues what it references).
+                    objectSerializer.writeUnchangedInstance(snapshot, readIndex);
+                } else {
+                    // We first need to serialize the class name.
+                    String internalClassName = instance.getClass().getName();
+                    objectSerializer.writeClassName(internalClassName);
+                    cache.serializeInstance(instance, objectSerializer);
+                }
                 if (null != out_instanceIndex) {
                     out_instanceIndex.add(instance);
                 } else if (null != out_calleeToCallerIndexMap) {
-                    int readIndex = readIndexField.getInt(instance);
                     out_calleeToCallerIndexMap.add(readIndex);
                 }
             }
-        } catch (InvocationTargetException e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof OutOfEnergyException) {
-                // This can happen within our deserialization path for various reasons.
-                throw (OutOfEnergyException) cause;
-            } else if (cause instanceof BufferOverflowException) {
-                // This is if we run off the end of the buffer, which is an example of out of energy.
-                throw new OutOfEnergyException();
-            } else {
-                // This shouldn't happen but is distinct from reflection errors.
-                throw RuntimeAssertionError.unexpected(e);
-            }
-        } catch (IllegalAccessException | IllegalArgumentException e) {
-            // Reflection errors can't happen since we set this up so we could access it.
-            throw RuntimeAssertionError.unexpected(e);
+        } catch (BufferOverflowException e) {
+            // This is if we run off the end of the buffer, which is an example of out of energy.
+            throw new OutOfEnergyException();
         }
     }
 
@@ -1,5 +1,7 @@
 package org.aion.avm.core.persistence;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -9,15 +11,22 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.aion.avm.internal.IObjectDeserializer;
+import org.aion.avm.internal.IObjectSerializer;
 import org.aion.avm.internal.RuntimeAssertionError;
 
 
 /**
  * Caches field/method and general reflection data associated with a specific loaded contract.
  * In the future, we might store these in the SoftCache, along-side the code.
+ * 
+ * This is also how the persistence system calls into the instances and classes it serializes:  when the root of the hierarchy is the
+ * shadow Object, serializeSelf()/deserializeSelf() are called directly (so the code generated for the DApp's classes, see
+ * GraphCodecVisitor, involves no reflection) and the generated statics code is used, where the class has it.
  */
 public class SortedFieldCache {
-    private static final String CONSTANT_FIELD_PREFIX = "const_";
+    // The prefix of the static fields synthesized for constants (see ConstantVisitor), which are serialized before the user's statics.
+    static final String CONSTANT_FIELD_PREFIX = "const_";
 
     private final Map<String, Class<?>> internalNameClasses;
     private final Map<Class<?>, Field[]> constantFields;
@@ -27,6 +36,10 @@ public class SortedFieldCache {
     private final Method serializeSelf;
     private final Method deserializeSelf;
     private final Field readIndex;
+    // True if the root of the hierarchy is the shadow Object (other roots are only used in tests, and always go through reflection).
+    private final boolean isShadowRoot;
+    // The generated statics code of each class (null if the class doesn't have it).
+    private final Map<Class<?>, StaticsCodec> staticsCodecs;
 
     public SortedFieldCache(ClassLoader dappClassLoader, Method serializeSelf, Method deserializeSelf, Field readIndex) {
         this.internalNameClasses = new HashMap<>();
@@ -37,6 +50,8 @@ public class SortedFieldCache {
         this.serializeSelf = serializeSelf;
         this.deserializeSelf = deserializeSelf;
         this.readIndex = readIndex;
+        this.isShadowRoot = (org.aion.avm.shadow.java.lang.Object.class == serializeSelf.getDeclaringClass());
+        this.staticsCodecs = new HashMap<>();
     }
 
     public Field[] getConstantFields(Class<?> clazz) {
@@ -83,16 +98,97 @@ public class SortedFieldCache {
         return result;
     }
 
-    public Method getSerializeSelfMethod() {
-        return this.serializeSelf;
+    /**
+     * Calls serializeSelf(null, serializer) on the given instance.
+     */
+    public void serializeInstance(Object instance, IObjectSerializer serializer) {
+        if (this.isShadowRoot) {
+            ((org.aion.avm.shadow.java.lang.Object) instance).serializeSelf(null, serializer);
+        } else {
+            invokeReflectively(this.serializeSelf, instance, serializer);
+        }
+    }
+
+    /**
+     * Calls deserializeSelf(null, deserializer) on the given instance.
+     */
+    public void deserializeInstance(Object instance, IObjectDeserializer deserializer) {
+        if (this.isShadowRoot) {
+            ((org.aion.avm.shadow.java.lang.Object) instance).deserializeSelf(null, deserializer);
+        } else {
+            invokeReflectively(this.deserializeSelf, instance, deserializer);
+        }
+    }
+
+    public int getReadIndex(Object instance) {
+        int readIndex = 0;
+        if (this.isShadowRoot) {
+            readIndex = ((org.aion.avm.shadow.java.lang.Object) instance).readIndex;
+        } else {
+            try {
+                readIndex = this.readIndex.getInt(instance);
+            } catch (IllegalAccessException e) {
+                // Reflection errors can't happen since we set this up so we could access it.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+        }
+        return readIndex;
     }
 
-    public Method getDeserializeSelfMethod() {
-        return this.deserializeSelf;
+    public void setReadIndex(Object instance, int readIndex) {
+        if (this.isShadowRoot) {
+            ((org.aion.avm.shadow.java.lang.Object) instance).readIndex = readIndex;
+        } else {
+            try {
+                this.readIndex.setInt(instance, readIndex);
+            } catch (IllegalAccessException e) {
+                // Reflection errors can't happen since we set this up so we could access it.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the statics of the given class with its generated code, if it has it.
+     * 
+     * @return False if the class has no generated statics code (so the caller must write them, in the same order, using getConstantFields() and getUserStaticFields()).
+     */
+    public boolean serializeStatics(Class<?> clazz, IObjectSerializer serializer) {
+        StaticsCodec codec = getStaticsCodec(clazz);
+        boolean didSerialize = (null != codec);
+        if (didSerialize) {
+            try {
+                codec.serializeStatics.invokeExact(serializer);
+            } catch (RuntimeException | Error e) {
+                // (out of energy, for example)
+                throw e;
+            } catch (Throwable t) {
+                // The generated code throws nothing else.
+                throw RuntimeAssertionError.unexpected(t);
+            }
+        }
+        return didSerialize;
     }
 
-    public Field getReadIndexField() {
-        return this.readIndex;
+    /**
+     * Reads the statics of the given class with its generated code, if it has it.
+     * 
+     * @return False if the class has no generated statics code (so the caller must read them, in the same order, using getConstantFields() and getUserStaticFields()).
+     */
+    public boolean deserializeStatics(Class<?> clazz, IObjectDeserializer deserializer) {
+        StaticsCodec codec = getStaticsCodec(clazz);
+        boolean didDeserialize = (null != codec);
+        if (didDeserialize) {
+            try {
+                codec.deserializeStatics.invokeExact(deserializer);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                // The generated code throws nothing else.
+                throw RuntimeAssertionError.unexpected(t);
+            }
+        }
+        return didDeserialize;
     }
 
     public Object getNewInstance(String internalClassName, int readIndex) {
@@ -117,4 +213,60 @@ public class SortedFieldCache {
             throw RuntimeAssertionError.unexpected(e);
         }
     }
+
+
+    private StaticsCodec getStaticsCodec(Class<?> clazz) {
+        StaticsCodec codec = null;
+        if (this.staticsCodecs.containsKey(clazz)) {
+            codec = this.staticsCodecs.get(clazz);
+        } else {
+            // DApps deployed before the code was generated (and classes not generated by our transformation) won't have it.
+            try {
+                // (the class might not be public so we need to unreflect the methods once we have made them accessible)
+                Method serializeStatics = clazz.getDeclaredMethod(GraphCodecVisitor.SERIALIZE_STATICS_NAME, IObjectSerializer.class);
+                Method deserializeStatics = clazz.getDeclaredMethod(GraphCodecVisitor.DESERIALIZE_STATICS_NAME, IObjectDeserializer.class);
+                serializeStatics.setAccessible(true);
+                deserializeStatics.setAccessible(true);
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                codec = new StaticsCodec(lookup.unreflect(serializeStatics), lookup.unreflect(deserializeStatics));
+            } catch (NoSuchMethodException e) {
+                codec = null;
+            } catch (IllegalAccessException e) {
+                // We made these accessible.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+            this.staticsCodecs.put(clazz, codec);
+        }
+        return codec;
+    }
+
+    private static void invokeReflectively(Method method, Object instance, Object argument) {
+        try {
+            method.invoke(instance, null, argument);
+        } catch (InvocationTargetException e) {
+            // Rethrow what the method threw, so both paths fail in the same way.
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw RuntimeAssertionError.unexpected(cause);
+            }
+        } catch (IllegalAccessException | IllegalArgumentException e) {
+            // Reflection errors can't happen since we set this up so we could access it.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+
+    private static class StaticsCodec {
+        public final MethodHandle serializeStatics;
+        public final MethodHandle deserializeStatics;
+
+        public StaticsCodec(MethodHandle serializeStatics, MethodHandle deserializeStatics) {
+            this.serializeStatics = serializeStatics;
+            this.deserializeStatics = deserializeStatics;
+        }
+    }
 }
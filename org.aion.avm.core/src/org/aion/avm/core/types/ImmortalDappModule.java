@@ -12,6 +12,8 @@ import java.util.jar.Manifest;
 
 import java.util.zip.ZipEntry;
 import org.aion.avm.core.dappreading.LoadedJar;
+import org.aion.avm.core.persistence.GraphEncoding;
+import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.types.Address;
 
 
@@ -25,6 +27,19 @@ public class ImmortalDappModule {
     // Note that we currently limit the size of an in-memory JAR to 1 MiB.
     private static final int MAX_JAR_BYTES = 1024 * 1024;
 
+    /**
+     * The manifest attribute recording that the classes were transformed with the write barrier (every PUTFIELD on a shadow object goes
+     * through lazyLoadForWrite(), so the instances a call writes are known).
+     * DApps deployed before the barrier existed don't have it and their graphs must always be re-serialized in full (see LoadedDApp).
+     */
+    public static final Attributes.Name WRITE_BARRIER_ATTRIBUTE = new Attributes.Name("Avm-Write-Barrier");
+    private static final String WRITE_BARRIER_VERSION = "1";
+    /**
+     * The manifest attribute recording the format the DApp's object graph is saved in, chosen when it is deployed (see GraphEncoding).
+     * A graph is always read in the format recorded here (never guessed from its bytes), and DApps without it use the original format.
+     */
+    public static final Attributes.Name GRAPH_ENCODING_ATTRIBUTE = new Attributes.Name("Avm-Graph-Encoding");
+
     /**
      * Reads the Dapp module from JAR bytes, in memory.
      * Note that a Dapp module is expected to specify a main class and contain at least one class.
@@ -37,23 +52,55 @@ public class ImmortalDappModule {
         LoadedJar loadedJar = LoadedJar.fromBytes(jar);
         Map<String, byte[]> classes = loadedJar.classBytesByQualifiedNames;
         String mainClass = loadedJar.mainClassName;
+        boolean hasWriteBarrier = WRITE_BARRIER_VERSION.equals(loadedJar.mainAttributes.getValue(WRITE_BARRIER_ATTRIBUTE));
+        GraphEncoding graphEncoding = readGraphEncoding(loadedJar.mainAttributes.getValue(GRAPH_ENCODING_ATTRIBUTE));
         // To be a valid Dapp, this must specify a main class and have at least one class.
         return ((null != mainClass) && !classes.isEmpty())
-                ? new ImmortalDappModule(classes, mainClass)
+                ? new ImmortalDappModule(classes, mainClass, hasWriteBarrier, graphEncoding)
                 : null;
     }
 
-    public static ImmortalDappModule fromImmortalClasses(Map<String, byte[]> classes, String mainClass)  {
-        return new ImmortalDappModule(classes, mainClass);
+    /**
+     * Creates the module from classes which were just transformed (so they have the write barrier).
+     * 
+     * @param graphEncoding The format the DApp's object graph will always be saved in.
+     */
+    public static ImmortalDappModule fromImmortalClasses(Map<String, byte[]> classes, String mainClass, GraphEncoding graphEncoding)  {
+        return new ImmortalDappModule(classes, mainClass, true, graphEncoding);
+    }
+
+    /**
+     * Creates the module from classes which may or may not have been transformed with the write barrier (only tests need to say).
+     */
+    public static ImmortalDappModule fromImmortalClasses(Map<String, byte[]> classes, String mainClass, boolean hasWriteBarrier, GraphEncoding graphEncoding)  {
+        return new ImmortalDappModule(classes, mainClass, hasWriteBarrier, graphEncoding);
+    }
+
+    private static GraphEncoding readGraphEncoding(String value) {
+        GraphEncoding encoding = GraphEncoding.ORIGINAL;
+        if (null != value) {
+            // We only ever write the name of a compact encoding here so anything else means the stored code was corrupted.
+            try {
+                encoding = GraphEncoding.valueOf(value);
+            } catch (IllegalArgumentException e) {
+                throw RuntimeAssertionError.unexpected(e);
+            }
+            RuntimeAssertionError.assertTrue(encoding.isCompact());
+        }
+        return encoding;
     }
 
 
     public final Map<String, byte[]> classes;
     public final String mainClass;
+    public final boolean hasWriteBarrier;
+    public final GraphEncoding graphEncoding;
 
-    private ImmortalDappModule(Map<String, byte[]> classes, String mainClass) {
+    private ImmortalDappModule(Map<String, byte[]> classes, String mainClass, boolean hasWriteBarrier, GraphEncoding graphEncoding) {
         this.classes = classes;
         this.mainClass = mainClass;
+        this.hasWriteBarrier = hasWriteBarrier;
+        this.graphEncoding = graphEncoding;
     }
 
     /**
@@ -67,6 +114,13 @@ public class ImmortalDappModule {
         Manifest manifest = new Manifest();
         manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
         manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, this.mainClass);
+        if (this.hasWriteBarrier) {
+            manifest.getMainAttributes().put(WRITE_BARRIER_ATTRIBUTE, WRITE_BARRIER_VERSION);
+        }
+        // (the original format isn't recorded, so the manifest of a DApp using it is the same as before the attribute existed)
+        if (this.graphEncoding.isCompact()) {
+            manifest.getMainAttributes().put(GRAPH_ENCODING_ATTRIBUTE, this.graphEncoding.name());
+        }
 
         ZipEntry manifestEntry = new ZipEntry(JarFile.MANIFEST_NAME);
         manifestEntry.setLastModifiedTime(timestamp);
@@ -17,6 +17,8 @@ import org.objectweb.asm.ClassWriter;
 import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -266,6 +268,22 @@ public class Helpers {
         return ret;
     }
 
+    /**
+     * Hashes the given data for local content addressing (such as identifying identical code).  Note that this is not the hash the
+     * blockchain uses, which is only available through IExternalCapabilities.
+     *
+     * @param data The data to hash.
+     * @return The SHA-256 hash of the data.
+     */
+    public static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
     /**
      * Sorts the user contract class names given in "classNames", alphabetically, and then looks up each of their corresponding class objects in
      * classLoader.  Note that only class names within the "user" namspace are considered.
@@ -36,6 +36,19 @@ public class SoftCache<K, V> {
         RuntimeAssertionError.assertTrue(null == previous);
     }
 
+    /**
+     * Like checkin() but tolerates an existing entry for the key, in which case the existing entry is kept and the given value is
+     * dropped.  This is for consumers which can legitimately check out the same key concurrently (each missing the cache and
+     * creating their own value).
+     *
+     * @param key The key.
+     * @param value The value to cache, if the key isn't already cached.
+     * @return True if the value was cached, false if there was already an entry.
+     */
+    public boolean checkinIfAbsent(K key, V value) {
+        return null == this.underlyingMap.putIfAbsent(key, new SoftReference<>(value));
+    }
+
     public void removeKeyIf(Predicate<K> condition){
         this.underlyingMap.keySet().removeIf(condition);
     }
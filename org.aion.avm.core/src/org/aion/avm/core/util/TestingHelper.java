@@ -136,4 +136,20 @@ public class TestingHelper implements IInstrumentation {
     public boolean isLoadedByCurrentClassLoader(java.lang.Class userClass) {
         throw RuntimeAssertionError.unreachable("Not expected in this test");
     }
+    @Override
+    public void noteInstanceWrite(int readIndex) {
+        throw RuntimeAssertionError.unreachable("Shouldn't be called in the testing code");
+    }
+    @Override
+    public java.util.BitSet getWrittenInstances() {
+        throw RuntimeAssertionError.unreachable("Shouldn't be called in the testing code");
+    }
+    @Override
+    public void attachInstanceLoader(org.aion.avm.internal.IInstanceLoader loader) {
+        throw RuntimeAssertionError.unreachable("Shouldn't be called in the testing code");
+    }
+    @Override
+    public void loadInstance(java.lang.Object instance, int readIndex) {
+        throw RuntimeAssertionError.unreachable("Shouldn't be called in the testing code");
+    }
 }
@@ -0,0 +1,133 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+
+
+/**
+ * A mutable, signed balance held as a 128-bit two's complement value in two longs, so that adjusting it by a delta which fits in a
+ * long (which is nearly every fee, refund and transfer) doesn't allocate.  If the value ever leaves the 128-bit range, it falls back
+ * to holding a BigInteger, so any value can still be represented.
+ *
+ * Like the stores using it, this is not thread-safe.
+ */
+public final class Balance128 {
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+    private long high;
+    private long low;
+    // Non-null only while the value doesn't fit in 128 bits (high and low are then meaningless).
+    private BigInteger overflow;
+
+    /**
+     * Creates a balance of zero.
+     */
+    public Balance128() {
+        this.high = 0L;
+        this.low = 0L;
+        this.overflow = null;
+    }
+
+    /**
+     * @return A new instance holding the same value as this one.
+     */
+    public Balance128 copy() {
+        Balance128 copy = new Balance128();
+        copy.high = this.high;
+        copy.low = this.low;
+        copy.overflow = this.overflow;
+        return copy;
+    }
+
+    /**
+     * @param value The new value of the balance.
+     */
+    public void set(BigInteger value) {
+        if (value.bitLength() < Long.SIZE) {
+            this.low = value.longValue();
+            this.high = this.low >> 63;
+            this.overflow = null;
+        } else if (value.bitLength() < (2 * Long.SIZE)) {
+            this.low = value.longValue();
+            this.high = value.shiftRight(Long.SIZE).longValue();
+            this.overflow = null;
+        } else {
+            this.overflow = value;
+        }
+    }
+
+    /**
+     * @param delta The amount to add to the balance (negative to subtract).
+     */
+    public void add(long delta) {
+        if (null == this.overflow) {
+            long newLow = this.low + delta;
+            // The carry out of the low word, treating both as unsigned, plus the sign extension of the delta.
+            long carry = (Long.compareUnsigned(newLow, this.low) < 0) ? 1L : 0L;
+            long highDelta = (delta >> 63) + carry;
+            long newHigh = this.high + highDelta;
+            if (((this.high ^ newHigh) & (highDelta ^ newHigh)) < 0L) {
+                // The high word overflowed so this no longer fits.
+                this.overflow = toBigInteger().add(BigInteger.valueOf(delta));
+            } else {
+                this.high = newHigh;
+                this.low = newLow;
+            }
+        } else {
+            set(this.overflow.add(BigInteger.valueOf(delta)));
+        }
+    }
+
+    /**
+     * @param delta The amount to add to the balance (negative to subtract).
+     */
+    public void add(BigInteger delta) {
+        if (delta.bitLength() < Long.SIZE) {
+            add(delta.longValue());
+        } else {
+            set(toBigInteger().add(delta));
+        }
+    }
+
+    /**
+     * @param other The value to compare against.
+     * @return A negative number, zero, or a positive number as this balance is less than, equal to, or greater than other.
+     */
+    public int compareTo(BigInteger other) {
+        int result;
+        if ((null == this.overflow) && (other.bitLength() < Long.SIZE)) {
+            long otherLow = other.longValue();
+            long otherHigh = otherLow >> 63;
+            result = (this.high != otherHigh)
+                    ? Long.compare(this.high, otherHigh)
+                    : Long.compareUnsigned(this.low, otherLow);
+        } else {
+            result = toBigInteger().compareTo(other);
+        }
+        return result;
+    }
+
+    /**
+     * @return The value of the balance (this allocates, unless the value is very small).
+     */
+    public BigInteger toBigInteger() {
+        BigInteger result;
+        if (null != this.overflow) {
+            result = this.overflow;
+        } else if (this.high == (this.low >> 63)) {
+            result = BigInteger.valueOf(this.low);
+        } else {
+            // The low word is unsigned in this representation.
+            BigInteger lowWord = BigInteger.valueOf(this.low);
+            if (this.low < 0L) {
+                lowWord = lowWord.add(TWO_TO_THE_64);
+            }
+            result = BigInteger.valueOf(this.high).shiftLeft(Long.SIZE).add(lowWord);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
@@ -0,0 +1,107 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+
+
+/**
+ * A view of one account in a {@link ContentAddressedDataStore}.  The code fields of the underlying account hold the hashes of the
+ * code, which are resolved through the store, while everything else is passed straight through.
+ */
+public class ContentAddressedAccountStore implements IAccountStore {
+    private final ContentAddressedDataStore store;
+    private final IAccountStore target;
+
+    public ContentAddressedAccountStore(ContentAddressedDataStore store, IAccountStore target) {
+        this.store = store;
+        this.target = target;
+    }
+
+    @Override
+    public byte[] getCode() {
+        return this.store.readCode(this.target.getCode());
+    }
+
+    @Override
+    public void setCode(byte[] code) {
+        this.target.setCode(this.store.replaceCode(this.target.getCode(), code));
+    }
+
+    @Override
+    public byte[] getTransformedCode() {
+        return this.store.readCode(this.target.getTransformedCode());
+    }
+
+    @Override
+    public void setTransformedCode(byte[] code) {
+        this.target.setTransformedCode(this.store.replaceCode(this.target.getTransformedCode(), code));
+    }
+
+    @Override
+    public BigInteger getBalance() {
+        return this.target.getBalance();
+    }
+
+    @Override
+    public void setBalance(BigInteger balance) {
+        this.target.setBalance(balance);
+    }
+
+    @Override
+    public void adjustBalance(BigInteger delta) {
+        this.target.adjustBalance(delta);
+    }
+
+    @Override
+    public boolean isBalanceAtLeast(BigInteger amount) {
+        return this.target.isBalanceAtLeast(amount);
+    }
+
+    @Override
+    public long getNonce() {
+        return this.target.getNonce();
+    }
+
+    @Override
+    public void setNonce(long nonce) {
+        this.target.setNonce(nonce);
+    }
+
+    @Override
+    public byte[] getData(byte[] key) {
+        return this.target.getData(key);
+    }
+
+    @Override
+    public void setData(byte[] key, byte[] value) {
+        this.target.setData(key, value);
+    }
+
+    @Override
+    public void removeData(byte[] key) {
+        this.target.removeData(key);
+    }
+
+    @Override
+    public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
+        return this.target.getStorageEntries();
+    }
+
+    @Override
+    public void setObjectGraph(byte[] data) {
+        this.target.setObjectGraph(data);
+    }
+
+    @Override
+    public byte[] getObjectGraph() {
+        return this.target.getObjectGraph();
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer() {
+        return this.target.getObjectGraphBuffer();
+    }
+}
@@ -0,0 +1,154 @@
+package org.aion.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * An IDataStore decorator which stores each distinct code (or transformed code) only once, no matter how many accounts have it.
+ * Each account only holds the hash of its code while the code itself is held by a reserved account, as a storage value keyed by
+ * that hash.  This means that a contract deployed at many addresses (a common token contract, for example) costs one copy of its
+ * JAR, and it works with any underlying store.
+ *
+ * Each code value is reference counted (the count is kept in a second reserved account, under the same hash, since some stores
+ * limit the length of a key) so it is removed once the last account referring to it is deleted, or changes its code.
+ *
+ * The reserved accounts use an address length which real addresses don't have so they can't collide with one.
+ */
+public class ContentAddressedDataStore implements IDataStore {
+    // 31 bytes:  shorter than a real address but still within the limits of every store.
+    private static final byte[] CODE_ACCOUNT_ADDRESS = new byte[] {
+            'a', 'v', 'm', '.', 'c', 'o', 'd', 'e', 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+    };
+    private static final byte[] REFERENCE_COUNT_ACCOUNT_ADDRESS = new byte[] {
+            'a', 'v', 'm', '.', 'c', 'o', 'd', 'e', '.', 'r', 'e', 'f', 's', 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+    };
+
+    private final IDataStore target;
+
+    public ContentAddressedDataStore(IDataStore target) {
+        this.target = target;
+    }
+
+    @Override
+    public IAccountStore openAccount(byte[] address) {
+        checkAddress(address);
+        IAccountStore account = this.target.openAccount(address);
+        return (null != account)
+                ? new ContentAddressedAccountStore(this, account)
+                : null;
+    }
+
+    @Override
+    public IAccountStore createAccount(byte[] address) {
+        checkAddress(address);
+        IAccountStore account = this.target.createAccount(address);
+        return (null != account)
+                ? new ContentAddressedAccountStore(this, account)
+                : null;
+    }
+
+    @Override
+    public synchronized void deleteAccount(byte[] address) {
+        checkAddress(address);
+        IAccountStore account = this.target.openAccount(address);
+        if (null != account) {
+            // The account's references go away with it.
+            release(account.getCode());
+            release(account.getTransformedCode());
+        }
+        this.target.deleteAccount(address);
+    }
+
+    @Override
+    public void writeBatch(Runnable writes) {
+        // The writes (including those to the reserved accounts) all reach the underlying store so it is what makes them one unit.
+        this.target.writeBatch(writes);
+    }
+
+    /**
+     * @return The number of distinct code values stored (this is mostly useful for tests).
+     */
+    public synchronized int getDistinctCodeCount() {
+        IAccountStore codeAccount = this.target.openAccount(CODE_ACCOUNT_ADDRESS);
+        return (null != codeAccount)
+                ? codeAccount.getStorageEntries().size()
+                : 0;
+    }
+
+    synchronized byte[] readCode(byte[] hash) {
+        // The hash is only null if no code was ever set.
+        return (null != hash)
+                ? reservedAccount(CODE_ACCOUNT_ADDRESS).getData(hash)
+                : null;
+    }
+
+    /**
+     * Stores the given code, if it isn't already stored, and releases the code it replaces.
+     *
+     * @param previousHash The hash of the code being replaced (null if there wasn't any).
+     * @param code The new code.
+     * @return The hash to store in the account, in place of the code.
+     */
+    synchronized byte[] replaceCode(byte[] previousHash, byte[] code) {
+        byte[] hash = null;
+        if (null != code) {
+            hash = Helpers.sha256(code);
+            IAccountStore referenceCounts = reservedAccount(REFERENCE_COUNT_ACCOUNT_ADDRESS);
+            long referenceCount = readReferenceCount(referenceCounts, hash);
+            if (0L == referenceCount) {
+                reservedAccount(CODE_ACCOUNT_ADDRESS).setData(hash, code);
+            }
+            writeReferenceCount(referenceCounts, hash, referenceCount + 1L);
+        }
+        // We release after adding the new reference so that replacing code with the same code never removes it.
+        release(previousHash);
+        return hash;
+    }
+
+
+    private void release(byte[] hash) {
+        if (null != hash) {
+            IAccountStore referenceCounts = reservedAccount(REFERENCE_COUNT_ACCOUNT_ADDRESS);
+            long referenceCount = readReferenceCount(referenceCounts, hash);
+            RuntimeAssertionError.assertTrue(referenceCount > 0L);
+            if (1L == referenceCount) {
+                reservedAccount(CODE_ACCOUNT_ADDRESS).removeData(hash);
+                referenceCounts.removeData(hash);
+            } else {
+                writeReferenceCount(referenceCounts, hash, referenceCount - 1L);
+            }
+        }
+    }
+
+    private IAccountStore reservedAccount(byte[] address) {
+        IAccountStore account = this.target.openAccount(address);
+        if (null == account) {
+            account = this.target.createAccount(address);
+        }
+        return account;
+    }
+
+    private static long readReferenceCount(IAccountStore referenceCounts, byte[] hash) {
+        byte[] encoded = referenceCounts.getData(hash);
+        return (null != encoded)
+                ? ByteBuffer.wrap(encoded).getLong()
+                : 0L;
+    }
+
+    private static void writeReferenceCount(IAccountStore referenceCounts, byte[] hash, long referenceCount) {
+        referenceCounts.setData(hash, ByteBuffer.allocate(Long.BYTES).putLong(referenceCount).array());
+    }
+
+    private static void checkAddress(byte[] address) {
+        // Nothing outside of this class can be allowed to modify the reserved accounts.
+        if (Arrays.equals(CODE_ACCOUNT_ADDRESS, address) || Arrays.equals(REFERENCE_COUNT_ACCOUNT_ADDRESS, address)) {
+            throw new IllegalArgumentException("Address is reserved");
+        }
+    }
+}
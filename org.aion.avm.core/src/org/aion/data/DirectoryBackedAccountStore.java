@@ -3,9 +3,13 @@ package org.aion.data;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -21,9 +25,14 @@ public class DirectoryBackedAccountStore implements IAccountStore {
     private static final String FILE_NAME_NONCE = "nonce";
     private static final String FILE_PREFIX_KEY = "key_";
     private static final String FILE_GRAPH = "graph";
+    private static final String FILE_SUFFIX_TEMP = ".tmp";
+    // Graphs smaller than this are just read since mapping has a fixed cost which is more than copying a few pages.
+    private static final long MAPPING_THRESHOLD = 64L * 1024L;
 
+    private final DirectoryBackedDataStore store;
     private final File accountDirectory;
-    public DirectoryBackedAccountStore(File accountDirectory) {
+    public DirectoryBackedAccountStore(DirectoryBackedDataStore store, File accountDirectory) {
+        this.store = store;
         this.accountDirectory = accountDirectory;
     }
 
@@ -118,7 +127,18 @@ public class DirectoryBackedAccountStore implements IAccountStore {
 
     @Override
     public void setObjectGraph(byte[] data) {
-        writeFile(FILE_GRAPH, data);
+        // The graph may be mapped by a reader so we replace the file, instead of writing over it, to leave those mappings unchanged.
+        Path tempFile = new File(this.accountDirectory, FILE_GRAPH + FILE_SUFFIX_TEMP).toPath();
+        Path graphFile = new File(this.accountDirectory, FILE_GRAPH).toPath();
+        this.store.recordBeforeChange(tempFile.toFile());
+        this.store.recordBeforeChange(graphFile.toFile());
+        try {
+            Files.write(tempFile, data);
+            Files.move(tempFile, graphFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
     }
 
     @Override
@@ -126,6 +146,34 @@ public class DirectoryBackedAccountStore implements IAccountStore {
         return readFile(FILE_GRAPH);
     }
 
+    @Override
+    public ByteBuffer getObjectGraphBuffer() {
+        Path graphFile = new File(this.accountDirectory, FILE_GRAPH).toPath();
+        try (FileChannel channel = FileChannel.open(graphFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer result;
+            if (size >= MAPPING_THRESHOLD) {
+                // (the mapping remains valid after the channel is closed)
+                result = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+            } else {
+                ByteBuffer copy = ByteBuffer.allocate((int) size);
+                int didRead = 0;
+                while (copy.hasRemaining() && (didRead >= 0)) {
+                    didRead = channel.read(copy);
+                }
+                copy.flip();
+                result = copy.asReadOnlyBuffer();
+            }
+            return result;
+        } catch (NoSuchFileException e) {
+            // In the future, we probably want to force these to be written before being read.
+            return null;
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
 
     private byte[] readFile(String fileName) {
         Path oneFile = new File(this.accountDirectory, fileName).toPath();
@@ -142,6 +190,7 @@ public class DirectoryBackedAccountStore implements IAccountStore {
 
     private void writeFile(String fileName, byte[] data) {
         Path oneFile = new File(this.accountDirectory, fileName).toPath();
+        this.store.recordBeforeChange(oneFile.toFile());
         try {
             Files.write(oneFile, data);
         } catch (IOException e) {
@@ -152,6 +201,7 @@ public class DirectoryBackedAccountStore implements IAccountStore {
 
     private void deleteFile(String fileName) {
         Path oneFile = new File(this.accountDirectory, fileName).toPath();
+        this.store.recordBeforeChange(oneFile.toFile());
         try {
             Files.deleteIfExists(oneFile);
         } catch (IOException e) {
@@ -1,30 +1,58 @@
 package org.aion.data;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.aion.avm.core.util.Helpers;
 import org.aion.avm.internal.RuntimeAssertionError;
 
 
+/**
+ * An IDataStore which keeps each account in its own directory, with a file per value.
+ *
+ * A {@link #writeBatch(Runnable)} is atomic:  before each file (or account directory) is first changed by the batch, what it held
+ * is saved in an undo journal, so that a batch which fails part-way is rolled back.  The journal is only discarded once the whole
+ * batch has been written so a batch interrupted by the process dying is rolled back the next time the directory is opened.
+ * Note that, like everything else in this store, the journal is never forced to disk.
+ */
 public class DirectoryBackedDataStore implements IDataStore {
+    private static final String JOURNAL_DIRECTORY_NAME = "batch_journal";
+    private static final String COMMITTED_JOURNAL_DIRECTORY_NAME = "batch_journal.committed";
+
     private final File topLevelDirectory;
+    // Only non-null while a batch is being written.
+    private UndoJournal journal;
+
     public DirectoryBackedDataStore(File topLevelDirectory) {
         this.topLevelDirectory = topLevelDirectory;
+        this.journal = null;
+        recoverInterruptedBatch();
     }
 
     @Override
     public IAccountStore openAccount(byte[] address) {
         File directory = getSubDirectory(address);
         return directory.isDirectory()
-                ? new DirectoryBackedAccountStore(directory)
+                ? new DirectoryBackedAccountStore(this, directory)
                 : null;
     }
 
     @Override
     public IAccountStore createAccount(byte[] address) {
         File directory = getSubDirectory(address);
+        recordBeforeChange(directory);
         return directory.mkdir()
-                ? new DirectoryBackedAccountStore(directory)
+                ? new DirectoryBackedAccountStore(this, directory)
                 : null;
     }
 
@@ -34,13 +62,52 @@ public class DirectoryBackedDataStore implements IDataStore {
         for (File file : directory.listFiles()) {
             // The account structure is flat so this better be just a regular file.
             RuntimeAssertionError.assertTrue(file.isFile());
+            recordBeforeChange(file);
             boolean didDelete = file.delete();
             RuntimeAssertionError.assertTrue(didDelete);
         }
+        recordBeforeChange(directory);
         boolean didDelete = directory.delete();
         RuntimeAssertionError.assertTrue(didDelete);
     }
 
+    @Override
+    public synchronized void writeBatch(Runnable writes) {
+        if (null != this.journal) {
+            // (a nested batch is just part of the one already being written)
+            writes.run();
+        } else {
+            this.journal = new UndoJournal(this.topLevelDirectory, new File(this.topLevelDirectory, JOURNAL_DIRECTORY_NAME));
+            boolean didWrite = false;
+            try {
+                writes.run();
+                didWrite = true;
+            } finally {
+                UndoJournal journal = this.journal;
+                this.journal = null;
+                if (didWrite) {
+                    // Renaming the journal is the point where the batch is committed.
+                    File committed = new File(this.topLevelDirectory, COMMITTED_JOURNAL_DIRECTORY_NAME);
+                    journal.moveTo(committed);
+                    deleteJournal(committed);
+                } else {
+                    journal.undo();
+                    deleteJournal(journal.directory);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called before the given file (or account directory) is changed, so that the batch being written (if any) can restore it.
+     */
+    void recordBeforeChange(File file) {
+        UndoJournal journal = this.journal;
+        if (null != journal) {
+            journal.record(file);
+        }
+    }
+
 
     private File getSubDirectory(byte[] address) {
         // We need to make sure that this address isn't going to hit some limit (we can tighten this to the specific address length but not all
@@ -51,4 +118,125 @@ public class DirectoryBackedDataStore implements IDataStore {
         String directoryName = "account_" + Helpers.bytesToHexString(address);
         return new File(this.topLevelDirectory, directoryName);
     }
+
+    private void recoverInterruptedBatch() {
+        File committed = new File(this.topLevelDirectory, COMMITTED_JOURNAL_DIRECTORY_NAME);
+        if (committed.isDirectory()) {
+            // The batch was written so only the clean-up was interrupted.
+            deleteJournal(committed);
+        }
+        File interrupted = new File(this.topLevelDirectory, JOURNAL_DIRECTORY_NAME);
+        if (interrupted.isDirectory()) {
+            UndoJournal journal = new UndoJournal(this.topLevelDirectory, interrupted);
+            journal.undo();
+            deleteJournal(interrupted);
+        }
+    }
+
+    private static void deleteJournal(File directory) {
+        for (File file : directory.listFiles()) {
+            boolean didDelete = file.delete();
+            RuntimeAssertionError.assertTrue(didDelete);
+        }
+        boolean didDelete = directory.delete();
+        RuntimeAssertionError.assertTrue(didDelete);
+    }
+
+
+    /**
+     * The state of everything a batch changed, from before it was changed.  Each entry is a file, numbered in the order it was written,
+     * holding the path it restores (relative to the store) and either the contents of that path or the fact that it didn't exist.
+     * Undoing applies the entries in reverse order (so a deleted account directory is re-created before its files are restored).
+     */
+    private static class UndoJournal {
+        private static final byte ENTRY_FILE = 1;
+        private static final byte ENTRY_NO_FILE = 2;
+        private static final byte ENTRY_DIRECTORY = 3;
+        private static final byte ENTRY_NO_DIRECTORY = 4;
+
+        private final File storeDirectory;
+        private File directory;
+        // Each path only needs its state from before its first change.
+        private final Set<String> recordedPaths;
+        private int nextEntry;
+
+        public UndoJournal(File storeDirectory, File directory) {
+            this.storeDirectory = storeDirectory;
+            this.directory = directory;
+            this.recordedPaths = new HashSet<>();
+            // (a journal left by an interrupted batch already exists)
+            if (!directory.isDirectory()) {
+                boolean didCreate = directory.mkdir();
+                RuntimeAssertionError.assertTrue(didCreate);
+            }
+            this.nextEntry = directory.list().length;
+        }
+
+        public void record(File file) {
+            String path = this.storeDirectory.toPath().relativize(file.toPath()).toString();
+            if (this.recordedPaths.add(path)) {
+                File entry = new File(this.directory, Integer.toString(this.nextEntry));
+                this.nextEntry += 1;
+                try (DataOutputStream stream = new DataOutputStream(new FileOutputStream(entry))) {
+                    if (file.isDirectory()) {
+                        stream.writeByte(ENTRY_DIRECTORY);
+                        stream.writeUTF(path);
+                    } else if (file.isFile()) {
+                        byte[] contents = Files.readAllBytes(file.toPath());
+                        stream.writeByte(ENTRY_FILE);
+                        stream.writeUTF(path);
+                        stream.writeInt(contents.length);
+                        stream.write(contents);
+                    } else {
+                        // If this is an account directory, we are about to create it (everything else in an account is a file).
+                        stream.writeByte(file.getParentFile().equals(this.storeDirectory) ? ENTRY_NO_DIRECTORY : ENTRY_NO_FILE);
+                        stream.writeUTF(path);
+                    }
+                } catch (IOException e) {
+                    // This implementation doesn't handle exceptions.
+                    throw RuntimeAssertionError.unexpected(e);
+                }
+            }
+        }
+
+        public void undo() {
+            // (a torn entry, at the end, can only be from a crash before the change it protects was made, so it is skipped)
+            int[] entries = Arrays.stream(this.directory.list()).mapToInt(Integer::parseInt).sorted().toArray();
+            for (int i = entries.length - 1; i >= 0; --i) {
+                File entry = new File(this.directory, Integer.toString(entries[i]));
+                try (DataInputStream stream = new DataInputStream(new FileInputStream(entry))) {
+                    byte type = stream.readByte();
+                    File file = new File(this.storeDirectory, stream.readUTF());
+                    if (ENTRY_FILE == type) {
+                        byte[] contents = new byte[stream.readInt()];
+                        stream.readFully(contents);
+                        Files.write(file.toPath(), contents);
+                    } else if (ENTRY_NO_FILE == type) {
+                        Files.deleteIfExists(file.toPath());
+                    } else if (ENTRY_DIRECTORY == type) {
+                        file.mkdir();
+                    } else {
+                        RuntimeAssertionError.assertTrue(ENTRY_NO_DIRECTORY == type);
+                        // Every file created in it has already been removed, by the later entries.
+                        Files.deleteIfExists(file.toPath());
+                    }
+                } catch (EOFException e) {
+                    RuntimeAssertionError.assertTrue(i == (entries.length - 1));
+                } catch (IOException e) {
+                    // This implementation doesn't handle exceptions.
+                    throw RuntimeAssertionError.unexpected(e);
+                }
+            }
+        }
+
+        public void moveTo(File destination) {
+            try {
+                Files.move(this.directory.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // This implementation doesn't handle exceptions.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+            this.directory = destination;
+        }
+    }
 }
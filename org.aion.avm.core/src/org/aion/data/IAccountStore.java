@@ -1,6 +1,7 @@
 package org.aion.data;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
@@ -40,6 +41,26 @@ public interface IAccountStore {
      */
     public void setBalance(BigInteger balance);
 
+    /**
+     * Adds the given delta to the account balance.  Implementations which hold the balance in a fixed-width form should override
+     * this to adjust it in place.
+     *
+     * @param delta The amount to add (negative to subtract).
+     */
+    public default void adjustBalance(BigInteger delta) {
+        setBalance(getBalance().add(delta));
+    }
+
+    /**
+     * Implementations which hold the balance in a fixed-width form should override this to compare it in place.
+     *
+     * @param amount The amount to compare against.
+     * @return True if the account balance is at least the given amount.
+     */
+    public default boolean isBalanceAtLeast(BigInteger amount) {
+        return getBalance().compareTo(amount) >= 0;
+    }
+
     /**
      * @return The account nonce.
      */
@@ -93,4 +114,12 @@ public interface IAccountStore {
      * @return The raw serialized graph read.
      */
     public byte[] getObjectGraph();
+
+    /**
+     * Reads the serialized application object graph without copying it, where the implementation allows (for example, by mapping
+     * the file holding it).  The buffer is read-only, positioned at the start of the graph, and is not changed by later writes.
+     * 
+     * @return The raw serialized graph read (null if there is no graph).
+     */
+    public ByteBuffer getObjectGraphBuffer();
 }
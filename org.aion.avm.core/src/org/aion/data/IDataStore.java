@@ -28,4 +28,15 @@ public interface IDataStore {
      * @param address The address of the account.
      */
     public void deleteAccount(byte[] address);
+
+    /**
+     * Runs the given writes (which must only be made through this store, on the calling thread) as one unit.  Implementations which
+     * can make the unit atomic, or make it durable more cheaply than each write on its own, should override this.
+     * By default, the writes are simply run.
+     * 
+     * @param writes The writes to apply.
+     */
+    public default void writeBatch(Runnable writes) {
+        writes.run();
+    }
 }
@@ -0,0 +1,128 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * A view of one account in a {@link LogStructuredDataStore}.  Every value is read from, and written to, the store's log.
+ */
+public class LogStructuredAccountStore implements IAccountStore {
+    private static final byte[] FIELD_CODE = new byte[] {LogStructuredDataStore.FIELD_CODE};
+    private static final byte[] FIELD_TRANSFORMED_CODE = new byte[] {LogStructuredDataStore.FIELD_TRANSFORMED_CODE};
+    private static final byte[] FIELD_BALANCE = new byte[] {LogStructuredDataStore.FIELD_BALANCE};
+    private static final byte[] FIELD_NONCE = new byte[] {LogStructuredDataStore.FIELD_NONCE};
+    private static final byte[] FIELD_GRAPH = new byte[] {LogStructuredDataStore.FIELD_GRAPH};
+
+    private final LogStructuredDataStore store;
+    private final byte[] address;
+
+    public LogStructuredAccountStore(LogStructuredDataStore store, byte[] address) {
+        this.store = store;
+        this.address = address;
+    }
+
+    @Override
+    public byte[] getCode() {
+        return this.store.readField(this.address, FIELD_CODE);
+    }
+
+    @Override
+    public void setCode(byte[] code) {
+        write(FIELD_CODE, code);
+    }
+
+    @Override
+    public byte[] getTransformedCode() {
+        return this.store.readField(this.address, FIELD_TRANSFORMED_CODE);
+    }
+
+    @Override
+    public void setTransformedCode(byte[] code) {
+        write(FIELD_TRANSFORMED_CODE, code);
+    }
+
+    @Override
+    public BigInteger getBalance() {
+        byte[] data = this.store.readField(this.address, FIELD_BALANCE);
+        return (null != data)
+                ? new BigInteger(data)
+                : BigInteger.ZERO;
+    }
+
+    @Override
+    public void setBalance(BigInteger balance) {
+        write(FIELD_BALANCE, balance.toByteArray());
+    }
+
+    @Override
+    public long getNonce() {
+        byte[] data = this.store.readField(this.address, FIELD_NONCE);
+        return (null != data)
+                ? ByteBuffer.wrap(data).getLong()
+                : 0L;
+    }
+
+    @Override
+    public void setNonce(long nonce) {
+        write(FIELD_NONCE, ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+    }
+
+    @Override
+    public byte[] getData(byte[] key) {
+        return this.store.readField(this.address, fieldForKey(key));
+    }
+
+    @Override
+    public void setData(byte[] key, byte[] value) {
+        write(fieldForKey(key), value);
+    }
+
+    @Override
+    public void removeData(byte[] key) {
+        this.store.removeField(this.address, fieldForKey(key));
+    }
+
+    @Override
+    public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
+        return this.store.readStorageEntries(this.address);
+    }
+
+    @Override
+    public void setObjectGraph(byte[] data) {
+        write(FIELD_GRAPH, data);
+    }
+
+    @Override
+    public byte[] getObjectGraph() {
+        return this.store.readField(this.address, FIELD_GRAPH);
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer() {
+        return this.store.readFieldBuffer(this.address, FIELD_GRAPH);
+    }
+
+
+    private void write(byte[] field, byte[] value) {
+        // Writing null is the same as never having written the value (which is how the in-memory implementation behaves).
+        if (null != value) {
+            this.store.writeField(this.address, field, value);
+        } else {
+            this.store.removeField(this.address, field);
+        }
+    }
+
+    private static byte[] fieldForKey(byte[] key) {
+        // The field length is encoded as a short but keys are much smaller than that, in practice.
+        RuntimeAssertionError.assertTrue(key.length < Short.MAX_VALUE);
+        byte[] field = new byte[1 + key.length];
+        field[0] = LogStructuredDataStore.FIELD_STORAGE;
+        System.arraycopy(key, 0, field, 1, key.length);
+        return field;
+    }
+}
@@ -0,0 +1,706 @@
+package org.aion.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * An IDataStore which appends every change to a log of segment files in a directory, instead of writing a file per value.
+ * An in-memory index maps each live value to its position in the log so reads are a single positional read.
+ *
+ * Writes are only appended to the active segment.  Once it reaches the segment size limit, it is sealed (never written again) and
+ * a new one is started.  Nothing is forced to disk until {@link #sync()} is called, which is meant to be called once per block
+ * (or whatever the unit of durability is for the caller), so the cost of the fsync is shared by all the writes in it.
+ *
+ * Once enough of the data in the sealed segments has been superseded, they are compacted on a background thread:  the values which
+ * are still live are copied into one new segment which starts with a marker telling recovery to ignore every segment before it.
+ * This means that a crash at any point of compaction leaves either the old segments or the new one in effect.
+ *
+ * On open, the segments are replayed in order to rebuild the index.  A torn record at the end of a segment (from a crash before
+ * the last sync) is discarded.
+ *
+ * Note that only one instance can use a directory at a time since each has its own index.
+ */
+public class LogStructuredDataStore implements IDataStore {
+    private static final long DEFAULT_SEGMENT_SIZE_LIMIT = 64L * 1024L * 1024L;
+    // We compact once at least this fraction of the sealed bytes is dead.
+    private static final double COMPACTION_DEAD_FRACTION = 0.5;
+    // Values smaller than this are just read, when a buffer is requested, since mapping has a fixed cost which is more than copying a few pages.
+    private static final int MAPPING_THRESHOLD = 64 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    private static final byte RECORD_CREATE = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_PUT = 3;
+    private static final byte RECORD_REMOVE = 4;
+    private static final byte RECORD_BASE = 5;
+
+    // The first byte of a field identifies what it is (storage keys follow it).
+    static final byte FIELD_CODE = 0;
+    static final byte FIELD_TRANSFORMED_CODE = 1;
+    static final byte FIELD_BALANCE = 2;
+    static final byte FIELD_NONCE = 3;
+    static final byte FIELD_GRAPH = 4;
+    static final byte FIELD_STORAGE = 5;
+
+    private final File directory;
+    private final long segmentSizeLimit;
+    // Segments in log order, the last of which is active.
+    private final List<Segment> segments;
+    private final Map<ByteArrayWrapper, AccountEntry> accounts;
+    private long nextSegmentId;
+    private final ExecutorService compactor;
+    private boolean isCompactionQueued;
+    // Held (before the store's own monitor) for the whole of a compaction, so only one runs at a time.
+    private final Object compactionLock;
+
+    public LogStructuredDataStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE_LIMIT);
+    }
+
+    public LogStructuredDataStore(File directory, long segmentSizeLimit) {
+        RuntimeAssertionError.assertTrue(segmentSizeLimit > 0L);
+        this.directory = directory;
+        this.segmentSizeLimit = segmentSizeLimit;
+        this.segments = new ArrayList<>();
+        this.accounts = new HashMap<>();
+        this.compactor = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "AVM Store Compaction Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactionLock = new Object();
+        recover();
+    }
+
+    @Override
+    public synchronized IAccountStore openAccount(byte[] address) {
+        return this.accounts.containsKey(new ByteArrayWrapper(address))
+                ? new LogStructuredAccountStore(this, address)
+                : null;
+    }
+
+    @Override
+    public synchronized IAccountStore createAccount(byte[] address) {
+        checkAddress(address);
+        ByteArrayWrapper wrapper = new ByteArrayWrapper(address);
+        IAccountStore created = null;
+        if (!this.accounts.containsKey(wrapper)) {
+            Location location = append(encodeRecord(RECORD_CREATE, address, null, null));
+            this.accounts.put(wrapper, new AccountEntry(address, location));
+            created = new LogStructuredAccountStore(this, address);
+        }
+        return created;
+    }
+
+    @Override
+    public synchronized void deleteAccount(byte[] address) {
+        AccountEntry account = this.accounts.remove(new ByteArrayWrapper(address));
+        if (null != account) {
+            // Everything recorded for the account is now dead, as is the delete itself once those records have been compacted.
+            markDead(account.created);
+            for (FieldEntry field : account.fields.values()) {
+                markDead(field.location);
+            }
+            markDead(append(encodeRecord(RECORD_DELETE, address, null, null)));
+        }
+    }
+
+    /**
+     * Applies the writes and then syncs, so the whole batch costs one fsync.  No other thread can write while the batch is applied.
+     * Note that this doesn't make the batch atomic:  a crash before the sync can still leave any prefix of its writes in the log.
+     */
+    @Override
+    public synchronized void writeBatch(Runnable writes) {
+        writes.run();
+        sync();
+    }
+
+    /**
+     * Forces everything written so far to disk.
+     */
+    public synchronized void sync() {
+        for (Segment segment : this.segments) {
+            if (!segment.isSynced) {
+                force(segment);
+            }
+        }
+    }
+
+    /**
+     * Compacts the sealed segments now, if any of their data is dead, instead of waiting for the background compaction.
+     */
+    public void compact() {
+        synchronized (this.compactionLock) {
+            compactSealedSegments();
+        }
+    }
+
+    /**
+     * Syncs, waits for any running compaction, and closes the segment files.  The instance can't be used after this.
+     */
+    public void close() {
+        this.compactor.shutdown();
+        try {
+            this.compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // We don't use interruption.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        synchronized (this) {
+            sync();
+            for (Segment segment : this.segments) {
+                closeChannel(segment);
+            }
+            this.segments.clear();
+        }
+    }
+
+    synchronized byte[] readField(byte[] address, byte[] field) {
+        FieldEntry entry = liveAccount(address).fields.get(new ByteArrayWrapper(field));
+        return (null != entry)
+                ? readValue(entry.location)
+                : null;
+    }
+
+    synchronized ByteBuffer readFieldBuffer(byte[] address, byte[] field) {
+        FieldEntry entry = liveAccount(address).fields.get(new ByteArrayWrapper(field));
+        return (null != entry)
+                ? readValueBuffer(entry.location)
+                : null;
+    }
+
+    synchronized void writeField(byte[] address, byte[] field, byte[] value) {
+        AccountEntry account = liveAccount(address);
+        Location location = append(encodeRecord(RECORD_PUT, address, field, value));
+        FieldEntry previous = account.fields.put(new ByteArrayWrapper(field), new FieldEntry(field, location));
+        if (null != previous) {
+            markDead(previous.location);
+        }
+    }
+
+    synchronized void removeField(byte[] address, byte[] field) {
+        AccountEntry account = liveAccount(address);
+        FieldEntry previous = account.fields.remove(new ByteArrayWrapper(field));
+        if (null != previous) {
+            markDead(previous.location);
+            // The removal only needs to be recorded if there was something to remove.
+            markDead(append(encodeRecord(RECORD_REMOVE, address, field, null)));
+        }
+    }
+
+    synchronized Map<ByteArrayWrapper, byte[]> readStorageEntries(byte[] address) {
+        Map<ByteArrayWrapper, byte[]> result = new HashMap<>();
+        for (FieldEntry entry : liveAccount(address).fields.values()) {
+            if (FIELD_STORAGE == entry.field[0]) {
+                byte[] key = new byte[entry.field.length - 1];
+                System.arraycopy(entry.field, 1, key, 0, key.length);
+                result.put(new ByteArrayWrapper(key), readValue(entry.location));
+            }
+        }
+        return result;
+    }
+
+
+    private void recover() {
+        if (!this.directory.isDirectory()) {
+            boolean didCreate = this.directory.mkdirs();
+            RuntimeAssertionError.assertTrue(didCreate);
+        }
+        List<Long> segmentIds = new ArrayList<>();
+        for (File file : this.directory.listFiles()) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(COMPACTING_SUFFIX)) {
+                // An interrupted compaction:  the segments it was replacing are still in effect.
+                boolean didDelete = file.delete();
+                RuntimeAssertionError.assertTrue(didDelete);
+            } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                segmentIds.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        segmentIds.sort(null);
+        for (long id : segmentIds) {
+            Segment segment = openSegment(id);
+            replay(segment);
+            this.segments.add(segment);
+            this.nextSegmentId = id + 1;
+        }
+        if (this.segments.isEmpty() || (lastSegment().size >= this.segmentSizeLimit)) {
+            startSegment();
+        }
+        for (int i = 0; i < (this.segments.size() - 1); ++i) {
+            this.segments.get(i).isSealed = true;
+        }
+    }
+
+    private void replay(Segment segment) {
+        long offset = 0L;
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        while (offset < segment.size) {
+            header.clear();
+            if (!readFully(segment, header, offset)) {
+                break;
+            }
+            int length = header.getInt(0);
+            long recordEnd = offset + Integer.BYTES + length;
+            if ((length < (1 + Integer.BYTES)) || (recordEnd > segment.size)) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(segment, record, offset + Integer.BYTES);
+            record.flip();
+            if (!isChecksumValid(record)) {
+                break;
+            }
+            byte type = record.get();
+            if (RECORD_BASE == type) {
+                // This is a compacted segment so everything before it is superseded (a crash stopped us from deleting those).
+                RuntimeAssertionError.assertTrue(0L == offset);
+                for (Segment superseded : this.segments) {
+                    deleteSegment(superseded);
+                }
+                this.segments.clear();
+                this.accounts.clear();
+            } else {
+                applyRecord(segment, offset, Integer.BYTES + length, type, record);
+            }
+            offset = recordEnd;
+        }
+        if (offset < segment.size) {
+            // A torn write from a crash:  drop it so that the next write starts at a record boundary.
+            try {
+                segment.channel.truncate(offset);
+            } catch (IOException e) {
+                // This implementation doesn't handle exceptions.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+            segment.size = offset;
+        }
+    }
+
+    private void applyRecord(Segment segment, long recordOffset, int recordLength, byte type, ByteBuffer record) {
+        byte[] address = new byte[record.get()];
+        record.get(address);
+        ByteArrayWrapper addressWrapper = new ByteArrayWrapper(address);
+        Location location = new Location(segment, recordLength, 0L, 0);
+        segment.totalBytes += recordLength;
+        if (RECORD_CREATE == type) {
+            AccountEntry previous = this.accounts.put(addressWrapper, new AccountEntry(address, location));
+            RuntimeAssertionError.assertTrue(null == previous);
+        } else if (RECORD_DELETE == type) {
+            AccountEntry account = this.accounts.remove(addressWrapper);
+            markDead(account.created);
+            for (FieldEntry field : account.fields.values()) {
+                markDead(field.location);
+            }
+            markDead(location);
+        } else {
+            byte[] field = new byte[record.getShort()];
+            record.get(field);
+            AccountEntry account = this.accounts.get(addressWrapper);
+            FieldEntry previous = null;
+            if (RECORD_PUT == type) {
+                int valueLength = record.getInt();
+                // The value starts right after what we have read so far (past the length prefix of the record).
+                long valueOffset = recordOffset + Integer.BYTES + record.position();
+                Location valueLocation = new Location(segment, recordLength, valueOffset, valueLength);
+                previous = account.fields.put(new ByteArrayWrapper(field), new FieldEntry(field, valueLocation));
+            } else {
+                RuntimeAssertionError.assertTrue(RECORD_REMOVE == type);
+                previous = account.fields.remove(new ByteArrayWrapper(field));
+                markDead(location);
+            }
+            if (null != previous) {
+                markDead(previous.location);
+            }
+        }
+    }
+
+    private void compactSealedSegments() {
+        // Phase 1:  under the monitor, find the live records in the sealed segments.
+        List<Segment> compacting = new ArrayList<>();
+        List<LiveRecord> live = new ArrayList<>();
+        long id;
+        synchronized (this) {
+            long deadBytes = 0L;
+            for (Segment segment : this.segments) {
+                if (segment.isSealed) {
+                    compacting.add(segment);
+                    deadBytes += segment.deadBytes;
+                }
+            }
+            this.isCompactionQueued = false;
+            if (compacting.isEmpty() || (0L == deadBytes)) {
+                return;
+            }
+            for (AccountEntry account : this.accounts.values()) {
+                if (compacting.contains(account.created.segment)) {
+                    live.add(new LiveRecord(account, null));
+                }
+                for (FieldEntry field : account.fields.values()) {
+                    if (compacting.contains(field.location.segment)) {
+                        live.add(new LiveRecord(account, field));
+                    }
+                }
+            }
+            // The new segment takes the place of the last one it replaces so that it is still replayed before the active one.
+            id = compacting.get(compacting.size() - 1).id;
+        }
+
+        // Phase 2:  without the monitor, copy them (sealed segments are never modified so they can be read concurrently).
+        File temporary = new File(this.directory, SEGMENT_PREFIX + id + COMPACTING_SUFFIX);
+        Segment compacted = new Segment(id, temporary, openChannel(temporary));
+        appendTo(compacted, encodeRecord(RECORD_BASE, null, null, null));
+        List<Location> copies = new ArrayList<>();
+        for (LiveRecord record : live) {
+            byte[] encoded = (null == record.field)
+                    ? encodeRecord(RECORD_CREATE, record.account.address, null, null)
+                    : encodeRecord(RECORD_PUT, record.account.address, record.field.field, readValue(record.field.location));
+            copies.add(appendTo(compacted, encoded));
+        }
+        force(compacted);
+
+        // Phase 3:  under the monitor, switch over to the new segment, keeping anything changed during the copy.
+        synchronized (this) {
+            File target = new File(this.directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+            try {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // This implementation doesn't handle exceptions.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+            compacted.file = target;
+            compacted.isSealed = true;
+            for (int i = 0; i < live.size(); ++i) {
+                LiveRecord record = live.get(i);
+                Location copy = copies.get(i);
+                boolean isStillLive = (record.account == this.accounts.get(new ByteArrayWrapper(record.account.address)));
+                if (null == record.field) {
+                    if (isStillLive) {
+                        record.account.created = copy;
+                    } else {
+                        markDead(copy);
+                    }
+                } else {
+                    FieldEntry current = isStillLive
+                            ? record.account.fields.get(new ByteArrayWrapper(record.field.field))
+                            : null;
+                    if (current == record.field) {
+                        current.location = copy;
+                    } else {
+                        markDead(copy);
+                    }
+                }
+            }
+            int position = this.segments.indexOf(compacting.get(0));
+            this.segments.removeAll(compacting);
+            this.segments.add(position, compacted);
+            for (Segment segment : compacting) {
+                // The last one was already replaced by the move.
+                if (segment.id != id) {
+                    deleteSegment(segment);
+                } else {
+                    closeChannel(segment);
+                }
+            }
+        }
+    }
+
+    private Location append(byte[] encoded) {
+        Segment active = lastSegment();
+        if ((active.size > 0L) && ((active.size + encoded.length) > this.segmentSizeLimit)) {
+            active.isSealed = true;
+            active = startSegment();
+            scheduleCompactionIfNeeded();
+        }
+        return appendTo(active, encoded);
+    }
+
+    private Location appendTo(Segment segment, byte[] encoded) {
+        long offset = segment.size;
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        try {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += segment.channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        segment.size += encoded.length;
+        segment.totalBytes += encoded.length;
+        segment.isSynced = false;
+        // A put ends with its value (followed by the checksum) so we can find it from the end of the record.
+        int valueLength = 0;
+        long valueOffset = 0L;
+        if (RECORD_PUT == encoded[Integer.BYTES]) {
+            ByteBuffer view = ByteBuffer.wrap(encoded);
+            int addressLength = encoded[Integer.BYTES + 1];
+            int fieldLength = view.getShort(Integer.BYTES + 2 + addressLength);
+            int valueLengthOffset = Integer.BYTES + 2 + addressLength + Short.BYTES + fieldLength;
+            valueLength = view.getInt(valueLengthOffset);
+            valueOffset = offset + valueLengthOffset + Integer.BYTES;
+        }
+        return new Location(segment, encoded.length, valueOffset, valueLength);
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        long sealedBytes = 0L;
+        long deadBytes = 0L;
+        for (Segment segment : this.segments) {
+            if (segment.isSealed) {
+                sealedBytes += segment.totalBytes;
+                deadBytes += segment.deadBytes;
+            }
+        }
+        if (!this.isCompactionQueued && (deadBytes >= (COMPACTION_DEAD_FRACTION * sealedBytes)) && (deadBytes > 0L)) {
+            this.isCompactionQueued = true;
+            this.compactor.execute(this::compact);
+        }
+    }
+
+    private Segment startSegment() {
+        Segment segment = openSegment(this.nextSegmentId);
+        this.nextSegmentId += 1;
+        this.segments.add(segment);
+        return segment;
+    }
+
+    private Segment openSegment(long id) {
+        File file = new File(this.directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        Segment segment = new Segment(id, file, openChannel(file));
+        try {
+            segment.size = segment.channel.size();
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        return segment;
+    }
+
+    private Segment lastSegment() {
+        return this.segments.get(this.segments.size() - 1);
+    }
+
+    private AccountEntry liveAccount(byte[] address) {
+        AccountEntry account = this.accounts.get(new ByteArrayWrapper(address));
+        // Like the other implementations, an account can't be used once it has been deleted.
+        RuntimeAssertionError.assertTrue(null != account);
+        return account;
+    }
+
+    private byte[] readValue(Location location) {
+        ByteBuffer buffer = ByteBuffer.allocate(location.valueLength);
+        boolean didRead = readFully(location.segment, buffer, location.valueOffset);
+        RuntimeAssertionError.assertTrue(didRead);
+        return buffer.array();
+    }
+
+    private ByteBuffer readValueBuffer(Location location) {
+        ByteBuffer result;
+        if (location.valueLength >= MAPPING_THRESHOLD) {
+            // A record is never written over, and a mapping outlives the deletion of its file by compaction, so this never changes.
+            try {
+                result = location.segment.channel.map(FileChannel.MapMode.READ_ONLY, location.valueOffset, location.valueLength);
+            } catch (IOException e) {
+                // This implementation doesn't handle exceptions.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+        } else {
+            result = ByteBuffer.wrap(readValue(location)).asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+    private static void markDead(Location location) {
+        location.segment.deadBytes += location.recordLength;
+    }
+
+    private static void checkAddress(byte[] address) {
+        // The length is encoded in one byte (this is the same limit as the directory-backed implementation).
+        if ((null == address) || (address.length < 4) || (address.length > 32)) {
+            throw new IllegalArgumentException("Address length incorrect (must be between 4 and 32)");
+        }
+    }
+
+    private static byte[] encodeRecord(byte type, byte[] address, byte[] field, byte[] value) {
+        int bodyLength = 1;
+        if (null != address) {
+            bodyLength += 1 + address.length;
+        }
+        if (null != field) {
+            bodyLength += Short.BYTES + field.length;
+        }
+        if (null != value) {
+            bodyLength += Integer.BYTES + value.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + bodyLength + Integer.BYTES);
+        buffer.putInt(bodyLength + Integer.BYTES);
+        buffer.put(type);
+        if (null != address) {
+            buffer.put((byte) address.length);
+            buffer.put(address);
+        }
+        if (null != field) {
+            buffer.putShort((short) field.length);
+            buffer.put(field);
+        }
+        if (null != value) {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), Integer.BYTES, bodyLength);
+        buffer.putInt((int) checksum.getValue());
+        return buffer.array();
+    }
+
+    private static boolean isChecksumValid(ByteBuffer record) {
+        int bodyLength = record.limit() - Integer.BYTES;
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 0, bodyLength);
+        return record.getInt(bodyLength) == (int) checksum.getValue();
+    }
+
+    private static boolean readFully(Segment segment, ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                int read = segment.channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        return true;
+    }
+
+    private static FileChannel openChannel(File file) {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    private static void force(Segment segment) {
+        try {
+            segment.channel.force(false);
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        segment.isSynced = true;
+    }
+
+    private static void closeChannel(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    private static void deleteSegment(Segment segment) {
+        closeChannel(segment);
+        boolean didDelete = segment.file.delete();
+        RuntimeAssertionError.assertTrue(didDelete);
+    }
+
+
+    private static final class Segment {
+        private final long id;
+        private File file;
+        private final FileChannel channel;
+        private long size;
+        // Every byte appended, and how many of those are no longer live (used to decide when to compact).
+        private long totalBytes;
+        private long deadBytes;
+        private boolean isSealed;
+        private boolean isSynced;
+
+        private Segment(long id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.isSynced = true;
+        }
+    }
+
+
+    private static final class Location {
+        private final Segment segment;
+        // The whole record, including its length prefix (this is what becomes dead once the value is superseded).
+        private final int recordLength;
+        // Only meaningful for a put.
+        private final long valueOffset;
+        private final int valueLength;
+
+        private Location(Segment segment, int recordLength, long valueOffset, int valueLength) {
+            this.segment = segment;
+            this.recordLength = recordLength;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+    }
+
+
+    private static final class AccountEntry {
+        private final byte[] address;
+        private Location created;
+        private final Map<ByteArrayWrapper, FieldEntry> fields;
+
+        private AccountEntry(byte[] address, Location created) {
+            this.address = address;
+            this.created = created;
+            this.fields = new HashMap<>();
+        }
+    }
+
+
+    private static final class FieldEntry {
+        private final byte[] field;
+        private Location location;
+
+        private FieldEntry(byte[] field, Location location) {
+            this.field = field;
+            this.location = location;
+        }
+    }
+
+
+    private static final class LiveRecord {
+        private final AccountEntry account;
+        // Null for the creation of the account.
+        private final FieldEntry field;
+
+        private LiveRecord(AccountEntry account, FieldEntry field) {
+            this.account = account;
+            this.field = field;
+        }
+    }
+}
@@ -1,87 +1,119 @@
 package org.aion.data;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
 
 
+/**
+ * A view of one account in a {@link MemoryBackedDataStore}.  Every value is read from, and written to, the current state of the store
+ * (so this view remains valid across snapshots and reverts).
+ */
 public class MemoryBackedAccountStore implements IAccountStore {
-    private BigInteger balance = BigInteger.ZERO;
-    private long nonce = 0;
-    private byte[] code = null;
-    private byte[] transformedCode = null;
-    private final Map<ByteArrayWrapper, byte[]> storage = new HashMap<>();
-    private byte[] graph = null;
+    private final MemoryBackedDataStore store;
+    private final ByteArrayWrapper address;
+
+    public MemoryBackedAccountStore(MemoryBackedDataStore store, ByteArrayWrapper address) {
+        this.store = store;
+        this.address = address;
+    }
 
     @Override
     public byte[] getCode() {
-        return this.code;
+        return this.store.readAccount(this.address).code;
     }
 
     @Override
     public void setCode(byte[] code) {
-        this.code = code;
+        this.store.writeAccount(this.address).code = code;
     }
 
     @Override
     public byte[] getTransformedCode() {
-        return this.transformedCode;
+        return this.store.readAccount(this.address).transformedCode;
     }
 
     @Override
     public void setTransformedCode(byte[] code) {
-        this.transformedCode = code;
+        this.store.writeAccount(this.address).transformedCode = code;
     }
 
     @Override
     public BigInteger getBalance() {
-        return this.balance;
+        return this.store.readAccount(this.address).balance.toBigInteger();
     }
 
     @Override
     public void setBalance(BigInteger balance) {
-        this.balance = balance;
+        this.store.writeAccount(this.address).balance.set(balance);
+    }
+
+    @Override
+    public void adjustBalance(BigInteger delta) {
+        this.store.writeAccount(this.address).balance.add(delta);
+    }
+
+    @Override
+    public boolean isBalanceAtLeast(BigInteger amount) {
+        return this.store.readAccount(this.address).balance.compareTo(amount) >= 0;
     }
 
     @Override
     public long getNonce() {
-        return this.nonce;
+        return this.store.readAccount(this.address).nonce;
     }
 
     @Override
     public void setNonce(long nonce) {
-        this.nonce = nonce;
+        this.store.writeAccount(this.address).nonce = nonce;
     }
 
     @Override
     public byte[] getData(byte[] key) {
-        return this.storage.get(new ByteArrayWrapper(key));
+        return this.store.readAccount(this.address).storage.get(new ByteArrayWrapper(key));
     }
 
     @Override
     public void setData(byte[] key, byte[] value) {
-        this.storage.put(new ByteArrayWrapper(key), value);
+        MemoryBackedDataStore.AccountState account = this.store.writeAccount(this.address);
+        // Storing null is the same as never having written the value.
+        account.storage = (null != value)
+                ? account.storage.put(this.store.getEdit(), new ByteArrayWrapper(key), value)
+                : account.storage.remove(this.store.getEdit(), new ByteArrayWrapper(key));
     }
 
     @Override
     public void removeData(byte[] key) {
-        this.storage.remove(new ByteArrayWrapper(key));
+        MemoryBackedDataStore.AccountState account = this.store.writeAccount(this.address);
+        account.storage = account.storage.remove(this.store.getEdit(), new ByteArrayWrapper(key));
     }
 
     @Override
     public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
-        return this.storage;
+        Map<ByteArrayWrapper, byte[]> result = new HashMap<>();
+        this.store.readAccount(this.address).storage.forEach(result::put);
+        return result;
     }
 
     @Override
     public void setObjectGraph(byte[] data) {
-        this.graph = data;
+        this.store.writeAccount(this.address).graph = data;
     }
 
     @Override
     public byte[] getObjectGraph() {
-        return this.graph;
+        return this.store.readAccount(this.address).graph;
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer() {
+        // The graph array is replaced, never modified, on write so we can just wrap it.
+        byte[] graph = getObjectGraph();
+        return (null != graph)
+                ? ByteBuffer.wrap(graph).asReadOnlyBuffer()
+                : null;
     }
 }
@@ -1,33 +1,139 @@
 package org.aion.data;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
 
 
+/**
+ * An in-memory IDataStore.
+ *
+ * The accounts (and the storage of each account) are held in {@link PersistentMap} instances so that the whole state can be
+ * captured by {@link #snapshot()}, and restored by {@link #revertTo(Snapshot)}, in constant time:  a snapshot is just the root of the
+ * map of accounts and taking one switches the store to a new edit token, so the first write to each node (or account) after that
+ * copies it, rather than modifying what the snapshot refers to.
+ */
 public class MemoryBackedDataStore implements IDataStore {
-    private final Map<ByteArrayWrapper, MemoryBackedAccountStore> accounts = new HashMap<>();
+    private PersistentMap<ByteArrayWrapper, AccountState> accounts;
+    // Nodes and accounts created with this token are modified in place (anything created with an earlier token is frozen).
+    private Object edit;
+
+    public MemoryBackedDataStore() {
+        this.accounts = PersistentMap.empty();
+        this.edit = new Object();
+    }
 
     @Override
     public IAccountStore openAccount(byte[] address) {
-        return this.accounts.get(new ByteArrayWrapper(address));
+        ByteArrayWrapper key = new ByteArrayWrapper(address);
+        return (null != this.accounts.get(key))
+                ? new MemoryBackedAccountStore(this, key)
+                : null;
     }
 
     @Override
     public IAccountStore createAccount(byte[] address) {
-        ByteArrayWrapper wrapper = new ByteArrayWrapper(address);
-        MemoryBackedAccountStore existing = this.accounts.get(wrapper);
+        ByteArrayWrapper key = new ByteArrayWrapper(address);
         MemoryBackedAccountStore created = null;
-        if (null == existing) {
-            created = new MemoryBackedAccountStore();
-            this.accounts.put(wrapper, created);
+        if (null == this.accounts.get(key)) {
+            this.accounts = this.accounts.put(this.edit, key, new AccountState(this.edit));
+            created = new MemoryBackedAccountStore(this, key);
         }
         return created;
     }
 
     @Override
     public void deleteAccount(byte[] address) {
-        this.accounts.remove(new ByteArrayWrapper(address));
+        this.accounts = this.accounts.remove(this.edit, new ByteArrayWrapper(address));
+    }
+
+    /**
+     * Captures the current state of every account.  This takes constant time and the state isn't copied:  it is shared with the store
+     * until either one changes it.
+     *
+     * @return The snapshot, which can be passed to {@link #revertTo(Snapshot)} any number of times.
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(this, this.accounts);
+        this.edit = new Object();
+        return snapshot;
+    }
+
+    /**
+     * Restores the state of every account to what it was when the given snapshot was taken, in constant time.
+     * Note that later snapshots are still valid after this.
+     *
+     * @param snapshot A snapshot taken from this store.
+     */
+    public void revertTo(Snapshot snapshot) {
+        RuntimeAssertionError.assertTrue(this == snapshot.store);
+        this.accounts = snapshot.accounts;
+        // (so that nothing written after this can modify the nodes of any snapshot taken since the one we are reverting to)
+        this.edit = new Object();
+    }
+
+    AccountState readAccount(ByteArrayWrapper key) {
+        AccountState account = this.accounts.get(key);
+        // Like the other implementations, an account can't be used once it has been deleted.
+        RuntimeAssertionError.assertTrue(null != account);
+        return account;
+    }
+
+    AccountState writeAccount(ByteArrayWrapper key) {
+        AccountState account = readAccount(key);
+        if (this.edit != account.edit) {
+            account = new AccountState(this.edit, account);
+            this.accounts = this.accounts.put(this.edit, key, account);
+        }
+        return account;
+    }
+
+    Object getEdit() {
+        return this.edit;
+    }
+
+
+    /**
+     * The state of the store at one point in time (opaque to everything but the store which created it).
+     */
+    public static final class Snapshot {
+        private final MemoryBackedDataStore store;
+        private final PersistentMap<ByteArrayWrapper, AccountState> accounts;
+
+        private Snapshot(MemoryBackedDataStore store, PersistentMap<ByteArrayWrapper, AccountState> accounts) {
+            this.store = store;
+            this.accounts = accounts;
+        }
+    }
+
+
+    /**
+     * The state of one account.  This can only be modified by a store using the same edit token (otherwise, it is copied first).
+     */
+    static final class AccountState {
+        private final Object edit;
+        // This is modified in place so a copy of the account must copy it.
+        final Balance128 balance;
+        long nonce;
+        byte[] code;
+        byte[] transformedCode;
+        byte[] graph;
+        PersistentMap<ByteArrayWrapper, byte[]> storage;
+
+        private AccountState(Object edit) {
+            this.edit = edit;
+            this.balance = new Balance128();
+            this.nonce = 0L;
+            this.storage = PersistentMap.empty();
+        }
+
+        private AccountState(Object edit, AccountState original) {
+            this.edit = edit;
+            this.balance = original.balance.copy();
+            this.nonce = original.nonce;
+            this.code = original.code;
+            this.transformedCode = original.transformedCode;
+            this.graph = original.graph;
+            this.storage = original.storage;
+        }
     }
 }
@@ -0,0 +1,121 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+
+
+/**
+ * A view of one account in an {@link OffHeapDataStore}.  Every value is read from, and written to, the native memory of the store.
+ */
+public class OffHeapAccountStore implements IAccountStore {
+    private static final byte[] FIELD_CODE = new byte[] {OffHeapDataStore.FIELD_CODE};
+    private static final byte[] FIELD_TRANSFORMED_CODE = new byte[] {OffHeapDataStore.FIELD_TRANSFORMED_CODE};
+    private static final byte[] FIELD_GRAPH = new byte[] {OffHeapDataStore.FIELD_GRAPH};
+
+    private final OffHeapDataStore store;
+    private final byte[] address;
+
+    public OffHeapAccountStore(OffHeapDataStore store, byte[] address) {
+        this.store = store;
+        this.address = address;
+    }
+
+    @Override
+    public byte[] getCode() {
+        return this.store.readField(this.address, FIELD_CODE);
+    }
+
+    @Override
+    public void setCode(byte[] code) {
+        write(FIELD_CODE, code);
+    }
+
+    @Override
+    public byte[] getTransformedCode() {
+        return this.store.readField(this.address, FIELD_TRANSFORMED_CODE);
+    }
+
+    @Override
+    public void setTransformedCode(byte[] code) {
+        write(FIELD_TRANSFORMED_CODE, code);
+    }
+
+    @Override
+    public BigInteger getBalance() {
+        return this.store.readBalance(this.address);
+    }
+
+    @Override
+    public void setBalance(BigInteger balance) {
+        this.store.writeBalance(this.address, balance);
+    }
+
+    @Override
+    public long getNonce() {
+        return this.store.readNonce(this.address);
+    }
+
+    @Override
+    public void setNonce(long nonce) {
+        this.store.writeNonce(this.address, nonce);
+    }
+
+    @Override
+    public byte[] getData(byte[] key) {
+        return this.store.readField(this.address, fieldForKey(key));
+    }
+
+    @Override
+    public void setData(byte[] key, byte[] value) {
+        write(fieldForKey(key), value);
+    }
+
+    @Override
+    public void removeData(byte[] key) {
+        this.store.removeField(this.address, fieldForKey(key));
+    }
+
+    @Override
+    public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
+        return this.store.readStorageEntries(this.address);
+    }
+
+    @Override
+    public void setObjectGraph(byte[] data) {
+        write(FIELD_GRAPH, data);
+    }
+
+    @Override
+    public byte[] getObjectGraph() {
+        return this.store.readField(this.address, FIELD_GRAPH);
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer() {
+        // The native memory of the graph is reused once it is overwritten so we can only return a copy.
+        byte[] graph = getObjectGraph();
+        return (null != graph)
+                ? ByteBuffer.wrap(graph).asReadOnlyBuffer()
+                : null;
+    }
+
+
+    private void write(byte[] field, byte[] value) {
+        // Writing null is the same as never having written the value (which is how the in-memory implementation behaves).
+        if (null != value) {
+            this.store.writeField(this.address, field, value);
+        } else {
+            this.store.removeField(this.address, field);
+        }
+    }
+
+    private static byte[] fieldForKey(byte[] key) {
+        byte[] field = new byte[1 + key.length];
+        field[0] = OffHeapDataStore.FIELD_STORAGE;
+        System.arraycopy(key, 0, field, 1, key.length);
+        return field;
+    }
+}
@@ -0,0 +1,499 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * An in-memory IDataStore which keeps its accounts in native memory, instead of as objects on the heap, so that a very large state
+ * doesn't add to the work of the garbage collector.  The heap only holds the index and the list of native regions, no matter how
+ * many accounts or storage keys there are.
+ *
+ * Each value is a record in native memory:  one per account (holding its nonce and balance) and one per field of an account (its
+ * code, transformed code, object graph, and each storage key).  Records are allocated from large slabs in power-of-two size classes
+ * and each size class keeps a free list (threaded through the freed records, themselves) so that space is reused as values are
+ * overwritten.  A record too large for any size class gets a native region of its own, which is released as soon as it is freed.
+ *
+ * The records are found through an open-addressing hash table, held in two primitive arrays, of the record keys.  The fields of each
+ * account are also linked into a list, starting at the account record, so that deleting an account only visits its own records.
+ *
+ * Like {@link MemoryBackedDataStore}, this is not thread-safe (although concurrent reads are safe).
+ */
+public class OffHeapDataStore implements IDataStore {
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+    // Size classes go from 32 bytes to 256 KB.
+    private static final int MIN_BLOCK_SHIFT = 5;
+    private static final int MAX_BLOCK_SHIFT = 18;
+    private static final int MAX_BLOCK_SIZE = 1 << MAX_BLOCK_SHIFT;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    // Pointers are the region id in the high int and the offset in the low int.  Region 0 is never used so 0 is never a pointer.
+    private static final long NULL = 0L;
+
+    // The layout of a record (the next record of a free block is the next one in its free list).
+    private static final int OFFSET_CAPACITY = 0;
+    private static final int OFFSET_KEY_LENGTH = 4;
+    private static final int OFFSET_VALUE_LENGTH = 8;
+    private static final int OFFSET_PREVIOUS = 12;
+    private static final int OFFSET_NEXT = 20;
+    private static final int HEADER_SIZE = 28;
+
+    // The value of an account record is its nonce followed by its balance.
+    private static final int NONCE_SIZE = Long.BYTES;
+
+    // The first byte after the address in the key of a field identifies what it is (storage keys follow it).
+    static final byte FIELD_CODE = 0;
+    static final byte FIELD_TRANSFORMED_CODE = 1;
+    static final byte FIELD_GRAPH = 2;
+    static final byte FIELD_STORAGE = 3;
+
+    private final List<ByteBuffer> regions;
+    // The ids of the released regions of large records, so they can be reused.
+    private final Deque<Integer> releasedRegionIds;
+    private final long[] freeBlocks;
+    private int activeSlabId;
+    private int activeSlabUsed;
+
+    // The index:  a pointer to the record in each slot (NULL if empty) and the hash of its key.
+    private long[] slots;
+    private int[] hashes;
+    private int count;
+
+    private long reservedBytes;
+    private long allocatedBytes;
+
+    public OffHeapDataStore() {
+        this.regions = new ArrayList<>();
+        this.regions.add(null);
+        this.releasedRegionIds = new ArrayDeque<>();
+        this.freeBlocks = new long[MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1];
+        this.activeSlabId = 0;
+        this.activeSlabUsed = SLAB_SIZE;
+        this.slots = new long[INITIAL_INDEX_CAPACITY];
+        this.hashes = new int[INITIAL_INDEX_CAPACITY];
+        this.count = 0;
+    }
+
+    @Override
+    public IAccountStore openAccount(byte[] address) {
+        return (findSlot(accountKey(address)) >= 0)
+                ? new OffHeapAccountStore(this, address)
+                : null;
+    }
+
+    @Override
+    public IAccountStore createAccount(byte[] address) {
+        byte[] key = accountKey(address);
+        int slot = findSlot(key);
+        OffHeapAccountStore created = null;
+        if (slot < 0) {
+            byte[] value = encodeAccount(0L, BigInteger.ZERO);
+            long record = allocateRecord(key, value);
+            insertSlot(-(slot + 1), record, hash(key));
+            created = new OffHeapAccountStore(this, address);
+        }
+        return created;
+    }
+
+    @Override
+    public void deleteAccount(byte[] address) {
+        int slot = findSlot(accountKey(address));
+        if (slot >= 0) {
+            long account = this.slots[slot];
+            long field = getLong(account, OFFSET_NEXT);
+            while (NULL != field) {
+                long next = getLong(field, OFFSET_NEXT);
+                removeSlot(findSlot(readKey(field)));
+                free(field);
+                field = next;
+            }
+            // (the slot of the account may have moved when the slots of its fields were removed)
+            removeSlot(findSlot(accountKey(address)));
+            free(account);
+        }
+    }
+
+    /**
+     * @return The number of bytes of native memory reserved by this store (including the unallocated space of its slabs).
+     */
+    public long getReservedNativeBytes() {
+        return this.reservedBytes;
+    }
+
+    /**
+     * @return The number of bytes of native memory allocated to records, rounded up to their size classes.
+     */
+    public long getAllocatedNativeBytes() {
+        return this.allocatedBytes;
+    }
+
+    /**
+     * @return The number of bytes of heap used by the index.
+     */
+    public long getIndexHeapBytes() {
+        return ((long) this.slots.length) * (Long.BYTES + Integer.BYTES);
+    }
+
+    /**
+     * @return The number of records in the store (one per account and one per field of an account).
+     */
+    public int getRecordCount() {
+        return this.count;
+    }
+
+    long readNonce(byte[] address) {
+        long account = liveAccount(address);
+        return getLong(account, valueOffset(account));
+    }
+
+    void writeNonce(byte[] address, long nonce) {
+        long account = liveAccount(address);
+        putLong(account, valueOffset(account), nonce);
+    }
+
+    BigInteger readBalance(byte[] address) {
+        long account = liveAccount(address);
+        int valueLength = getInt(account, OFFSET_VALUE_LENGTH);
+        return new BigInteger(readBytes(account, valueOffset(account) + NONCE_SIZE, valueLength - NONCE_SIZE));
+    }
+
+    void writeBalance(byte[] address, BigInteger balance) {
+        int slot = findSlot(accountKey(address));
+        RuntimeAssertionError.assertTrue(slot >= 0);
+        long account = this.slots[slot];
+        long nonce = getLong(account, valueOffset(account));
+        replaceValue(slot, account, encodeAccount(nonce, balance), NULL);
+    }
+
+    byte[] readField(byte[] address, byte[] field) {
+        liveAccount(address);
+        int slot = findSlot(fieldKey(address, field));
+        byte[] value = null;
+        if (slot >= 0) {
+            long record = this.slots[slot];
+            value = readBytes(record, valueOffset(record), getInt(record, OFFSET_VALUE_LENGTH));
+        }
+        return value;
+    }
+
+    void writeField(byte[] address, byte[] field, byte[] value) {
+        long account = liveAccount(address);
+        byte[] key = fieldKey(address, field);
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            replaceValue(slot, this.slots[slot], value, account);
+        } else {
+            long record = allocateRecord(key, value);
+            // New fields go at the head of the list of the account.
+            long head = getLong(account, OFFSET_NEXT);
+            putLong(record, OFFSET_NEXT, head);
+            if (NULL != head) {
+                putLong(head, OFFSET_PREVIOUS, record);
+            }
+            putLong(account, OFFSET_NEXT, record);
+            insertSlot(-(slot + 1), record, hash(key));
+        }
+    }
+
+    void removeField(byte[] address, byte[] field) {
+        long account = liveAccount(address);
+        int slot = findSlot(fieldKey(address, field));
+        if (slot >= 0) {
+            long record = this.slots[slot];
+            long previous = getLong(record, OFFSET_PREVIOUS);
+            long next = getLong(record, OFFSET_NEXT);
+            putLong((NULL != previous) ? previous : account, OFFSET_NEXT, next);
+            if (NULL != next) {
+                putLong(next, OFFSET_PREVIOUS, previous);
+            }
+            removeSlot(slot);
+            free(record);
+        }
+    }
+
+    Map<ByteArrayWrapper, byte[]> readStorageEntries(byte[] address) {
+        Map<ByteArrayWrapper, byte[]> result = new HashMap<>();
+        int storageKeyOffset = 1 + address.length + 1;
+        long field = getLong(liveAccount(address), OFFSET_NEXT);
+        while (NULL != field) {
+            byte[] key = readKey(field);
+            if (FIELD_STORAGE == key[storageKeyOffset - 1]) {
+                byte[] storageKey = Arrays.copyOfRange(key, storageKeyOffset, key.length);
+                result.put(new ByteArrayWrapper(storageKey), readBytes(field, valueOffset(field), getInt(field, OFFSET_VALUE_LENGTH)));
+            }
+            field = getLong(field, OFFSET_NEXT);
+        }
+        return result;
+    }
+
+
+    private long liveAccount(byte[] address) {
+        int slot = findSlot(accountKey(address));
+        // Like the other implementations, an account can't be used once it has been deleted.
+        RuntimeAssertionError.assertTrue(slot >= 0);
+        return this.slots[slot];
+    }
+
+    private long replaceValue(int slot, long record, byte[] value, long account) {
+        int keyLength = getInt(record, OFFSET_KEY_LENGTH);
+        int recordSize = HEADER_SIZE + keyLength + value.length;
+        long result;
+        if (recordSize <= getInt(record, OFFSET_CAPACITY)) {
+            writeBytes(record, HEADER_SIZE + keyLength, value);
+            putInt(record, OFFSET_VALUE_LENGTH, value.length);
+            result = record;
+        } else {
+            // Move the record to a larger block, keeping its place in the list of the account.
+            result = allocate(recordSize);
+            writeBytes(result, OFFSET_KEY_LENGTH, readBytes(record, OFFSET_KEY_LENGTH, HEADER_SIZE - OFFSET_KEY_LENGTH + keyLength));
+            writeBytes(result, HEADER_SIZE + keyLength, value);
+            putInt(result, OFFSET_VALUE_LENGTH, value.length);
+            // Only fields are pointed to by other records (account is NULL if the record is the account itself).
+            if (NULL != account) {
+                long previous = getLong(result, OFFSET_PREVIOUS);
+                long next = getLong(result, OFFSET_NEXT);
+                putLong((NULL != previous) ? previous : account, OFFSET_NEXT, result);
+                if (NULL != next) {
+                    putLong(next, OFFSET_PREVIOUS, result);
+                }
+            }
+            this.slots[slot] = result;
+            free(record);
+        }
+        return result;
+    }
+
+    private long allocateRecord(byte[] key, byte[] value) {
+        long record = allocate(HEADER_SIZE + key.length + value.length);
+        putInt(record, OFFSET_KEY_LENGTH, key.length);
+        putInt(record, OFFSET_VALUE_LENGTH, value.length);
+        putLong(record, OFFSET_PREVIOUS, NULL);
+        putLong(record, OFFSET_NEXT, NULL);
+        writeBytes(record, HEADER_SIZE, key);
+        writeBytes(record, HEADER_SIZE + key.length, value);
+        return record;
+    }
+
+    private long allocate(int size) {
+        int shift = Math.max(MIN_BLOCK_SHIFT, Integer.SIZE - Integer.numberOfLeadingZeros(size - 1));
+        long pointer;
+        int capacity;
+        if (shift > MAX_BLOCK_SHIFT) {
+            capacity = size;
+            pointer = pointer(addRegion(ByteBuffer.allocateDirect(capacity)), 0);
+        } else {
+            capacity = 1 << shift;
+            int sizeClass = shift - MIN_BLOCK_SHIFT;
+            pointer = this.freeBlocks[sizeClass];
+            if (NULL != pointer) {
+                this.freeBlocks[sizeClass] = getLong(pointer, OFFSET_NEXT);
+            } else {
+                if ((this.activeSlabUsed + capacity) > SLAB_SIZE) {
+                    // (whatever is left of the previous slab is never used)
+                    this.activeSlabId = addRegion(ByteBuffer.allocateDirect(SLAB_SIZE));
+                    this.activeSlabUsed = 0;
+                }
+                pointer = pointer(this.activeSlabId, this.activeSlabUsed);
+                this.activeSlabUsed += capacity;
+            }
+        }
+        putInt(pointer, OFFSET_CAPACITY, capacity);
+        this.allocatedBytes += capacity;
+        return pointer;
+    }
+
+    private void free(long pointer) {
+        int capacity = getInt(pointer, OFFSET_CAPACITY);
+        this.allocatedBytes -= capacity;
+        if (capacity > MAX_BLOCK_SIZE) {
+            // The region is released to the garbage collector (which frees its native memory).
+            int regionId = (int) (pointer >>> 32);
+            this.regions.set(regionId, null);
+            this.releasedRegionIds.push(regionId);
+            this.reservedBytes -= capacity;
+        } else {
+            int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_BLOCK_SHIFT;
+            putLong(pointer, OFFSET_NEXT, this.freeBlocks[sizeClass]);
+            this.freeBlocks[sizeClass] = pointer;
+        }
+    }
+
+    private int addRegion(ByteBuffer region) {
+        int regionId;
+        if (this.releasedRegionIds.isEmpty()) {
+            regionId = this.regions.size();
+            this.regions.add(region);
+        } else {
+            regionId = this.releasedRegionIds.pop();
+            this.regions.set(regionId, region);
+        }
+        this.reservedBytes += region.capacity();
+        return regionId;
+    }
+
+    /**
+     * @return The slot holding the key or, if it isn't in the index, -(the empty slot where it would be inserted) - 1.
+     */
+    private int findSlot(byte[] key) {
+        int hash = hash(key);
+        int mask = this.slots.length - 1;
+        int slot = hash & mask;
+        int result = 0;
+        boolean isDone = false;
+        while (!isDone) {
+            long record = this.slots[slot];
+            if (NULL == record) {
+                result = -(slot + 1);
+                isDone = true;
+            } else if ((hash == this.hashes[slot]) && keyEquals(record, key)) {
+                result = slot;
+                isDone = true;
+            } else {
+                slot = (slot + 1) & mask;
+            }
+        }
+        return result;
+    }
+
+    private void insertSlot(int slot, long record, int hash) {
+        this.slots[slot] = record;
+        this.hashes[slot] = hash;
+        this.count += 1;
+        // Keep the load factor under 3/4.
+        if ((4 * this.count) > (3 * this.slots.length)) {
+            long[] oldSlots = this.slots;
+            int[] oldHashes = this.hashes;
+            this.slots = new long[2 * oldSlots.length];
+            this.hashes = new int[2 * oldHashes.length];
+            int mask = this.slots.length - 1;
+            for (int i = 0; i < oldSlots.length; ++i) {
+                if (NULL != oldSlots[i]) {
+                    int newSlot = oldHashes[i] & mask;
+                    while (NULL != this.slots[newSlot]) {
+                        newSlot = (newSlot + 1) & mask;
+                    }
+                    this.slots[newSlot] = oldSlots[i];
+                    this.hashes[newSlot] = oldHashes[i];
+                }
+            }
+        }
+    }
+
+    private void removeSlot(int slot) {
+        // Shift back any later entry of the probe sequence which could be in the emptied slot, so that lookups never stop early.
+        int mask = this.slots.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (NULL != this.slots[next]) {
+            int ideal = this.hashes[next] & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                this.slots[hole] = this.slots[next];
+                this.hashes[hole] = this.hashes[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.slots[hole] = NULL;
+        this.hashes[hole] = 0;
+        this.count -= 1;
+    }
+
+    private boolean keyEquals(long record, byte[] key) {
+        boolean isEqual = (key.length == getInt(record, OFFSET_KEY_LENGTH));
+        ByteBuffer region = region(record);
+        int offset = offset(record) + HEADER_SIZE;
+        for (int i = 0; isEqual && (i < key.length); ++i) {
+            isEqual = (key[i] == region.get(offset + i));
+        }
+        return isEqual;
+    }
+
+    private byte[] readKey(long record) {
+        return readBytes(record, HEADER_SIZE, getInt(record, OFFSET_KEY_LENGTH));
+    }
+
+    private int valueOffset(long record) {
+        return HEADER_SIZE + getInt(record, OFFSET_KEY_LENGTH);
+    }
+
+    private ByteBuffer region(long pointer) {
+        return this.regions.get((int) (pointer >>> 32));
+    }
+
+    private byte[] readBytes(long pointer, int offset, int length) {
+        ByteBuffer view = region(pointer).duplicate();
+        view.position(offset(pointer) + offset);
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return bytes;
+    }
+
+    private void writeBytes(long pointer, int offset, byte[] bytes) {
+        ByteBuffer view = region(pointer).duplicate();
+        view.position(offset(pointer) + offset);
+        view.put(bytes);
+    }
+
+    private int getInt(long pointer, int offset) {
+        return region(pointer).getInt(offset(pointer) + offset);
+    }
+
+    private void putInt(long pointer, int offset, int value) {
+        region(pointer).putInt(offset(pointer) + offset, value);
+    }
+
+    private long getLong(long pointer, int offset) {
+        return region(pointer).getLong(offset(pointer) + offset);
+    }
+
+    private void putLong(long pointer, int offset, long value) {
+        region(pointer).putLong(offset(pointer) + offset, value);
+    }
+
+    private static long pointer(int regionId, int offset) {
+        return (((long) regionId) << 32) | (0xffffffffL & offset);
+    }
+
+    private static int offset(long pointer) {
+        return (int) pointer;
+    }
+
+    private static int hash(byte[] key) {
+        // Spread the bits since we only use the low bits to pick a slot.
+        int hash = Arrays.hashCode(key) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static byte[] accountKey(byte[] address) {
+        // The length prefix means that the key of an account can't be the prefix of a field of another account.
+        RuntimeAssertionError.assertTrue(address.length <= Byte.MAX_VALUE);
+        byte[] key = new byte[1 + address.length];
+        key[0] = (byte) address.length;
+        System.arraycopy(address, 0, key, 1, address.length);
+        return key;
+    }
+
+    private static byte[] fieldKey(byte[] address, byte[] field) {
+        RuntimeAssertionError.assertTrue(address.length <= Byte.MAX_VALUE);
+        byte[] key = new byte[1 + address.length + field.length];
+        key[0] = (byte) address.length;
+        System.arraycopy(address, 0, key, 1, address.length);
+        System.arraycopy(field, 0, key, 1 + address.length, field.length);
+        return key;
+    }
+
+    private static byte[] encodeAccount(long nonce, BigInteger balance) {
+        byte[] balanceBytes = balance.toByteArray();
+        return ByteBuffer.allocate(NONCE_SIZE + balanceBytes.length).putLong(nonce).put(balanceBytes).array();
+    }
+}
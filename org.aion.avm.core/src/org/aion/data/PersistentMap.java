@@ -0,0 +1,356 @@
+package org.aion.data;
+
+import java.util.function.BiConsumer;
+
+
+/**
+ * A persistent hash map (a hash array mapped trie) so that a copy of the map costs nothing:  a "copy" is just a reference to the
+ * root, and every change after that copies only the path of nodes from the root to what changed, sharing the rest.
+ *
+ * Copying every node on the path for every change would make a long run of changes expensive, though, so each node records the
+ * edit token of whoever created it.  A change made with the same token modifies that node in place.  Once a copy of the map must be
+ * preserved, the owner just starts using a new token (see {@link MemoryBackedDataStore#snapshot()}), which makes every existing node
+ * immutable from then on, so the first change to each node after that copies it, once.
+ *
+ * Each operation returns the map to use from then on (which is this map if the change could be made in place).  Null keys are not
+ * supported.
+ *
+ * Like the data store using it, this is not thread-safe (although concurrent reads are safe).
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+final class PersistentMap<K, V> {
+    private static final int BITS_PER_LEVEL = 5;
+    private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public static <K, V> PersistentMap<K, V> empty() {
+        return new PersistentMap<>(null, 0);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    // (the nodes hold keys and values as Object but only this class's put() stores them, always as K and V)
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        return (null != this.root)
+                ? (V) this.root.get(hash(key), key, 0)
+                : null;
+    }
+
+    /**
+     * @param edit The edit token of the caller (nodes created with this token are modified in place).
+     * @param key The key.
+     * @param value The value.
+     * @return The map with the key set to the value.
+     */
+    public PersistentMap<K, V> put(Object edit, K key, V value) {
+        boolean[] didAdd = new boolean[1];
+        Node newRoot = (null != this.root)
+                ? this.root.put(edit, hash(key), key, value, 0, didAdd)
+                : new BitmapNode(edit, 0, new Object[0]).put(edit, hash(key), key, value, 0, didAdd);
+        int newSize = didAdd[0] ? (this.size + 1) : this.size;
+        return ((newRoot == this.root) && (newSize == this.size))
+                ? this
+                : new PersistentMap<>(newRoot, newSize);
+    }
+
+    /**
+     * @param edit The edit token of the caller (nodes created with this token are modified in place).
+     * @param key The key.
+     * @return The map without the key.
+     */
+    public PersistentMap<K, V> remove(Object edit, K key) {
+        PersistentMap<K, V> result = this;
+        if (null != this.root) {
+            boolean[] didRemove = new boolean[1];
+            Node newRoot = this.root.remove(edit, hash(key), key, 0, didRemove);
+            if (didRemove[0]) {
+                result = new PersistentMap<>(newRoot, this.size - 1);
+            }
+        }
+        return result;
+    }
+
+    // (as in get(), every key and value in the nodes was stored by put() as K and V)
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<K, V> consumer) {
+        if (null != this.root) {
+            this.root.forEach((key, value) -> consumer.accept((K) key, (V) value));
+        }
+    }
+
+
+    private static int hash(Object key) {
+        // Spread the high bits down since the first levels of the trie only use the low bits.
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static Node createNode(Object edit, int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        int hash1 = hash(key1);
+        Node result;
+        if (hash1 == hash2) {
+            result = new CollisionNode(edit, hash1, new Object[] {key1, value1, key2, value2});
+        } else {
+            boolean[] didAdd = new boolean[1];
+            result = new BitmapNode(edit, 0, new Object[0])
+                    .put(edit, hash1, key1, value1, shift, didAdd)
+                    .put(edit, hash2, key2, value2, shift, didAdd);
+        }
+        return result;
+    }
+
+    private static Object[] insertPair(Object[] array, int index, Object key, Object value) {
+        Object[] result = new Object[array.length + 2];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = key;
+        result[index + 1] = value;
+        System.arraycopy(array, index, result, index + 2, array.length - index);
+        return result;
+    }
+
+    private static Object[] removePair(Object[] array, int index) {
+        Object[] result = new Object[array.length - 2];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 2, result, index, result.length - index);
+        return result;
+    }
+
+
+    private interface Node {
+        Object get(int hash, Object key, int shift);
+
+        Node put(Object edit, int hash, Object key, Object value, int shift, boolean[] didAdd);
+
+        /**
+         * @return The node without the key (null if that leaves it empty).
+         */
+        Node remove(Object edit, int hash, Object key, int shift, boolean[] didRemove);
+
+        void forEach(BiConsumer<Object, Object> consumer);
+    }
+
+
+    /**
+     * A node with up to 32 slots, of which only the ones in use are stored.  Each slot is a pair in the array:  either a key and its
+     * value or, if the key is null, the child node holding every key which shares that slot.
+     */
+    private static final class BitmapNode implements Node {
+        private final Object edit;
+        private int bitmap;
+        private Object[] array;
+
+        private BitmapNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int hash, Object key, int shift) {
+            int bit = 1 << ((hash >>> shift) & LEVEL_MASK);
+            Object result = null;
+            if (0 != (this.bitmap & bit)) {
+                int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+                Object slotKey = this.array[index];
+                Object slotValue = this.array[index + 1];
+                if (null == slotKey) {
+                    result = ((Node) slotValue).get(hash, key, shift + BITS_PER_LEVEL);
+                } else if (key.equals(slotKey)) {
+                    result = slotValue;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Node put(Object edit, int hash, Object key, Object value, int shift, boolean[] didAdd) {
+            int bit = 1 << ((hash >>> shift) & LEVEL_MASK);
+            int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+            Node result = this;
+            if (0 != (this.bitmap & bit)) {
+                Object slotKey = this.array[index];
+                Object slotValue = this.array[index + 1];
+                if (null == slotKey) {
+                    Node child = ((Node) slotValue).put(edit, hash, key, value, shift + BITS_PER_LEVEL, didAdd);
+                    if (child != slotValue) {
+                        result = editable(edit).set(index + 1, child);
+                    }
+                } else if (key.equals(slotKey)) {
+                    if (value != slotValue) {
+                        result = editable(edit).set(index + 1, value);
+                    }
+                } else {
+                    didAdd[0] = true;
+                    Node child = createNode(edit, shift + BITS_PER_LEVEL, slotKey, slotValue, hash, key, value);
+                    result = editable(edit).set(index, null).set(index + 1, child);
+                }
+            } else {
+                didAdd[0] = true;
+                BitmapNode target = editable(edit);
+                target.bitmap |= bit;
+                target.array = insertPair(target.array, index, key, value);
+                result = target;
+            }
+            return result;
+        }
+
+        @Override
+        public Node remove(Object edit, int hash, Object key, int shift, boolean[] didRemove) {
+            int bit = 1 << ((hash >>> shift) & LEVEL_MASK);
+            Node result = this;
+            if (0 != (this.bitmap & bit)) {
+                int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+                Object slotKey = this.array[index];
+                Object slotValue = this.array[index + 1];
+                if (null == slotKey) {
+                    Node child = ((Node) slotValue).remove(edit, hash, key, shift + BITS_PER_LEVEL, didRemove);
+                    if (null != child) {
+                        if (child != slotValue) {
+                            result = editable(edit).set(index + 1, child);
+                        }
+                    } else {
+                        result = withoutPair(edit, bit, index);
+                    }
+                } else if (key.equals(slotKey)) {
+                    didRemove[0] = true;
+                    result = withoutPair(edit, bit, index);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> consumer) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                if (null == this.array[i]) {
+                    ((Node) this.array[i + 1]).forEach(consumer);
+                } else {
+                    consumer.accept(this.array[i], this.array[i + 1]);
+                }
+            }
+        }
+
+        private BitmapNode editable(Object edit) {
+            return (edit == this.edit)
+                    ? this
+                    : new BitmapNode(edit, this.bitmap, this.array.clone());
+        }
+
+        private BitmapNode set(int index, Object value) {
+            this.array[index] = value;
+            return this;
+        }
+
+        private Node withoutPair(Object edit, int bit, int index) {
+            Node result = null;
+            if (this.bitmap != bit) {
+                BitmapNode target = editable(edit);
+                target.bitmap ^= bit;
+                target.array = removePair(target.array, index);
+                result = target;
+            }
+            return result;
+        }
+    }
+
+
+    /**
+     * The keys whose hashes are all the same, which can't be told apart by any level of the trie.
+     */
+    private static final class CollisionNode implements Node {
+        private final Object edit;
+        private final int hash;
+        private Object[] array;
+
+        private CollisionNode(Object edit, int hash, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int hash, Object key, int shift) {
+            int index = indexOf(key);
+            return (index >= 0)
+                    ? this.array[index + 1]
+                    : null;
+        }
+
+        @Override
+        public Node put(Object edit, int hash, Object key, Object value, int shift, boolean[] didAdd) {
+            Node result = this;
+            if (hash == this.hash) {
+                int index = indexOf(key);
+                if (index >= 0) {
+                    if (value != this.array[index + 1]) {
+                        CollisionNode target = editable(edit);
+                        target.array[index + 1] = value;
+                        result = target;
+                    }
+                } else {
+                    didAdd[0] = true;
+                    CollisionNode target = editable(edit);
+                    target.array = insertPair(target.array, target.array.length, key, value);
+                    result = target;
+                }
+            } else {
+                // Push this node down a level, under a node which can tell the hashes apart.
+                int bit = 1 << ((this.hash >>> shift) & LEVEL_MASK);
+                result = new BitmapNode(edit, bit, new Object[] {null, this}).put(edit, hash, key, value, shift, didAdd);
+            }
+            return result;
+        }
+
+        @Override
+        public Node remove(Object edit, int hash, Object key, int shift, boolean[] didRemove) {
+            int index = indexOf(key);
+            Node result = this;
+            if (index >= 0) {
+                didRemove[0] = true;
+                if (2 == this.array.length) {
+                    result = null;
+                } else {
+                    CollisionNode target = editable(edit);
+                    target.array = removePair(target.array, index);
+                    result = target;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> consumer) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                consumer.accept(this.array[i], this.array[i + 1]);
+            }
+        }
+
+        private int indexOf(Object key) {
+            int result = -1;
+            for (int i = 0; (result < 0) && (i < this.array.length); i += 2) {
+                if (key.equals(this.array[i])) {
+                    result = i;
+                }
+            }
+            return result;
+        }
+
+        private CollisionNode editable(Object edit) {
+            return (edit == this.edit)
+                    ? this
+                    : new CollisionNode(edit, this.hash, this.array.clone());
+        }
+    }
+}
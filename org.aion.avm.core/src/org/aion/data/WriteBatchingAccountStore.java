@@ -0,0 +1,107 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+
+
+/**
+ * A view of one account in a {@link WriteBatchingDataStore}, while a batch is open.  Everything is resolved through the store, which
+ * answers from the writes held back in the batch before falling back to the underlying account.
+ */
+public class WriteBatchingAccountStore implements IAccountStore {
+    private final WriteBatchingDataStore store;
+    private final byte[] address;
+
+    public WriteBatchingAccountStore(WriteBatchingDataStore store, byte[] address) {
+        this.store = store;
+        this.address = address;
+    }
+
+    @Override
+    public byte[] getCode() {
+        return this.store.readCode(this.address);
+    }
+
+    @Override
+    public void setCode(byte[] code) {
+        this.store.writeCode(this.address, code);
+    }
+
+    @Override
+    public byte[] getTransformedCode() {
+        return this.store.readTransformedCode(this.address);
+    }
+
+    @Override
+    public void setTransformedCode(byte[] code) {
+        this.store.writeTransformedCode(this.address, code);
+    }
+
+    @Override
+    public BigInteger getBalance() {
+        return this.store.readBalance(this.address);
+    }
+
+    @Override
+    public void setBalance(BigInteger balance) {
+        this.store.writeBalance(this.address, balance);
+    }
+
+    @Override
+    public void adjustBalance(BigInteger delta) {
+        this.store.adjustBalance(this.address, delta);
+    }
+
+    @Override
+    public boolean isBalanceAtLeast(BigInteger amount) {
+        return this.store.isBalanceAtLeast(this.address, amount);
+    }
+
+    @Override
+    public long getNonce() {
+        return this.store.readNonce(this.address);
+    }
+
+    @Override
+    public void setNonce(long nonce) {
+        this.store.writeNonce(this.address, nonce);
+    }
+
+    @Override
+    public byte[] getData(byte[] key) {
+        return this.store.readData(this.address, key);
+    }
+
+    @Override
+    public void setData(byte[] key, byte[] value) {
+        this.store.writeData(this.address, key, value);
+    }
+
+    @Override
+    public void removeData(byte[] key) {
+        this.store.writeData(this.address, key, null);
+    }
+
+    @Override
+    public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
+        return this.store.readStorageEntries(this.address);
+    }
+
+    @Override
+    public void setObjectGraph(byte[] data) {
+        this.store.writeObjectGraph(this.address, data);
+    }
+
+    @Override
+    public byte[] getObjectGraph() {
+        return this.store.readObjectGraph(this.address);
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer() {
+        return this.store.readObjectGraphBuffer(this.address);
+    }
+}
@@ -0,0 +1,369 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * An IDataStore decorator which can hold back every write made between {@link #beginWriteBatch()} and {@link #commitWriteBatch()}
+ * and then apply them to the underlying store as one {@link IDataStore#writeBatch(Runnable)}, instead of one at a time.
+ *
+ * Only the final state of what was written is kept:  the last value written to a field, or to a storage key, replaces any earlier
+ * one (and a delete discards everything written to the account before it).  This means that a key written by every transaction of
+ * a block is only written to the underlying store once.  Reads made while a batch is open see the writes held back, falling back
+ * to the underlying store for anything which wasn't written.  Accounts are applied in the order they were first written.
+ *
+ * Batches nest:  each begin must be matched by a commit and the writes are only applied by the outermost commit.
+ * When no batch is open, everything is passed straight through to the underlying store.
+ *
+ * Unlike most stores, this is thread-safe (a batch usually collects the writes of many threads) but only as far as the underlying
+ * store can be read while a batch is open.
+ */
+public class WriteBatchingDataStore implements IDataStore {
+    // Identifies a removed storage key (only ever compared by identity).
+    private static final byte[] REMOVED = new byte[0];
+
+    private final IDataStore target;
+    // Null when no batch is open (only read outside of the monitor to decide whether to pass through).
+    private volatile Map<ByteArrayWrapper, PendingAccount> pending;
+    private int openBatchCount;
+
+    public WriteBatchingDataStore(IDataStore target) {
+        this.target = target;
+        this.pending = null;
+        this.openBatchCount = 0;
+    }
+
+    /**
+     * Starts holding back writes until the matching {@link #commitWriteBatch()} (or joins the batch already open).
+     */
+    public synchronized void beginWriteBatch() {
+        if (0 == this.openBatchCount) {
+            this.pending = new LinkedHashMap<>();
+        }
+        this.openBatchCount += 1;
+    }
+
+    /**
+     * Ends the innermost open batch.  If this is the outermost one, everything written since it began is applied to the underlying
+     * store as one batch.
+     * If applying the writes fails, the batch is left open (and its writes still held back).
+     */
+    public synchronized void commitWriteBatch() {
+        RuntimeAssertionError.assertTrue(this.openBatchCount > 0);
+        if (1 == this.openBatchCount) {
+            Map<ByteArrayWrapper, PendingAccount> accounts = this.pending;
+            this.target.writeBatch(() -> applyTo(accounts));
+            this.pending = null;
+        }
+        this.openBatchCount -= 1;
+    }
+
+    /**
+     * @return True if a batch is open.
+     */
+    public boolean isWriteBatchOpen() {
+        return null != this.pending;
+    }
+
+    @Override
+    public IAccountStore openAccount(byte[] address) {
+        IAccountStore result;
+        if (null == this.pending) {
+            result = this.target.openAccount(address);
+        } else {
+            synchronized (this) {
+                result = doesAccountExist(address)
+                        ? new WriteBatchingAccountStore(this, address)
+                        : null;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public IAccountStore createAccount(byte[] address) {
+        IAccountStore result;
+        if (null == this.pending) {
+            result = this.target.createAccount(address);
+        } else {
+            synchronized (this) {
+                result = null;
+                if (!doesAccountExist(address)) {
+                    PendingAccount account = this.pending.get(new ByteArrayWrapper(address));
+                    if (null == account) {
+                        // (the underlying store doesn't have it, either, so there is nothing to read from it)
+                        account = new PendingAccount(address);
+                        account.readsTarget = false;
+                        this.pending.put(new ByteArrayWrapper(address), account);
+                    }
+                    account.exists = true;
+                    result = new WriteBatchingAccountStore(this, address);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void deleteAccount(byte[] address) {
+        if (null == this.pending) {
+            this.target.deleteAccount(address);
+        } else {
+            synchronized (this) {
+                ByteArrayWrapper key = new ByteArrayWrapper(address);
+                PendingAccount previous = this.pending.get(key);
+                // Replacing the entry discards everything written to it but keeps its position.
+                PendingAccount account = new PendingAccount(address);
+                account.exists = false;
+                account.readsTarget = false;
+                account.deletesTarget = (null != previous)
+                        ? (previous.deletesTarget || previous.readsTarget)
+                        : (null != this.target.openAccount(address));
+                this.pending.put(key, account);
+            }
+        }
+    }
+
+    @Override
+    public void writeBatch(Runnable writes) {
+        beginWriteBatch();
+        writes.run();
+        commitWriteBatch();
+    }
+
+
+    synchronized byte[] readCode(byte[] address) {
+        PendingAccount account = pendingAccount(address);
+        return ((null != account) && (null != account.code))
+                ? account.code
+                : readTarget(account, address, IAccountStore::getCode, null);
+    }
+
+    synchronized void writeCode(byte[] address, byte[] code) {
+        writableAccount(address).code = code;
+    }
+
+    synchronized byte[] readTransformedCode(byte[] address) {
+        PendingAccount account = pendingAccount(address);
+        return ((null != account) && (null != account.transformedCode))
+                ? account.transformedCode
+                : readTarget(account, address, IAccountStore::getTransformedCode, null);
+    }
+
+    synchronized void writeTransformedCode(byte[] address, byte[] code) {
+        writableAccount(address).transformedCode = code;
+    }
+
+    synchronized byte[] readObjectGraph(byte[] address) {
+        PendingAccount account = pendingAccount(address);
+        return ((null != account) && (null != account.graph))
+                ? account.graph
+                : readTarget(account, address, IAccountStore::getObjectGraph, null);
+    }
+
+    synchronized ByteBuffer readObjectGraphBuffer(byte[] address) {
+        PendingAccount account = pendingAccount(address);
+        ByteBuffer result;
+        if ((null != account) && (null != account.graph)) {
+            // The graph array is replaced, never modified, on write so we can just wrap it.
+            result = ByteBuffer.wrap(account.graph).asReadOnlyBuffer();
+        } else {
+            result = readTarget(account, address, IAccountStore::getObjectGraphBuffer, null);
+        }
+        return result;
+    }
+
+    synchronized void writeObjectGraph(byte[] address, byte[] graph) {
+        writableAccount(address).graph = graph;
+    }
+
+    synchronized BigInteger readBalance(byte[] address) {
+        PendingAccount account = pendingAccount(address);
+        return ((null != account) && (null != account.balance))
+                ? account.balance.toBigInteger()
+                : readTarget(account, address, IAccountStore::getBalance, BigInteger.ZERO);
+    }
+
+    synchronized boolean isBalanceAtLeast(byte[] address, BigInteger amount) {
+        PendingAccount account = pendingAccount(address);
+        return ((null != account) && (null != account.balance))
+                ? (account.balance.compareTo(amount) >= 0)
+                : readTarget(account, address, (target) -> target.isBalanceAtLeast(amount), (amount.signum() <= 0));
+    }
+
+    synchronized void writeBalance(byte[] address, BigInteger balance) {
+        writableBalance(address).set(balance);
+    }
+
+    synchronized void adjustBalance(byte[] address, BigInteger delta) {
+        writableBalance(address).add(delta);
+    }
+
+    synchronized long readNonce(byte[] address) {
+        PendingAccount account = pendingAccount(address);
+        return ((null != account) && account.hasNonce)
+                ? account.nonce
+                : readTarget(account, address, IAccountStore::getNonce, 0L);
+    }
+
+    synchronized void writeNonce(byte[] address, long nonce) {
+        PendingAccount account = writableAccount(address);
+        account.hasNonce = true;
+        account.nonce = nonce;
+    }
+
+    synchronized byte[] readData(byte[] address, byte[] key) {
+        PendingAccount account = pendingAccount(address);
+        byte[][] keyAndValue = (null != account)
+                ? account.storage.get(new ByteArrayWrapper(key))
+                : null;
+        byte[] result;
+        if (null != keyAndValue) {
+            result = (REMOVED != keyAndValue[1])
+                    ? keyAndValue[1]
+                    : null;
+        } else {
+            result = readTarget(account, address, (target) -> target.getData(key), null);
+        }
+        return result;
+    }
+
+    synchronized void writeData(byte[] address, byte[] key, byte[] value) {
+        // Storing null is the same as removing the key.
+        byte[] stored = (null != value)
+                ? value
+                : REMOVED;
+        writableAccount(address).storage.put(new ByteArrayWrapper(key), new byte[][] {key, stored});
+    }
+
+    synchronized Map<ByteArrayWrapper, byte[]> readStorageEntries(byte[] address) {
+        PendingAccount account = pendingAccount(address);
+        Map<ByteArrayWrapper, byte[]> result = new HashMap<>(readTarget(account, address, IAccountStore::getStorageEntries, new HashMap<>()));
+        if (null != account) {
+            for (Map.Entry<ByteArrayWrapper, byte[][]> entry : account.storage.entrySet()) {
+                if (REMOVED != entry.getValue()[1]) {
+                    result.put(entry.getKey(), entry.getValue()[1]);
+                } else {
+                    result.remove(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+
+    private boolean doesAccountExist(byte[] address) {
+        PendingAccount account = this.pending.get(new ByteArrayWrapper(address));
+        return (null != account)
+                ? account.exists
+                : (null != this.target.openAccount(address));
+    }
+
+    private PendingAccount pendingAccount(byte[] address) {
+        // A view can outlive the batch it was opened in, in which case it just reads through.
+        Map<ByteArrayWrapper, PendingAccount> accounts = this.pending;
+        return (null != accounts)
+                ? accounts.get(new ByteArrayWrapper(address))
+                : null;
+    }
+
+    private PendingAccount writableAccount(byte[] address) {
+        // Like the other implementations, an account can't be written once it has been deleted (views are only handed out while a
+        // batch is open and the kernels using this store re-open the account for each write, so one is never written after it).
+        RuntimeAssertionError.assertTrue(null != this.pending);
+        PendingAccount account = this.pending.computeIfAbsent(new ByteArrayWrapper(address), (key) -> new PendingAccount(address));
+        RuntimeAssertionError.assertTrue(account.exists);
+        return account;
+    }
+
+    private Balance128 writableBalance(byte[] address) {
+        PendingAccount account = writableAccount(address);
+        if (null == account.balance) {
+            // Adjustments need the current balance so we start from whatever the underlying store has.
+            account.balance = new Balance128();
+            account.balance.set(readTarget(account, address, IAccountStore::getBalance, BigInteger.ZERO));
+        }
+        return account.balance;
+    }
+
+    private <T> T readTarget(PendingAccount account, byte[] address, Function<IAccountStore, T> read, T absent) {
+        T result = absent;
+        if ((null == account) || account.readsTarget) {
+            IAccountStore target = this.target.openAccount(address);
+            if (null != target) {
+                result = read.apply(target);
+            }
+        }
+        return result;
+    }
+
+    private void applyTo(Map<ByteArrayWrapper, PendingAccount> accounts) {
+        for (PendingAccount account : accounts.values()) {
+            byte[] address = account.address;
+            if (account.deletesTarget) {
+                this.target.deleteAccount(address);
+            }
+            if (account.exists) {
+                IAccountStore target = this.target.openAccount(address);
+                if (null == target) {
+                    target = this.target.createAccount(address);
+                }
+                if (null != account.code) {
+                    target.setCode(account.code);
+                }
+                if (null != account.transformedCode) {
+                    target.setTransformedCode(account.transformedCode);
+                }
+                if (null != account.graph) {
+                    target.setObjectGraph(account.graph);
+                }
+                if (null != account.balance) {
+                    target.setBalance(account.balance.toBigInteger());
+                }
+                if (account.hasNonce) {
+                    target.setNonce(account.nonce);
+                }
+                for (byte[][] keyAndValue : account.storage.values()) {
+                    if (REMOVED == keyAndValue[1]) {
+                        target.removeData(keyAndValue[0]);
+                    } else {
+                        target.setData(keyAndValue[0], keyAndValue[1]);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * What was written to one account in the open batch (null fields were not written).
+     */
+    private static final class PendingAccount {
+        public final byte[] address;
+        public boolean exists = true;
+        // False once the account was deleted (or if it was created in the batch) since the underlying account is then replaced.
+        public boolean readsTarget = true;
+        // True if the underlying account must be deleted before anything else is applied.
+        public boolean deletesTarget = false;
+        public byte[] code;
+        public byte[] transformedCode;
+        public byte[] graph;
+        public Balance128 balance;
+        public boolean hasNonce;
+        public long nonce;
+        // Each entry is the {key, value} pair last written to that key.
+        public final Map<ByteArrayWrapper, byte[][]> storage = new LinkedHashMap<>();
+
+        public PendingAccount(byte[] address) {
+            this.address = address;
+        }
+    }
+}
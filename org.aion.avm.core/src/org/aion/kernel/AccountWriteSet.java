@@ -0,0 +1,144 @@
+package org.aion.kernel;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.data.Balance128;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * The writes made in a {@link TransactionalKernel}, coalesced per account, so that committing them only costs as much as the number
+ * of things which changed, not the number of writes made.
+ *
+ * For each account, this keeps only the final code, transformed code, object graph, and value of each storage key (or the fact
+ * that it was removed), along with the sum of the balance adjustments and the number of nonce increments.  Applying these in
+ * that form leaves the target in the same state as replaying each write since every write to an account either replaces a value
+ * or accumulates into one, and none of them depend on the order relative to each other.
+ *
+ * The one exception is deleteAccount(), which discards everything before it, so a delete simply discards the writes recorded
+ * for that account and is applied first.
+ *
+ * Accounts (and the storage keys within them) are applied in the order they were first written, to keep commits deterministic.
+ */
+class AccountWriteSet {
+    // Identifies a removed storage key (only ever compared by identity).
+    private static final byte[] REMOVED = new byte[0];
+
+    private final Map<ByteArrayWrapper, AccountWrites> accounts;
+
+    public AccountWriteSet() {
+        this.accounts = new LinkedHashMap<>();
+    }
+
+    public void createAccount(Address address) {
+        writesFor(address).isCreated = true;
+    }
+
+    public void deleteAccount(Address address) {
+        // Replacing the entry keeps the position of the address, if it was already written.
+        AccountWrites writes = new AccountWrites(address);
+        writes.isDeleted = true;
+        this.accounts.put(new ByteArrayWrapper(address.toBytes()), writes);
+    }
+
+    public void putCode(Address address, byte[] code) {
+        writesFor(address).code = code;
+    }
+
+    public void setTransformedCode(Address address, byte[] code) {
+        writesFor(address).transformedCode = code;
+    }
+
+    public void putObjectGraph(Address address, byte[] graph) {
+        writesFor(address).objectGraph = graph;
+    }
+
+    public void putStorage(Address address, byte[] key, byte[] value) {
+        writesFor(address).storage.put(new ByteArrayWrapper(key), new byte[][] {key, value});
+    }
+
+    public void removeStorage(Address address, byte[] key) {
+        writesFor(address).storage.put(new ByteArrayWrapper(key), new byte[][] {key, REMOVED});
+    }
+
+    public void adjustBalance(Address address, BigInteger delta) {
+        AccountWrites writes = writesFor(address);
+        // Note that an adjustment of zero still needs to be applied since it lazily creates the account.
+        if (null == writes.balanceDelta) {
+            writes.balanceDelta = new Balance128();
+        }
+        // (summed in place, so that a run of fees and transfers doesn't allocate a new BigInteger for each)
+        writes.balanceDelta.add(delta);
+    }
+
+    public void incrementNonce(Address address) {
+        writesFor(address).nonceIncrements += 1;
+    }
+
+    /**
+     * Applies every write to the given kernel.
+     *
+     * @param target The kernel to write into.
+     */
+    public void applyTo(KernelInterface target) {
+        for (AccountWrites writes : this.accounts.values()) {
+            Address address = writes.address;
+            if (writes.isDeleted) {
+                target.deleteAccount(address);
+            }
+            if (writes.isCreated) {
+                target.createAccount(address);
+            }
+            if (null != writes.code) {
+                target.putCode(address, writes.code);
+            }
+            if (null != writes.transformedCode) {
+                target.setTransformedCode(address, writes.transformedCode);
+            }
+            if (null != writes.objectGraph) {
+                target.putObjectGraph(address, writes.objectGraph);
+            }
+            for (byte[][] keyAndValue : writes.storage.values()) {
+                if (REMOVED == keyAndValue[1]) {
+                    target.removeStorage(address, keyAndValue[0]);
+                } else {
+                    target.putStorage(address, keyAndValue[0], keyAndValue[1]);
+                }
+            }
+            if (null != writes.balanceDelta) {
+                target.adjustBalance(address, writes.balanceDelta.toBigInteger());
+            }
+            for (int i = 0; i < writes.nonceIncrements; ++i) {
+                target.incrementNonce(address);
+            }
+        }
+    }
+
+
+    private AccountWrites writesFor(Address address) {
+        return this.accounts.computeIfAbsent(new ByteArrayWrapper(address.toBytes()), (key) -> new AccountWrites(address));
+    }
+
+
+    private static class AccountWrites {
+        public final Address address;
+        public boolean isDeleted;
+        public boolean isCreated;
+        public byte[] code;
+        public byte[] transformedCode;
+        public byte[] objectGraph;
+        // Each entry is the {key, value} pair last written to that key.
+        public final Map<ByteArrayWrapper, byte[][]> storage = new LinkedHashMap<>();
+        // Null if the balance was never adjusted.
+        public Balance128 balanceDelta;
+        public int nonceIncrements;
+
+        public AccountWrites(Address address) {
+            this.address = address;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.data.IAccountStore;
 import org.aion.data.IDataStore;
 import org.aion.data.MemoryBackedDataStore;
+import org.aion.data.WriteBatchingDataStore;
 import org.aion.types.Address;
 
 import org.aion.vm.api.interfaces.KernelInterface;
@@ -13,14 +14,25 @@ import org.aion.vm.api.interfaces.KernelInterface;
 /**
  * In in-memory cached used by the TransactionalKernel in order to store results of in-flight transactions prior to commit.
  */
-public class CachingKernel implements KernelInterface {
-    private final IDataStore dataStore;
+public class CachingKernel implements KernelInterface, IWriteBatchKernel {
+    // Everything goes through this so that writes can be held back in a batch.
+    private final WriteBatchingDataStore dataStore;
 
     /**
      * Creates an instance which is backed by in-memory structures, only.
      */
     public CachingKernel() {
-        this.dataStore = new MemoryBackedDataStore();
+        this.dataStore = new WriteBatchingDataStore(new MemoryBackedDataStore());
+    }
+
+    /**
+     * Creates an instance which is backed by the given data store (such as an {@link org.aion.data.OffHeapDataStore}, to keep a
+     * large cache out of the heap).
+     *
+     * @param dataStore The store to hold the cached state.
+     */
+    public CachingKernel(IDataStore dataStore) {
+        this.dataStore = new WriteBatchingDataStore(dataStore);
     }
 
     @Override
@@ -39,6 +51,16 @@ public class CachingKernel implements KernelInterface {
         throw RuntimeAssertionError.unreachable("This class does not implement this method.");
     }
 
+    @Override
+    public void beginWriteBatch() {
+        this.dataStore.beginWriteBatch();
+    }
+
+    @Override
+    public void commitWriteBatch() {
+        this.dataStore.commitWriteBatch();
+    }
+
     @Override
     public byte[] getBlockHashByNumber(long blockNumber) {
         throw RuntimeAssertionError.unreachable("No equivalent concept in the Avm.");
@@ -146,12 +168,21 @@ public class CachingKernel implements KernelInterface {
 
     @Override
     public boolean accountNonceEquals(Address address, BigInteger nonce) {
-        return nonce.compareTo(this.getNonce(address)) == 0;
+        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        long accountNonce = (null != account)
+                ? account.getNonce()
+                : 0L;
+        // The stored nonce is a long so we can compare as a long (and avoid allocating), knowing that nothing larger can match.
+        return (nonce.bitLength() < Long.SIZE) && (nonce.longValue() == accountNonce);
     }
 
     @Override
     public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
-        return this.getBalance(address).compareTo(amount) >= 0;
+        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        // (a missing account has a balance of zero)
+        return (null != account)
+                ? account.isBalanceAtLeast(amount)
+                : (amount.signum() <= 0);
     }
 
     @Override
@@ -224,8 +255,7 @@ public class CachingKernel implements KernelInterface {
     }
 
     private void internalAdjustBalance(Address address, BigInteger delta) {
-        IAccountStore account = lazyCreateAccount(address.toBytes());
-        BigInteger start = account.getBalance();
-        account.setBalance(start.add(delta));
+        // The account adjusts the balance in place, where it can.
+        lazyCreateAccount(address.toBytes()).adjustBalance(delta);
     }
 }
@@ -0,0 +1,45 @@
+package org.aion.kernel;
+
+import java.nio.ByteBuffer;
+
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * Implemented by kernels which can return the serialized object graph of a DApp as a ByteBuffer, instead of only as the byte[]
+ * returned by KernelInterface.getObjectGraph().  This allows the graph to be deserialized directly from where the kernel holds it
+ * (for example, from the memory-mapped pages of a file-backed store) without first copying it into a new array.
+ *
+ * The returned buffer is read-only, big-endian, and positioned at the start of the graph.  Its contents never change, even if the
+ * graph is written again later (the new graph is stored elsewhere, not written over the old one).
+ */
+public interface IObjectGraphReader {
+    /**
+     * Reads the object graph of the given account, creating the account if it doesn't exist (same as getObjectGraph()).
+     *
+     * @param address The address of the account.
+     * @return The serialized graph, or null if the account has no graph.
+     */
+    ByteBuffer getObjectGraphBuffer(Address address);
+
+    /**
+     * Reads the object graph from any kernel, without copying it if the kernel is an IObjectGraphReader.
+     *
+     * @param kernel The kernel to read.
+     * @param address The address of the account.
+     * @return The serialized graph, or null if the account has no graph.
+     */
+    static ByteBuffer readObjectGraph(KernelInterface kernel, Address address) {
+        ByteBuffer result;
+        if (kernel instanceof IObjectGraphReader) {
+            result = ((IObjectGraphReader) kernel).getObjectGraphBuffer(address);
+        } else {
+            byte[] graph = kernel.getObjectGraph(address);
+            result = (null != graph)
+                    ? ByteBuffer.wrap(graph).asReadOnlyBuffer()
+                    : null;
+        }
+        return result;
+    }
+}
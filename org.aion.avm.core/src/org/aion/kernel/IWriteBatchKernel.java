@@ -0,0 +1,24 @@
+package org.aion.kernel;
+
+
+/**
+ * Implemented by kernels which can hold back the writes made to them and then apply them to their store as one batch, rather than
+ * writing each one through as it is made.  The AVM uses this to group the commits of a whole block into one write (see
+ * AvmConfiguration.enableGroupCommit) and TransactionalKernel.commitTo() uses it to make each write-back one batch.
+ *
+ * While a batch is open, the kernel still answers every read with the writes made so far.  Only the final value of each thing
+ * written is applied, when the batch is committed, and the store applies them as one unit (atomically, if it supports that).
+ *
+ * Batches nest:  each begin must be matched by a commit and the writes are only applied by the outermost commit.
+ */
+public interface IWriteBatchKernel {
+    /**
+     * Starts holding back writes until the matching {@link #commitWriteBatch()} (or joins the batch already open).
+     */
+    void beginWriteBatch();
+
+    /**
+     * Ends the innermost open batch, applying every write held back if it is the outermost one.
+     */
+    void commitWriteBatch();
+}
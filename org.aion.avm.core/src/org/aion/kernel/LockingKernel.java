@@ -0,0 +1,239 @@
+package org.aion.kernel;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * A KernelInterface decorator which makes a kernel which isn't thread-safe safe to share between executor threads.
+ * Reads may run concurrently with each other while each write is exclusive.
+ *
+ * This is used by the optimistic execution mode, where transactions read the shared kernel without holding any address resources
+ * while earlier transactions are committing into it.  Note that this only makes each individual call atomic:  a sequence of reads
+ * may still observe a commit part-way through, which is why the reads are validated before the reading transaction can commit.
+ *
+ * Several instances can share one lock, which is required when the kernels they wrap share state (for example, when a pipelined
+ * batch runs against a child of the kernel an earlier batch is still committing to).
+ */
+public class LockingKernel implements KernelInterface, IObjectGraphReader {
+    private final KernelInterface target;
+    private final Lock readLock;
+    private final Lock writeLock;
+
+    public LockingKernel(KernelInterface target) {
+        this(target, new ReentrantReadWriteLock());
+    }
+
+    public LockingKernel(KernelInterface target, ReadWriteLock lock) {
+        this.target = target;
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+    }
+
+    @Override
+    public KernelInterface makeChildKernelInterface() {
+        return new TransactionalKernel(this);
+    }
+
+    @Override
+    public void commit() {
+        write(() -> this.target.commit());
+    }
+
+    @Override
+    public void commitTo(KernelInterface target) {
+        write(() -> this.target.commitTo(target));
+    }
+
+    @Override
+    public void createAccount(Address address) {
+        write(() -> this.target.createAccount(address));
+    }
+
+    @Override
+    public boolean hasAccountState(Address address) {
+        return read(() -> this.target.hasAccountState(address));
+    }
+
+    @Override
+    public byte[] getCode(Address address) {
+        return read(() -> this.target.getCode(address));
+    }
+
+    @Override
+    public void putCode(Address address, byte[] code) {
+        write(() -> this.target.putCode(address, code));
+    }
+
+    @Override
+    public byte[] getTransformedCode(Address address) {
+        return read(() -> this.target.getTransformedCode(address));
+    }
+
+    @Override
+    public void setTransformedCode(Address address, byte[] bytes) {
+        write(() -> this.target.setTransformedCode(address, bytes));
+    }
+
+    @Override
+    public void putObjectGraph(Address address, byte[] bytes) {
+        write(() -> this.target.putObjectGraph(address, bytes));
+    }
+
+    @Override
+    public byte[] getObjectGraph(Address address) {
+        // Note that some kernels lazily create the account on this read so we treat it as a write.
+        return writeAndReturn(() -> this.target.getObjectGraph(address));
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer(Address address) {
+        // (the buffer never changes once returned so it is safe to read after releasing the lock)
+        return writeAndReturn(() -> IObjectGraphReader.readObjectGraph(this.target, address));
+    }
+
+    @Override
+    public void putStorage(Address address, byte[] key, byte[] value) {
+        write(() -> this.target.putStorage(address, key, value));
+    }
+
+    @Override
+    public void removeStorage(Address address, byte[] key) {
+        write(() -> this.target.removeStorage(address, key));
+    }
+
+    @Override
+    public byte[] getStorage(Address address, byte[] key) {
+        return read(() -> this.target.getStorage(address, key));
+    }
+
+    @Override
+    public void deleteAccount(Address address) {
+        write(() -> this.target.deleteAccount(address));
+    }
+
+    @Override
+    public BigInteger getBalance(Address address) {
+        return read(() -> this.target.getBalance(address));
+    }
+
+    @Override
+    public void adjustBalance(Address address, BigInteger delta) {
+        write(() -> this.target.adjustBalance(address, delta));
+    }
+
+    @Override
+    public BigInteger getNonce(Address address) {
+        return read(() -> this.target.getNonce(address));
+    }
+
+    @Override
+    public void incrementNonce(Address address) {
+        write(() -> this.target.incrementNonce(address));
+    }
+
+    @Override
+    public void deductEnergyCost(Address address, BigInteger cost) {
+        write(() -> this.target.deductEnergyCost(address, cost));
+    }
+
+    @Override
+    public void refundAccount(Address address, BigInteger amount) {
+        write(() -> this.target.refundAccount(address, amount));
+    }
+
+    @Override
+    public void payMiningFee(Address address, BigInteger fee) {
+        write(() -> this.target.payMiningFee(address, fee));
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        return read(() -> this.target.getBlockHashByNumber(blockNumber));
+    }
+
+    @Override
+    public boolean accountNonceEquals(Address address, BigInteger nonce) {
+        return read(() -> this.target.accountNonceEquals(address, nonce));
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+        return read(() -> this.target.accountBalanceIsAtLeast(address, amount));
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit) {
+        return this.target.isValidEnergyLimitForCreate(energyLimit);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+        return this.target.isValidEnergyLimitForNonCreate(energyLimit);
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForThisVM(Address address) {
+        return read(() -> this.target.destinationAddressIsSafeForThisVM(address));
+    }
+
+    @Override
+    public long getBlockNumber() {
+        return this.target.getBlockNumber();
+    }
+
+    @Override
+    public long getBlockTimestamp() {
+        return this.target.getBlockTimestamp();
+    }
+
+    @Override
+    public long getBlockEnergyLimit() {
+        return this.target.getBlockEnergyLimit();
+    }
+
+    @Override
+    public long getBlockDifficulty() {
+        return this.target.getBlockDifficulty();
+    }
+
+    @Override
+    public Address getMinerAddress() {
+        return this.target.getMinerAddress();
+    }
+
+
+    private <T> T read(Supplier<T> operation) {
+        this.readLock.lock();
+        try {
+            return operation.get();
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+
+    private void write(Runnable operation) {
+        this.writeLock.lock();
+        try {
+            operation.run();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private <T> T writeAndReturn(Supplier<T> operation) {
+        this.writeLock.lock();
+        try {
+            return operation.get();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+}
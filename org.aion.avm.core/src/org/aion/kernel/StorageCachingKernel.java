@@ -0,0 +1,332 @@
+package org.aion.kernel;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * A KernelInterface decorator which remembers the storage values read through it so that a key read by many transactions of a
+ * block is only read from the underlying kernel (which may be a database) once.  Keys which don't exist are remembered, too, so
+ * repeatedly reading an absent key is also served from memory.
+ *
+ * Every storage write made through this kernel replaces the remembered value and a deleted account forgets all of its keys, so the
+ * cache is always consistent with the underlying kernel as long as that kernel isn't modified by anything else while this instance
+ * is in use (which is why an instance should only live as long as one block).  The cache holds at most a fixed number of keys,
+ * evicting the least recently used.
+ *
+ * Values are copied on the way in and out since a contract may modify the array it reads, or wrote, and that must not be observed by
+ * any other transaction.
+ *
+ * Everything other than storage is passed straight through.  This is safe to share between threads if the underlying kernel is.
+ */
+public class StorageCachingKernel implements KernelInterface, IObjectGraphReader {
+    // Stands in for a key we know to be absent (compared by identity so it can't be confused with a stored empty value).
+    private static final byte[] ABSENT = new byte[0];
+
+    private final KernelInterface target;
+    private final int capacity;
+    // Accessed only while synchronized on the map.
+    private final LinkedHashMap<StorageKey, byte[]> cache;
+    // Changed on every write so that a read which raced with a write doesn't install what it read (which may be stale).
+    private long writeEpoch;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param target The kernel to read through to, and write to.
+     * @param capacity The maximum number of keys to remember (must be positive).
+     */
+    public StorageCachingKernel(KernelInterface target, int capacity) {
+        RuntimeAssertionError.assertTrue(capacity > 0);
+        this.target = target;
+        this.capacity = capacity;
+        // Access-ordered, so that iteration (and eviction) starts with the least recently used key.
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return The number of storage reads answered from the cache (including those of absent keys).
+     */
+    public long getHitCount() {
+        synchronized (this.cache) {
+            return this.hitCount;
+        }
+    }
+
+    /**
+     * @return The number of storage reads which had to go to the underlying kernel.
+     */
+    public long getMissCount() {
+        synchronized (this.cache) {
+            return this.missCount;
+        }
+    }
+
+    /**
+     * @return The number of keys currently remembered (absent keys included).
+     */
+    public int getCachedKeyCount() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    @Override
+    public byte[] getStorage(Address address, byte[] key) {
+        StorageKey storageKey = new StorageKey(address, key);
+        byte[] cached;
+        long epoch;
+        synchronized (this.cache) {
+            cached = this.cache.get(storageKey);
+            if (null != cached) {
+                this.hitCount += 1;
+            } else {
+                this.missCount += 1;
+            }
+            epoch = this.writeEpoch;
+        }
+        byte[] value;
+        if (null != cached) {
+            // The caller (ultimately, a contract) may modify what it is given so it can't be given the instance we hold.
+            value = (ABSENT != cached) ? cached.clone() : null;
+        } else {
+            // We read outside of the lock so that a slow read doesn't block every other storage access.
+            value = this.target.getStorage(address, key);
+            synchronized (this.cache) {
+                // If anything was written since we missed, what we read may already be stale (the next read will just try again).
+                if (epoch == this.writeEpoch) {
+                    install(storageKey, (null != value) ? value : ABSENT);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void putStorage(Address address, byte[] key, byte[] value) {
+        // The write must reach the target before the cache is updated:  a read which misses in between would otherwise see the old
+        // value in the target and could still install it.
+        this.target.putStorage(address, key, value);
+        synchronized (this.cache) {
+            this.writeEpoch += 1;
+            install(new StorageKey(address, key), (null != value) ? value : ABSENT);
+        }
+    }
+
+    @Override
+    public void removeStorage(Address address, byte[] key) {
+        this.target.removeStorage(address, key);
+        synchronized (this.cache) {
+            this.writeEpoch += 1;
+            install(new StorageKey(address, key), ABSENT);
+        }
+    }
+
+    @Override
+    public void deleteAccount(Address address) {
+        this.target.deleteAccount(address);
+        ByteArrayWrapper deleted = new ByteArrayWrapper(address.toBytes());
+        synchronized (this.cache) {
+            this.writeEpoch += 1;
+            // Deleting an account is rare so just walking the cache is simpler than indexing it by address.
+            Iterator<StorageKey> keys = this.cache.keySet().iterator();
+            while (keys.hasNext()) {
+                if (deleted.equals(keys.next().address)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public KernelInterface makeChildKernelInterface() {
+        return new TransactionalKernel(this);
+    }
+
+    @Override
+    public void commit() {
+        this.target.commit();
+    }
+
+    @Override
+    public void commitTo(KernelInterface target) {
+        this.target.commitTo(target);
+    }
+
+    @Override
+    public void createAccount(Address address) {
+        this.target.createAccount(address);
+    }
+
+    @Override
+    public boolean hasAccountState(Address address) {
+        return this.target.hasAccountState(address);
+    }
+
+    @Override
+    public byte[] getCode(Address address) {
+        return this.target.getCode(address);
+    }
+
+    @Override
+    public void putCode(Address address, byte[] code) {
+        this.target.putCode(address, code);
+    }
+
+    @Override
+    public byte[] getTransformedCode(Address address) {
+        return this.target.getTransformedCode(address);
+    }
+
+    @Override
+    public void setTransformedCode(Address address, byte[] bytes) {
+        this.target.setTransformedCode(address, bytes);
+    }
+
+    @Override
+    public void putObjectGraph(Address address, byte[] bytes) {
+        this.target.putObjectGraph(address, bytes);
+    }
+
+    @Override
+    public byte[] getObjectGraph(Address address) {
+        return this.target.getObjectGraph(address);
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer(Address address) {
+        return IObjectGraphReader.readObjectGraph(this.target, address);
+    }
+
+    @Override
+    public BigInteger getBalance(Address address) {
+        return this.target.getBalance(address);
+    }
+
+    @Override
+    public void adjustBalance(Address address, BigInteger delta) {
+        this.target.adjustBalance(address, delta);
+    }
+
+    @Override
+    public BigInteger getNonce(Address address) {
+        return this.target.getNonce(address);
+    }
+
+    @Override
+    public void incrementNonce(Address address) {
+        this.target.incrementNonce(address);
+    }
+
+    @Override
+    public void deductEnergyCost(Address address, BigInteger cost) {
+        this.target.deductEnergyCost(address, cost);
+    }
+
+    @Override
+    public void refundAccount(Address address, BigInteger amount) {
+        this.target.refundAccount(address, amount);
+    }
+
+    @Override
+    public void payMiningFee(Address address, BigInteger fee) {
+        this.target.payMiningFee(address, fee);
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        return this.target.getBlockHashByNumber(blockNumber);
+    }
+
+    @Override
+    public boolean accountNonceEquals(Address address, BigInteger nonce) {
+        return this.target.accountNonceEquals(address, nonce);
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+        return this.target.accountBalanceIsAtLeast(address, amount);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit) {
+        return this.target.isValidEnergyLimitForCreate(energyLimit);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+        return this.target.isValidEnergyLimitForNonCreate(energyLimit);
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForThisVM(Address address) {
+        return this.target.destinationAddressIsSafeForThisVM(address);
+    }
+
+    @Override
+    public long getBlockNumber() {
+        return this.target.getBlockNumber();
+    }
+
+    @Override
+    public long getBlockTimestamp() {
+        return this.target.getBlockTimestamp();
+    }
+
+    @Override
+    public long getBlockEnergyLimit() {
+        return this.target.getBlockEnergyLimit();
+    }
+
+    @Override
+    public long getBlockDifficulty() {
+        return this.target.getBlockDifficulty();
+    }
+
+    @Override
+    public Address getMinerAddress() {
+        return this.target.getMinerAddress();
+    }
+
+
+    private void install(StorageKey key, byte[] value) {
+        // Like what we return, we can't hold an instance the caller has (it may still modify it).
+        this.cache.put(key, (ABSENT != value) ? value.clone() : ABSENT);
+        if (this.cache.size() > this.capacity) {
+            Iterator<Map.Entry<StorageKey, byte[]>> eldest = this.cache.entrySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+
+    private static final class StorageKey {
+        private final ByteArrayWrapper address;
+        private final ByteArrayWrapper key;
+
+        private StorageKey(Address address, byte[] key) {
+            this.address = new ByteArrayWrapper(address.toBytes());
+            this.key = new ByteArrayWrapper(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * this.address.hashCode()) + this.key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof StorageKey)
+                    && this.address.equals(((StorageKey) other).address)
+                    && this.key.equals(((StorageKey) other).key);
+        }
+    }
+}
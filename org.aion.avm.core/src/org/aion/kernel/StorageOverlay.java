@@ -0,0 +1,184 @@
+package org.aion.kernel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+
+
+/**
+ * The storage written by a chain of nested {@link TransactionalKernel} instances, flattened into one map so that a read at any depth
+ * finds the newest value visible to it with a single lookup, instead of asking each kernel in the chain in turn.
+ *
+ * Each kernel in the chain is a {@link Layer}.  For each storage key, the map holds a stack of entries, at most one per layer,
+ * ordered from the deepest layer to the shallowest.  A layer only sees the entries of itself and its ancestors so a read just walks
+ * down the stack of that key to the first entry it can see which has a value.
+ *
+ * A null value means that the layer has no value of its own for that key (it was removed, or its account was deleted, in that
+ * layer) so the read continues to the layers below, as it would through the chain of kernels.
+ *
+ * When a layer is committed, its writes are applied to its parent (updating the parent's entries) and then its own entries are
+ * dropped.  The entries of a layer which is abandoned, instead, are simply never visible to anything else so they are left in place
+ * until the whole chain is discarded.
+ *
+ * Like the kernels using it, this is not thread-safe.
+ */
+class StorageOverlay {
+    private final Map<ByteArrayWrapper, Entry> newestEntries;
+
+    public StorageOverlay() {
+        this.newestEntries = new HashMap<>();
+    }
+
+    /**
+     * Creates a new layer on top of the given one.
+     *
+     * @param parent The layer of the parent kernel (null if this is the outermost kernel of the chain).
+     * @return The new layer.
+     */
+    public Layer newLayer(Layer parent) {
+        return new Layer(parent);
+    }
+
+    /**
+     * Finds the value of the given key written by the deepest layer visible to the reader.
+     *
+     * @param reader The layer reading the value.
+     * @param address The address of the account.
+     * @param key The storage key.
+     * @return The value or null if no visible layer has written a value (so it must be read from outside the chain).
+     */
+    public byte[] get(Layer reader, byte[] address, byte[] key) {
+        byte[] value = null;
+        Entry entry = this.newestEntries.get(storageId(address, key));
+        while ((null == value) && (null != entry)) {
+            if (reader.canSee(entry.layer)) {
+                value = entry.value;
+            }
+            entry = entry.below;
+        }
+        return value;
+    }
+
+    /**
+     * Records the value written to the given key by the given layer.
+     *
+     * @param layer The layer writing the value.
+     * @param address The address of the account.
+     * @param key The storage key.
+     * @param value The value (null if the key was removed).
+     */
+    public void put(Layer layer, byte[] address, byte[] key, byte[] value) {
+        ByteArrayWrapper id = storageId(address, key);
+        Entry own = layer.ownEntries.get(id);
+        if (null != own) {
+            own.value = value;
+        } else {
+            Entry created = new Entry(layer, address, value);
+            // Keep the stack ordered by depth so that the first visible value is the newest one.
+            Entry above = null;
+            Entry current = this.newestEntries.get(id);
+            while ((null != current) && (current.layer.depth > layer.depth)) {
+                above = current;
+                current = current.below;
+            }
+            created.below = current;
+            if (null == above) {
+                this.newestEntries.put(id, created);
+            } else {
+                above.below = created;
+            }
+            layer.ownEntries.put(id, created);
+        }
+    }
+
+    /**
+     * Drops the values of every key of the given account written by the given layer (since the account was deleted in that layer).
+     *
+     * @param layer The layer which deleted the account.
+     * @param address The address of the account.
+     */
+    public void clearAccount(Layer layer, byte[] address) {
+        for (Entry entry : layer.ownEntries.values()) {
+            if (Arrays.equals(address, entry.address)) {
+                entry.value = null;
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of the given layer, once its writes have been committed to its parent.
+     *
+     * @param layer The layer to remove.
+     */
+    public void removeLayer(Layer layer) {
+        Iterator<Map.Entry<ByteArrayWrapper, Entry>> iterator = layer.ownEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ByteArrayWrapper, Entry> owned = iterator.next();
+            ByteArrayWrapper id = owned.getKey();
+            Entry removed = owned.getValue();
+            Entry top = this.newestEntries.get(id);
+            if (top == removed) {
+                if (null != removed.below) {
+                    this.newestEntries.put(id, removed.below);
+                } else {
+                    this.newestEntries.remove(id);
+                }
+            } else {
+                Entry above = top;
+                while (above.below != removed) {
+                    above = above.below;
+                }
+                above.below = removed.below;
+            }
+            iterator.remove();
+        }
+    }
+
+
+    private static ByteArrayWrapper storageId(byte[] address, byte[] key) {
+        // Addresses have a fixed length so this concatenation is unambiguous.
+        byte[] id = new byte[address.length + key.length];
+        System.arraycopy(address, 0, id, 0, address.length);
+        System.arraycopy(key, 0, id, address.length, key.length);
+        return new ByteArrayWrapper(id);
+    }
+
+
+    /**
+     * The position of one kernel in the chain.
+     */
+    public static final class Layer {
+        private final int depth;
+        // The layers from the outermost kernel to this one, indexed by depth, so that visibility is a constant-time check.
+        private final Layer[] path;
+        private final Map<ByteArrayWrapper, Entry> ownEntries;
+
+        private Layer(Layer parent) {
+            this.depth = (null != parent) ? (parent.depth + 1) : 0;
+            this.path = (null != parent) ? Arrays.copyOf(parent.path, this.depth + 1) : new Layer[1];
+            this.path[this.depth] = this;
+            this.ownEntries = new HashMap<>();
+        }
+
+        private boolean canSee(Layer other) {
+            return (other.depth <= this.depth) && (this.path[other.depth] == other);
+        }
+    }
+
+
+    private static final class Entry {
+        private final Layer layer;
+        private final byte[] address;
+        private byte[] value;
+        private Entry below;
+
+        private Entry(Layer layer, byte[] address, byte[] value) {
+            this.layer = layer;
+            this.address = address;
+            this.value = value;
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package org.aion.kernel;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import org.aion.avm.core.util.Helpers;
 import org.aion.data.DirectoryBackedDataStore;
 import org.aion.data.IAccountStore;
 import org.aion.data.IDataStore;
 import org.aion.data.MemoryBackedDataStore;
+import org.aion.data.WriteBatchingDataStore;
 import org.aion.types.Address;
 
 import java.io.File;
@@ -15,7 +17,7 @@ import org.aion.vm.api.interfaces.KernelInterface;
 /**
  * A modified version of CachingKernel to support more general usage so it can be used as the kernel underlying tests.
  */
-public class TestingKernel implements KernelInterface {
+public class TestingKernel implements KernelInterface, IObjectGraphReader, IWriteBatchKernel {
     /**
      * For testing purposes, we will give every contract address this prefix.
      */
@@ -32,13 +34,16 @@ public class TestingKernel implements KernelInterface {
     private long blockNrgLimit;
     private Address blockCoinbase;
 
-    private final IDataStore dataStore;
+    private final IDataStore backingStore;
+    // Everything goes through this so that writes can be held back in a batch.
+    private final WriteBatchingDataStore dataStore;
 
     /**
      * Creates an instance of the interface which is backed by in-memory structures, only.
      */
     public TestingKernel() {
-        this.dataStore = new MemoryBackedDataStore();
+        this.backingStore = new MemoryBackedDataStore();
+        this.dataStore = new WriteBatchingDataStore(this.backingStore);
         IAccountStore premined = this.dataStore.createAccount(PREMINED_ADDRESS.toBytes());
         premined.setBalance(PREMINED_AMOUNT);
         premined = this.dataStore.createAccount(BIG_PREMINED_ADDRESS.toBytes());
@@ -54,7 +59,8 @@ public class TestingKernel implements KernelInterface {
      * Creates an instance of the interface which is backed by in-memory structures, only.
      */
     public TestingKernel(Block block) {
-        this.dataStore = new MemoryBackedDataStore();
+        this.backingStore = new MemoryBackedDataStore();
+        this.dataStore = new WriteBatchingDataStore(this.backingStore);
         IAccountStore premined = this.dataStore.createAccount(PREMINED_ADDRESS.toBytes());
         premined.setBalance(PREMINED_AMOUNT);
         premined = this.dataStore.createAccount(BIG_PREMINED_ADDRESS.toBytes());
@@ -68,12 +74,16 @@ public class TestingKernel implements KernelInterface {
 
     /**
      * Creates an instance of the interface which is backed by a directory on disk.
-     * 
+     * This deliberately stays on DirectoryBackedDataStore, rather than LogStructuredDataStore (see TestingKernel(IDataStore, Block)):
+     * its callers (the CLI and its tests) open several kernels on the same directory at once and rely on each seeing the others'
+     * writes, while a log-structured store only sees what was in its log when it was opened.
+     *
      * @param onDiskRoot The root directory which this implementation will use for persistence.
      * @param block The top block of the current state of this kernel.
      */
     public TestingKernel(File onDiskRoot, Block block) {
-        this.dataStore = new DirectoryBackedDataStore(onDiskRoot);
+        this.backingStore = new DirectoryBackedDataStore(onDiskRoot);
+        this.dataStore = new WriteBatchingDataStore(this.backingStore);
         // Try to open the account, creating it if doesn't exist.
         IAccountStore premined = this.dataStore.openAccount(PREMINED_ADDRESS.toBytes());
         if (null == premined) {
@@ -87,6 +97,28 @@ public class TestingKernel implements KernelInterface {
         this.blockCoinbase = block.getCoinbase();
     }
 
+    /**
+     * Creates an instance of the interface which is backed by the given store (which may already contain data).
+     * 
+     * @param dataStore The store this implementation will use for persistence.
+     * @param block The top block of the current state of this kernel.
+     */
+    public TestingKernel(IDataStore dataStore, Block block) {
+        this.backingStore = dataStore;
+        this.dataStore = new WriteBatchingDataStore(this.backingStore);
+        // Try to open the account, creating it if doesn't exist.
+        IAccountStore premined = this.dataStore.openAccount(PREMINED_ADDRESS.toBytes());
+        if (null == premined) {
+            premined = this.dataStore.createAccount(PREMINED_ADDRESS.toBytes());
+            premined.setBalance(PREMINED_AMOUNT);
+        }
+        this.blockDifficulty = block.getDifficulty();
+        this.blockNumber = block.getNumber();
+        this.blockTimestamp = block.getTimestamp();
+        this.blockNrgLimit = block.getEnergyLimit();
+        this.blockCoinbase = block.getCoinbase();
+    }
+
     @Override
     public KernelInterface makeChildKernelInterface() {
         return new TransactionalKernel(this);
@@ -156,6 +188,11 @@ public class TestingKernel implements KernelInterface {
         return lazyCreateAccount(address.toBytes()).getObjectGraph();
     }
 
+    @Override
+    public ByteBuffer getObjectGraphBuffer(Address address) {
+        return lazyCreateAccount(address.toBytes()).getObjectGraphBuffer();
+    }
+
     @Override
     public void putStorage(Address address, byte[] key, byte[] value) {
         lazyCreateAccount(address.toBytes()).setData(key, value);
@@ -204,12 +241,21 @@ public class TestingKernel implements KernelInterface {
 
     @Override
     public boolean accountNonceEquals(Address address, BigInteger nonce) {
-        return nonce.compareTo(this.getNonce(address)) == 0;
+        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        long accountNonce = (null != account)
+                ? account.getNonce()
+                : 0L;
+        // The stored nonce is a long so we can compare as a long (and avoid allocating), knowing that nothing larger can match.
+        return (nonce.bitLength() < Long.SIZE) && (nonce.longValue() == accountNonce);
     }
 
     @Override
     public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
-        return this.getBalance(address).compareTo(amount) >= 0;
+        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        // (a missing account has a balance of zero)
+        return (null != account)
+                ? account.isBalanceAtLeast(amount)
+                : (amount.signum() <= 0);
     }
 
     @Override
@@ -289,11 +335,56 @@ public class TestingKernel implements KernelInterface {
         this.blockCoinbase = block.getCoinbase();
     }
 
+    @Override
+    public void beginWriteBatch() {
+        this.dataStore.beginWriteBatch();
+    }
+
+    @Override
+    public void commitWriteBatch() {
+        this.dataStore.commitWriteBatch();
+    }
+
+    /**
+     * Captures the current state of the kernel (every account and the current block) in constant time, without copying it, so that
+     * competing blocks (or a reorg) can be evaluated from the same starting point.
+     * Note that this is only supported when the kernel is backed by in-memory structures.
+     * 
+     * @return The snapshot, which can be passed to {@link #revertTo(Snapshot)} any number of times.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(memoryBackedDataStore().snapshot(), this.blockDifficulty, this.blockNumber, this.blockTimestamp, this.blockNrgLimit, this.blockCoinbase);
+    }
+
+    /**
+     * Restores the state of the kernel to what it was when the given snapshot was taken, in constant time.
+     * 
+     * @param snapshot A snapshot taken from this kernel.
+     */
+    public void revertTo(Snapshot snapshot) {
+        memoryBackedDataStore().revertTo(snapshot.dataSnapshot);
+        this.blockDifficulty = snapshot.blockDifficulty;
+        this.blockNumber = snapshot.blockNumber;
+        this.blockTimestamp = snapshot.blockTimestamp;
+        this.blockNrgLimit = snapshot.blockNrgLimit;
+        this.blockCoinbase = snapshot.blockCoinbase;
+    }
+
+
+    private MemoryBackedDataStore memoryBackedDataStore() {
+        if (!(this.backingStore instanceof MemoryBackedDataStore)) {
+            throw new AssertionError("Snapshots are only supported by the in-memory data store.");
+        }
+        // (the writes held back by an open batch aren't in the store yet)
+        if (this.dataStore.isWriteBatchOpen()) {
+            throw new AssertionError("Snapshots can't be taken or restored while a write batch is open.");
+        }
+        return (MemoryBackedDataStore) this.backingStore;
+    }
 
     private void internalAdjustBalance(Address address, BigInteger delta) {
-        IAccountStore account = lazyCreateAccount(address.toBytes());
-        BigInteger start = account.getBalance();
-        account.setBalance(start.add(delta));
+        // The account adjusts the balance in place, where it can.
+        lazyCreateAccount(address.toBytes()).adjustBalance(delta);
     }
 
     private byte[] internalGetTransformedCode(Address address) {
@@ -302,4 +393,26 @@ public class TestingKernel implements KernelInterface {
                 ? account.getTransformedCode()
                 : null;
     }
+
+
+    /**
+     * The state of a TestingKernel at one point in time.
+     */
+    public static final class Snapshot {
+        private final MemoryBackedDataStore.Snapshot dataSnapshot;
+        private final BigInteger blockDifficulty;
+        private final long blockNumber;
+        private final long blockTimestamp;
+        private final long blockNrgLimit;
+        private final Address blockCoinbase;
+
+        private Snapshot(MemoryBackedDataStore.Snapshot dataSnapshot, BigInteger blockDifficulty, long blockNumber, long blockTimestamp, long blockNrgLimit, Address blockCoinbase) {
+            this.dataSnapshot = dataSnapshot;
+            this.blockDifficulty = blockDifficulty;
+            this.blockNumber = blockNumber;
+            this.blockTimestamp = blockTimestamp;
+            this.blockNrgLimit = blockNrgLimit;
+            this.blockCoinbase = blockCoinbase;
+        }
+    }
 }
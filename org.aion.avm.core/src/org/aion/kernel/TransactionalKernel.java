@@ -1,13 +1,19 @@
 package org.aion.kernel;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.KernelInterface;
 
@@ -15,16 +21,33 @@ import org.aion.vm.api.interfaces.KernelInterface;
 /**
  * A transactional implementation of the KernelInterface which only writes back to its "parent" on commit.
  * 
- * This uses a relatively extensible pattern for its implementation, building a transaction log rather than its own actual direct implementation.
- * This means that changes to the interface should mostly just translate into a new kind of transaction log entry, in this implementation.
+ * Every write is applied to a local cache, which answers later reads, and recorded in an {@link AccountWriteSet}, which coalesces
+ * the writes to each account so that a commit only applies the final state of whatever changed (rather than replaying every write).
  * Special attention needs to be paid to read-and-write operations (such as adjustBalance()) and anything involving deletes.
+ * 
+ * Storage is also recorded in a {@link StorageOverlay} shared by every kernel in a chain of nested TransactionalKernel instances, so
+ * a storage read at any depth is answered by one lookup in that overlay or, failing that, by one read from outside the chain,
+ * rather than by asking each kernel in the chain in turn.  Since the overlay isn't thread-safe, a chain must only be used by one
+ * thread:  a kernel whose parent is used by other threads starts its own chain (see TransactionalKernel(KernelInterface, boolean)).
+ * 
+ * Optionally, the kernel can also track its read-set:  every value it reads from its parent is recorded as a predicate in a read log.
+ * This allows the reads to be validated against the parent, later, to determine whether the transaction would have observed the
+ * same state if it had run at that point (see {@link #isReadSetValid()}).
  */
-public class TransactionalKernel implements KernelInterface {
+public class TransactionalKernel implements KernelInterface, IObjectGraphReader {
     private final KernelInterface parent;
     private final CachingKernel writeCache;
-    private final List<Consumer<KernelInterface>> writeLog;
+    private final AccountWriteSet writeSet;
+    // Shared with every kernel in the chain, which all read storage from outside the chain through the outermost kernel.
+    private final StorageOverlay storageOverlay;
+    private final StorageOverlay.Layer storageLayer;
+    private final TransactionalKernel outermostKernel;
     private final Set<ByteArrayWrapper> deletedAccountProjection;
     private final Set<ByteArrayWrapper> cachedAccountBalances;
+    // Only non-null if read-set tracking is enabled.
+    private List<Predicate<KernelInterface>> readLog;
+    // Balances read from the parent only to seed adjustBalance():  these only become part of the read-set if they are observed.
+    private Map<ByteArrayWrapper, BigInteger> unobservedBalanceSeeds;
 
     private long blockDifficulty;
     private long blockNumber;
@@ -33,9 +56,34 @@ public class TransactionalKernel implements KernelInterface {
     private Address blockCoinbase;
 
     public TransactionalKernel(KernelInterface parent) {
+        this(parent, (parent instanceof TransactionalKernel));
+    }
+
+    /**
+     * Creates the kernel, either joining the chain of its parent or starting a chain of its own.
+     * A kernel which starts its own chain only reads its parent's storage through getStorage() and only writes it on commit so it
+     * can be used by a different thread than its parent (each executor thread's root kernel does this, for example, since the kernel
+     * they all commit to may itself be a TransactionalKernel).
+     * 
+     * @param parent The kernel to read from and commit to.
+     * @param joinParentChain True if this kernel shares the storage overlay of its parent, which must be a TransactionalKernel used by
+     * the same thread.
+     */
+    public TransactionalKernel(KernelInterface parent, boolean joinParentChain) {
+        RuntimeAssertionError.assertTrue(!joinParentChain || (parent instanceof TransactionalKernel));
         this.parent = parent;
         this.writeCache = new CachingKernel();
-        this.writeLog = new ArrayList<>();
+        this.writeSet = new AccountWriteSet();
+        if (joinParentChain) {
+            TransactionalKernel transactionalParent = (TransactionalKernel) parent;
+            this.storageOverlay = transactionalParent.storageOverlay;
+            this.storageLayer = this.storageOverlay.newLayer(transactionalParent.storageLayer);
+            this.outermostKernel = transactionalParent.outermostKernel;
+        } else {
+            this.storageOverlay = new StorageOverlay();
+            this.storageLayer = this.storageOverlay.newLayer(null);
+            this.outermostKernel = this;
+        }
         this.deletedAccountProjection = new HashSet<>();
         this.cachedAccountBalances = new HashSet<>();
         this.blockDifficulty = parent.getBlockDifficulty();
@@ -50,35 +98,69 @@ public class TransactionalKernel implements KernelInterface {
         return new TransactionalKernel(this);
     }
 
+    /**
+     * Starts recording every value this kernel reads from its parent so that they can later be validated with isReadSetValid().
+     * This must be called before the kernel is used and only on the outermost kernel of a chain (since nested kernels read storage
+     * directly from outside the chain).
+     */
+    public void enableReadSetTracking() {
+        RuntimeAssertionError.assertTrue(this == this.outermostKernel);
+        this.readLog = new ArrayList<>();
+        this.unobservedBalanceSeeds = new HashMap<>();
+    }
+
+    /**
+     * Checks that every value this kernel read from its parent is still the value the parent would return now.
+     * Note that a balance which was only adjusted, never observed, is not part of the read-set since the adjustments are applied as
+     * deltas, on commit.
+     * 
+     * @return True if the read-set still matches the parent (or read-set tracking isn't enabled).
+     */
+    public boolean isReadSetValid() {
+        boolean isValid = true;
+        if (null != this.readLog) {
+            for (Predicate<KernelInterface> read : this.readLog) {
+                if (!read.test(this.parent)) {
+                    isValid = false;
+                    break;
+                }
+            }
+        }
+        return isValid;
+    }
+
     /**
      * Causes the changes enqueued in the receiver to be written back to the parent.
      * After this call, uses of the receiver are undefined.
      */
     @Override
     public void commit() {
-        for (Consumer<KernelInterface> mutation : this.writeLog) {
-            mutation.accept(this.parent);
-        }
+        this.writeSet.applyTo(this.parent);
+        // The parent now has its own copy of anything we wrote to storage.
+        this.storageOverlay.removeLayer(this.storageLayer);
     }
 
     /**
      * Causes the changes enqueued in the receiver to be written back to the target kernel.
      * This method should only be used by AION kernel for database write back.
+     * If the target is an {@link IWriteBatchKernel}, the changes are written back as one batch.
      */
     @Override
     public void commitTo(KernelInterface target) {
-        for (Consumer<KernelInterface> mutation : this.writeLog) {
-            mutation.accept(target);
+        if (target instanceof IWriteBatchKernel) {
+            IWriteBatchKernel batchTarget = (IWriteBatchKernel) target;
+            batchTarget.beginWriteBatch();
+            this.writeSet.applyTo(target);
+            batchTarget.commitWriteBatch();
+        } else {
+            this.writeSet.applyTo(target);
         }
     }
 
     @Override
     public void createAccount(Address address) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.createAccount(address);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.createAccount(address);
+        this.writeSet.createAccount(address);
         this.deletedAccountProjection.remove(new ByteArrayWrapper(address.toBytes()));
         // Say that we have this cached so we don't go back to any old version in the parent (even though it is unlikely we will create over delete).
         this.cachedAccountBalances.add(new ByteArrayWrapper(address.toBytes()));
@@ -91,6 +173,8 @@ public class TransactionalKernel implements KernelInterface {
             result = this.writeCache.hasAccountState(address);
             if (!result) {
                 result = this.parent.hasAccountState(address);
+                boolean observed = result;
+                recordRead((kernel) -> observed == kernel.hasAccountState(address));
             }
         }
         return result;
@@ -103,6 +187,8 @@ public class TransactionalKernel implements KernelInterface {
             result = this.writeCache.getCode(address);
             if (null == result) {
                 result = this.parent.getCode(address);
+                byte[] observed = result;
+                recordRead((kernel) -> Arrays.equals(observed, kernel.getCode(address)));
             }
         }
         return result;
@@ -110,11 +196,8 @@ public class TransactionalKernel implements KernelInterface {
 
     @Override
     public void putCode(Address address, byte[] code) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.putCode(address, code);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.putCode(address, code);
+        this.writeSet.putCode(address, code);
     }
 
     @Override
@@ -124,6 +207,8 @@ public class TransactionalKernel implements KernelInterface {
             result = this.writeCache.getTransformedCode(address);
             if (null == result) {
                 result = this.parent.getTransformedCode(address);
+                byte[] observed = result;
+                recordRead((kernel) -> Arrays.equals(observed, kernel.getTransformedCode(address)));
             }
         }
         return result;
@@ -131,20 +216,14 @@ public class TransactionalKernel implements KernelInterface {
 
     @Override
     public void setTransformedCode(Address address, byte[] bytes) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.setTransformedCode(address, bytes);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.setTransformedCode(address, bytes);
+        this.writeSet.setTransformedCode(address, bytes);
     }
 
     @Override
     public void putObjectGraph(Address address, byte[] bytes) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.putObjectGraph(address, bytes);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.putObjectGraph(address, bytes);
+        this.writeSet.putObjectGraph(address, bytes);
     }
 
     @Override
@@ -152,37 +231,51 @@ public class TransactionalKernel implements KernelInterface {
         byte[] result = this.writeCache.getObjectGraph(address);
         if (null == result) {
             result = this.parent.getObjectGraph(address);
+            byte[] observed = result;
+            recordRead((kernel) -> Arrays.equals(observed, kernel.getObjectGraph(address)));
+        }
+        return result;
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer(Address address) {
+        ByteBuffer result;
+        byte[] cached = this.writeCache.getObjectGraph(address);
+        if (null != cached) {
+            result = ByteBuffer.wrap(cached).asReadOnlyBuffer();
+        } else {
+            result = IObjectGraphReader.readObjectGraph(this.parent, address);
+            // (the caller consumes the buffer we return so we compare against our own view of it)
+            ByteBuffer observed = (null != result) ? result.duplicate() : null;
+            recordRead((kernel) -> Objects.equals(observed, IObjectGraphReader.readObjectGraph(kernel, address)));
         }
         return result;
     }
 
     @Override
     public void putStorage(Address address, byte[] key, byte[] value) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.putStorage(address, key, value);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.putStorage(address, key, value);
+        this.writeSet.putStorage(address, key, value);
+        this.storageOverlay.put(this.storageLayer, address.toBytes(), key, value);
     }
 
     @Override
     public byte[] getStorage(Address address, byte[] key) {
         // We issue these requests from the given address, only, so it is safe for us to decide that we permit reads after deletes.
         // The direct reason why this happens is that DApps which are already running are permitted to continue running but may need to lazyLoad.
-        byte[] result = this.writeCache.getStorage(address, key);
+        // Note that the overlay falls through a removed key, or a deleted account, to the kernels below, just like the chain would.
+        byte[] result = this.storageOverlay.get(this.storageLayer, address.toBytes(), key);
         if (null == result) {
-            result = this.parent.getStorage(address, key);
+            result = this.outermostKernel.readStorageFromParent(address, key);
         }
         return result;
     }
 
     @Override
     public void deleteAccount(Address address) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.deleteAccount(address);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.deleteAccount(address);
+        this.writeSet.deleteAccount(address);
+        this.storageOverlay.clearAccount(this.storageLayer, address.toBytes());
         this.deletedAccountProjection.add(new ByteArrayWrapper(address.toBytes()));
         this.cachedAccountBalances.remove(new ByteArrayWrapper(address.toBytes()));
     }
@@ -194,6 +287,11 @@ public class TransactionalKernel implements KernelInterface {
             result = this.writeCache.getBalance(address);
             if (result.equals(BigInteger.ZERO)) {
                 result = this.parent.getBalance(address);
+                BigInteger observed = result;
+                recordRead((kernel) -> observed.equals(kernel.getBalance(address)));
+            } else {
+                // The cached balance may have been derived from a seed read in adjustBalance() so that seed is now observed.
+                observeBalanceSeed(address);
             }
         }
         return result;
@@ -206,7 +304,7 @@ public class TransactionalKernel implements KernelInterface {
             // We can only re-cache this if we didn't already delete it.
             // If it was deleted, we need to fake the lazy creation and start it at zero.
             if (!this.deletedAccountProjection.contains(new ByteArrayWrapper(address.toBytes()))) {
-                BigInteger balance = this.parent.getBalance(address);
+                BigInteger balance = readBalanceSeed(address);
                 this.writeCache.adjustBalance(address, balance);
             } else {
                 this.writeCache.adjustBalance(address, BigInteger.ZERO);
@@ -216,11 +314,8 @@ public class TransactionalKernel implements KernelInterface {
         // If this was previously deleted, fake the lazy re-creation.
         this.deletedAccountProjection.remove(new ByteArrayWrapper(address.toBytes()));
 
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.adjustBalance(address, delta);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.adjustBalance(address, delta);
+        this.writeSet.adjustBalance(address, delta);
     }
 
     @Override
@@ -230,6 +325,8 @@ public class TransactionalKernel implements KernelInterface {
             result = this.writeCache.getNonce(address);
             if (result.equals(BigInteger.ZERO)) {
                 result = this.parent.getNonce(address);
+                BigInteger observed = result;
+                recordRead((kernel) -> observed.equals(kernel.getNonce(address)));
             }
         }
         return result;
@@ -237,25 +334,26 @@ public class TransactionalKernel implements KernelInterface {
 
     @Override
     public void incrementNonce(Address address) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.incrementNonce(address);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.incrementNonce(address);
+        this.writeSet.incrementNonce(address);
     }
 
     @Override
     public boolean accountNonceEquals(Address address, BigInteger nonce) {
         // Delegate the check to our parent. The actual KernelInterface given to us by the kernel
         // has an opportunity to do some special case logic here when it wishes.
-        return this.parent.accountNonceEquals(address, nonce);
+        boolean result = this.parent.accountNonceEquals(address, nonce);
+        recordRead((kernel) -> result == kernel.accountNonceEquals(address, nonce));
+        return result;
     }
 
     @Override
     public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
         // Delegate the check to our parent. The actual KernelInterface given to us by the kernel
         // has an opportunity to do some special case logic here when it wishes.
-        return this.parent.accountBalanceIsAtLeast(address, amount);
+        boolean result = this.parent.accountBalanceIsAtLeast(address, amount);
+        recordRead((kernel) -> result == kernel.accountBalanceIsAtLeast(address, amount));
+        return result;
     }
 
     @Override
@@ -297,18 +395,22 @@ public class TransactionalKernel implements KernelInterface {
 
     @Override
     public void removeStorage(Address address, byte[] key) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.removeStorage(address, key);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        this.writeCache.removeStorage(address, key);
+        this.writeSet.removeStorage(address, key);
+        this.storageOverlay.put(this.storageLayer, address.toBytes(), key, null);
     }
 
     @Override
     public boolean destinationAddressIsSafeForThisVM(Address address) {
         // We need to delegate to our parent kernel to apply whatever logic is defined there.
         // The only exception to this is cases where we already stored code in our cache so see if that is there.
-        return (null != this.writeCache.getTransformedCode(address)) || this.parent.destinationAddressIsSafeForThisVM(address);
+        boolean result = (null != this.writeCache.getTransformedCode(address));
+        if (!result) {
+            result = this.parent.destinationAddressIsSafeForThisVM(address);
+            boolean observed = result;
+            recordRead((kernel) -> observed == kernel.destinationAddressIsSafeForThisVM(address));
+        }
+        return result;
     }
 
     @Override
@@ -335,4 +437,53 @@ public class TransactionalKernel implements KernelInterface {
     public Address getMinerAddress() {
         return blockCoinbase;
     }
+
+    private byte[] readStorageFromParent(Address address, byte[] key) {
+        byte[] result = this.parent.getStorage(address, key);
+        recordRead((kernel) -> Arrays.equals(result, kernel.getStorage(address, key)));
+        return result;
+    }
+
+    private void recordRead(Predicate<KernelInterface> read) {
+        if (null != this.readLog) {
+            this.readLog.add(read);
+        }
+    }
+
+    private BigInteger readBalanceSeed(Address address) {
+        // Nested kernels seed from their parent without observing the balance, so that the read is only attributed to the kernel
+        // tracking the read-set if the resulting balance is ever observed.
+        BigInteger balance = null;
+        if (this.parent instanceof TransactionalKernel) {
+            balance = ((TransactionalKernel) this.parent).getBalanceAsSeed(address);
+        } else {
+            balance = this.parent.getBalance(address);
+            if (null != this.unobservedBalanceSeeds) {
+                this.unobservedBalanceSeeds.putIfAbsent(new ByteArrayWrapper(address.toBytes()), balance);
+            }
+        }
+        return balance;
+    }
+
+    private BigInteger getBalanceAsSeed(Address address) {
+        BigInteger result = BigInteger.ZERO;
+        if (!this.deletedAccountProjection.contains(new ByteArrayWrapper(address.toBytes()))) {
+            result = this.writeCache.getBalance(address);
+            if (result.equals(BigInteger.ZERO)) {
+                result = readBalanceSeed(address);
+            }
+        }
+        return result;
+    }
+
+    private void observeBalanceSeed(Address address) {
+        if (null != this.unobservedBalanceSeeds) {
+            BigInteger seed = this.unobservedBalanceSeeds.remove(new ByteArrayWrapper(address.toBytes()));
+            if (null != seed) {
+                recordRead((kernel) -> seed.equals(kernel.getBalance(address)));
+            }
+        } else if (this.parent instanceof TransactionalKernel) {
+            ((TransactionalKernel) this.parent).observeBalanceSeed(address);
+        }
+    }
 }
@@ -0,0 +1,125 @@
+package org.aion.kernel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.types.Address;
+
+
+/**
+ * The ordered queue of kernel writes used by {@link WriteBehindKernel}, applied by a single committer thread.
+ * The writes are applied in exactly the order they were enqueued, so the underlying kernels end up in the same state as if every
+ * write had been applied synchronously.
+ *
+ * For each address, the pipeline tracks the last write which touches it and hasn't yet been applied, so that a reader of that
+ * address can wait for just those writes (readers of any other address don't need to wait at all).
+ *
+ * One instance is shared by all the batches running in an AVM, so that a pipelined batch also waits for the writes of the
+ * batches before it.
+ */
+public class WriteBackPipeline {
+    private final ExecutorService committer;
+    private final ConcurrentHashMap<ByteArrayWrapper, CompletableFuture<Void>> pendingWritesByAddress;
+    // Writes are only enqueued by the thread whose turn it is to commit so these don't need to be atomic.
+    private volatile CompletableFuture<Void> lastWrite;
+    // Once a write fails, no further writes are applied and the failure is re-thrown to every caller.
+    private volatile Throwable failure;
+
+    public WriteBackPipeline() {
+        this.committer = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "AVM Committer Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pendingWritesByAddress = new ConcurrentHashMap<>();
+        this.lastWrite = CompletableFuture.completedFuture(null);
+        this.failure = null;
+    }
+
+    /**
+     * Enqueues a write to be applied by the committer thread, after every write enqueued before it.
+     *
+     * @param address The address the write modifies (null if it doesn't modify any specific address).
+     * @param write The write.
+     */
+    public void enqueue(Address address, Runnable write) {
+        throwIfFailed();
+        CompletableFuture<Void> completion = CompletableFuture.runAsync(() -> {
+            if (null == this.failure) {
+                try {
+                    write.run();
+                } catch (Throwable t) {
+                    this.failure = t;
+                }
+            }
+        }, this.committer);
+        this.lastWrite = completion;
+        if (null != address) {
+            ByteArrayWrapper key = new ByteArrayWrapper(address.toBytes());
+            this.pendingWritesByAddress.put(key, completion);
+            // Once this is the last write to the address which was applied, readers no longer need to wait on it.
+            completion.thenRun(() -> this.pendingWritesByAddress.remove(key, completion));
+        }
+    }
+
+    /**
+     * Blocks until every enqueued write to the given address has been applied.
+     *
+     * @param address The address about to be read.
+     */
+    public void awaitAddress(Address address) {
+        CompletableFuture<Void> pending = this.pendingWritesByAddress.get(new ByteArrayWrapper(address.toBytes()));
+        if (null != pending) {
+            await(pending);
+        }
+    }
+
+    /**
+     * Blocks until every enqueued write has been applied.
+     */
+    public void flush() {
+        await(this.lastWrite);
+    }
+
+    /**
+     * Applies any remaining writes and stops the committer thread.
+     */
+    public void shutdown() {
+        this.committer.shutdown();
+        try {
+            this.committer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // We don't use interruption.
+            RuntimeAssertionError.unexpected(e);
+        }
+        throwIfFailed();
+    }
+
+
+    private void await(CompletableFuture<Void> completion) {
+        try {
+            completion.join();
+        } catch (CompletionException e) {
+            // We capture the failure of the write itself so this can't happen.
+            RuntimeAssertionError.unexpected(e);
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() {
+        Throwable failure = this.failure;
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (null != failure) {
+            throw RuntimeAssertionError.unexpected(failure);
+        }
+    }
+}
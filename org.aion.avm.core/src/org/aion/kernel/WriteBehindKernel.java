@@ -0,0 +1,211 @@
+package org.aion.kernel;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * A KernelInterface decorator which returns from every write as soon as it is enqueued in a {@link WriteBackPipeline}, leaving the
+ * committer thread to apply it to the underlying kernel.  This means that a transaction committing into this kernel doesn't wait
+ * for a slow kernel (one writing through to a database, for example), and neither do the transactions committing after it.
+ *
+ * Reads still observe every write enqueued before them:  a read of an address with writes still in the pipeline first waits for
+ * those writes to be applied, while a read of any other address goes straight to the underlying kernel.  We wait rather than
+ * answering from a copy of the pending writes since that copy would need to reproduce the exact account semantics (lazy creation,
+ * deletion, and so on) of whichever kernel is underneath.
+ *
+ * Note that the underlying kernel must tolerate being read by the executor threads while the committer thread writes to it.
+ */
+public class WriteBehindKernel implements KernelInterface, IObjectGraphReader {
+    private final KernelInterface target;
+    private final WriteBackPipeline pipeline;
+
+    public WriteBehindKernel(KernelInterface target, WriteBackPipeline pipeline) {
+        this.target = target;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public KernelInterface makeChildKernelInterface() {
+        return new TransactionalKernel(this);
+    }
+
+    @Override
+    public void commit() {
+        this.pipeline.enqueue(null, () -> this.target.commit());
+    }
+
+    @Override
+    public void commitTo(KernelInterface target) {
+        this.pipeline.enqueue(null, () -> this.target.commitTo(target));
+    }
+
+    @Override
+    public void createAccount(Address address) {
+        this.pipeline.enqueue(address, () -> this.target.createAccount(address));
+    }
+
+    @Override
+    public boolean hasAccountState(Address address) {
+        this.pipeline.awaitAddress(address);
+        return this.target.hasAccountState(address);
+    }
+
+    @Override
+    public byte[] getCode(Address address) {
+        this.pipeline.awaitAddress(address);
+        return this.target.getCode(address);
+    }
+
+    @Override
+    public void putCode(Address address, byte[] code) {
+        this.pipeline.enqueue(address, () -> this.target.putCode(address, code));
+    }
+
+    @Override
+    public byte[] getTransformedCode(Address address) {
+        this.pipeline.awaitAddress(address);
+        return this.target.getTransformedCode(address);
+    }
+
+    @Override
+    public void setTransformedCode(Address address, byte[] bytes) {
+        this.pipeline.enqueue(address, () -> this.target.setTransformedCode(address, bytes));
+    }
+
+    @Override
+    public void putObjectGraph(Address address, byte[] bytes) {
+        this.pipeline.enqueue(address, () -> this.target.putObjectGraph(address, bytes));
+    }
+
+    @Override
+    public byte[] getObjectGraph(Address address) {
+        this.pipeline.awaitAddress(address);
+        return this.target.getObjectGraph(address);
+    }
+
+    @Override
+    public ByteBuffer getObjectGraphBuffer(Address address) {
+        this.pipeline.awaitAddress(address);
+        return IObjectGraphReader.readObjectGraph(this.target, address);
+    }
+
+    @Override
+    public void putStorage(Address address, byte[] key, byte[] value) {
+        this.pipeline.enqueue(address, () -> this.target.putStorage(address, key, value));
+    }
+
+    @Override
+    public void removeStorage(Address address, byte[] key) {
+        this.pipeline.enqueue(address, () -> this.target.removeStorage(address, key));
+    }
+
+    @Override
+    public byte[] getStorage(Address address, byte[] key) {
+        this.pipeline.awaitAddress(address);
+        return this.target.getStorage(address, key);
+    }
+
+    @Override
+    public void deleteAccount(Address address) {
+        this.pipeline.enqueue(address, () -> this.target.deleteAccount(address));
+    }
+
+    @Override
+    public BigInteger getBalance(Address address) {
+        this.pipeline.awaitAddress(address);
+        return this.target.getBalance(address);
+    }
+
+    @Override
+    public void adjustBalance(Address address, BigInteger delta) {
+        this.pipeline.enqueue(address, () -> this.target.adjustBalance(address, delta));
+    }
+
+    @Override
+    public BigInteger getNonce(Address address) {
+        this.pipeline.awaitAddress(address);
+        return this.target.getNonce(address);
+    }
+
+    @Override
+    public void incrementNonce(Address address) {
+        this.pipeline.enqueue(address, () -> this.target.incrementNonce(address));
+    }
+
+    @Override
+    public void deductEnergyCost(Address address, BigInteger cost) {
+        this.pipeline.enqueue(address, () -> this.target.deductEnergyCost(address, cost));
+    }
+
+    @Override
+    public void refundAccount(Address address, BigInteger amount) {
+        this.pipeline.enqueue(address, () -> this.target.refundAccount(address, amount));
+    }
+
+    @Override
+    public void payMiningFee(Address address, BigInteger fee) {
+        this.pipeline.enqueue(address, () -> this.target.payMiningFee(address, fee));
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        return this.target.getBlockHashByNumber(blockNumber);
+    }
+
+    @Override
+    public boolean accountNonceEquals(Address address, BigInteger nonce) {
+        this.pipeline.awaitAddress(address);
+        return this.target.accountNonceEquals(address, nonce);
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+        this.pipeline.awaitAddress(address);
+        return this.target.accountBalanceIsAtLeast(address, amount);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit) {
+        return this.target.isValidEnergyLimitForCreate(energyLimit);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+        return this.target.isValidEnergyLimitForNonCreate(energyLimit);
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForThisVM(Address address) {
+        this.pipeline.awaitAddress(address);
+        return this.target.destinationAddressIsSafeForThisVM(address);
+    }
+
+    @Override
+    public long getBlockNumber() {
+        return this.target.getBlockNumber();
+    }
+
+    @Override
+    public long getBlockTimestamp() {
+        return this.target.getBlockTimestamp();
+    }
+
+    @Override
+    public long getBlockEnergyLimit() {
+        return this.target.getBlockEnergyLimit();
+    }
+
+    @Override
+    public long getBlockDifficulty() {
+        return this.target.getBlockDifficulty();
+    }
+
+    @Override
+    public Address getMinerAddress() {
+        return this.target.getMinerAddress();
+    }
+}
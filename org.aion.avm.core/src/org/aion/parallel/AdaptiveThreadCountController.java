@@ -0,0 +1,74 @@
+package org.aion.parallel;
+
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * Decides how many executor threads should be active, within fixed bounds, based on the abort rate measured for each batch.
+ *
+ * More threads only help while the transactions they run don't conflict:  on highly connected blocks, the extra threads mostly
+ * produce aborts and restarts.  The controller halves the thread count when a batch aborts more often than HIGH_ABORT_RATE and
+ * adds one thread when it aborts less often than LOW_ABORT_RATE (so it backs off quickly but only probes for more parallelism
+ * slowly).
+ *
+ * Decisions only take effect for batches submitted after the decision was made, since a batch runs on the threads which were
+ * active when it was submitted.
+ */
+public class AdaptiveThreadCountController {
+    // Aborts per transaction above which we reduce the thread count.
+    public static final double HIGH_ABORT_RATE = 0.5;
+    // Aborts per transaction below which we increase the thread count.
+    public static final double LOW_ABORT_RATE = 0.1;
+
+    private final int minThreadCount;
+    private final int maxThreadCount;
+    private final IConcurrencyMetricsListener listener;
+    private volatile int activeThreadCount;
+
+    /**
+     * Creates the controller with every thread initially active.
+     *
+     * @param minThreadCount The lowest number of threads which can be active (must be positive).
+     * @param maxThreadCount The highest number of threads which can be active (the number of executor threads).
+     * @param listener Notified of every decision (can be null).
+     */
+    public AdaptiveThreadCountController(int minThreadCount, int maxThreadCount, IConcurrencyMetricsListener listener) {
+        RuntimeAssertionError.assertTrue(minThreadCount > 0);
+        RuntimeAssertionError.assertTrue(minThreadCount <= maxThreadCount);
+        this.minThreadCount = minThreadCount;
+        this.maxThreadCount = maxThreadCount;
+        this.listener = listener;
+        this.activeThreadCount = maxThreadCount;
+    }
+
+    /**
+     * Called by the executor thread which committed the last transaction of a batch to update the decision.
+     *
+     * @param statistics The statistics of the completed batch.
+     * @return The number of threads which should be active for the next batch.
+     */
+    public synchronized int batchCompleted(BatchStatistics statistics) {
+        RuntimeAssertionError.assertTrue(statistics.isComplete());
+        double abortRate = (double) statistics.getAbortCount() / (double) statistics.getTransactionCount();
+        int previousThreadCount = this.activeThreadCount;
+        int nextThreadCount = previousThreadCount;
+        if (abortRate > HIGH_ABORT_RATE) {
+            nextThreadCount = Math.max(this.minThreadCount, previousThreadCount / 2);
+        } else if (abortRate < LOW_ABORT_RATE) {
+            nextThreadCount = Math.min(this.maxThreadCount, previousThreadCount + 1);
+        }
+        this.activeThreadCount = nextThreadCount;
+
+        if (null != this.listener) {
+            this.listener.onThreadCountDecision(statistics, abortRate, previousThreadCount, nextThreadCount);
+        }
+        return nextThreadCount;
+    }
+
+    /**
+     * @return The number of threads which should currently be active.
+     */
+    public int getActiveThreadCount() {
+        return this.activeThreadCount;
+    }
+}
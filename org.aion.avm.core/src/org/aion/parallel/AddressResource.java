@@ -6,6 +6,7 @@ import java.util.PriorityQueue;
  * A package private class represent resource from address.
  *
  * Each {@link AddressResource} keeps a {@link PriorityQueue} of tasks waiting to acquire the resource.
+ * This class is not thread-safe:  all access must be made while holding the monitor of the instance.
  */
 
 class AddressResource {
@@ -28,7 +29,8 @@ class AddressResource {
     }
 
     boolean addToWaitingQueue(TransactionTask task){
-        if (!waitingQueue.contains(task)) {
+        // Tasks are matched by identity (a task from another batch can have the same commit sequence, which makes them equal).
+        if (!isWaiting(task)) {
             waitingQueue.add(task);
             if (isNextOwner(task) && null != ownedBy && task != ownedBy) {
                 ownedBy.setAbortState();
@@ -39,7 +41,15 @@ class AddressResource {
     }
 
     void removeFromWaitingQueue(TransactionTask task){
-        waitingQueue.remove(task);
+        waitingQueue.removeIf((waiting) -> (waiting == task));
+    }
+
+    private boolean isWaiting(TransactionTask task){
+        boolean isWaiting = false;
+        for (TransactionTask waiting : waitingQueue) {
+            isWaiting = isWaiting || (waiting == task);
+        }
+        return isWaiting;
     }
 
     boolean isOwned() {
@@ -47,7 +57,7 @@ class AddressResource {
     }
 
     boolean isNextOwner(TransactionTask task){
-        return (task.getIndex() == waitingQueue.peek().getIndex());
+        return (task.getCommitSequence() == waitingQueue.peek().getCommitSequence());
     }
 
     TransactionTask getOwnedBy() {
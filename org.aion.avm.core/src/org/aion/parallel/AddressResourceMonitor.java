@@ -1,50 +1,52 @@
 package org.aion.parallel;
 
 import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.kernel.TransactionalKernel;
 
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Used by executor threads to communicate with each other.
  * Executor threads can only acquire/release {@link AddressResource}, commit result through this monitor.
  * A new monitor will be created for each batch of transactions.
+ *
+ * There is no global lock:  each {@link AddressResource} is protected by its own monitor, so tasks touching disjoint addresses
+ * never contend.  Blocked threads are parked and only the specific thread which can make progress is unparked (the next owner
+ * of a released resource, the next task in commit order, or a task which was just told to abort).
  */
 public class AddressResourceMonitor {
     static boolean DEBUG = false;
 
     // Map for resource retrieval
-    private HashMap<AddressWrapper, AddressResource> resources;
+    private final ConcurrentHashMap<AddressWrapper, AddressResource> resources;
 
-    // Ownership records for each task. It provide fast resource release.
-    private HashMap<TransactionTask, Set<AddressResource>> ownerships;
+    // The tasks currently blocked waiting for their turn to commit, by commit sequence.
+    private final ConcurrentHashMap<Long, TransactionTask> commitWaiters;
 
-    // Private monitor for safety
-    private final Object sync;
-
-    // Commit counter used to serialize transaction commit
-    private int commitCounter;
+    // Commit counter used to serialize transaction commit (this is the commit sequence of the next task to commit, which may span
+    // several batches if they are pipelined).
+    private volatile long commitCounter;
 
     public AddressResourceMonitor()
     {
-        this.resources = new HashMap<>();
-        this.ownerships = new HashMap<>();
-        this.sync = new Object();
-        this.commitCounter = 0;
+        this.resources = new ConcurrentHashMap<>();
+        this.commitWaiters = new ConcurrentHashMap<>();
+        this.commitCounter = 0L;
     }
 
     /**
      * Reset the state of the address resource monitor.
      * This method will be called for each batch of transaction request.
      *
+     * Note that this is only called between batches, when no executor thread is interacting with the monitor (when batches are
+     * pipelined, this is only called once every batch in flight has been committed).
      */
     public void clear(){
-        synchronized (sync) {
-            this.resources.clear();
-            this.ownerships.clear();
-            this.commitCounter = 0;
-        }
+        this.resources.clear();
+        this.commitWaiters.clear();
+        this.commitCounter = 0L;
     }
 
     /**
@@ -62,17 +64,20 @@ public class AddressResourceMonitor {
      * @param task The requester task.
      */
     public void acquire(byte[] address, TransactionTask task){
-        synchronized (sync) {
-            AddressWrapper addressWrapper = new AddressWrapper(address);
-            AddressResource resource = getResource(addressWrapper);
+        AddressWrapper addressWrapper = new AddressWrapper(address);
+        AddressResource resource = getResource(addressWrapper);
 
-            // Add task to the waiting queue.
-            if (resource.addToWaitingQueue(task)) {
-                sync.notifyAll();
-            }
+        // We need to be reachable for wake-ups before we first check if we can proceed.
+        task.setBlockedThread(Thread.currentThread());
 
-            long startTime = 0;
-            long endTime = 0;
+        long startTime = 0;
+        long endTime = 0;
+
+        synchronized (resource) {
+            // Add task to the waiting queue (this will abort the current owner, if we take priority over it).
+            // Note that we record this as an ownership so that even an aborted wait is removed from the queue on release.
+            resource.addToWaitingQueue(task);
+            recordOwnership(resource, task);
 
             if (DEBUG) {
                 int holder = null != resource.getOwnedBy() ? resource.getOwnedBy().getIndex() : -1;
@@ -81,35 +86,34 @@ public class AddressResourceMonitor {
                         " nextOwner " + nextOwner + " locked " + resource.isOwned() + " inAbortState " + task.inAbortState());
                 startTime = System.nanoTime();
             }
+        }
 
-            // Resource res is granted to task iff
-            // res is not hold by other task && task is the next owner
-            while ((resource.isOwned() || !resource.isNextOwner(task)) && task != resource.getOwnedBy()
-                    && !task.inAbortState()){
-                try {
-                    sync.wait();
-                }catch (InterruptedException e){
-                    RuntimeAssertionError.unreachable("Waiting executor thread received interruption: ACQUIRE");
+        // Resource res is granted to task iff
+        // res is not hold by other task && task is the next owner
+        boolean isGranted = false;
+        while (!isGranted && !task.inAbortState()) {
+            synchronized (resource) {
+                if ((!resource.isOwned() && resource.isNextOwner(task)) || (task == resource.getOwnedBy())) {
+                    resource.setOwner(task);
+                    isGranted = true;
                 }
             }
-
-            if (!task.inAbortState()) {
-                if (DEBUG) {
-                    endTime = System.nanoTime();
-                    System.out.println("Acquire " + task.getIndex() + " " + resource.toString()
-                            + " waitingTime " + (endTime - startTime)/1000 + " \u00B5s");
-                }
-                resource.setOwner(task);
-                recordOwnership(resource, task);
-            }else{
-                if (DEBUG) {
-                    endTime = System.nanoTime();
-                    System.out.println("Abort   " + task.getIndex() + " " + resource.toString()
-                            + " waitingTime " + (endTime - startTime)/1000 + " \u00B5s");
+            if (!isGranted) {
+                // Any release of this resource, or abort of this task, will unpark us (spurious returns just re-check).
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    RuntimeAssertionError.unreachable("Waiting executor thread received interruption: ACQUIRE");
                 }
             }
-
-            if (DEBUG) System.out.flush();
+        }
+        task.setBlockedThread(null);
+
+        if (DEBUG) {
+            endTime = System.nanoTime();
+            String action = isGranted ? "Acquire " : "Abort   ";
+            System.out.println(action + task.getIndex() + " " + resource.toString()
+                    + " waitingTime " + (endTime - startTime)/1000 + " \u00B5s");
+            System.out.flush();
         }
     }
 
@@ -122,26 +126,32 @@ public class AddressResourceMonitor {
      * @param task The requesting task.
      */
     private void releaseResourcesForTask(TransactionTask task){
-        RuntimeAssertionError.assertTrue(Thread.holdsLock(sync));
-
-        Set<AddressResource> toRemove = ownerships.remove(task);
-        if (null != toRemove) {
-            for (AddressResource resource : toRemove) {
+        // The ownership records are kept on the task itself so a task from another batch, with the same commit sequence, can't match them.
+        Set<AddressResource> owned = task.getOwnedResources();
+        for (AddressResource resource : owned) {
+            TransactionTask nextOwner = null;
+            synchronized (resource) {
                 resource.removeFromWaitingQueue(task);
                 if (task == resource.getOwnedBy()) {
                     resource.setOwner(null);
                 }
-                if (DEBUG) {
-                    int nextOwner = null != resource.getNextOwner() ? resource.getNextOwner().getIndex() : -1;
-                    System.out.println("Release " + task.getIndex() + " " + resource.toString() + " nextOwner " + nextOwner);
-                }
+                nextOwner = resource.getNextOwner();
+            }
+            // Only the new head of the queue can possibly acquire the resource so it is the only one we wake.
+            if (null != nextOwner) {
+                nextOwner.wakeBlockedThread();
+            }
+            if (DEBUG) {
+                int nextOwnerIndex = null != nextOwner ? nextOwner.getIndex() : -1;
+                System.out.println("Release " + task.getIndex() + " " + resource.toString() + " nextOwner " + nextOwnerIndex);
             }
         }
+        owned.clear();
     }
 
     /**
      * Try commit the task transactional kernel of the given task.
-     * The commit will be serialized as the index of the task.
+     * The commit will be serialized as the commit sequence of the task (its index, within a single batch).
      * All resource hold by task will be released after this method return.
      *
      * The executor thread of the task will block until
@@ -149,6 +159,8 @@ public class AddressResourceMonitor {
      *      OR
      *      The task need to abort to yield a address resource
      *
+     * Once it is the task's turn, it still needs to pass {@link #canCommit(TransactionTask)} or it will be aborted.
+     *
      * @param task The requesting task.
      * @param isRejected True only if the transaction relating to this task was rejected.
      *
@@ -157,61 +169,66 @@ public class AddressResourceMonitor {
     public boolean commitKernelForTask(TransactionTask task, boolean isRejected){
         boolean ret = false;
 
-        synchronized (sync){
-
-            while (this.commitCounter != task.getIndex() && !task.inAbortState()){
-                try {
-                    sync.wait();
-                }catch (InterruptedException e){
-                    RuntimeAssertionError.unreachable("Waiting executor thread received interruption: COMMIT");
-                }
+        // Register as the waiter for our sequence before checking the counter so that the previous committer can't miss us.
+        long sequence = task.getCommitSequence();
+        task.setBlockedThread(Thread.currentThread());
+        this.commitWaiters.put(sequence, task);
+        while (this.commitCounter != sequence && !task.inAbortState()){
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                RuntimeAssertionError.unreachable("Waiting executor thread received interruption: COMMIT");
             }
+        }
+        this.commitWaiters.remove(sequence);
+        task.setBlockedThread(null);
 
-            if (!task.inAbortState()){
-                if (!isRejected) {
-                    task.getThisTransactionalKernel().commit();
-                    task.outputFlush();
-                }
-                this.commitCounter++;
-                ret = true;
+        if (!task.inAbortState() && canCommit(task)){
+            if (!isRejected) {
+                task.getThisTransactionalKernel().commit();
+                task.outputFlush();
             }
-
+            // Our resources must be released before the next task can commit:  once the counter moves on, the rest of the batch can
+            // commit and the monitor can be cleared for the next batch while this thread would still be releasing.
+            releaseResourcesForTask(task);
+            // Only this thread can advance the counter past our sequence so this doesn't need to be atomic.
+            long nextSequence = sequence + 1;
+            this.commitCounter = nextSequence;
+            TransactionTask nextCommitter = this.commitWaiters.get(nextSequence);
+            if (null != nextCommitter) {
+                nextCommitter.wakeBlockedThread();
+            }
+            ret = true;
+        } else {
             releaseResourcesForTask(task);
-
-            // Only wake up others when all resources are released
-            sync.notifyAll();
         }
 
         return ret;
     }
 
-    private AddressResource getResource(AddressWrapper addr){
-        RuntimeAssertionError.assertTrue(Thread.holdsLock(sync));
+    /**
+     * Called once it is the given task's turn to commit, when every task before it has been committed, to decide if its result is
+     * still valid.  If this returns false, the task is aborted (and will be restarted).
+     * Note that this applies to rejected transactions, too, since the rejection was also decided based on the state the task read.
+     *
+     * @param task The task about to commit.
+     * @return True if the task can commit.
+     */
+    protected boolean canCommit(TransactionTask task) {
+        // The resources held by the task already guarantee that nothing it acquired could have changed but a task which ran
+        // speculatively (on top of an earlier batch which wasn't yet committed) tracks its read-set, which must still be valid.
+        TransactionalKernel kernel = task.getThisTransactionalKernel();
+        return (null == kernel) || kernel.isReadSetValid();
+    }
 
-        AddressResource ret = resources.get(addr);
-        if (null == ret){
-            ret = new AddressResource();
-            resources.put(addr, ret);
-        }
-        return ret;
+    private AddressResource getResource(AddressWrapper addr){
+        return resources.computeIfAbsent(addr, (key) -> new AddressResource());
     }
 
     private void recordOwnership(AddressResource res, TransactionTask task){
-        RuntimeAssertionError.assertTrue(Thread.holdsLock(sync));
-
-        Set<AddressResource> entry = ownerships.get(task);
-        if (null == entry){
-            entry = new HashSet<>();
-            ownerships.put(task, entry);
-        }
-        entry.add(res);
+        task.getOwnedResources().add(res);
     }
 
     void testReleaseResourcesForTask(TransactionTask task){
-        synchronized (sync) {
-            releaseResourcesForTask(task);
-            sync.notifyAll();
-        }
+        releaseResourcesForTask(task);
     }
 }
-
@@ -0,0 +1,80 @@
+package org.aion.parallel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Execution statistics of a single batch of transactions passed to the AVM.
+ * These are updated concurrently by the executor threads so they should only be considered final once every result of the
+ * batch has been consumed.
+ */
+public class BatchStatistics {
+    private final int transactionCount;
+    private final long startNanos;
+    private final AtomicInteger abortCount;
+    private volatile long endNanos;
+
+    public BatchStatistics(int transactionCount) {
+        this.transactionCount = transactionCount;
+        this.startNanos = System.nanoTime();
+        this.abortCount = new AtomicInteger(0);
+        this.endNanos = 0L;
+    }
+
+    /**
+     * Called by an executor thread when a task of this batch had to be aborted and restarted.
+     */
+    public void recordAbort() {
+        this.abortCount.incrementAndGet();
+    }
+
+    /**
+     * Called by an executor thread when a task of this batch has been committed.
+     * The batch is complete when its last task commits, since commits are serialized in index order.
+     *
+     * @param task The task which was just committed.
+     * @return True if this commit completed the batch (this is true for exactly one call).
+     */
+    public boolean recordCommit(TransactionTask task) {
+        boolean isLast = ((task.getIndex() + 1) == this.transactionCount);
+        if (isLast) {
+            this.endNanos = System.nanoTime();
+        }
+        return isLast;
+    }
+
+    /**
+     * @return The number of transactions in the batch.
+     */
+    public int getTransactionCount() {
+        return this.transactionCount;
+    }
+
+    /**
+     * @return The number of times any task in the batch was aborted.
+     */
+    public int getAbortCount() {
+        return this.abortCount.get();
+    }
+
+    /**
+     * @return True if the last transaction of the batch has been committed.
+     */
+    public boolean isComplete() {
+        return 0L != this.endNanos;
+    }
+
+    /**
+     * @return The wall time, in nanoseconds, from the batch being submitted until its last transaction committed (or until now,
+     * if the batch is not yet complete).
+     */
+    public long getWallTimeNanos() {
+        long end = isComplete() ? this.endNanos : System.nanoTime();
+        return end - this.startNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchStatistics(transactions: " + this.transactionCount + ", aborts: " + getAbortCount() + ", wall time: " + (getWallTimeNanos() / 1000) + " \u00B5s)";
+    }
+}
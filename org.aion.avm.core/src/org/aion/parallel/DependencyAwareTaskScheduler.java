@@ -0,0 +1,116 @@
+package org.aion.parallel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.aion.avm.core.AvmTransaction;
+
+
+/**
+ * A scheduling policy which partitions the batch by its static address conflicts before any of it is run.
+ *
+ * When a batch is added, a conflict graph is built from the sender and destination address of every transaction:  a task
+ * depends on the most recent earlier task which touched each of its addresses.  A task is only handed out once all of the tasks
+ * it depends on have been committed, so transactions which are statically known to conflict never run concurrently and never
+ * abort each other.  Tasks without a conflict run in parallel, as before.
+ *
+ * Ready tasks are always handed out lowest index (commit sequence, across batches) first.  This matters for liveness:  since
+ * commits are serialized in that order, handing out a later task while an earlier one is ready could leave every executor thread
+ * waiting on a commit which no thread is running.  It also means that a chain of dependent transactions tends to stay on the thread which committed its
+ * predecessor, since that thread is the first one to poll once the next link becomes ready.
+ *
+ * Note that internal calls can still touch addresses which aren't statically known so the {@link AddressResourceMonitor} is still
+ * responsible for detecting any remaining hazards at runtime.
+ *
+ * Since readiness depends on the global commit progress, this policy is not split per thread:  each call is serialized on the
+ * scheduler's monitor (which is only held for the duration of the queue and counter updates).
+ */
+public class DependencyAwareTaskScheduler implements ITaskScheduler {
+    private final PriorityQueue<TransactionTask> readyTasks;
+
+    // The most recent unfinished task which touched each address.
+    private final Map<AddressWrapper, TransactionTask> lastTaskPerAddress;
+    // The conflict graph of every unfinished task (across all the batches which have been added).
+    private final Map<TransactionTask, List<TransactionTask>> dependents;
+    private final Map<TransactionTask, Integer> pendingDependencyCounts;
+    private int unscheduledCount;
+
+    public DependencyAwareTaskScheduler() {
+        this.readyTasks = new PriorityQueue<>();
+        this.lastTaskPerAddress = new HashMap<>();
+        this.dependents = new HashMap<>();
+        this.pendingDependencyCounts = new HashMap<>();
+        this.unscheduledCount = 0;
+    }
+
+    @Override
+    public synchronized void addBatch(TransactionTask[] tasks) {
+        // Build the conflict graph, only linking each task to the last earlier task per address (the chain handles the rest).
+        // Note that a batch added while an earlier one is still in flight is linked to the unfinished tasks of that batch.
+        for (TransactionTask task : tasks) {
+            this.dependents.put(task, new ArrayList<>());
+            this.unscheduledCount += 1;
+
+            AvmTransaction tx = task.getTransaction();
+            TransactionTask senderDependency = this.lastTaskPerAddress.put(new AddressWrapper(tx.senderAddress.toBytes()), task);
+            TransactionTask destinationDependency = this.lastTaskPerAddress.put(new AddressWrapper(tx.destinationAddress.toBytes()), task);
+            if ((null != senderDependency) && (task != senderDependency)) {
+                addDependency(senderDependency, task);
+            }
+            if ((null != destinationDependency) && (task != destinationDependency) && (senderDependency != destinationDependency)) {
+                addDependency(destinationDependency, task);
+            }
+            if (!this.pendingDependencyCounts.containsKey(task)) {
+                this.readyTasks.add(task);
+            }
+        }
+    }
+
+    @Override
+    public synchronized TransactionTask pollReadyTask(int workerIndex) {
+        TransactionTask next = this.readyTasks.poll();
+        if (null != next) {
+            this.unscheduledCount -= 1;
+        }
+        return next;
+    }
+
+    @Override
+    public synchronized int taskFinished(TransactionTask task) {
+        int newlyReady = 0;
+        for (TransactionTask dependent : this.dependents.remove(task)) {
+            int pending = this.pendingDependencyCounts.get(dependent) - 1;
+            if (0 == pending) {
+                this.pendingDependencyCounts.remove(dependent);
+                this.readyTasks.add(dependent);
+                newlyReady += 1;
+            } else {
+                this.pendingDependencyCounts.put(dependent, pending);
+            }
+        }
+
+        // Later tasks must not depend on this one, now that it is finished.
+        AvmTransaction tx = task.getTransaction();
+        this.lastTaskPerAddress.remove(new AddressWrapper(tx.senderAddress.toBytes()), task);
+        this.lastTaskPerAddress.remove(new AddressWrapper(tx.destinationAddress.toBytes()), task);
+        return newlyReady;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return 0 == this.unscheduledCount;
+    }
+
+    @Override
+    public void setActiveWorkerCount(int activeWorkerCount) {
+        // Every ready task is in the one shared queue so it doesn't matter which threads poll it.
+    }
+
+    private void addDependency(TransactionTask dependency, TransactionTask dependent) {
+        this.dependents.get(dependency).add(dependent);
+        this.pendingDependencyCounts.merge(dependent, 1, Integer::sum);
+    }
+}
@@ -0,0 +1,20 @@
+package org.aion.parallel;
+
+
+/**
+ * A hook to observe the decisions of the {@link AdaptiveThreadCountController}, so that its bounds and thresholds can be tuned.
+ *
+ * NOTE:  This is called on the executor thread which committed the last transaction of the batch so implementations must be
+ * thread-safe and should return quickly.
+ */
+public interface IConcurrencyMetricsListener {
+    /**
+     * Called once for every completed batch, after the controller has decided how many executor threads to use for the next batch.
+     *
+     * @param statistics The statistics of the batch which just completed.
+     * @param abortRate The aborts per transaction measured for the batch.
+     * @param previousThreadCount The number of active executor threads while the batch ran.
+     * @param nextThreadCount The number of active executor threads decided for the next batch.
+     */
+    public void onThreadCountDecision(BatchStatistics statistics, double abortRate, int previousThreadCount, int nextThreadCount);
+}
@@ -0,0 +1,49 @@
+package org.aion.parallel;
+
+
+/**
+ * The abstract interface over the policy used to decide which {@link TransactionTask} an executor thread should run next.
+ *
+ * NOTE:  Implementations must be thread-safe.  The executor threads call into the scheduler concurrently, without holding any
+ * common lock, so implementations are expected to keep their own critical sections short (or avoid them entirely).
+ */
+public interface ITaskScheduler {
+    /**
+     * Adds a new batch of tasks to the scheduler.
+     * A batch may be added while tasks from a previous batch are still unfinished (when batches are pipelined), in which case its
+     * tasks are ordered after those of the previous batch.
+     *
+     * @param tasks The tasks of the batch, in transaction index order.
+     */
+    public void addBatch(TransactionTask[] tasks);
+
+    /**
+     * Removes the next task which is ready to run from the scheduler.
+     *
+     * @param workerIndex The index of the calling executor thread (in [0, thread count)).
+     * @return The next task to run, or null if no task is currently ready.
+     */
+    public TransactionTask pollReadyTask(int workerIndex);
+
+    /**
+     * Notifies the scheduler that a task previously returned by pollReadyTask() has been committed (or rejected) and will not
+     * be run again.
+     *
+     * @param task The finished task.
+     * @return The number of tasks which became ready as a result of this task finishing.
+     */
+    public int taskFinished(TransactionTask task);
+
+    /**
+     * @return True if every task added to the scheduler has been handed out.
+     */
+    public boolean isEmpty();
+
+    /**
+     * Restricts the executor threads which will poll for tasks to those with an index in [0, activeWorkerCount).
+     * This is only called while the scheduler is empty and no task is running.
+     *
+     * @param activeWorkerCount The number of executor threads which will poll for tasks in the following batches.
+     */
+    public void setActiveWorkerCount(int activeWorkerCount);
+}
@@ -0,0 +1,24 @@
+package org.aion.parallel;
+
+
+/**
+ * A variant of the {@link AddressResourceMonitor} for optimistic execution.
+ *
+ * Instead of acquiring address resources before touching an address (and aborting the holders of those resources), tasks run
+ * without any coordination, against the shared kernel.  Each task's transactional kernel records its read-set and, once it is the
+ * task's turn to commit (that is, every earlier task has committed), the read-set is validated against the committed state (by
+ * the common {@link #canCommit(TransactionTask)} check).  A task whose reads are stale is aborted and restarted, while a task with
+ * a valid read-set commits exactly the result it would have produced had the batch been run serially.
+ *
+ * This favours blocks with few real conflicts, since no task ever waits for a resource, but a conflict is only discovered after
+ * the conflicting task has been run to completion.
+ *
+ * Note that the tasks must be configured to track their read-sets (see {@link TransactionTask#enableReadSetTracking()}) and the
+ * shared kernel must tolerate concurrent readers while it is being committed to.
+ */
+public class OptimisticResourceMonitor extends AddressResourceMonitor {
+    @Override
+    public void acquire(byte[] address, TransactionTask task) {
+        // Nothing is acquired:  all conflicts are detected when the task commits.
+    }
+}
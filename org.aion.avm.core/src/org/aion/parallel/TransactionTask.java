@@ -5,9 +5,11 @@ import avm.Address;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.locks.LockSupport;
 
 import org.aion.avm.core.AvmTransaction;
 import org.aion.avm.core.ReentrantDAppStack;
+import org.aion.avm.core.persistence.GraphBuffers;
 import org.aion.avm.core.util.Helpers;
 import org.aion.avm.internal.IInstrumentation;
 import org.aion.avm.internal.RuntimeAssertionError;
@@ -23,21 +25,46 @@ public class TransactionTask implements Comparable<TransactionTask>{
     private final KernelInterface parentKernel;
     private AvmTransaction externalTransaction;
     private volatile boolean abortState;
+    private volatile Thread blockedThread;
+    // The resources this task has acquired, or is queued for, in the AddressResourceMonitor (only touched by the thread running the task).
+    // (these are kept on the task, rather than in a map in the monitor, so they can only ever be found through this very task)
+    private final Set<AddressResource> ownedResources;
     private IInstrumentation threadOwningTask;
+    private GraphBuffers threadGraphBuffers;
     private ReentrantDAppStack reentrantDAppStack;
     private int index;
+    private final long batchId;
+    private final long commitSequence;
     private StringBuffer outBuffer;
     private TransactionalKernel thisTransactionKernel;
     private Stack<SideEffects> sideEffectsStack;
     private Address origin;
     private int depth;
     private Set<org.aion.types.Address> selfDestructedAddresses;
+    private boolean trackReadSet;
 
     public TransactionTask(KernelInterface parentKernel, AvmTransaction tx, int index, org.aion.types.Address origin){
+        this(parentKernel, tx, index, origin, 0L, index);
+    }
+
+    /**
+     * Creates a task which is part of a batch which may be in flight at the same time as other batches.
+     *
+     * @param parentKernel The kernel the task commits into.
+     * @param tx The external transaction.
+     * @param index The index of the transaction within its batch.
+     * @param origin The origin address of the transaction.
+     * @param batchId The identifier of the batch containing the task.
+     * @param commitSequence The position of the task in the global commit order, across all batches in flight.
+     */
+    public TransactionTask(KernelInterface parentKernel, AvmTransaction tx, int index, org.aion.types.Address origin, long batchId, long commitSequence){
         this.parentKernel = parentKernel;
         this.externalTransaction = tx;
         this.index = index;
+        this.batchId = batchId;
+        this.commitSequence = commitSequence;
         this.abortState = false;
+        this.ownedResources = new HashSet<>();
         this.threadOwningTask = null;
         this.reentrantDAppStack = new ReentrantDAppStack();
         this.outBuffer = new StringBuffer();
@@ -46,6 +73,15 @@ public class TransactionTask implements Comparable<TransactionTask>{
         this.sideEffectsStack = new Stack<>();
         this.sideEffectsStack.push(new SideEffects());
         this.selfDestructedAddresses = new HashSet<>();
+        this.trackReadSet = false;
+    }
+
+    /**
+     * Requests that the per task transactional kernel of every attempt of this task records its read-set, so that the attempt can be
+     * validated against the committed state before it commits (used by optimistic execution).
+     */
+    public void enableReadSetTracking() {
+        this.trackReadSet = true;
     }
 
     public void startNewTransaction() {
@@ -53,19 +89,31 @@ public class TransactionTask implements Comparable<TransactionTask>{
         this.threadOwningTask = null;
         this.reentrantDAppStack = new ReentrantDAppStack();
         this.outBuffer = new StringBuffer();
+        // Anything recorded by a previous (aborted) attempt must not leak into this one.
+        this.depth = 0;
+        this.sideEffectsStack = new Stack<>();
+        this.sideEffectsStack.push(new SideEffects());
+        this.selfDestructedAddresses = new HashSet<>();
         
         // All IO will be performed on an per task transactional kernel so we can abort the whole task in one go
-        this.thisTransactionKernel = new TransactionalKernel(this.parentKernel);
+        // (this starts a chain of its own since the parent is shared with every other executor thread, even if it is transactional)
+        this.thisTransactionKernel = new TransactionalKernel(this.parentKernel, false);
+        if (this.trackReadSet) {
+            this.thisTransactionKernel.enableReadSetTracking();
+        }
     }
 
     /**
-     * Attach an {@link IInstrumentation} to the current task.
+     * Attach an {@link IInstrumentation} to the current task, along with the buffers the current thread serializes graphs into.
      * If the task is already in abort state, set the helper abort state as well.
+     *
+     * @param graphBuffers The serialization buffers owned by the current thread.
      */
-    public void attachInstrumentationForThread() {
+    public void attachInstrumentationForThread(GraphBuffers graphBuffers) {
         RuntimeAssertionError.assertTrue(null == this.threadOwningTask);
         this.threadOwningTask = IInstrumentation.attachedThreadInstrumentation.get();
         RuntimeAssertionError.assertTrue(null != this.threadOwningTask);
+        this.threadGraphBuffers = graphBuffers;
         if (this.abortState){
             threadOwningTask.setAbortState();
         }
@@ -74,6 +122,7 @@ public class TransactionTask implements Comparable<TransactionTask>{
     public void detachInstrumentationForThread() {
         RuntimeAssertionError.assertTrue(IInstrumentation.attachedThreadInstrumentation.get() == this.threadOwningTask);
         this.threadOwningTask = null;
+        this.threadGraphBuffers = null;
     }
 
     /**
@@ -85,6 +134,8 @@ public class TransactionTask implements Comparable<TransactionTask>{
         if (null != this.threadOwningTask){
             this.threadOwningTask.setAbortState();
         }
+        // If the task is blocked in the resource monitor, it needs to wake up to observe the abort.
+        wakeBlockedThread();
     }
 
     /**
@@ -105,6 +156,25 @@ public class TransactionTask implements Comparable<TransactionTask>{
         return index;
     }
 
+    /**
+     * Get the identifier of the batch containing the current task.
+     *
+     * @return The batch id of the task.
+     */
+    public long getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * Get the position of the current task in the global commit order.
+     * Within a batch, this follows the index but it also orders the tasks of a batch after those of any batch submitted before it.
+     *
+     * @return The commit sequence number of the task.
+     */
+    public long getCommitSequence() {
+        return commitSequence;
+    }
+
     /**
      * Get the ReentrantDAppStack of the current task.
      *
@@ -114,6 +184,16 @@ public class TransactionTask implements Comparable<TransactionTask>{
         return reentrantDAppStack;
     }
 
+    /**
+     * Get the buffers which graphs are serialized into, owned by the thread currently running the task.
+     *
+     * @return The GraphBuffers of the attached thread.
+     */
+    public GraphBuffers getGraphBuffers() {
+        RuntimeAssertionError.assertTrue(null != this.threadGraphBuffers);
+        return this.threadGraphBuffers;
+    }
+
     /**
      * Get the entry (external) transaction of the current task.
      *
@@ -176,6 +256,33 @@ public class TransactionTask implements Comparable<TransactionTask>{
 
     public int getSelfDestructAddressCount(){ return selfDestructedAddresses.size(); }
 
+    /**
+     * Records the thread which is about to block on behalf of this task in the {@link AddressResourceMonitor}.
+     * This must be called before the blocking condition is checked so that a concurrent wakeBlockedThread() can't be lost.
+     *
+     * @param thread The thread which will block (null once it no longer blocks).
+     */
+    void setBlockedThread(Thread thread) {
+        this.blockedThread = thread;
+    }
+
+    /**
+     * @return The resources this task has acquired, or is queued for, in the {@link AddressResourceMonitor}.
+     */
+    Set<AddressResource> getOwnedResources() {
+        return this.ownedResources;
+    }
+
+    /**
+     * Wakes the thread blocked on behalf of this task, if there is one, so that it re-checks its blocking condition.
+     */
+    void wakeBlockedThread() {
+        Thread thread = this.blockedThread;
+        if (null != thread) {
+            LockSupport.unpark(thread);
+        }
+    }
+
     void outputFlush(){
         if (this.outBuffer.length() > 0) {
             System.out.println("Output from transaction " + Helpers.bytesToHexString(externalTransaction.transactionHash));
@@ -185,19 +292,17 @@ public class TransactionTask implements Comparable<TransactionTask>{
     }
 
     /**
-     * Compare to another task in term of transaction index.
+     * Compare to another task in term of commit order (which is the transaction index, within a batch).
      *
      * The purpose of this method is to support {@link java.util.PriorityQueue}.
-     * The lower the index, the higher the priority.
+     * The lower the commit sequence, the higher the priority.
      *
      * @param other Another transaction task.
      * @return The result of the comparision.
      */
     @Override
     public int compareTo(TransactionTask other) {
-        int x = this.index;
-        int y = other.index;
-        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+        return Long.compare(this.commitSequence, other.commitSequence);
     }
 
     @Override
@@ -205,8 +310,13 @@ public class TransactionTask implements Comparable<TransactionTask>{
         boolean isEqual = this == obj;
         if (!isEqual && (obj instanceof TransactionTask)) {
             TransactionTask other = (TransactionTask) obj;
-            isEqual = this.index == other.index;
+            isEqual = this.commitSequence == other.commitSequence;
         }
         return isEqual;
     }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.commitSequence);
+    }
 }
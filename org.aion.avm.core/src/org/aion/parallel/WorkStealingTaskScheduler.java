@@ -0,0 +1,156 @@
+package org.aion.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * The default scheduling policy:  every task is ready immediately and any data hazards between the tasks are only discovered at
+ * runtime, by the {@link AddressResourceMonitor}.
+ *
+ * Each executor thread has its own deque of tasks.  A batch is dealt across the deques, round-robin, in index order.  A thread
+ * takes tasks from the head of its own deque and, only once that is empty, steals from the tail of another thread's deque.  This
+ * means that the executor threads don't contend on a single queue.  A pipelined batch is appended behind any tasks still queued
+ * so each deque stays in commit order.
+ *
+ * Batches are only dealt across the deques of the active workers:  an inactive thread doesn't poll so its deque would only ever
+ * be stolen from, out of order.
+ *
+ * If sender chains are grouped, a batch is instead dealt by sender:  every queued task of one sender (its "chain") is placed in the
+ * same deque (still in index order, so in nonce order) and a thief only steals a task if no other task of its sender is queued or
+ * running.  This only changes where the tasks are placed:  two tasks of one sender are never taken by different threads at once,
+ * so they don't block on (or abort for) the shared sender address.  The tasks of other senders dealt to the same deque are
+ * interleaved with them, and each transaction is still its own task, run on its own TransactionalKernel and committed at its own
+ * index, exactly as when the chains aren't grouped.
+ *
+ * Note that a thread always drains its own deque in index order before it steals.  This is what keeps the in-order commit live:
+ * the lowest task which hasn't been handed out is at the head of its owner's deque and that owner can't be blocked waiting for
+ * a higher-index task to commit, since it would have only taken such a task once its own deque was empty.
+ */
+public class WorkStealingTaskScheduler implements ITaskScheduler {
+    private final List<ConcurrentLinkedDeque<TransactionTask>> deques;
+    private final AtomicInteger unscheduledCount;
+    private volatile int activeWorkerCount;
+    private final boolean groupSenderChains;
+    // The sender chains with unfinished tasks (only used if groupSenderChains).
+    private final ConcurrentHashMap<AddressWrapper, SenderChain> senderChains;
+    // The worker the next new sender chain is dealt to (only accessed by the thread adding batches).
+    private int nextChainWorker;
+
+    public WorkStealingTaskScheduler(int workerCount) {
+        this(workerCount, false);
+    }
+
+    public WorkStealingTaskScheduler(int workerCount, boolean groupSenderChains) {
+        RuntimeAssertionError.assertTrue(workerCount > 0);
+        this.deques = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; ++i) {
+            this.deques.add(new ConcurrentLinkedDeque<>());
+        }
+        this.unscheduledCount = new AtomicInteger(0);
+        this.activeWorkerCount = workerCount;
+        this.groupSenderChains = groupSenderChains;
+        this.senderChains = new ConcurrentHashMap<>();
+        this.nextChainWorker = 0;
+    }
+
+    @Override
+    public void addBatch(TransactionTask[] tasks) {
+        // Count the tasks before they become visible so that we never look empty while they are being handed out.
+        this.unscheduledCount.addAndGet(tasks.length);
+        int workerCount = this.activeWorkerCount;
+        for (int i = 0; i < tasks.length; ++i) {
+            int worker = this.groupSenderChains
+                    ? queueInSenderChain(tasks[i], workerCount)
+                    : (i % workerCount);
+            this.deques.get(worker).addLast(tasks[i]);
+        }
+    }
+
+    @Override
+    public TransactionTask pollReadyTask(int workerIndex) {
+        int workerCount = this.activeWorkerCount;
+        TransactionTask next = this.deques.get(workerIndex).pollFirst();
+        // Our own deque is empty so try to steal from everyone else, starting with our neighbour.
+        for (int i = 1; (null == next) && (i < workerCount); ++i) {
+            next = steal(this.deques.get((workerIndex + i) % workerCount));
+        }
+        if (null != next) {
+            this.unscheduledCount.decrementAndGet();
+        }
+        return next;
+    }
+
+    @Override
+    public int taskFinished(TransactionTask task) {
+        if (this.groupSenderChains) {
+            // Drop the chain once its last task is finished so that the sender can be dealt to any worker in a later batch.
+            this.senderChains.computeIfPresent(senderOf(task), (sender, chain) -> (0 == --chain.unfinishedCount) ? null : chain);
+        }
+        // Nothing else depends on completion in this policy (a lone task which can now be stolen was already ready).
+        return 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return 0 == this.unscheduledCount.get();
+    }
+
+    @Override
+    public void setActiveWorkerCount(int activeWorkerCount) {
+        RuntimeAssertionError.assertTrue((activeWorkerCount > 0) && (activeWorkerCount <= this.deques.size()));
+        RuntimeAssertionError.assertTrue(isEmpty());
+        this.activeWorkerCount = activeWorkerCount;
+    }
+
+
+    private int queueInSenderChain(TransactionTask task, int workerCount) {
+        SenderChain chain = this.senderChains.compute(senderOf(task), (sender, existing) -> {
+            SenderChain target = (null != existing)
+                    ? existing
+                    : new SenderChain(this.nextChainWorker++ % workerCount);
+            target.unfinishedCount += 1;
+            return target;
+        });
+        return chain.workerIndex;
+    }
+
+    private TransactionTask steal(ConcurrentLinkedDeque<TransactionTask> victim) {
+        TransactionTask stolen = null;
+        if (this.groupSenderChains) {
+            // Only steal the task if it is the only unfinished one of its sender, otherwise two threads could run that sender's tasks at once.
+            // (the owner may take the task concurrently, in which case removing it fails and we steal nothing)
+            TransactionTask candidate = victim.peekLast();
+            if (null != candidate) {
+                SenderChain chain = this.senderChains.get(senderOf(candidate));
+                if ((null != chain) && (1 == chain.unfinishedCount) && victim.removeLastOccurrence(candidate)) {
+                    stolen = candidate;
+                }
+            }
+        } else {
+            stolen = victim.pollLast();
+        }
+        return stolen;
+    }
+
+    private static AddressWrapper senderOf(TransactionTask task) {
+        return new AddressWrapper(task.getTransaction().senderAddress.toBytes());
+    }
+
+
+    private static class SenderChain {
+        private final int workerIndex;
+        // The tasks of the chain which are queued or running (only modified while the chain's map entry is being computed).
+        private volatile int unfinishedCount;
+
+        public SenderChain(int workerIndex) {
+            this.workerIndex = workerIndex;
+            this.unfinishedCount = 0;
+        }
+    }
+}
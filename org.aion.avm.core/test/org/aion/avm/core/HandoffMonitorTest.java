@@ -8,6 +8,7 @@ import java.util.concurrent.CyclicBarrier;
 import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.kernel.AvmTransactionResult;
 import org.aion.parallel.TransactionTask;
+import org.aion.parallel.WorkStealingTaskScheduler;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.SimpleFuture;
 import org.aion.vm.api.interfaces.TransactionInterface;
@@ -22,7 +23,7 @@ public class HandoffMonitorTest {
         MonitorThread thread = new MonitorThread(null);
         Set<Thread> executorThreads = new HashSet<>();
         executorThreads.add(thread);
-        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads, new WorkStealingTaskScheduler(executorThreads.size()));
         thread.startAgainstMonitor(monitor);
         monitor.stopAndWaitForShutdown();
         Assert.assertFalse(thread.isAlive());
@@ -34,7 +35,7 @@ public class HandoffMonitorTest {
         MonitorThread thread = new MonitorThread(null);
         Set<Thread> executorThreads = new HashSet<>();
         executorThreads.add(thread);
-        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads, new WorkStealingTaskScheduler(executorThreads.size()));
         thread.startAgainstMonitor(monitor);
         
         // Enqueue transaction.
@@ -58,7 +59,7 @@ public class HandoffMonitorTest {
         MonitorThread thread = new MonitorThread(null);
         Set<Thread> executorThreads = new HashSet<>();
         executorThreads.add(thread);
-        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads, new WorkStealingTaskScheduler(executorThreads.size()));
         thread.startAgainstMonitor(monitor);
         
         // Enqueue transaction and process result.
@@ -81,7 +82,7 @@ public class HandoffMonitorTest {
         MonitorThread thread = new MonitorThread(null);
         Set<Thread> executorThreads = new HashSet<>();
         executorThreads.add(thread);
-        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads, new WorkStealingTaskScheduler(executorThreads.size()));
         thread.startAgainstMonitor(monitor);
         
         // Enqueue 2 transactions and verify the result array length.
@@ -114,7 +115,7 @@ public class HandoffMonitorTest {
         executorThreads.add(t2);
         executorThreads.add(t3);
         executorThreads.add(t4);
-        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads, new WorkStealingTaskScheduler(executorThreads.size()));
 
         t1.startAgainstMonitor(monitor);
         t2.startAgainstMonitor(monitor);
@@ -155,7 +156,7 @@ public class HandoffMonitorTest {
         for (int i = 0; i < threadCount; i++){
             executorThreads.add(new MonitorThread(firstTaskBarrier));
         }
-        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads, new WorkStealingTaskScheduler(executorThreads.size()));
 
         for (Thread t: executorThreads){
             ((MonitorThread) t).startAgainstMonitor(monitor);
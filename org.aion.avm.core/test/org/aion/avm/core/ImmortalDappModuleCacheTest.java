@@ -0,0 +1,25 @@
+package org.aion.avm.core;
+
+import org.aion.avm.core.dappreading.JarBuilder;
+import org.aion.avm.core.types.ImmortalDappModule;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ImmortalDappModuleCacheTest {
+    @Test
+    public void testIdenticalJarsShareModule() throws Exception {
+        ImmortalDappModuleCache cache = new ImmortalDappModuleCache();
+        byte[] jar = JarBuilder.buildJarForMainAndClasses(ImmortalDappModuleCacheTest.class);
+        byte[] otherJar = JarBuilder.buildJarForMainAndClasses(DAppLoader.class);
+
+        // A copy of the same bytes (as a second address with the same code would have) gets the same module.
+        ImmortalDappModule module = cache.readFromJar(jar);
+        Assert.assertSame(module, cache.readFromJar(jar.clone()));
+        Assert.assertEquals(ImmortalDappModuleCacheTest.class.getName(), module.mainClass);
+
+        ImmortalDappModule otherModule = cache.readFromJar(otherJar);
+        Assert.assertNotSame(module, otherModule);
+        Assert.assertEquals(DAppLoader.class.getName(), otherModule.mainClass);
+    }
+}
@@ -106,6 +106,22 @@ public class MockFailureInstrumentationFactory implements IInstrumentationFactor
             }
             @Override
             public boolean isLoadedByCurrentClassLoader(java.lang.Class userClass) { return underlying.isLoadedByCurrentClassLoader(userClass); }
+            @Override
+            public void noteInstanceWrite(int readIndex) {
+                underlying.noteInstanceWrite(readIndex);
+            }
+            @Override
+            public java.util.BitSet getWrittenInstances() {
+                return underlying.getWrittenInstances();
+            }
+            @Override
+            public void attachInstanceLoader(IInstanceLoader loader) {
+                underlying.attachInstanceLoader(loader);
+            }
+            @Override
+            public void loadInstance(java.lang.Object instance, int readIndex) {
+                underlying.loadInstance(instance, readIndex);
+            }
         };
     }
     @Override
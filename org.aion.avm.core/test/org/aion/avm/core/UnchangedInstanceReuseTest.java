@@ -0,0 +1,250 @@
+package org.aion.avm.core;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aion.avm.core.blockchainruntime.EmptyCapabilities;
+import org.aion.avm.core.dappreading.JarBuilder;
+import org.aion.avm.core.persistence.CompactGraphFormat;
+import org.aion.avm.core.persistence.GraphEncoding;
+import org.aion.avm.core.types.ImmortalDappModule;
+import org.aion.avm.core.util.ABIUtil;
+import org.aion.avm.core.util.CodeAndArguments;
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.userlib.abi.ABIDecoder;
+import org.aion.kernel.AvmTransactionResult;
+import org.aion.kernel.Block;
+import org.aion.kernel.TestingKernel;
+import org.aion.kernel.Transaction;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+
+/**
+ * Tests that AvmConfiguration.enableUnchangedInstanceReuse (and enableLazyGraphLoading) store exactly the same graph as loading and
+ * serializing the entire graph, across calls which change some of the instances they load (including through reentrant calls and reverts).
+ * This is also checked for graphs in the compact format (AvmConfiguration.compactGraphEncodingBlockNumber).
+ * DApps deployed before the write barrier existed must still have their writes saved, with those options enabled.
+ * The graph format is decided by the block a DApp is deployed in (the graph encoding forks) and then stays the same.
+ */
+public class UnchangedInstanceReuseTest {
+    private Address deployer = TestingKernel.PREMINED_ADDRESS;
+    private Block block;
+
+    @Before
+    public void setup() {
+        this.block = new Block(new byte[32], 1, Helpers.randomAddress(), System.currentTimeMillis(), new byte[0]);
+    }
+
+    @Test
+    public void testSameGraphAsFullSave() {
+        List<byte[]> fullGraphs = runScenario(false, false, false, false);
+        List<byte[]> reusingGraphs = runScenario(true, false, false, false);
+        assertSameGraphs(fullGraphs, reusingGraphs);
+    }
+
+    @Test
+    public void testSameGraphWhenLoadedLazily() {
+        List<byte[]> fullGraphs = runScenario(false, false, false, false);
+        List<byte[]> lazyGraphs = runScenario(false, true, false, false);
+        List<byte[]> lazyReusingGraphs = runScenario(true, true, false, false);
+        assertSameGraphs(fullGraphs, lazyGraphs);
+        assertSameGraphs(fullGraphs, lazyReusingGraphs);
+    }
+
+    @Test
+    public void testSameCompactGraph() {
+        List<byte[]> originalGraphs = runScenario(false, false, false, false);
+        List<byte[]> fullGraphs = runScenario(false, false, true, false);
+        List<byte[]> reusingGraphs = runScenario(true, false, true, false);
+        List<byte[]> lazyReusingGraphs = runScenario(true, true, true, false);
+        assertSameGraphs(fullGraphs, reusingGraphs);
+        assertSameGraphs(fullGraphs, lazyReusingGraphs);
+        for (int i = 0; i < originalGraphs.size(); ++i) {
+            Assert.assertTrue(CompactGraphFormat.hasCompactHeader(ByteBuffer.wrap(fullGraphs.get(i))));
+            Assert.assertTrue(fullGraphs.get(i).length < originalGraphs.get(i).length);
+        }
+    }
+
+    @Test
+    public void testSameCompressedGraph() {
+        List<byte[]> fullGraphs = runScenario(false, false, true, true);
+        List<byte[]> lazyReusingGraphs = runScenario(true, true, true, true);
+        assertSameGraphs(fullGraphs, lazyReusingGraphs);
+    }
+
+    @Test
+    public void testDAppWithoutWriteBarrier() throws Exception {
+        TestingKernel kernel = new TestingKernel(this.block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.enableUnchangedInstanceReuse = true;
+        configuration.enableLazyGraphLoading = true;
+        Address contract = null;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+        try {
+            byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(UnchangedInstanceReuseTestTarget.class);
+            byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+            contract = Address.wrap(run(avm, kernel, null, txData).getReturnData());
+            for (int i = 0; i < 5; ++i) {
+                run(avm, kernel, contract, ABIUtil.encodeMethodArguments("append", i));
+            }
+        } finally {
+            avm.shutdown();
+        }
+        
+        // Replace the stored code with what it would have been before the write barrier:  PUTFIELD only calls lazyLoad() and nothing marks the jar.
+        ImmortalDappModule module = ImmortalDappModule.readFromJar(kernel.getTransformedCode(contract));
+        Assert.assertTrue(module.hasWriteBarrier);
+        Map<String, byte[]> legacyClasses = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : module.classes.entrySet()) {
+            legacyClasses.put(entry.getKey(), removeWriteBarrier(entry.getValue()));
+        }
+        ImmortalDappModule legacyModule = ImmortalDappModule.fromImmortalClasses(legacyClasses, module.mainClass, false, module.graphEncoding);
+        byte[] legacyJar = legacyModule.createJar(contract, this.block.getTimestamp());
+        Assert.assertFalse(ImmortalDappModule.readFromJar(legacyJar).hasWriteBarrier);
+        kernel.setTransformedCode(contract, legacyJar);
+        
+        // Write a field of an instance loaded from the graph (after walking the list to it, so the earlier nodes are only read).
+        avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+        try {
+            run(avm, kernel, contract, ABIUtil.encodeMethodArguments("increment", 2));
+        } finally {
+            avm.shutdown();
+        }
+        
+        // The write must have been saved, so it is there when the graph is loaded again.
+        avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+        try {
+            AvmTransactionResult result = run(avm, kernel, contract, ABIUtil.encodeMethodArguments("sum"));
+            Assert.assertEquals((0 + 1 + 2 + 3 + 4) + 1, new ABIDecoder(result.getReturnData()).decodeOneInteger());
+        } finally {
+            avm.shutdown();
+        }
+    }
+
+    @Test
+    public void testGraphEncodingForkAtDeployment() throws Exception {
+        TestingKernel kernel = new TestingKernel(this.block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.compactGraphEncodingBlockNumber = this.block.getNumber() + 1;
+        configuration.graphCompressionBlockNumber = this.block.getNumber() + 1;
+        configuration.enableLazyGraphLoading = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+        try {
+            byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(UnchangedInstanceReuseTestTarget.class);
+            byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+            // One DApp is deployed before the fork and one from it.
+            Address beforeFork = Address.wrap(run(avm, kernel, null, txData).getReturnData());
+            kernel.updateBlock(new Block(new byte[32], this.block.getNumber() + 1, Helpers.randomAddress(), this.block.getTimestamp() + 1, new byte[0]));
+            Address fromFork = Address.wrap(run(avm, kernel, null, txData).getReturnData());
+            Assert.assertEquals(GraphEncoding.ORIGINAL, ImmortalDappModule.readFromJar(kernel.getTransformedCode(beforeFork)).graphEncoding);
+            Assert.assertEquals(GraphEncoding.COMPACT_COMPRESSED, ImmortalDappModule.readFromJar(kernel.getTransformedCode(fromFork)).graphEncoding);
+            
+            // After the fork, each DApp's graph is still saved (and read) in the format it was deployed with.
+            for (Address contract : new Address[] {beforeFork, fromFork}) {
+                for (int i = 0; i < 3; ++i) {
+                    run(avm, kernel, contract, ABIUtil.encodeMethodArguments("append", i));
+                    Assert.assertEquals(contract == fromFork, CompactGraphFormat.hasCompactHeader(ByteBuffer.wrap(kernel.getObjectGraph(contract))));
+                }
+                AvmTransactionResult result = run(avm, kernel, contract, ABIUtil.encodeMethodArguments("sum"));
+                Assert.assertEquals(0 + 1 + 2, new ABIDecoder(result.getReturnData()).decodeOneInteger());
+            }
+        } finally {
+            avm.shutdown();
+        }
+    }
+
+
+    private static byte[] removeWriteBarrier(byte[] classBytes) {
+        ClassReader reader = new ClassReader(classBytes);
+        ClassWriter writer = new ClassWriter(0);
+        reader.accept(new ClassVisitor(Opcodes.ASM6, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM6, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                        String replacedName = "lazyLoadForWrite".equals(name)
+                                ? "lazyLoad"
+                                : name;
+                        super.visitMethodInsn(opcode, owner, replacedName, descriptor, isInterface);
+                    }
+                };
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private void assertSameGraphs(List<byte[]> expected, List<byte[]> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private List<byte[]> runScenario(boolean enableUnchangedInstanceReuse, boolean enableLazyGraphLoading, boolean enableCompactGraphEncoding, boolean enableGraphCompression) {
+        // (only one AVM can be running at a time so each configuration runs the whole scenario on its own kernel)
+        TestingKernel kernel = new TestingKernel(this.block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.enableUnchangedInstanceReuse = enableUnchangedInstanceReuse;
+        configuration.enableLazyGraphLoading = enableLazyGraphLoading;
+        // (the graph encoding forks are at the genesis block, or never)
+        if (enableCompactGraphEncoding) {
+            configuration.compactGraphEncodingBlockNumber = 0L;
+        }
+        if (enableGraphCompression) {
+            configuration.graphCompressionBlockNumber = 0L;
+        }
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+        List<byte[]> graphs = new ArrayList<>();
+        try {
+            byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(UnchangedInstanceReuseTestTarget.class);
+            byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+            Address contract = Address.wrap(run(avm, kernel, null, txData).getReturnData());
+            graphs.add(kernel.getObjectGraph(contract));
+            
+            for (int i = 0; i < 5; ++i) {
+                run(avm, kernel, contract, ABIUtil.encodeMethodArguments("append", i));
+                graphs.add(kernel.getObjectGraph(contract));
+            }
+            // Change instances at the start, in the middle, and at the end of the list.
+            for (String methodName : new String[] {"increment", "incrementViaReentrantCall", "incrementThenRevert"}) {
+                for (int index : new int[] {0, 2, 4}) {
+                    run(avm, kernel, contract, ABIUtil.encodeMethodArguments(methodName, index));
+                    graphs.add(kernel.getObjectGraph(contract));
+                }
+            }
+            // A call which changes nothing.
+            AvmTransactionResult result = run(avm, kernel, contract, ABIUtil.encodeMethodArguments("sum"));
+            Assert.assertEquals((0 + 1 + 2 + 3 + 4) + 6 + 300, new ABIDecoder(result.getReturnData()).decodeOneInteger());
+            graphs.add(kernel.getObjectGraph(contract));
+            run(avm, kernel, contract, ABIUtil.encodeMethodArguments("append", 5));
+            graphs.add(kernel.getObjectGraph(contract));
+        } finally {
+            avm.shutdown();
+        }
+        return graphs;
+    }
+
+    private AvmTransactionResult run(AvmImpl avm, TestingKernel kernel, Address contract, byte[] data) {
+        long energyLimit = 10_000_000L;
+        long energyPrice = 1L;
+        Transaction transaction = (null == contract)
+                ? Transaction.create(this.deployer, kernel.getNonce(this.deployer), BigInteger.ZERO, data, energyLimit, energyPrice)
+                : Transaction.call(this.deployer, contract, kernel.getNonce(this.deployer), BigInteger.ZERO, data, energyLimit, energyPrice);
+        AvmTransactionResult result = (AvmTransactionResult) avm.run(kernel, new Transaction[] {transaction})[0].get();
+        Assert.assertTrue(result.getResultCode().isSuccess() || (AvmTransactionResult.Code.FAILED_REVERT == result.getResultCode()));
+        return result;
+    }
+}
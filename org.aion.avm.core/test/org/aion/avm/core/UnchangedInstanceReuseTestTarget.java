@@ -0,0 +1,96 @@
+package org.aion.avm.core;
+
+import java.math.BigInteger;
+import avm.Blockchain;
+import org.aion.avm.userlib.abi.ABIDecoder;
+import org.aion.avm.userlib.abi.ABIEncoder;
+import org.aion.avm.userlib.abi.ABIStreamingEncoder;
+
+
+/**
+ * The test class loaded by UnchangedInstanceReuseTest.
+ * Each call changes a few of the instances in a linked list, leaving the rest as they were loaded.
+ */
+public class UnchangedInstanceReuseTestTarget {
+    private static Node head;
+    private static int[] counts = new int[4];
+
+    public static byte[] main() {
+        ABIDecoder decoder = new ABIDecoder(Blockchain.getData());
+        String methodName = decoder.decodeMethodName();
+        if (methodName == null) {
+            return new byte[0];
+        } else {
+            if (methodName.equals("append")) {
+                append(decoder.decodeOneInteger());
+                return new byte[0];
+            } else if (methodName.equals("increment")) {
+                increment(decoder.decodeOneInteger());
+                return new byte[0];
+            } else if (methodName.equals("incrementThenRevert")) {
+                increment(decoder.decodeOneInteger());
+                Blockchain.revert();
+                return new byte[0];
+            } else if (methodName.equals("incrementViaReentrantCall")) {
+                incrementViaReentrantCall(decoder.decodeOneInteger());
+                return new byte[0];
+            } else if (methodName.equals("sum")) {
+                return ABIEncoder.encodeOneInteger(sum());
+            } else {
+                return new byte[0];
+            }
+        }
+    }
+
+    public static void append(int value) {
+        Node node = new Node(value);
+        if (null == head) {
+            head = node;
+        } else {
+            Node last = head;
+            while (null != last.next) {
+                last = last.next;
+            }
+            last.next = node;
+        }
+        counts[0] += 1;
+    }
+
+    public static void increment(int index) {
+        Node node = head;
+        for (int i = 0; i < index; ++i) {
+            node = node.next;
+        }
+        node.value += 1;
+        counts[1] += 1;
+    }
+
+    public static void incrementViaReentrantCall(int index) {
+        byte[] data = new ABIStreamingEncoder()
+                .encodeOneString("increment")
+                .encodeOneInteger(index)
+                .toBytes();
+        Blockchain.call(Blockchain.getAddress(), BigInteger.ZERO, data, 500_000L);
+        // Write to the caller's instances after the callee's changes have been committed to them.
+        head.value += 100;
+        counts[2] += 1;
+    }
+
+    public static int sum() {
+        int sum = 0;
+        for (Node node = head; null != node; node = node.next) {
+            sum += node.value;
+        }
+        return sum;
+    }
+
+
+    public static class Node {
+        public int value;
+        public Node next;
+
+        public Node(int value) {
+            this.value = value;
+        }
+    }
+}
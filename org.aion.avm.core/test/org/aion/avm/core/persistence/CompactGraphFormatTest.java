@@ -0,0 +1,259 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import org.aion.avm.core.NodeEnvironment;
+import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.internal.CommonInstrumentation;
+import org.aion.avm.internal.IInstrumentation;
+import org.aion.avm.internal.IRuntimeSetup;
+import org.aion.avm.internal.InstrumentationHelpers;
+import org.aion.avm.internal.InternedClasses;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the compact graph format (CompactGraphFormat and GraphCompression), and that graphs in either format are read in the format
+ * they are said to be in (never guessed from the graph).
+ */
+public class CompactGraphFormatTest {
+    private static final int MAX_GRAPH_SIZE = 100_000;
+    private static final int CHAIN_LENGTH = 50;
+
+    private IInstrumentation instrumentation;
+    private AvmClassLoader loader;
+    private IRuntimeSetup runtimeSetup;
+
+    @Before
+    public void setup() {
+        // Force the initialization of the NodeEnvironment singleton.
+        Assert.assertNotNull(NodeEnvironment.singleton);
+
+        Map<String, byte[]> classAndHelper = Helpers.mapIncludingHelperBytecode(Collections.emptyMap(), Helpers.loadDefaultHelperBytecode());
+        this.loader = NodeEnvironment.singleton.createInvocationClassLoader(classAndHelper);
+
+        this.instrumentation = new CommonInstrumentation();
+        InstrumentationHelpers.attachThread(this.instrumentation);
+        this.runtimeSetup = Helpers.getSetupForLoader(this.loader);
+        InstrumentationHelpers.pushNewStackFrame(this.runtimeSetup, this.loader, 1_000_000L, 1, new InternedClasses());
+
+        clearStaticState();
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationHelpers.popExistingStackFrame(this.runtimeSetup);
+        InstrumentationHelpers.detachThread(this.instrumentation);
+    }
+
+    @Test
+    public void testVarints() {
+        long[] values = new long[] {0L, 1L, -1L, 63L, -64L, 64L, 127L, 128L, Short.MIN_VALUE, Character.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        for (long value : values) {
+            CompactGraphFormat.putSignedVarint(buffer, value);
+            CompactGraphFormat.putVarint(buffer, value);
+        }
+        CompactGraphFormat.putReference(buffer, ReferenceConstants.REF_NORMAL, Integer.MAX_VALUE);
+        CompactGraphFormat.putReference(buffer, ReferenceConstants.REF_CONSTANT, -5);
+        buffer.flip();
+        for (long value : values) {
+            Assert.assertEquals(value, CompactGraphFormat.getSignedVarint(buffer));
+            Assert.assertEquals(value, CompactGraphFormat.getVarint(buffer));
+        }
+        long reference = CompactGraphFormat.getVarint(buffer);
+        Assert.assertEquals(ReferenceConstants.REF_NORMAL, CompactGraphFormat.getReferenceType(reference));
+        Assert.assertEquals(Integer.MAX_VALUE, CompactGraphFormat.getReferenceValue(reference));
+        reference = CompactGraphFormat.getVarint(buffer);
+        Assert.assertEquals(ReferenceConstants.REF_CONSTANT, CompactGraphFormat.getReferenceType(reference));
+        Assert.assertEquals(-5, CompactGraphFormat.getReferenceValue(reference));
+        Assert.assertFalse(buffer.hasRemaining());
+
+        // Small values only take a byte.
+        buffer.clear();
+        CompactGraphFormat.putSignedVarint(buffer, -64L);
+        CompactGraphFormat.putReference(buffer, ReferenceConstants.REF_NORMAL, 31);
+        Assert.assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void testCompression() {
+        Random random = new Random(42);
+        byte[] noise = new byte[10_000];
+        random.nextBytes(noise);
+        byte[] repetitive = new byte[100_000];
+        for (int i = 0; i < repetitive.length; ++i) {
+            repetitive[i] = (byte) ((0 == (i % 1000)) ? random.nextInt() : (i % 7));
+        }
+        byte[] run = new byte[70_000];
+        Arrays.fill(run, (byte) 5);
+
+        for (byte[] input : new byte[][] {new byte[0], new byte[] {1, 2, 3}, "abcabcabcabcabcabcabc".getBytes(), noise, repetitive, run}) {
+            byte[] compressed = new byte[GraphCompression.maxCompressedLength(input.length)];
+            int compressedLength = GraphCompression.compress(input, input.length, compressed);
+            Assert.assertTrue(compressedLength <= compressed.length);
+            byte[] decompressed = new byte[input.length];
+            GraphCompression.decompress(ByteBuffer.wrap(compressed, 0, compressedLength), decompressed);
+            Assert.assertArrayEquals(input, decompressed);
+        }
+        byte[] compressed = new byte[GraphCompression.maxCompressedLength(repetitive.length)];
+        Assert.assertTrue(GraphCompression.compress(repetitive, repetitive.length, compressed) < (repetitive.length / 10));
+    }
+
+    /**
+     * Saves the same graph in each format and makes sure that each loads back into a graph identical to the original.
+     */
+    @Test
+    public void testFormatsReadSideBySide() {
+        populateGraph();
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class, ReflectionStructureCodecTargetSub.class, LoadedDAppTarget.class), ReflectionStructureCodecTarget.class.getName(), false);
+        byte[] original = dapp.saveEntireGraph(7, MAX_GRAPH_SIZE);
+        byte[] compact = dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, null, GraphEncoding.COMPACT);
+        byte[] compressed = dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, null, GraphEncoding.COMPACT_COMPRESSED);
+
+        Assert.assertFalse(CompactGraphFormat.hasCompactHeader(ByteBuffer.wrap(original)));
+        Assert.assertTrue(CompactGraphFormat.hasCompactHeader(ByteBuffer.wrap(compact)));
+        Assert.assertTrue(CompactGraphFormat.hasCompactHeader(ByteBuffer.wrap(compressed)));
+        Assert.assertEquals(0, compact[Integer.BYTES + 1]);
+        Assert.assertEquals(CompactGraphFormat.FLAG_COMPRESSED, compressed[Integer.BYTES + 1]);
+        // (the class name of each instance is a large part of the original graph)
+        Assert.assertTrue(compact.length < (original.length / 2));
+        Assert.assertTrue(compressed.length < compact.length);
+
+        // Saving through one thread's reused buffers produces the same graphs.
+        GraphBuffers buffers = new GraphBuffers();
+        for (int i = 0; i < 2; ++i) {
+            Assert.assertArrayEquals(compressed, dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, null, GraphEncoding.COMPACT_COMPRESSED, buffers));
+            Assert.assertArrayEquals(original, dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, null, GraphEncoding.ORIGINAL, buffers));
+            Assert.assertArrayEquals(compact, dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, null, GraphEncoding.COMPACT, buffers));
+        }
+
+        for (byte[] graph : new byte[][] {original, compact, compressed}) {
+            clearStaticState();
+            GraphEncoding encoding = (graph == original) ? GraphEncoding.ORIGINAL : GraphEncoding.COMPACT;
+            Assert.assertEquals(7, dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(graph), encoding, false, false));
+            checkGraph();
+            Assert.assertArrayEquals(original, dapp.saveEntireGraph(7, MAX_GRAPH_SIZE));
+        }
+
+        // A compact graph is also read in place (from a buffer which isn't a whole array).
+        for (byte[] graph : new byte[][] {compact, compressed}) {
+            clearStaticState();
+            ByteBuffer view = ByteBuffer.allocate(graph.length + 10);
+            view.position(5);
+            view.put(graph);
+            view.position(5).limit(5 + graph.length);
+            Assert.assertEquals(7, dapp.loadEntireGraph(new InternedClasses(), view.slice(), GraphEncoding.COMPACT, true, false));
+            checkGraph();
+            Assert.assertArrayEquals(graph, dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, null, (graph == compact) ? GraphEncoding.COMPACT : GraphEncoding.COMPACT_COMPRESSED));
+        }
+    }
+
+    /**
+     * Loads a graph lazily and saves it, in a different format, before its stubs are used.
+     */
+    @Test
+    public void testLazyGraphSavedInOtherFormat() {
+        populateGraph();
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class, ReflectionStructureCodecTargetSub.class, LoadedDAppTarget.class), ReflectionStructureCodecTarget.class.getName(), false);
+        byte[] original = dapp.saveEntireGraph(7, MAX_GRAPH_SIZE);
+        byte[] compact = dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, null, GraphEncoding.COMPACT);
+
+        clearStaticState();
+        dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(original), true, true);
+        Assert.assertArrayEquals(compact, dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, new BitSet(), GraphEncoding.COMPACT));
+
+        clearStaticState();
+        dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(compact), GraphEncoding.COMPACT, true, true);
+        Assert.assertArrayEquals(original, dapp.saveEntireGraph(7, MAX_GRAPH_SIZE, new BitSet(), GraphEncoding.ORIGINAL));
+    }
+
+    /**
+     * A graph in the original format can start just like a compact graph (here, its nextHashCode has wrapped around to 0 and the first
+     * static field starts with the version and the compressed flag) but, since it isn't said to be compact, it is still read in the
+     * original format.
+     */
+    @Test
+    public void testOriginalGraphWithCompactHeader() {
+        populateGraph();
+        // The first static field of the first class (LoadedDAppTarget.s_eight, since they are sorted by name) follows the nextHashCode.
+        double ambiguousValue = Double.longBitsToDouble(((long) CompactGraphFormat.VERSION << 56) | ((long) CompactGraphFormat.FLAG_COMPRESSED << 48));
+        LoadedDAppTarget.s_eight = ambiguousValue;
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class, ReflectionStructureCodecTargetSub.class, LoadedDAppTarget.class), ReflectionStructureCodecTarget.class.getName(), false);
+        byte[] original = dapp.saveEntireGraph(0, MAX_GRAPH_SIZE);
+        Assert.assertTrue(CompactGraphFormat.hasCompactHeader(ByteBuffer.wrap(original)));
+
+        clearStaticState();
+        Assert.assertEquals(0, dapp.loadEntireGraph(new InternedClasses(), original));
+        checkGraph();
+        Assert.assertEquals(ambiguousValue, LoadedDAppTarget.s_eight, 0.0d);
+        Assert.assertArrayEquals(original, dapp.saveEntireGraph(0, MAX_GRAPH_SIZE));
+    }
+
+
+    private static void populateGraph() {
+        // A chain of instances, with values of all sizes, which ends at an instance of the sub-class.
+        ReflectionStructureCodecTargetSub tail = new ReflectionStructureCodecTargetSub();
+        tail.i_five = -1;
+        tail.i_seven = Long.MIN_VALUE;
+        ((ReflectionStructureCodecTarget) tail).i_five = 42;
+        ReflectionStructureCodecTarget next = tail;
+        for (int i = 0; i < CHAIN_LENGTH; ++i) {
+            ReflectionStructureCodecTarget target = new ReflectionStructureCodecTarget();
+            target.i_one = (0 == (i % 2));
+            target.i_two = (byte) i;
+            target.i_three = (short) (-i * 100);
+            target.i_four = (char) (i * 1000);
+            target.i_five = i * 1_000_000;
+            target.i_six = i / 3.0f;
+            target.i_seven = -i * 1_000_000_000_000L;
+            target.i_eight = i / 7.0d;
+            target.i_nine = next;
+            next = target;
+        }
+        ReflectionStructureCodecTarget.s_nine = next;
+        ReflectionStructureCodecTarget.s_five = Integer.MIN_VALUE;
+        ReflectionStructureCodecTargetSub.s_nine = tail;
+        ReflectionStructureCodecTargetSub.s_four = Character.MAX_VALUE;
+        LoadedDAppTarget.s_seven = Long.MAX_VALUE;
+        LoadedDAppTarget.s_nine = org.aion.avm.shadow.java.math.RoundingMode.avm_HALF_EVEN;
+    }
+
+    private static void checkGraph() {
+        Assert.assertEquals(Integer.MIN_VALUE, ReflectionStructureCodecTarget.s_five);
+        Assert.assertEquals(Character.MAX_VALUE, ReflectionStructureCodecTargetSub.s_four);
+        Assert.assertEquals(Long.MAX_VALUE, LoadedDAppTarget.s_seven);
+        Assert.assertTrue(org.aion.avm.shadow.java.math.RoundingMode.avm_HALF_EVEN == LoadedDAppTarget.s_nine);
+        ReflectionStructureCodecTarget target = ReflectionStructureCodecTarget.s_nine;
+        for (int i = CHAIN_LENGTH - 1; i >= 0; --i) {
+            target.lazyLoad();
+            Assert.assertEquals((short) (-i * 100), target.i_three);
+            Assert.assertEquals((char) (i * 1000), target.i_four);
+            Assert.assertEquals(-i * 1_000_000_000_000L, target.i_seven);
+            target = target.i_nine;
+        }
+        Assert.assertTrue(ReflectionStructureCodecTargetSub.s_nine == target);
+        target.lazyLoad();
+        Assert.assertEquals(42, target.i_five);
+        Assert.assertEquals(Long.MIN_VALUE, ReflectionStructureCodecTargetSub.s_nine.i_seven);
+    }
+
+    private static void clearStaticState() {
+        ReflectionStructureCodecTarget.s_five = 0;
+        ReflectionStructureCodecTarget.s_nine = null;
+        ReflectionStructureCodecTargetSub.s_four = 0;
+        ReflectionStructureCodecTargetSub.s_nine = null;
+        LoadedDAppTarget.s_seven = 0L;
+        LoadedDAppTarget.s_eight = 0.0d;
+        LoadedDAppTarget.s_nine = null;
+    }
+}
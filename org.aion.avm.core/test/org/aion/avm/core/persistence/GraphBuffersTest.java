@@ -0,0 +1,88 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.aion.avm.internal.OutOfEnergyException;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * Tests that GraphBuffers grow to fit the graph being serialized, are reused for the next one, and still enforce each graph's limit.
+ */
+public class GraphBuffersTest {
+    @Test
+    public void testGrowsToFit() {
+        GraphBuffers buffers = new GraphBuffers();
+        CountingWriter writer = new CountingWriter(300_000);
+        byte[] graph = buffers.serialize(500_000, writer);
+        checkGraph(300_000, graph);
+        // It started small so the graph had to be written again, at least once.
+        Assert.assertTrue(writer.attempts > 1);
+
+        // Now that they have grown, a graph the same size fits the first time.
+        writer = new CountingWriter(300_000);
+        checkGraph(300_000, buffers.serialize(500_000, writer));
+        Assert.assertEquals(1, writer.attempts);
+    }
+
+    @Test
+    public void testLimitEnforced() {
+        GraphBuffers buffers = new GraphBuffers();
+        // Even after they have grown, a graph bigger than its own limit doesn't fit.
+        checkGraph(300_000, buffers.serialize(500_000, new CountingWriter(300_000)));
+        try {
+            buffers.serialize(200_000, new CountingWriter(200_001));
+            Assert.fail();
+        } catch (OutOfEnergyException e) {
+            // Expected.
+        }
+        // A graph exactly at the limit fits.
+        checkGraph(200_000, buffers.serialize(200_000, new CountingWriter(200_000)));
+    }
+
+    @Test
+    public void testScratchBuffersMatchAttempt() {
+        GraphBuffers buffers = new GraphBuffers();
+        buffers.serialize(100_000, (outputBuffer) -> {
+            Assert.assertEquals(outputBuffer.limit(), buffers.getBodyBuffer().remaining());
+            Assert.assertEquals(outputBuffer.limit(), buffers.getPayloadBuffer().remaining());
+            Assert.assertTrue(buffers.getCompressionBuffer(outputBuffer.limit()).length >= GraphCompression.maxCompressedLength(outputBuffer.limit()));
+        });
+    }
+
+
+    private static void checkGraph(int expectedSize, byte[] graph) {
+        Assert.assertEquals(expectedSize, graph.length);
+        for (int i = 0; i < graph.length; ++i) {
+            Assert.assertEquals((byte) i, graph[i]);
+        }
+    }
+
+
+    /**
+     * Writes the given number of bytes, reporting running off the end of the buffer as out of energy (as the Serializer does).
+     */
+    private static class CountingWriter implements GraphBuffers.IGraphWriter {
+        private final int size;
+        public int attempts;
+
+        public CountingWriter(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void writeGraph(ByteBuffer outputBuffer) {
+            this.attempts += 1;
+            Assert.assertEquals(0, outputBuffer.position());
+            try {
+                for (int i = 0; i < this.size; ++i) {
+                    outputBuffer.put((byte) i);
+                }
+            } catch (BufferOverflowException e) {
+                throw new OutOfEnergyException();
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.aion.avm.core.persistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.aion.avm.core.ClassToolchain;
+import org.aion.avm.core.NodeEnvironment;
+import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.internal.CommonInstrumentation;
+import org.aion.avm.internal.IInstrumentation;
+import org.aion.avm.internal.IObjectDeserializer;
+import org.aion.avm.internal.IObjectSerializer;
+import org.aion.avm.internal.IRuntimeSetup;
+import org.aion.avm.internal.InstrumentationHelpers;
+import org.aion.avm.internal.InternedClasses;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+
+
+/**
+ * Tests that the serialization code generated by GraphCodecVisitor reads and writes exactly the same graph as the reflective walk.
+ */
+public class GraphCodecVisitorTest {
+    private static final int MAX_GRAPH_SIZE = 1000;
+
+    private IInstrumentation instrumentation;
+    private AvmClassLoader loader;
+    private IRuntimeSetup runtimeSetup;
+
+    @Before
+    public void setup() {
+        // Force the initialization of the NodeEnvironment singleton.
+        Assert.assertNotNull(NodeEnvironment.singleton);
+
+        // The loader sees the generated versions of the targets, instead of the plain ones on our classpath.
+        String targetSlashName = ReflectionStructureCodecTarget.class.getName().replaceAll("\\.", "/");
+        String subSlashName = ReflectionStructureCodecTargetSub.class.getName().replaceAll("\\.", "/");
+        Set<String> instanceCodecClasses = Set.of(targetSlashName, subSlashName);
+        Map<String, byte[]> classes = new HashMap<>();
+        classes.put(ReflectionStructureCodecTarget.class.getName(), generateCodec(targetSlashName, instanceCodecClasses));
+        classes.put(ReflectionStructureCodecTargetSub.class.getName(), generateCodec(subSlashName, instanceCodecClasses));
+        Map<String, byte[]> classAndHelper = Helpers.mapIncludingHelperBytecode(classes, Helpers.loadDefaultHelperBytecode());
+        this.loader = NodeEnvironment.singleton.createInvocationClassLoader(classAndHelper);
+
+        this.instrumentation = new CommonInstrumentation();
+        InstrumentationHelpers.attachThread(this.instrumentation);
+        this.runtimeSetup = Helpers.getSetupForLoader(this.loader);
+        InstrumentationHelpers.pushNewStackFrame(this.runtimeSetup, this.loader, 1_000_000L, 1, new InternedClasses());
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationHelpers.popExistingStackFrame(this.runtimeSetup);
+        InstrumentationHelpers.detachThread(this.instrumentation);
+    }
+
+    @Test
+    public void testGeneratedMethods() throws Exception {
+        for (Class<?> clazz : loadGeneratedClasses()) {
+            Assert.assertEquals(clazz, clazz.getDeclaredMethod("serializeSelf", Class.class, IObjectSerializer.class).getDeclaringClass());
+            Assert.assertEquals(clazz, clazz.getDeclaredMethod("deserializeSelf", Class.class, IObjectDeserializer.class).getDeclaringClass());
+            clazz.getDeclaredMethod(GraphCodecVisitor.SERIALIZE_STATICS_NAME, IObjectSerializer.class);
+            clazz.getDeclaredMethod(GraphCodecVisitor.DESERIALIZE_STATICS_NAME, IObjectDeserializer.class);
+        }
+    }
+
+    /**
+     * Builds a graph with the plain (reflectively walked) targets, loads it into the generated ones, and makes sure that they save the
+     * same bytes.
+     */
+    @Test
+    public void testSameGraphAsReflection() throws Exception {
+        ReflectionStructureCodecTarget.s_one = true;
+        ReflectionStructureCodecTarget.s_two = 5;
+        ReflectionStructureCodecTarget.s_three = 5;
+        ReflectionStructureCodecTarget.s_four = 5;
+        ReflectionStructureCodecTarget.s_five = 5;
+        ReflectionStructureCodecTarget.s_six = 5.0f;
+        ReflectionStructureCodecTarget.s_seven = 5;
+        ReflectionStructureCodecTarget.s_eight = 5.0d;
+        ReflectionStructureCodecTarget.s_nine = new ReflectionStructureCodecTarget();
+        ReflectionStructureCodecTarget.s_nine.i_two = 6;
+        ReflectionStructureCodecTarget.s_nine.i_eight = 6.0d;
+        ReflectionStructureCodecTarget.s_nine.i_nine = ReflectionStructureCodecTarget.s_nine;
+
+        ReflectionStructureCodecTargetSub.s_four = 9;
+        ReflectionStructureCodecTargetSub.s_seven = 9;
+        ReflectionStructureCodecTargetSub.s_nine = new ReflectionStructureCodecTargetSub();
+        ReflectionStructureCodecTargetSub.s_nine.i_one = true;
+        ReflectionStructureCodecTargetSub.s_nine.i_six = 9.0f;
+        ReflectionStructureCodecTargetSub.s_nine.i_nine = ReflectionStructureCodecTargetSub.s_nine;
+        ((ReflectionStructureCodecTarget)ReflectionStructureCodecTargetSub.s_nine).i_five = 42;
+        ((ReflectionStructureCodecTarget)ReflectionStructureCodecTargetSub.s_nine).i_nine = ReflectionStructureCodecTarget.s_nine;
+
+        LoadedDApp reflectiveDApp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class, ReflectionStructureCodecTargetSub.class), ReflectionStructureCodecTarget.class.getName(), false);
+        byte[] expected = reflectiveDApp.saveEntireGraph(1, MAX_GRAPH_SIZE);
+
+        Class<?>[] generated = loadGeneratedClasses();
+        LoadedDApp generatedDApp = new LoadedDApp(this.loader, Arrays.asList(generated), ReflectionStructureCodecTarget.class.getName(), false);
+        int nextHashCode = generatedDApp.loadEntireGraph(new InternedClasses(), expected);
+        Assert.assertEquals(1, nextHashCode);
+        Assert.assertEquals(5, generated[0].getField("s_five").getInt(null));
+        Assert.assertEquals(42, generated[0].getField("i_five").getInt(generated[1].getField("s_nine").get(null)));
+
+        byte[] actual = generatedDApp.saveEntireGraph(nextHashCode, MAX_GRAPH_SIZE);
+        Assert.assertArrayEquals(expected, actual);
+    }
+
+
+    private static byte[] generateCodec(String slashName, Set<String> instanceCodecClasses) {
+        byte[] original = Helpers.loadRequiredResourceAsBytes(slashName + ".class");
+        return new ClassToolchain.Builder(original, 0)
+                .addNextVisitor(new GraphCodecVisitor(instanceCodecClasses))
+                .addWriter(new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS))
+                .build()
+                .runAndGetBytecode();
+    }
+
+    private Class<?>[] loadGeneratedClasses() throws ClassNotFoundException {
+        Class<?> target = this.loader.loadClass(ReflectionStructureCodecTarget.class.getName());
+        Class<?> sub = this.loader.loadClass(ReflectionStructureCodecTargetSub.class.getName());
+        // (make sure we didn't just get the plain classes from the parent loader)
+        Assert.assertNotEquals(ReflectionStructureCodecTarget.class, target);
+        return new Class<?>[] {target, sub};
+    }
+}
@@ -1,7 +1,9 @@
 package org.aion.avm.core.persistence;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Map;
 
@@ -511,6 +513,92 @@ public class LoadedDAppTest {
     }
 
 
+    /**
+     * Loads a graph with a snapshot and verifies that saving it copies the instances which weren't noted as written
+     * (even re-numbering what they reference) but serializes those which were, producing the same graph as a full save.
+     */
+    @Test
+    public void saveReusingUnchangedInstances() {
+        ReflectionStructureCodecTarget.s_nine = new ReflectionStructureCodecTarget();
+        ReflectionStructureCodecTarget.s_nine.i_five = 5;
+        ReflectionStructureCodecTargetSub.s_nine = new ReflectionStructureCodecTargetSub();
+        ReflectionStructureCodecTargetSub.s_nine.i_nine = ReflectionStructureCodecTargetSub.s_nine;
+        ((ReflectionStructureCodecTarget)ReflectionStructureCodecTargetSub.s_nine).i_nine = ReflectionStructureCodecTarget.s_nine;
+        ReflectionStructureCodecTarget.s_nine.i_nine = ReflectionStructureCodecTargetSub.s_nine;
+        
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class, ReflectionStructureCodecTargetSub.class), ReflectionStructureCodecTarget.class.getName(), this.preserveDebuggability);
+        byte[] original = dapp.saveEntireGraph(1, MAX_GRAPH_SIZE);
+        
+        // A write which isn't noted isn't seen, since the instance is copied from the snapshot.
+        clearStaticState();
+        dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(original), true);
+        ReflectionStructureCodecTarget.s_nine.i_five = 6;
+        Assert.assertArrayEquals(original, dapp.saveEntireGraph(1, MAX_GRAPH_SIZE, new BitSet()));
+        
+        // Noting the write means that instance is serialized again.
+        clearStaticState();
+        dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(original), true);
+        ReflectionStructureCodecTarget.s_nine.i_five = 6;
+        BitSet writtenInstances = new BitSet();
+        writtenInstances.set(ReflectionStructureCodecTarget.s_nine.readIndex);
+        byte[] reusing = dapp.saveEntireGraph(1, MAX_GRAPH_SIZE, writtenInstances);
+        Assert.assertFalse(Arrays.equals(original, reusing));
+        Assert.assertArrayEquals(dapp.saveEntireGraph(1, MAX_GRAPH_SIZE), reusing);
+        
+        // A new instance, ahead of the loaded ones, changes their indices so the references within the copied instances are re-numbered.
+        clearStaticState();
+        dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(original), true);
+        ReflectionStructureCodecTarget loaded = ReflectionStructureCodecTarget.s_nine;
+        ReflectionStructureCodecTarget.s_nine = new ReflectionStructureCodecTarget();
+        ReflectionStructureCodecTarget.s_nine.i_nine = loaded;
+        reusing = dapp.saveEntireGraph(1, MAX_GRAPH_SIZE, new BitSet());
+        Assert.assertArrayEquals(dapp.saveEntireGraph(1, MAX_GRAPH_SIZE), reusing);
+        
+        // Once saved, the snapshot is gone so a later save is a full one.
+        ReflectionStructureCodecTarget.s_nine.i_nine.i_five = 7;
+        Assert.assertFalse(Arrays.equals(reusing, dapp.saveEntireGraph(1, MAX_GRAPH_SIZE, new BitSet())));
+    }
+
+    /**
+     * Loads a graph lazily and verifies that its instances are only populated once lazyLoad() is called on them, and that the graph is
+     * saved unchanged whether they were loaded or not.
+     */
+    @Test
+    public void loadLazily() {
+        ReflectionStructureCodecTarget.s_nine = new ReflectionStructureCodecTarget();
+        ReflectionStructureCodecTargetSub.s_nine = new ReflectionStructureCodecTargetSub();
+        ReflectionStructureCodecTargetSub.s_nine.i_nine = ReflectionStructureCodecTargetSub.s_nine;
+        ReflectionStructureCodecTarget.s_nine.i_nine = ReflectionStructureCodecTargetSub.s_nine;
+        
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class, ReflectionStructureCodecTargetSub.class), ReflectionStructureCodecTarget.class.getName(), this.preserveDebuggability);
+        byte[] original = dapp.saveEntireGraph(1, MAX_GRAPH_SIZE);
+        
+        // Both instances are stubs, until they are used.
+        clearStaticState();
+        dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(original), false, true);
+        this.instrumentation.attachInstanceLoader(dapp.getInstanceLoader());
+        ReflectionStructureCodecTarget target = ReflectionStructureCodecTarget.s_nine;
+        ReflectionStructureCodecTargetSub sub = ReflectionStructureCodecTargetSub.s_nine;
+        Assert.assertTrue(target.readIndex >= org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
+        Assert.assertTrue(sub.readIndex >= org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
+        Assert.assertNull(target.i_nine);
+        target.lazyLoad();
+        Assert.assertTrue(target.readIndex < org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
+        Assert.assertTrue(sub == target.i_nine);
+        Assert.assertTrue(sub.readIndex >= org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
+        // The stub which was never used is copied.
+        Assert.assertArrayEquals(original, dapp.saveEntireGraph(1, MAX_GRAPH_SIZE, null));
+        
+        // Saving without the snapshot loads every stub left.
+        clearStaticState();
+        dapp.loadEntireGraph(new InternedClasses(), ByteBuffer.wrap(original), false, true);
+        this.instrumentation.attachInstanceLoader(dapp.getInstanceLoader());
+        Assert.assertArrayEquals(original, dapp.saveEntireGraph(1, MAX_GRAPH_SIZE));
+        Assert.assertTrue(ReflectionStructureCodecTargetSub.s_nine == ReflectionStructureCodecTargetSub.s_nine.i_nine);
+        Assert.assertTrue(ReflectionStructureCodecTargetSub.s_nine.readIndex < org.aion.avm.shadow.java.lang.Object.STUB_READ_INDEX_BASE);
+    }
+
+
     private static void clearStaticState() {
         ReflectionStructureCodecTarget.s_one = false;
         ReflectionStructureCodecTarget.s_two = 0;
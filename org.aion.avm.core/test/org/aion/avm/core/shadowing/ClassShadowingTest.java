@@ -337,5 +337,21 @@ public class ClassShadowingTest {
         }
         @Override
         public boolean isLoadedByCurrentClassLoader(java.lang.Class userClass) { return this.realImplementation.isLoadedByCurrentClassLoader(userClass); }
+        @Override
+        public void noteInstanceWrite(int readIndex) {
+            this.realImplementation.noteInstanceWrite(readIndex);
+        }
+        @Override
+        public java.util.BitSet getWrittenInstances() {
+            return this.realImplementation.getWrittenInstances();
+        }
+        @Override
+        public void attachInstanceLoader(IInstanceLoader loader) {
+            this.realImplementation.attachInstanceLoader(loader);
+        }
+        @Override
+        public void loadInstance(java.lang.Object instance, int readIndex) {
+            this.realImplementation.loadInstance(instance, readIndex);
+        }
     }
 }
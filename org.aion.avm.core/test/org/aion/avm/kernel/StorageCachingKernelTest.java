@@ -0,0 +1,93 @@
+package org.aion.avm.kernel;
+
+import java.util.Arrays;
+
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.StorageCachingKernel;
+import org.aion.kernel.TestingKernel;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class StorageCachingKernelTest {
+    @Test
+    public void testHitsAndAbsentKeys() {
+        CountingKernel base = new CountingKernel();
+        StorageCachingKernel kernel = new StorageCachingKernel(base, 16);
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        byte[] absentKey = Helpers.randomBytes(32);
+        byte[] value = Helpers.randomBytes(32);
+        base.putStorage(address, key, value);
+
+        for (int i = 0; i < 5; ++i) {
+            Assert.assertTrue(Arrays.equals(value, kernel.getStorage(address, key)));
+            Assert.assertNull(kernel.getStorage(address, absentKey));
+        }
+        // Only the first read of each key (present or not) reaches the underlying kernel.
+        Assert.assertEquals(2, base.storageReads);
+        Assert.assertEquals(2L, kernel.getMissCount());
+        Assert.assertEquals(8L, kernel.getHitCount());
+    }
+
+    @Test
+    public void testWritesReplaceCachedValues() {
+        CountingKernel base = new CountingKernel();
+        StorageCachingKernel kernel = new StorageCachingKernel(base, 16);
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        byte[] value = Helpers.randomBytes(32);
+
+        Assert.assertNull(kernel.getStorage(address, key));
+        kernel.putStorage(address, key, value);
+        Assert.assertTrue(Arrays.equals(value, kernel.getStorage(address, key)));
+        // A contract modifying what it read must not change what the next transaction reads.
+        kernel.getStorage(address, key)[0] += 1;
+        Assert.assertTrue(Arrays.equals(value, kernel.getStorage(address, key)));
+        kernel.removeStorage(address, key);
+        Assert.assertNull(kernel.getStorage(address, key));
+        // The writes were cached so nothing was re-read.
+        Assert.assertEquals(1, base.storageReads);
+        Assert.assertNull(base.getStorage(address, key));
+
+        kernel.putStorage(address, key, value);
+        kernel.deleteAccount(address);
+        Assert.assertNull(kernel.getStorage(address, key));
+        Assert.assertEquals(3, base.storageReads);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() {
+        CountingKernel base = new CountingKernel();
+        StorageCachingKernel kernel = new StorageCachingKernel(base, 2);
+        Address address = Helpers.randomAddress();
+        byte[] key1 = Helpers.randomBytes(32);
+        byte[] key2 = Helpers.randomBytes(32);
+        byte[] key3 = Helpers.randomBytes(32);
+
+        kernel.getStorage(address, key1);
+        kernel.getStorage(address, key2);
+        kernel.getStorage(address, key1);
+        kernel.getStorage(address, key3);
+        Assert.assertEquals(2, kernel.getCachedKeyCount());
+        Assert.assertEquals(3, base.storageReads);
+
+        // key2 was the least recently used so it is the one which was evicted.
+        kernel.getStorage(address, key1);
+        Assert.assertEquals(3, base.storageReads);
+        kernel.getStorage(address, key2);
+        Assert.assertEquals(4, base.storageReads);
+    }
+
+
+    private static class CountingKernel extends TestingKernel {
+        private int storageReads;
+
+        @Override
+        public byte[] getStorage(Address address, byte[] key) {
+            this.storageReads += 1;
+            return super.getStorage(address, key);
+        }
+    }
+}
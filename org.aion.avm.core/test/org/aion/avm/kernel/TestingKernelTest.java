@@ -1,15 +1,26 @@
 package org.aion.avm.kernel;
 
+import java.io.File;
 import java.math.BigInteger;
 import org.aion.avm.core.util.Helpers;
+import org.aion.data.LogStructuredDataStore;
+import org.aion.data.OffHeapDataStore;
+import org.aion.kernel.Block;
 import org.aion.kernel.TestingKernel;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.KernelInterface;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class TestingKernelTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Test
     public void testPremine() {
@@ -22,4 +33,77 @@ public class TestingKernelTest {
         assertEquals(TestingKernel.PREMINED_AMOUNT.subtract(delta), kernel.getBalance(TestingKernel.PREMINED_ADDRESS));
         assertEquals(delta, kernel.getBalance(address));
     }
+
+    @Test
+    public void testReopenLogStructuredStore() throws Exception {
+        File storage = folder.newFolder();
+        Block block = new Block(new byte[32], 1, Helpers.randomAddress(), System.currentTimeMillis(), new byte[0]);
+        Address address = Helpers.randomAddress();
+        BigInteger delta = BigInteger.valueOf(10);
+        LogStructuredDataStore store = new LogStructuredDataStore(storage);
+        KernelInterface kernel = new TestingKernel(store, block);
+        kernel.adjustBalance(TestingKernel.PREMINED_ADDRESS, delta.negate());
+        kernel.adjustBalance(address, delta);
+        store.close();
+
+        // The premine is only applied to a new store.
+        store = new LogStructuredDataStore(storage);
+        kernel = new TestingKernel(store, block);
+        assertEquals(TestingKernel.PREMINED_AMOUNT.subtract(delta), kernel.getBalance(TestingKernel.PREMINED_ADDRESS));
+        assertEquals(delta, kernel.getBalance(address));
+        store.close();
+    }
+
+    @Test
+    public void testOffHeapStore() {
+        Block block = new Block(new byte[32], 1, Helpers.randomAddress(), System.currentTimeMillis(), new byte[0]);
+        Address address = Helpers.randomAddress();
+        BigInteger delta = BigInteger.valueOf(10);
+        OffHeapDataStore store = new OffHeapDataStore();
+        KernelInterface kernel = new TestingKernel(store, block);
+        kernel.adjustBalance(TestingKernel.PREMINED_ADDRESS, delta.negate());
+        kernel.adjustBalance(address, delta);
+        kernel.putStorage(address, new byte[] {1}, new byte[] {2});
+        assertEquals(TestingKernel.PREMINED_AMOUNT.subtract(delta), kernel.getBalance(TestingKernel.PREMINED_ADDRESS));
+        assertEquals(delta, kernel.getBalance(address));
+
+        // Deleting the account frees everything it held.
+        int recordCount = store.getRecordCount();
+        kernel.deleteAccount(address);
+        assertEquals(recordCount - 2, store.getRecordCount());
+    }
+
+    @Test
+    public void testSnapshotAndRevert() {
+        TestingKernel kernel = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key = new byte[] {1};
+        kernel.adjustBalance(address, BigInteger.ONE);
+        kernel.putStorage(address, key, new byte[] {1});
+        long startBlock = kernel.getBlockNumber();
+        TestingKernel.Snapshot start = kernel.snapshot();
+
+        // Apply one "block".
+        kernel.adjustBalance(address, BigInteger.ONE);
+        kernel.putStorage(address, key, new byte[] {2});
+        kernel.updateBlock(new Block(new byte[32], startBlock + 1, Helpers.randomAddress(), System.currentTimeMillis(), new byte[0]));
+        TestingKernel.Snapshot first = kernel.snapshot();
+
+        // Revert and apply a competing one, instead.
+        kernel.revertTo(start);
+        assertEquals(BigInteger.ONE, kernel.getBalance(address));
+        assertEquals(startBlock, kernel.getBlockNumber());
+        kernel.deleteAccount(address);
+        assertFalse(kernel.hasAccountState(address));
+
+        // Both earlier states are still intact.
+        kernel.revertTo(first);
+        assertEquals(BigInteger.TWO, kernel.getBalance(address));
+        assertEquals(2, kernel.getStorage(address, key)[0]);
+        assertEquals(startBlock + 1, kernel.getBlockNumber());
+        kernel.revertTo(start);
+        assertTrue(kernel.hasAccountState(address));
+        assertEquals(1, kernel.getStorage(address, key)[0]);
+        assertNull(kernel.getStorage(address, new byte[] {2}));
+    }
 }
@@ -130,4 +130,147 @@ public class TransactionalKernelTest {
         transaction.commit();
         Assert.assertEquals(BigInteger.TWO, base.getBalance(address));
     }
+    @Test
+    public void testCommitCoalescesWrites() {
+        KernelInterface base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        byte[] removedKey = Helpers.randomBytes(32);
+        base.putStorage(address, removedKey, new byte[] {1});
+        int[] writeCount = new int[1];
+        KernelInterface countingTarget = new TestingKernel() {
+            @Override
+            public void adjustBalance(Address address, BigInteger delta) {
+                writeCount[0] += 1;
+                base.adjustBalance(address, delta);
+            }
+            @Override
+            public void putStorage(Address address, byte[] key, byte[] value) {
+                writeCount[0] += 1;
+                base.putStorage(address, key, value);
+            }
+            @Override
+            public void removeStorage(Address address, byte[] key) {
+                writeCount[0] += 1;
+                base.removeStorage(address, key);
+            }
+        };
+
+        // Repeated writes in a nested kernel are merged into its parent as one write each.
+        TransactionalKernel transaction = new TransactionalKernel(base);
+        TransactionalKernel nested = transaction.makeChildKernelInterface();
+        for (int i = 0; i < 1_000; ++i) {
+            nested.adjustBalance(address, BigInteger.ONE);
+            nested.putStorage(address, key, new byte[] {(byte) i});
+            nested.putStorage(address, removedKey, new byte[] {(byte) i});
+            nested.removeStorage(address, removedKey);
+        }
+        nested.commit();
+        Assert.assertEquals(BigInteger.valueOf(1_000L), transaction.getBalance(address));
+
+        transaction.commitTo(countingTarget);
+        Assert.assertEquals(3, writeCount[0]);
+        Assert.assertEquals(BigInteger.valueOf(1_000L), base.getBalance(address));
+        Assert.assertTrue(Arrays.equals(new byte[] {(byte) 999}, base.getStorage(address, key)));
+        Assert.assertNull(base.getStorage(address, removedKey));
+    }
+
+    @Test
+    public void testCommitWritesAfterDelete() {
+        KernelInterface base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        byte[] otherKey = Helpers.randomBytes(32);
+        base.putStorage(address, key, new byte[] {1});
+        base.incrementNonce(address);
+
+        // Only the writes after the delete survive it.
+        TransactionalKernel transaction = new TransactionalKernel(base);
+        transaction.putStorage(address, otherKey, new byte[] {2});
+        transaction.incrementNonce(address);
+        transaction.deleteAccount(address);
+        transaction.putStorage(address, key, new byte[] {3});
+        transaction.commit();
+
+        Assert.assertTrue(Arrays.equals(new byte[] {3}, base.getStorage(address, key)));
+        Assert.assertNull(base.getStorage(address, otherKey));
+        Assert.assertEquals(BigInteger.ZERO, base.getNonce(address));
+    }
+    @Test
+    public void testNestedStorageReads() {
+        Address address = Helpers.randomAddress();
+        byte[] baseKey = Helpers.randomBytes(32);
+        byte[] nestedKey = Helpers.randomBytes(32);
+        int[] baseReads = new int[1];
+        KernelInterface base = new TestingKernel() {
+            @Override
+            public byte[] getStorage(Address address, byte[] key) {
+                baseReads[0] += 1;
+                return super.getStorage(address, key);
+            }
+        };
+        base.putStorage(address, baseKey, new byte[] {1});
+
+        // A read at any depth goes straight to the base, if no kernel in the chain wrote the key.
+        TransactionalKernel outermost = new TransactionalKernel(base);
+        TransactionalKernel kernel = outermost;
+        for (int i = 0; i < 10; ++i) {
+            kernel = kernel.makeChildKernelInterface();
+        }
+        Assert.assertTrue(Arrays.equals(new byte[] {1}, kernel.getStorage(address, baseKey)));
+        Assert.assertEquals(1, baseReads[0]);
+
+        // Writes are visible to the kernels above, but not below, until committed.
+        outermost.putStorage(address, nestedKey, new byte[] {2});
+        Assert.assertTrue(Arrays.equals(new byte[] {2}, kernel.getStorage(address, nestedKey)));
+        TransactionalKernel child = outermost.makeChildKernelInterface();
+        child.putStorage(address, nestedKey, new byte[] {3});
+        child.removeStorage(address, baseKey);
+        TransactionalKernel grandchild = child.makeChildKernelInterface();
+        Assert.assertTrue(Arrays.equals(new byte[] {3}, grandchild.getStorage(address, nestedKey)));
+        // (a removed key reads through to the kernels below, as it always has)
+        Assert.assertTrue(Arrays.equals(new byte[] {1}, grandchild.getStorage(address, baseKey)));
+        Assert.assertTrue(Arrays.equals(new byte[] {2}, outermost.getStorage(address, nestedKey)));
+
+        // An abandoned kernel is invisible to its siblings.
+        TransactionalKernel sibling = outermost.makeChildKernelInterface();
+        Assert.assertTrue(Arrays.equals(new byte[] {2}, sibling.getStorage(address, nestedKey)));
+        sibling.putStorage(address, nestedKey, new byte[] {4});
+        sibling.commit();
+        Assert.assertTrue(Arrays.equals(new byte[] {4}, outermost.getStorage(address, nestedKey)));
+
+        // Deleting the account hides the writes of that kernel.
+        TransactionalKernel deleting = outermost.makeChildKernelInterface();
+        deleting.putStorage(address, nestedKey, new byte[] {5});
+        deleting.deleteAccount(address);
+        Assert.assertTrue(Arrays.equals(new byte[] {4}, deleting.getStorage(address, nestedKey)));
+        Assert.assertEquals(2, baseReads[0]);
+    }
+
+    @Test
+    public void testOwnChainOverTransactionalParent() {
+        Address address = Helpers.randomAddress();
+        byte[] parentKey = Helpers.randomBytes(32);
+        byte[] ownKey = Helpers.randomBytes(32);
+        TransactionalKernel parent = new TransactionalKernel(new TestingKernel());
+        parent.putStorage(address, parentKey, new byte[] {1});
+
+        // A kernel starting its own chain reads through to its parent but its writes (and those of its children) stay out of the
+        // parent's overlay until it commits.
+        TransactionalKernel root = new TransactionalKernel(parent, false);
+        root.enableReadSetTracking();
+        Assert.assertTrue(Arrays.equals(new byte[] {1}, root.getStorage(address, parentKey)));
+        root.putStorage(address, ownKey, new byte[] {2});
+        TransactionalKernel child = root.makeChildKernelInterface();
+        Assert.assertTrue(Arrays.equals(new byte[] {2}, child.getStorage(address, ownKey)));
+        child.putStorage(address, parentKey, new byte[] {3});
+        child.commit();
+        Assert.assertNull(parent.getStorage(address, ownKey));
+        Assert.assertTrue(Arrays.equals(new byte[] {1}, parent.getStorage(address, parentKey)));
+
+        Assert.assertTrue(root.isReadSetValid());
+        root.commit();
+        Assert.assertTrue(Arrays.equals(new byte[] {2}, parent.getStorage(address, ownKey)));
+        Assert.assertTrue(Arrays.equals(new byte[] {3}, parent.getStorage(address, parentKey)));
+    }
 }
@@ -0,0 +1,85 @@
+package org.aion.avm.kernel;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.TestingKernel;
+import org.aion.kernel.WriteBackPipeline;
+import org.aion.kernel.WriteBehindKernel;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class WriteBehindKernelTest {
+    @Test
+    public void testWritesAreAppliedInOrder() {
+        TestingKernel base = new TestingKernel();
+        WriteBackPipeline pipeline = new WriteBackPipeline();
+        WriteBehindKernel kernel = new WriteBehindKernel(base, pipeline);
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+
+        kernel.adjustBalance(address, BigInteger.valueOf(50L));
+        kernel.adjustBalance(address, BigInteger.valueOf(-20L));
+        kernel.putStorage(address, key, new byte[] {1});
+        kernel.putStorage(address, key, new byte[] {2});
+        kernel.incrementNonce(address);
+
+        // Reads through the kernel see every write enqueued before them.
+        Assert.assertEquals(BigInteger.valueOf(30L), kernel.getBalance(address));
+        Assert.assertTrue(Arrays.equals(new byte[] {2}, kernel.getStorage(address, key)));
+        Assert.assertEquals(BigInteger.ONE, kernel.getNonce(address));
+
+        pipeline.flush();
+        Assert.assertEquals(BigInteger.valueOf(30L), base.getBalance(address));
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void testReadsOnlyWaitForTheirAddress() throws InterruptedException {
+        CountDownLatch writeBackAllowed = new CountDownLatch(1);
+        TestingKernel base = new TestingKernel() {
+            @Override
+            public void putStorage(Address address, byte[] key, byte[] value) {
+                try {
+                    writeBackAllowed.await();
+                } catch (InterruptedException e) {
+                    Assert.fail();
+                }
+                super.putStorage(address, key, value);
+            }
+        };
+        WriteBackPipeline pipeline = new WriteBackPipeline();
+        WriteBehindKernel kernel = new WriteBehindKernel(base, pipeline);
+        Address slowAddress = Helpers.randomAddress();
+        Address otherAddress = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        byte[] value = Helpers.randomBytes(32);
+        base.adjustBalance(otherAddress, BigInteger.TEN);
+
+        // The write returns immediately even though it can't be applied, yet.
+        kernel.putStorage(slowAddress, key, value);
+        Assert.assertNull(base.getStorage(slowAddress, key));
+
+        // Other addresses can still be read.
+        Assert.assertEquals(BigInteger.TEN, kernel.getBalance(otherAddress));
+
+        // Reading the written address waits for the write-back.
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Assert.fail();
+            }
+            writeBackAllowed.countDown();
+        });
+        releaser.start();
+        Assert.assertTrue(Arrays.equals(value, kernel.getStorage(slowAddress, key)));
+        Assert.assertEquals(0L, writeBackAllowed.getCount());
+        releaser.join();
+        pipeline.shutdown();
+    }
+}
@@ -0,0 +1,63 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class Balance128Test {
+    @Test
+    public void testMatchesBigInteger() {
+        Random random = new Random(42);
+        Balance128 balance = new Balance128();
+        BigInteger expected = BigInteger.ZERO;
+        for (int i = 0; i < 100_000; ++i) {
+            // Mostly long deltas, with the occasional one which is too big for a long, so the value crosses every word boundary.
+            BigInteger delta = (0 == random.nextInt(50))
+                    ? new BigInteger(130, random).subtract(BigInteger.ONE.shiftLeft(129))
+                    : BigInteger.valueOf(random.nextLong());
+            balance.add(delta);
+            expected = expected.add(delta);
+            Assert.assertEquals(expected, balance.toBigInteger());
+            Assert.assertEquals(0, balance.compareTo(expected));
+        }
+    }
+
+    @Test
+    public void testCarryAndBorrow() {
+        Balance128 balance = new Balance128();
+        balance.add(Long.MAX_VALUE);
+        balance.add(Long.MAX_VALUE);
+        balance.add(2L);
+        BigInteger twoToThe64 = BigInteger.ONE.shiftLeft(64);
+        Assert.assertEquals(twoToThe64, balance.toBigInteger());
+        balance.add(-1L);
+        Assert.assertEquals(twoToThe64.subtract(BigInteger.ONE), balance.toBigInteger());
+        balance.set(twoToThe64.negate());
+        balance.add(-1L);
+        Assert.assertEquals(twoToThe64.negate().subtract(BigInteger.ONE), balance.toBigInteger());
+        Assert.assertTrue(balance.compareTo(BigInteger.valueOf(Long.MIN_VALUE)) < 0);
+        Assert.assertTrue(balance.compareTo(twoToThe64.negate().subtract(BigInteger.TWO)) > 0);
+    }
+
+    @Test
+    public void testOverflowAndBack() {
+        BigInteger max = BigInteger.ONE.shiftLeft(127).subtract(BigInteger.ONE);
+        Balance128 balance = new Balance128();
+        balance.set(max);
+        Assert.assertEquals(max, balance.toBigInteger());
+        // This no longer fits in 128 bits, so it must fall back to a BigInteger.
+        balance.add(1L);
+        Assert.assertEquals(max.add(BigInteger.ONE), balance.toBigInteger());
+        Assert.assertTrue(balance.compareTo(max) > 0);
+        // ...and come back once it fits again.
+        balance.add(-2L);
+        Assert.assertEquals(max.subtract(BigInteger.ONE), balance.toBigInteger());
+
+        Balance128 copy = balance.copy();
+        balance.add(1L);
+        Assert.assertEquals(max.subtract(BigInteger.ONE), copy.toBigInteger());
+    }
+}
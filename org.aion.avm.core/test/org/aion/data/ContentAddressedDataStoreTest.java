@@ -0,0 +1,69 @@
+package org.aion.data;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.aion.avm.core.util.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+
+public class ContentAddressedDataStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIdenticalCodeIsStoredOnce() {
+        ContentAddressedDataStore store = new ContentAddressedDataStore(new MemoryBackedDataStore());
+        byte[] code = Helpers.randomBytes(1000);
+        byte[] otherCode = Helpers.randomBytes(1000);
+        byte[][] addresses = new byte[10][];
+        for (int i = 0; i < addresses.length; ++i) {
+            addresses[i] = Helpers.randomBytes(32);
+            IAccountStore account = store.createAccount(addresses[i]);
+            account.setCode(code);
+            account.setTransformedCode(code.clone());
+        }
+        Assert.assertEquals(1, store.getDistinctCodeCount());
+
+        // Replacing the code of one account adds the new code but the old one is still referenced by the others.
+        store.openAccount(addresses[0]).setTransformedCode(otherCode);
+        Assert.assertEquals(2, store.getDistinctCodeCount());
+        Assert.assertTrue(Arrays.equals(otherCode, store.openAccount(addresses[0]).getTransformedCode()));
+        Assert.assertTrue(Arrays.equals(code, store.openAccount(addresses[0]).getCode()));
+        Assert.assertTrue(Arrays.equals(code, store.openAccount(addresses[1]).getTransformedCode()));
+
+        // The code is removed along with the last account referring to it.
+        store.deleteAccount(addresses[0]);
+        Assert.assertEquals(1, store.getDistinctCodeCount());
+        for (int i = 1; i < addresses.length; ++i) {
+            Assert.assertTrue(Arrays.equals(code, store.openAccount(addresses[i]).getCode()));
+            store.deleteAccount(addresses[i]);
+        }
+        Assert.assertEquals(0, store.getDistinctCodeCount());
+    }
+
+    @Test
+    public void testOverPersistentStore() throws Exception {
+        File directory = folder.newFolder();
+        ContentAddressedDataStore store = new ContentAddressedDataStore(new DirectoryBackedDataStore(directory));
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] address2 = Helpers.randomBytes(32);
+        byte[] code = Helpers.randomBytes(1000);
+        store.createAccount(address1).setCode(code);
+        store.createAccount(address2).setCode(code);
+        store.openAccount(address2).setBalance(BigInteger.TEN);
+
+        // A new instance over the same directory sees the same state.
+        store = new ContentAddressedDataStore(new DirectoryBackedDataStore(directory));
+        Assert.assertEquals(1, store.getDistinctCodeCount());
+        Assert.assertTrue(Arrays.equals(code, store.openAccount(address1).getCode()));
+        Assert.assertTrue(Arrays.equals(code, store.openAccount(address2).getCode()));
+        Assert.assertNull(store.openAccount(address1).getTransformedCode());
+        Assert.assertEquals(BigInteger.TEN, store.openAccount(address2).getBalance());
+    }
+}
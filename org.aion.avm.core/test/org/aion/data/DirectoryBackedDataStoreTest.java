@@ -2,6 +2,7 @@ package org.aion.data;
 
 import java.io.File;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -68,4 +69,61 @@ public class DirectoryBackedDataStoreTest {
         store.deleteAccount(address1);
         Assert.assertEquals(0, storage.listFiles().length);
     }
+
+    @Test
+    public void testObjectGraphBuffer() throws Exception {
+        File storage = folder.newFolder();
+        DirectoryBackedDataStore store = new DirectoryBackedDataStore(storage);
+        byte[] address = Helpers.randomBytes(32);
+        // Large enough to be mapped and small enough to be copied.
+        byte[] largeGraph = Helpers.randomBytes(128 * 1024);
+        byte[] smallGraph = Helpers.randomBytes(100);
+        IAccountStore account = store.createAccount(address);
+        Assert.assertNull(account.getObjectGraphBuffer());
+        account.setObjectGraph(largeGraph);
+        ByteBuffer largeBuffer = account.getObjectGraphBuffer();
+        Assert.assertEquals(ByteBuffer.wrap(largeGraph), largeBuffer);
+
+        // Writing the graph again doesn't change a buffer which was already returned.
+        account.setObjectGraph(smallGraph);
+        Assert.assertEquals(ByteBuffer.wrap(smallGraph), account.getObjectGraphBuffer());
+        Assert.assertTrue(Arrays.equals(smallGraph, account.getObjectGraph()));
+        Assert.assertEquals(ByteBuffer.wrap(largeGraph), largeBuffer);
+    }
+
+    @Test
+    public void testFailedBatchIsRolledBack() throws Exception {
+        File storage = folder.newFolder();
+        DirectoryBackedDataStore store = new DirectoryBackedDataStore(storage);
+        byte[] existing = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        store.createAccount(existing).setData(key, new byte[] {1});
+        store.openAccount(existing).setObjectGraph(new byte[] {2});
+
+        byte[] created = Helpers.randomBytes(32);
+        boolean didFail = false;
+        try {
+            store.writeBatch(() -> {
+                store.openAccount(existing).setData(key, new byte[] {3});
+                store.openAccount(existing).setObjectGraph(new byte[] {4});
+                store.createAccount(created).setNonce(5L);
+                store.deleteAccount(existing);
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException e) {
+            didFail = true;
+        }
+        Assert.assertTrue(didFail);
+
+        // Everything is back the way it was (and the journal is gone).
+        Assert.assertNull(store.openAccount(created));
+        Assert.assertTrue(Arrays.equals(new byte[] {1}, store.openAccount(existing).getData(key)));
+        Assert.assertTrue(Arrays.equals(new byte[] {2}, store.openAccount(existing).getObjectGraph()));
+        Assert.assertEquals(1, storage.listFiles().length);
+
+        // A batch which completes is kept.
+        store.writeBatch(() -> store.createAccount(created).setNonce(5L));
+        Assert.assertEquals(5L, new DirectoryBackedDataStore(storage).openAccount(created).getNonce());
+        Assert.assertEquals(2, storage.listFiles().length);
+    }
 }
@@ -0,0 +1,182 @@
+package org.aion.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.core.util.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+
+public class LogStructuredDataStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSmallAccount() throws Exception {
+        File storage = folder.newFolder();
+        LogStructuredDataStore store = new LogStructuredDataStore(storage);
+
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] code1 = Helpers.randomBytes(100);
+        byte[] key1 = Helpers.randomBytes(32);
+        byte[] value1 = Helpers.randomBytes(100);
+        IAccountStore account1 = store.createAccount(address1);
+        Assert.assertNull(store.createAccount(address1));
+        account1.setTransformedCode(code1);
+        account1.setBalance(BigInteger.ONE);
+        account1.setNonce(2L);
+        account1.setData(key1, value1);
+
+        account1 = store.openAccount(address1);
+        Assert.assertTrue(Arrays.equals(code1, account1.getTransformedCode()));
+        Assert.assertNull(account1.getCode());
+        Assert.assertEquals(BigInteger.ONE, account1.getBalance());
+        Assert.assertEquals(2L, account1.getNonce());
+        Assert.assertTrue(Arrays.equals(value1, account1.getData(key1)));
+
+        // Overwrite a key and add another, then see them all in the testing method.
+        byte[] value1_2 = Helpers.randomBytes(100);
+        account1.setData(key1, value1_2);
+        byte[] key2 = Helpers.randomBytes(32);
+        byte[] value2 = Helpers.randomBytes(50);
+        account1.setData(key2, value2);
+        Map<ByteArrayWrapper, byte[]> testing = account1.getStorageEntries();
+        Assert.assertEquals(2, testing.size());
+        Assert.assertTrue(Arrays.equals(value1_2, testing.get(new ByteArrayWrapper(key1))));
+        Assert.assertTrue(Arrays.equals(value2, testing.get(new ByteArrayWrapper(key2))));
+        account1.removeData(key2);
+        Assert.assertNull(account1.getData(key2));
+
+        // Everything is still there once the log is replayed.
+        store.close();
+        store = new LogStructuredDataStore(storage);
+        account1 = store.openAccount(address1);
+        Assert.assertTrue(Arrays.equals(code1, account1.getTransformedCode()));
+        Assert.assertEquals(BigInteger.ONE, account1.getBalance());
+        Assert.assertEquals(2L, account1.getNonce());
+        Assert.assertTrue(Arrays.equals(value1_2, account1.getData(key1)));
+        Assert.assertNull(account1.getData(key2));
+
+        store.deleteAccount(address1);
+        Assert.assertNull(store.openAccount(address1));
+        store.close();
+        store = new LogStructuredDataStore(storage);
+        Assert.assertNull(store.openAccount(address1));
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File storage = folder.newFolder();
+        // Tiny segments so that we seal many of them.
+        LogStructuredDataStore store = new LogStructuredDataStore(storage, 1024L);
+
+        byte[] liveAddress = Helpers.randomBytes(32);
+        byte[] deletedAddress = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        IAccountStore live = store.createAccount(liveAddress);
+        IAccountStore deleted = store.createAccount(deletedAddress);
+        deleted.setData(key, Helpers.randomBytes(64));
+        for (int i = 0; i < 200; ++i) {
+            live.setData(key, Helpers.randomBytes(64));
+            live.setNonce(i);
+        }
+        byte[] lastValue = Helpers.randomBytes(64);
+        live.setData(key, lastValue);
+        store.deleteAccount(deletedAddress);
+        // Make sure that at least the segment with the delete is sealed.
+        for (int i = 0; i < 20; ++i) {
+            live.setBalance(BigInteger.valueOf(i));
+        }
+        // (a background compaction may have already run, but this merges whatever is sealed now into one segment)
+        store.compact();
+        Assert.assertTrue(countSegments(storage) <= 2);
+        Assert.assertTrue(Arrays.equals(lastValue, live.getData(key)));
+        Assert.assertEquals(199L, live.getNonce());
+        Assert.assertEquals(BigInteger.valueOf(19L), live.getBalance());
+        Assert.assertNull(store.openAccount(deletedAddress));
+
+        // The compacted log replays to the same state.
+        store.close();
+        store = new LogStructuredDataStore(storage, 1024L);
+        live = store.openAccount(liveAddress);
+        Assert.assertTrue(Arrays.equals(lastValue, live.getData(key)));
+        Assert.assertEquals(199L, live.getNonce());
+        Assert.assertEquals(BigInteger.valueOf(19L), live.getBalance());
+        Assert.assertNull(store.openAccount(deletedAddress));
+        store.close();
+    }
+
+    @Test
+    public void testTornWriteIsDiscarded() throws Exception {
+        File storage = folder.newFolder();
+        LogStructuredDataStore store = new LogStructuredDataStore(storage);
+        byte[] address = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        byte[] value = Helpers.randomBytes(32);
+        store.createAccount(address).setData(key, value);
+        store.sync();
+        store.close();
+
+        // Simulate a crash part-way through appending a record.
+        File[] segments = storage.listFiles();
+        Assert.assertEquals(1, segments.length);
+        try (FileOutputStream stream = new FileOutputStream(segments[0], true)) {
+            stream.write(new byte[] {0, 0, 0, 100, 3, 32});
+        }
+
+        store = new LogStructuredDataStore(storage);
+        IAccountStore account = store.openAccount(address);
+        Assert.assertTrue(Arrays.equals(value, account.getData(key)));
+        // New writes continue from the end of the last complete record.
+        byte[] newValue = Helpers.randomBytes(32);
+        account.setData(key, newValue);
+        store.close();
+        store = new LogStructuredDataStore(storage);
+        Assert.assertTrue(Arrays.equals(newValue, store.openAccount(address).getData(key)));
+        store.close();
+    }
+
+    @Test
+    public void testObjectGraphBuffer() throws Exception {
+        File storage = folder.newFolder();
+        // Small segments so that the rewrites below are compacted, deleting the segment holding the mapped graph.
+        LogStructuredDataStore store = new LogStructuredDataStore(storage, 256L * 1024L);
+        byte[] address = Helpers.randomBytes(32);
+        // Large enough to be mapped and small enough to be copied.
+        byte[] largeGraph = Helpers.randomBytes(128 * 1024);
+        byte[] smallGraph = Helpers.randomBytes(100);
+        IAccountStore account = store.createAccount(address);
+        Assert.assertNull(account.getObjectGraphBuffer());
+        account.setObjectGraph(largeGraph);
+        ByteBuffer largeBuffer = account.getObjectGraphBuffer();
+        Assert.assertEquals(ByteBuffer.wrap(largeGraph), largeBuffer);
+
+        // Writing the graph again doesn't change a buffer which was already returned.
+        account.setObjectGraph(smallGraph);
+        Assert.assertEquals(ByteBuffer.wrap(smallGraph), account.getObjectGraphBuffer());
+        Assert.assertTrue(Arrays.equals(smallGraph, account.getObjectGraph()));
+        Assert.assertEquals(ByteBuffer.wrap(largeGraph), largeBuffer);
+        for (int i = 0; i < 10; ++i) {
+            account.setObjectGraph(Helpers.randomBytes(64 * 1024));
+        }
+        store.compact();
+        Assert.assertEquals(ByteBuffer.wrap(largeGraph), largeBuffer);
+        store.close();
+    }
+
+
+    private static int countSegments(File storage) {
+        // (ignoring the temporary file of any background compaction)
+        return storage.listFiles((directory, name) -> name.endsWith(".log")).length;
+    }
+}
@@ -0,0 +1,105 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.core.util.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class OffHeapDataStoreTest {
+    @Test
+    public void testSmallAccount() {
+        OffHeapDataStore store = new OffHeapDataStore();
+
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] code1 = Helpers.randomBytes(100);
+        byte[] key1 = Helpers.randomBytes(32);
+        byte[] value1 = Helpers.randomBytes(100);
+        IAccountStore account1 = store.createAccount(address1);
+        Assert.assertNull(store.createAccount(address1));
+        Assert.assertEquals(BigInteger.ZERO, account1.getBalance());
+        account1.setTransformedCode(code1);
+        account1.setBalance(BigInteger.ONE);
+        account1.setNonce(2L);
+        account1.setData(key1, value1);
+
+        account1 = store.openAccount(address1);
+        Assert.assertTrue(Arrays.equals(code1, account1.getTransformedCode()));
+        Assert.assertNull(account1.getCode());
+        Assert.assertEquals(BigInteger.ONE, account1.getBalance());
+        Assert.assertEquals(2L, account1.getNonce());
+        Assert.assertTrue(Arrays.equals(value1, account1.getData(key1)));
+
+        // Grow the balance and a value past the size of their blocks, so they are moved, and make sure nothing else is disturbed.
+        BigInteger largeBalance = BigInteger.TEN.pow(200);
+        account1.setBalance(largeBalance);
+        byte[] value1_2 = Helpers.randomBytes(1000);
+        account1.setData(key1, value1_2);
+        byte[] key2 = Helpers.randomBytes(32);
+        byte[] value2 = Helpers.randomBytes(50);
+        account1.setData(key2, value2);
+        Assert.assertEquals(largeBalance, account1.getBalance());
+        Assert.assertEquals(2L, account1.getNonce());
+        Map<ByteArrayWrapper, byte[]> testing = account1.getStorageEntries();
+        Assert.assertEquals(2, testing.size());
+        Assert.assertTrue(Arrays.equals(value1_2, testing.get(new ByteArrayWrapper(key1))));
+        Assert.assertTrue(Arrays.equals(value2, testing.get(new ByteArrayWrapper(key2))));
+        Assert.assertTrue(Arrays.equals(code1, account1.getTransformedCode()));
+        account1.removeData(key1);
+        Assert.assertNull(account1.getData(key1));
+        Assert.assertEquals(1, account1.getStorageEntries().size());
+
+        store.deleteAccount(address1);
+        Assert.assertNull(store.openAccount(address1));
+        Assert.assertEquals(0, store.getRecordCount());
+        Assert.assertEquals(0L, store.getAllocatedNativeBytes());
+    }
+
+    @Test
+    public void testManyAccounts() {
+        OffHeapDataStore store = new OffHeapDataStore();
+        int accountCount = 10_000;
+        byte[][] addresses = new byte[accountCount][];
+        byte[] key = Helpers.randomBytes(32);
+        for (int i = 0; i < accountCount; ++i) {
+            addresses[i] = Helpers.randomBytes(32);
+            IAccountStore account = store.createAccount(addresses[i]);
+            account.setBalance(BigInteger.valueOf(i));
+            account.setData(key, addresses[i]);
+        }
+        // A large graph gets its own region.
+        byte[] graph = Helpers.randomBytes(1024 * 1024);
+        store.openAccount(addresses[0]).setObjectGraph(graph);
+        Assert.assertEquals(2 * accountCount + 1, store.getRecordCount());
+        Assert.assertTrue(store.getAllocatedNativeBytes() > graph.length);
+        Assert.assertTrue(store.getReservedNativeBytes() >= store.getAllocatedNativeBytes());
+        Assert.assertTrue(store.getIndexHeapBytes() > 0L);
+
+        // Delete half of them, which removes entries from the middle of probe sequences.
+        for (int i = 0; i < accountCount; i += 2) {
+            store.deleteAccount(addresses[i]);
+        }
+        for (int i = 0; i < accountCount; ++i) {
+            IAccountStore account = store.openAccount(addresses[i]);
+            if (0 == (i % 2)) {
+                Assert.assertNull(account);
+            } else {
+                Assert.assertEquals(BigInteger.valueOf(i), account.getBalance());
+                Assert.assertTrue(Arrays.equals(addresses[i], account.getData(key)));
+            }
+        }
+        Assert.assertEquals(accountCount, store.getRecordCount());
+
+        // The space of the deleted accounts is reused.
+        long reserved = store.getReservedNativeBytes();
+        for (int i = 0; i < accountCount; i += 2) {
+            store.createAccount(addresses[i]).setData(key, addresses[i]);
+        }
+        Assert.assertEquals(reserved, store.getReservedNativeBytes());
+    }
+}
@@ -0,0 +1,109 @@
+package org.aion.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PersistentMapTest {
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(42);
+        Object edit = new Object();
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; ++i) {
+            Integer key = random.nextInt(5_000);
+            if (random.nextInt(4) > 0) {
+                map = map.put(edit, key, i);
+                expected.put(key, i);
+            } else {
+                map = map.remove(edit, key);
+                expected.remove(key);
+            }
+        }
+        assertSameContents(expected, map);
+    }
+
+    @Test
+    public void testCopiesAreUnchanged() {
+        Object edit = new Object();
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 1_000; ++i) {
+            map = map.put(edit, i, i);
+        }
+        // Once the copy is taken, changes must use a new token.
+        PersistentMap<Integer, Integer> copy = map;
+        edit = new Object();
+        for (int i = 0; i < 1_000; i += 2) {
+            map = map.remove(edit, i);
+            map = map.put(edit, i + 1, -i);
+        }
+        Assert.assertEquals(1_000, copy.size());
+        Assert.assertEquals(500, map.size());
+        for (int i = 0; i < 1_000; ++i) {
+            Assert.assertEquals(Integer.valueOf(i), copy.get(i));
+        }
+        for (int i = 0; i < 1_000; i += 2) {
+            Assert.assertNull(map.get(i));
+            Assert.assertEquals(Integer.valueOf(-i), map.get(i + 1));
+        }
+    }
+
+    @Test
+    public void testHashCollisions() {
+        Object edit = new Object();
+        PersistentMap<CollidingKey, Integer> map = PersistentMap.empty();
+        Map<CollidingKey, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100; ++i) {
+            // Only 4 distinct hashes so most of these keys collide.
+            CollidingKey key = new CollidingKey(i, i % 4);
+            map = map.put(edit, key, i);
+            expected.put(key, i);
+        }
+        PersistentMap<CollidingKey, Integer> copy = map;
+        edit = new Object();
+        for (int i = 0; i < 100; i += 3) {
+            map = map.remove(edit, new CollidingKey(i, i % 4));
+            expected.remove(new CollidingKey(i, i % 4));
+        }
+        assertSameContents(expected, map);
+        Assert.assertEquals(100, copy.size());
+        Assert.assertEquals(Integer.valueOf(0), copy.get(new CollidingKey(0, 0)));
+    }
+
+
+    private static <K, V> void assertSameContents(Map<K, V> expected, PersistentMap<K, V> map) {
+        Assert.assertEquals(expected.size(), map.size());
+        for (Map.Entry<K, V> entry : expected.entrySet()) {
+            Assert.assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        Map<K, V> actual = new HashMap<>();
+        map.forEach(actual::put);
+        Assert.assertEquals(expected, actual);
+    }
+
+
+    private static final class CollidingKey {
+        private final int value;
+        private final int hash;
+
+        private CollidingKey(int value, int hash) {
+            this.value = value;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof CollidingKey) && (this.value == ((CollidingKey) other).value);
+        }
+    }
+}
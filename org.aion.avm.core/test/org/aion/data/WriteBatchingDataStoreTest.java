@@ -0,0 +1,96 @@
+package org.aion.data;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.core.util.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class WriteBatchingDataStoreTest {
+    @Test
+    public void testWritesAreHeldBackUntilCommit() {
+        MemoryBackedDataStore target = new MemoryBackedDataStore();
+        WriteBatchingDataStore store = new WriteBatchingDataStore(target);
+        byte[] address = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        byte[] removedKey = Helpers.randomBytes(32);
+        target.createAccount(address).setData(removedKey, new byte[] {1});
+
+        store.beginWriteBatch();
+        IAccountStore account = store.openAccount(address);
+        for (int i = 0; i < 10; ++i) {
+            account.setData(key, new byte[] {(byte) i});
+            account.adjustBalance(BigInteger.TEN);
+            account.setNonce(account.getNonce() + 1L);
+        }
+        account.removeData(removedKey);
+
+        // Reads see the batch while the target doesn't.
+        Assert.assertTrue(Arrays.equals(new byte[] {9}, store.openAccount(address).getData(key)));
+        Assert.assertNull(store.openAccount(address).getData(removedKey));
+        Assert.assertEquals(BigInteger.valueOf(100L), store.openAccount(address).getBalance());
+        Assert.assertTrue(store.openAccount(address).isBalanceAtLeast(BigInteger.valueOf(100L)));
+        Assert.assertEquals(10L, store.openAccount(address).getNonce());
+        Map<ByteArrayWrapper, byte[]> entries = store.openAccount(address).getStorageEntries();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertNull(target.openAccount(address).getData(key));
+        Assert.assertEquals(BigInteger.ZERO, target.openAccount(address).getBalance());
+
+        store.commitWriteBatch();
+        Assert.assertFalse(store.isWriteBatchOpen());
+        Assert.assertTrue(Arrays.equals(new byte[] {9}, target.openAccount(address).getData(key)));
+        Assert.assertNull(target.openAccount(address).getData(removedKey));
+        Assert.assertEquals(BigInteger.valueOf(100L), target.openAccount(address).getBalance());
+        Assert.assertEquals(10L, target.openAccount(address).getNonce());
+    }
+
+    @Test
+    public void testDeleteAndRecreate() {
+        MemoryBackedDataStore target = new MemoryBackedDataStore();
+        WriteBatchingDataStore store = new WriteBatchingDataStore(target);
+        byte[] address = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        IAccountStore original = target.createAccount(address);
+        original.setData(key, new byte[] {1});
+        original.setBalance(BigInteger.TEN);
+
+        store.beginWriteBatch();
+        store.deleteAccount(address);
+        Assert.assertNull(store.openAccount(address));
+        Assert.assertNotNull(target.openAccount(address));
+        // The new account starts empty, rather than seeing the old one in the target.
+        IAccountStore recreated = store.createAccount(address);
+        Assert.assertNull(store.createAccount(address));
+        Assert.assertNull(recreated.getData(key));
+        Assert.assertEquals(BigInteger.ZERO, recreated.getBalance());
+        recreated.adjustBalance(BigInteger.ONE);
+        store.commitWriteBatch();
+
+        Assert.assertNull(target.openAccount(address).getData(key));
+        Assert.assertEquals(BigInteger.ONE, target.openAccount(address).getBalance());
+    }
+
+    @Test
+    public void testNestedBatches() {
+        MemoryBackedDataStore target = new MemoryBackedDataStore();
+        WriteBatchingDataStore store = new WriteBatchingDataStore(target);
+        byte[] address = Helpers.randomBytes(32);
+
+        store.beginWriteBatch();
+        store.writeBatch(() -> store.createAccount(address).setNonce(5L));
+        // Only the outermost commit applies the writes.
+        Assert.assertNull(target.openAccount(address));
+        Assert.assertEquals(5L, store.openAccount(address).getNonce());
+        store.commitWriteBatch();
+        Assert.assertEquals(5L, target.openAccount(address).getNonce());
+
+        // With no batch open, writes go straight through.
+        store.openAccount(address).setNonce(6L);
+        Assert.assertEquals(6L, target.openAccount(address).getNonce());
+    }
+}
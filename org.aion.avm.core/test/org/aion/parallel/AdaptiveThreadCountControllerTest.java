@@ -0,0 +1,53 @@
+package org.aion.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class AdaptiveThreadCountControllerTest {
+    @Test
+    public void testBackOffAndRecovery() {
+        List<Integer> decisions = new ArrayList<>();
+        AdaptiveThreadCountController controller = new AdaptiveThreadCountController(1, 8, (statistics, abortRate, previousThreadCount, nextThreadCount) -> {
+            Assert.assertEquals(statistics.getAbortCount() / 10.0, abortRate, 0.0);
+            decisions.add(nextThreadCount);
+        });
+        Assert.assertEquals(8, controller.getActiveThreadCount());
+
+        // High contention halves the count, down to the minimum.
+        for (int i = 0; i < 4; ++i) {
+            controller.batchCompleted(completedBatch(10, 8));
+        }
+        // Moderate contention leaves it alone.
+        controller.batchCompleted(completedBatch(10, 3));
+        // Low contention adds a thread at a time.
+        controller.batchCompleted(completedBatch(10, 0));
+        controller.batchCompleted(completedBatch(10, 0));
+        Assert.assertEquals(List.of(4, 2, 1, 1, 1, 2, 3), decisions);
+        Assert.assertEquals(3, controller.getActiveThreadCount());
+    }
+
+    @Test
+    public void testMaximumBound() {
+        AdaptiveThreadCountController controller = new AdaptiveThreadCountController(2, 3, null);
+        Assert.assertEquals(3, controller.batchCompleted(completedBatch(10, 0)));
+        Assert.assertEquals(2, controller.batchCompleted(completedBatch(10, 20)));
+        Assert.assertEquals(2, controller.batchCompleted(completedBatch(10, 20)));
+    }
+
+
+    private static BatchStatistics completedBatch(int transactionCount, int abortCount) {
+        BatchStatistics statistics = new BatchStatistics(transactionCount);
+        for (int i = 0; i < abortCount; ++i) {
+            statistics.recordAbort();
+        }
+        for (int i = 0; i < transactionCount; ++i) {
+            statistics.recordCommit(new TransactionTask(null, null, i, Address.ZERO_ADDRESS()));
+        }
+        return statistics;
+    }
+}
@@ -3,8 +3,13 @@ package org.aion.parallel;
 import legacy_examples.foresttest.A;
 import org.aion.avm.core.util.Helpers;
 import org.aion.types.Address;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class AddressResourceMonitorTest {
     
     byte[] addr1 = Helpers.hexStringToBytes("1111111111111111111111111111111111111111111111111111111111111111");
@@ -210,4 +215,90 @@ public class AddressResourceMonitorTest {
         t2.join();
     }
 
+    class CommitThread extends TestThread{
+        private final TransactionTask task;
+
+        public CommitThread(AddressResourceMonitor monitor, int index){
+            super(monitor);
+            this.task = new TransactionTask(null, null, index, Address.ZERO_ADDRESS());
+        }
+
+        public void run(){
+            // Each task holds a distinct address so acquisition never blocks, only the commit order is enforced.
+            monitor.acquire(new byte[] {(byte)task.getIndex(), 1, 2, 3}, task);
+            // (we commit as rejected since there is no kernel behind these tasks)
+            Assert.assertTrue(monitor.commitKernelForTask(task, true));
+        }
+    }
+
+    @Test
+    public void testCommitOrder() throws InterruptedException{
+        List<Integer> commitOrder = Collections.synchronizedList(new ArrayList<>());
+        // The order is recorded on each task's turn to commit since, once the commit returns, the next task may already be running.
+        AddressResourceMonitor monitor = new AddressResourceMonitor() {
+            @Override
+            protected boolean canCommit(TransactionTask task) {
+                commitOrder.add(task.getIndex());
+                return super.canCommit(task);
+            }
+        };
+
+        CommitThread t2 = new CommitThread(monitor, 2);
+        CommitThread t1 = new CommitThread(monitor, 1);
+        CommitThread t0 = new CommitThread(monitor, 0);
+
+        t2.start();
+        Thread.sleep(100);
+        t1.start();
+        Thread.sleep(100);
+        Assert.assertTrue(commitOrder.isEmpty());
+        t0.start();
+
+        t0.join();
+        t1.join();
+        t2.join();
+        Assert.assertEquals(List.of(0, 1, 2), commitOrder);
+    }
+
+    @Test
+    public void testReleasedBeforeNextCommit() throws InterruptedException{
+        TransactionTask first = new TransactionTask(null, null, 0, Address.ZERO_ADDRESS());
+        List<Boolean> firstReleased = Collections.synchronizedList(new ArrayList<>());
+        AddressResourceMonitor monitor = new AddressResourceMonitor() {
+            @Override
+            protected boolean canCommit(TransactionTask task) {
+                if (task != first) {
+                    firstReleased.add(first.getOwnedResources().isEmpty());
+                }
+                return super.canCommit(task);
+            }
+        };
+        monitor.acquire(addr1, first);
+        CommitThread second = new CommitThread(monitor, 1);
+        second.start();
+        Assert.assertTrue(monitor.commitKernelForTask(first, true));
+        second.join();
+        Assert.assertEquals(List.of(true), firstReleased);
+    }
+
+    @Test
+    public void testStaleReleaseAfterClear() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask oldTask = new TransactionTask(null, null, 0, Address.ZERO_ADDRESS());
+        monitor.acquire(addr1, oldTask);
+
+        // The next batch reuses the same commit sequences.
+        monitor.clear();
+        TransactionTask newTask = new TransactionTask(null, null, 0, Address.ZERO_ADDRESS());
+        monitor.acquire(addr1, newTask);
+        // A late release of the task from the earlier batch must not touch the new task's resources.
+        monitor.testReleaseResourcesForTask(oldTask);
+        Assert.assertTrue(monitor.commitKernelForTask(newTask, true));
+
+        // So committing the new task released addr1 and the next task can acquire it.
+        Thread next = new Thread(() -> monitor.acquire(addr1, new TransactionTask(null, null, 1, Address.ZERO_ADDRESS())));
+        next.start();
+        next.join(10_000L);
+        Assert.assertFalse(next.isAlive());
+    }
 }
@@ -1,9 +1,16 @@
 package org.aion.parallel;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.aion.avm.core.AvmConfiguration;
 import org.aion.avm.core.AvmImpl;
 import org.aion.avm.core.CommonAvmFactory;
+import org.aion.avm.core.KeyValueStoreTestTarget;
 import org.aion.avm.core.blockchainruntime.EmptyCapabilities;
 import org.aion.avm.core.dappreading.JarBuilder;
 import org.aion.avm.core.util.CodeAndArguments;
@@ -203,4 +210,494 @@ public class AvmParallelTest {
         avm.shutdown();
     }
 
+    /**
+     * The same data hazard as heavyAbortTest, but with the dependency-aware scheduler, which should never run the conflicting
+     * transactions concurrently (and so never abort them).
+     */
+    @Test
+    public void dependencyAwareSchedulingTest(){
+        TestingKernel kernel = new TestingKernel(block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.enableDependencyAwareScheduling = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        int iterations = 100;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+
+        // First batch - disperse funds (every transaction shares the sender).
+        Transaction[] firstBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            firstBatch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(2L * valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, firstBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(0, avm.getLastBatchStatistics().getAbortCount());
+
+        // Second batch - collect funds (every transaction shares the destination).
+        Transaction[] secondBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            secondBatch[i] = Transaction.call(tempUsers[i], targetUser, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        results = avm.run(kernel, secondBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        BatchStatistics statistics = avm.getLastBatchStatistics();
+        Assert.assertTrue(statistics.isComplete());
+        Assert.assertEquals(iterations, statistics.getTransactionCount());
+        Assert.assertEquals(0, statistics.getAbortCount());
+
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+        avm.shutdown();
+    }
+
+    /**
+     * The same data hazard as heavyAbortTest, but with optimistic execution, followed by a batch of conflicting calls (and internal
+     * transactions) to the same contract.  The results must match serial execution.
+     */
+    @Test
+    public void optimisticExecutionTest(){
+        byte[] code = JarBuilder.buildJarForMainAndClassesAndUserlib(TestContract.class);
+
+        TestingKernel kernel = new TestingKernel(block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.enableOptimisticExecution = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        int iterations = 100;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+
+        // First batch - disperse funds (every transaction reads the sender's nonce and balance, so most are re-run).
+        Transaction[] firstBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            firstBatch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(2L * valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, firstBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+
+        // Second batch - collect funds (the shared destination is only ever adjusted, never read, so nothing conflicts).
+        Transaction[] secondBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            secondBatch[i] = Transaction.call(tempUsers[i], targetUser, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        results = avm.run(kernel, secondBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(0, avm.getLastBatchStatistics().getAbortCount());
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+
+        // Deploy the contract and then call it concurrently.
+        Transaction create = Transaction.create(preminedAddress, BigInteger.valueOf(iterations), BigInteger.ZERO, new CodeAndArguments(code, null).encodeToBytes(), 10_000_000L, 1L);
+        TransactionResult createResult = avm.run(kernel, new Transaction[] {create})[0].get();
+        Assert.assertTrue(createResult.getResultCode().isSuccess());
+        org.aion.types.Address contractAddr = org.aion.types.Address.wrap(createResult.getReturnData());
+
+        byte[] transferArgs = ABIUtil.encodeMethodArguments("doTransfer");
+        byte[] addValueArgs = ABIUtil.encodeMethodArguments("addValue");
+        Transaction[] contractBatch = new Transaction[] {
+                Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(iterations + 1), BigInteger.valueOf(5_000_000), addValueArgs, 100_000L, 1L),
+                Transaction.call(tempUsers[1], contractAddr, BigInteger.ONE, BigInteger.ZERO, transferArgs, 200_000L, 1L),
+                Transaction.call(tempUsers[2], contractAddr, BigInteger.ONE, BigInteger.ZERO, transferArgs, 200_000L, 1L),
+                Transaction.call(tempUsers[3], contractAddr, BigInteger.ONE, BigInteger.ZERO, transferArgs, 200_000L, 1L),
+        };
+        results = avm.run(kernel, contractBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(BigInteger.valueOf(5_000_000 - 3 * 1000), kernel.getBalance(contractAddr));
+        avm.shutdown();
+    }
+
+    @Test
+    public void pipelinedExecutionTest(){
+        TestingKernel kernel = new TestingKernel(block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.enablePipelinedExecution = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        int iterations = 100;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+
+        // First batch - disperse funds.
+        Transaction[] firstBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            firstBatch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(2L * valueToSend), new byte[0], 100_000L, 1L);
+        }
+        // Second batch - collect funds (sent before any result of the first batch is consumed so it depends on state still being committed).
+        Transaction[] secondBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            secondBatch[i] = Transaction.call(tempUsers[i], targetUser, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] firstResults = avm.run(kernel, firstBatch);
+        SimpleFuture<TransactionResult>[] secondResults = avm.run(kernel, secondBatch);
+        for (SimpleFuture<TransactionResult> f : firstResults){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        for (SimpleFuture<TransactionResult> f : secondResults){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+        for (int i = 0; i < iterations; ++i) {
+            Assert.assertEquals(BigInteger.ONE, kernel.getNonce(tempUsers[i]));
+        }
+
+        // Once everything is consumed, a new batch starts a fresh commit order.
+        Transaction[] thirdBatch = new Transaction[] {
+                Transaction.call(targetUser, preminedAddress, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L),
+        };
+        Assert.assertTrue(avm.run(kernel, thirdBatch)[0].get().getResultCode().isSuccess());
+        avm.shutdown();
+    }
+
+    /**
+     * The same data hazard as heavyAbortTest, but with the adaptive thread count, checking that the controller sees each batch
+     * and stays within its bounds.
+     */
+    @Test
+    public void adaptiveThreadCountTest(){
+        List<Integer> decisions = Collections.synchronizedList(new ArrayList<>());
+        TestingKernel kernel = new TestingKernel(block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.threadCount = 4;
+        configuration.enableAdaptiveThreadCount = true;
+        configuration.minThreadCount = 2;
+        configuration.concurrencyMetricsListener = (statistics, abortRate, previousThreadCount, nextThreadCount) -> decisions.add(nextThreadCount);
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        int iterations = 100;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+
+        // First batch - disperse funds.
+        Transaction[] firstBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            firstBatch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(2L * valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, firstBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+
+        // Second and third batches - collect funds (run on whatever thread count the controller decided).
+        for (int batch = 0; batch < 2; ++batch) {
+            Transaction[] collectBatch = new Transaction[iterations];
+            for (int i = 0; i < iterations; ++i) {
+                collectBatch[i] = Transaction.call(tempUsers[i], targetUser, BigInteger.valueOf(batch), BigInteger.valueOf(valueToSend / 2), new byte[0], 100_000L, 1L);
+            }
+            results = avm.run(kernel, collectBatch);
+            for (SimpleFuture<TransactionResult> f : results){
+                Assert.assertTrue(f.get().getResultCode().isSuccess());
+            }
+        }
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+        avm.shutdown();
+
+        Assert.assertEquals(3, decisions.size());
+        for (int decision : decisions) {
+            Assert.assertTrue((decision >= 2) && (decision <= 4));
+        }
+    }
+
+    /**
+     * One sender submitting a whole batch, with sender chains grouped:  no two of its transactions are ever taken at once so none aborts.
+     */
+    @Test
+    public void senderChainSchedulingTest(){
+        TestingKernel kernel = new TestingKernel(block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.enableSenderChainScheduling = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        int iterations = 100;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+        Transaction[] batch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            batch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, batch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(0, avm.getLastBatchStatistics().getAbortCount());
+        for (int i = 0; i < iterations; ++i) {
+            Assert.assertEquals(BigInteger.valueOf(valueToSend), kernel.getBalance(tempUsers[i]));
+        }
+        avm.shutdown();
+    }
+
+    /**
+     * Runs the same calls with and without prefetch:  prefetch must not change any result or the energy billed.
+     */
+    @Test
+    public void prefetchTest(){
+        AvmConfiguration withPrefetch = new AvmConfiguration();
+        withPrefetch.enablePrefetch = true;
+        Assert.assertEquals(runContractCalls(new AvmConfiguration()), runContractCalls(withPrefetch));
+    }
+
+    private List<Long> runContractCalls(AvmConfiguration configuration) {
+        byte[] code = JarBuilder.buildJarForMainAndClassesAndUserlib(TestContract.class);
+        TestingKernel kernel = new TestingKernel(block);
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        Transaction create = Transaction.create(preminedAddress, BigInteger.ZERO, BigInteger.valueOf(100_000), new CodeAndArguments(code, null).encodeToBytes(), 10_000_000L, 1L);
+        TransactionResult createResult = avm.run(kernel, new Transaction[] {create})[0].get();
+        Assert.assertTrue(createResult.getResultCode().isSuccess());
+        org.aion.types.Address contractAddr = org.aion.types.Address.wrap(createResult.getReturnData());
+
+        // Each batch calls the contract twice (the energy remaining is what would differ if prefetch affected billing).
+        List<Long> observations = new ArrayList<>();
+        byte[] transferArgs = ABIUtil.encodeMethodArguments("doTransfer");
+        byte[] addValueArgs = ABIUtil.encodeMethodArguments("addValue");
+        for (int batch = 0; batch < 3; ++batch) {
+            Transaction[] calls = new Transaction[] {
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(1 + 2 * batch), BigInteger.ZERO, addValueArgs, 200_000L, 1L),
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(2 + 2 * batch), BigInteger.ZERO, transferArgs, 200_000L, 1L),
+            };
+            for (SimpleFuture<TransactionResult> f : avm.run(kernel, calls)){
+                TransactionResult result = f.get();
+                Assert.assertTrue(result.getResultCode().isSuccess());
+                observations.add(result.getEnergyRemaining());
+            }
+        }
+        observations.add(kernel.getBalance(contractAddr).longValue());
+        avm.shutdown();
+        return observations;
+    }
+
+    /**
+     * Runs the same storage reads and writes with and without the storage read cache:  the cache must not change any result.
+     * (the energy isn't compared since the first DApp run in a JVM is occasionally billed differently, independent of the cache)
+     */
+    @Test
+    public void storageReadCacheTest(){
+        AvmConfiguration withCache = new AvmConfiguration();
+        withCache.enableStorageReadCache = true;
+        Assert.assertEquals(runStorageCalls(new AvmConfiguration(), false), runStorageCalls(withCache, true));
+    }
+
+    /**
+     * Runs the same storage reads and writes with and without group commit:  holding back the writes of each batch, until it ends,
+     * must not change any result.
+     * (the energy isn't compared since the first DApp run in a JVM is occasionally billed differently, independent of group commit)
+     */
+    @Test
+    public void groupCommitTest(){
+        AvmConfiguration withGroupCommit = new AvmConfiguration();
+        withGroupCommit.enableGroupCommit = true;
+        Assert.assertEquals(runStorageCalls(new AvmConfiguration(), false), runStorageCalls(withGroupCommit, false));
+    }
+
+    private List<String> runStorageCalls(AvmConfiguration configuration, boolean expectCacheHits) {
+        byte[] code = JarBuilder.buildJarForMainAndClassesAndUserlib(KeyValueStoreTestTarget.class);
+        TestingKernel kernel = new TestingKernel(block);
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        Transaction create = Transaction.create(preminedAddress, BigInteger.ZERO, BigInteger.ZERO, new CodeAndArguments(code, null).encodeToBytes(), 10_000_000L, 1L);
+        TransactionResult createResult = avm.run(kernel, new Transaction[] {create})[0].get();
+        Assert.assertTrue(createResult.getResultCode().isSuccess());
+        org.aion.types.Address contractAddr = org.aion.types.Address.wrap(createResult.getReturnData());
+
+        // Each batch reads a key which is absent until the batch writes it, then reads it again (and it is removed by the next batch).
+        byte[] key = Helpers.randomBytes(32);
+        byte[] readArgs = ABIUtil.encodeMethodArguments("testAvmGetStorage", key);
+        List<String> observations = new ArrayList<>();
+        long nonce = 1L;
+        for (int batch = 0; batch < 3; ++batch) {
+            Transaction[] calls = new Transaction[] {
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(nonce++), BigInteger.ZERO, readArgs, 200_000L, 1L),
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(nonce++), BigInteger.ZERO, readArgs, 200_000L, 1L),
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(nonce++), BigInteger.ZERO, ABIUtil.encodeMethodArguments("testAvmPutStorage", key, new byte[] {(byte) batch}), 200_000L, 1L),
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(nonce++), BigInteger.ZERO, readArgs, 200_000L, 1L),
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(nonce++), BigInteger.ZERO, ABIUtil.encodeMethodArguments("testAvmPutStorageNullValue", key), 200_000L, 1L),
+                    Transaction.call(preminedAddress, contractAddr, BigInteger.valueOf(nonce++), BigInteger.ZERO, readArgs, 200_000L, 1L),
+            };
+            for (SimpleFuture<TransactionResult> f : avm.run(kernel, calls)){
+                TransactionResult result = f.get();
+                Assert.assertTrue(result.getResultCode().isSuccess());
+                observations.add(Arrays.toString(result.getReturnData()));
+            }
+            if (expectCacheHits) {
+                Assert.assertTrue(avm.getStorageCache().getHitCount() > 0L);
+            } else {
+                Assert.assertNull(avm.getStorageCache());
+            }
+        }
+        avm.shutdown();
+        return observations;
+    }
+
+    /**
+     * The same data hazard as heavyAbortTest, but with commits written back by the committer thread.
+     */
+    @Test
+    public void asynchronousCommitTest(){
+        TestingKernel kernel = new TestingKernel(block);
+        AvmConfiguration configuration = new AvmConfiguration();
+        configuration.enableAsynchronousCommit = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), configuration);
+
+        int iterations = 100;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+
+        // First batch - disperse funds.
+        Transaction[] firstBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            firstBatch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(2L * valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, firstBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        // Once the last result is available, everything has been written back.
+        for (int i = 0; i < iterations; ++i) {
+            Assert.assertEquals(BigInteger.valueOf(2L * valueToSend), kernel.getBalance(tempUsers[i]));
+        }
+
+        // Second batch - collect funds.
+        Transaction[] secondBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            secondBatch[i] = Transaction.call(tempUsers[i], targetUser, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        results = avm.run(kernel, secondBatch);
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+        Assert.assertEquals(BigInteger.valueOf(iterations), kernel.getNonce(preminedAddress));
+        avm.shutdown();
+    }
+    /**
+     * Runs storage writes, on every executor thread at once, against a TransactionalKernel which isn't wrapped in a LockingKernel:
+     * each task's kernel must keep its storage to itself until it commits.
+     * (a TransactionalKernel checks nonces against its parent, so every transaction here is the first of a sender funded in the base)
+     */
+    @Test
+    public void transactionalParentKernelTest(){
+        TestingKernel base = new TestingKernel(block);
+        TransactionalKernel kernel = new TransactionalKernel(base);
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+
+        // Each column of calls gets its own contract so that no two calls in a batch share an address (and they all run concurrently).
+        int contractCount = 8;
+        byte[] code = JarBuilder.buildJarForMainAndClassesAndUserlib(KeyValueStoreTestTarget.class);
+        Transaction[] deployments = new Transaction[contractCount];
+        for (int i = 0; i < contractCount; ++i) {
+            deployments[i] = Transaction.create(fundedSender(base), BigInteger.ZERO, BigInteger.ZERO, new CodeAndArguments(code, null).encodeToBytes(), 10_000_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, deployments);
+        org.aion.types.Address[] contracts = new org.aion.types.Address[contractCount];
+        for (int i = 0; i < contractCount; ++i) {
+            TransactionResult result = results[i].get();
+            Assert.assertTrue(result.getResultCode().isSuccess());
+            contracts[i] = org.aion.types.Address.wrap(result.getReturnData());
+        }
+
+        byte[] key = Helpers.randomBytes(32);
+        int rounds = 10;
+        for (int round = 0; round < rounds; ++round) {
+            Transaction[] writes = new Transaction[contractCount];
+            for (int i = 0; i < contractCount; ++i) {
+                byte[] writeArgs = ABIUtil.encodeMethodArguments("testAvmPutStorage", key, new byte[] {(byte) i, (byte) round});
+                writes[i] = Transaction.call(fundedSender(base), contracts[i], BigInteger.ZERO, BigInteger.ZERO, writeArgs, 200_000L, 1L);
+            }
+            for (SimpleFuture<TransactionResult> f : avm.run(kernel, writes)){
+                Assert.assertTrue(f.get().getResultCode().isSuccess());
+            }
+        }
+
+        // Every contract sees only its own last write.
+        byte[] readArgs = ABIUtil.encodeMethodArguments("testAvmGetStorage", key);
+        Transaction[] reads = new Transaction[contractCount];
+        for (int i = 0; i < contractCount; ++i) {
+            reads[i] = Transaction.call(fundedSender(base), contracts[i], BigInteger.ZERO, BigInteger.ZERO, readArgs, 200_000L, 1L);
+        }
+        results = avm.run(kernel, reads);
+        for (int i = 0; i < contractCount; ++i) {
+            TransactionResult result = results[i].get();
+            Assert.assertTrue(result.getResultCode().isSuccess());
+            Assert.assertArrayEquals(new byte[] {(byte) i, (byte) (rounds - 1)}, result.getReturnData());
+        }
+        avm.shutdown();
+    }
+
+    private static org.aion.types.Address fundedSender(TestingKernel kernel) {
+        org.aion.types.Address sender = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        kernel.adjustBalance(sender, BigInteger.valueOf(100_000_000_000L));
+        return sender;
+    }
+
+    @Test
+    public void resultConsumerTest(){
+        TestingKernel kernel = new TestingKernel(block);
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+
+        int iterations = 50;
+        Transaction[] batch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            org.aion.types.Address user = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            batch[i] = Transaction.call(preminedAddress, user, BigInteger.valueOf(i), BigInteger.ONE, new byte[0], 100_000L, 1L);
+        }
+
+        // The results are delivered in index order.
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> completion = avm.run(kernel, batch, (index, result) -> {
+            Assert.assertTrue(result.getResultCode().isSuccess());
+            delivered.add(index);
+        }).toCompletableFuture();
+        completion.join();
+        Assert.assertEquals(iterations, delivered.size());
+        for (int i = 0; i < iterations; ++i) {
+            Assert.assertEquals(i, delivered.get(i).intValue());
+        }
+
+        // A failing consumer only fails its own batch and receives no further results.
+        for (int i = 0; i < iterations; ++i) {
+            org.aion.types.Address user = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            batch[i] = Transaction.call(preminedAddress, user, BigInteger.valueOf(iterations + i), BigInteger.ONE, new byte[0], 100_000L, 1L);
+        }
+        delivered.clear();
+        completion = avm.run(kernel, batch, (index, result) -> {
+            delivered.add(index);
+            if (3 == index) {
+                throw new IllegalStateException();
+            }
+        }).toCompletableFuture();
+        try {
+            completion.join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(List.of(0, 1, 2, 3), delivered);
+
+        // The batch is still fully consumed so the next one can run.
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, new Transaction[] {
+                Transaction.call(preminedAddress, preminedAddress, BigInteger.valueOf(2L * iterations), BigInteger.ZERO, new byte[0], 100_000L, 1L)
+        });
+        Assert.assertTrue(results[0].get().getResultCode().isSuccess());
+        Assert.assertEquals(BigInteger.valueOf(2L * iterations + 1), kernel.getNonce(preminedAddress));
+        avm.shutdown();
+    }
 }
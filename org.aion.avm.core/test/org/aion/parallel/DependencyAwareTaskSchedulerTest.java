@@ -0,0 +1,102 @@
+package org.aion.parallel;
+
+import java.math.BigInteger;
+
+import org.aion.avm.core.AvmTransaction;
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.Transaction;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DependencyAwareTaskSchedulerTest {
+    private Address usr1 = Address.wrap(Helpers.hexStringToBytes("1111111111111111111111111111111111111111111111111111111111111111"));
+    private Address usr2 = Address.wrap(Helpers.hexStringToBytes("2222222222222222222222222222222222222222222222222222222222222222"));
+    private Address usr3 = Address.wrap(Helpers.hexStringToBytes("3333333333333333333333333333333333333333333333333333333333333333"));
+    private Address usr4 = Address.wrap(Helpers.hexStringToBytes("4444444444444444444444444444444444444444444444444444444444444444"));
+
+    @Test
+    public void independentTasksAreAllReady() {
+        DependencyAwareTaskScheduler scheduler = new DependencyAwareTaskScheduler();
+        TransactionTask[] tasks = buildTasks(new Address[][] {
+                {usr1, usr2},
+                {usr3, usr4},
+        });
+        scheduler.addBatch(tasks);
+
+        Assert.assertEquals(tasks[0], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[1], scheduler.pollReadyTask(0));
+        Assert.assertNull(scheduler.pollReadyTask(0));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void conflictingTasksWaitForCommit() {
+        DependencyAwareTaskScheduler scheduler = new DependencyAwareTaskScheduler();
+        // 0 and 2 share a sender, 1 is independent, 3 depends on both 1 (usr3) and 2 (usr1).
+        TransactionTask[] tasks = buildTasks(new Address[][] {
+                {usr1, usr2},
+                {usr3, usr4},
+                {usr1, usr1},
+                {usr3, usr1},
+        });
+        scheduler.addBatch(tasks);
+
+        Assert.assertEquals(tasks[0], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[1], scheduler.pollReadyTask(0));
+        Assert.assertNull(scheduler.pollReadyTask(0));
+        Assert.assertFalse(scheduler.isEmpty());
+
+        Assert.assertEquals(1, scheduler.taskFinished(tasks[0]));
+        Assert.assertEquals(tasks[2], scheduler.pollReadyTask(0));
+        Assert.assertNull(scheduler.pollReadyTask(0));
+
+        scheduler.taskFinished(tasks[1]);
+        Assert.assertNull(scheduler.pollReadyTask(0));
+        scheduler.taskFinished(tasks[2]);
+        Assert.assertEquals(tasks[3], scheduler.pollReadyTask(0));
+        Assert.assertTrue(scheduler.isEmpty());
+        scheduler.taskFinished(tasks[3]);
+
+        // Make sure that the scheduler can be reused for another batch.
+        TransactionTask[] nextTasks = buildTasks(new Address[][] {
+                {usr4, usr1},
+        });
+        scheduler.addBatch(nextTasks);
+        Assert.assertEquals(nextTasks[0], scheduler.pollReadyTask(0));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void readyTasksAreHandedOutInIndexOrder() {
+        DependencyAwareTaskScheduler scheduler = new DependencyAwareTaskScheduler();
+        // 2 becomes ready only after 0 finishes, at which point 3 is already ready:  2 must still be handed out first.
+        TransactionTask[] tasks = buildTasks(new Address[][] {
+                {usr1, usr2},
+                {usr3, usr3},
+                {usr2, usr2},
+                {usr4, usr4},
+        });
+        scheduler.addBatch(tasks);
+
+        Assert.assertEquals(tasks[0], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[1], scheduler.pollReadyTask(0));
+        scheduler.taskFinished(tasks[0]);
+        Assert.assertEquals(tasks[2], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[3], scheduler.pollReadyTask(0));
+    }
+
+
+    private static TransactionTask[] buildTasks(Address[][] senderAndDestination) {
+        TransactionTask[] tasks = new TransactionTask[senderAndDestination.length];
+        for (int i = 0; i < tasks.length; ++i) {
+            Address sender = senderAndDestination[i][0];
+            Address destination = senderAndDestination[i][1];
+            Transaction tx = Transaction.call(sender, destination, BigInteger.ZERO, BigInteger.ONE, new byte[0], 100_000L, 1L);
+            // (we don't consult the capabilities since there is no creation)
+            tasks[i] = new TransactionTask(null, AvmTransaction.from(null, tx), i, sender);
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,111 @@
+package org.aion.parallel;
+
+import java.math.BigInteger;
+
+import org.aion.avm.core.AvmTransaction;
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.Transaction;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class WorkStealingTaskSchedulerTest {
+    @Test
+    public void ownTasksAreTakenInIndexOrder() {
+        WorkStealingTaskScheduler scheduler = new WorkStealingTaskScheduler(2);
+        TransactionTask[] tasks = buildTasks(4);
+        scheduler.addBatch(tasks);
+
+        // The batch is dealt round-robin so each worker sees its own tasks in index order.
+        Assert.assertEquals(tasks[0], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[1], scheduler.pollReadyTask(1));
+        Assert.assertEquals(tasks[2], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[3], scheduler.pollReadyTask(1));
+        Assert.assertNull(scheduler.pollReadyTask(0));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void idleWorkerStealsFromTail() {
+        WorkStealingTaskScheduler scheduler = new WorkStealingTaskScheduler(2);
+        TransactionTask[] tasks = buildTasks(5);
+        scheduler.addBatch(tasks);
+
+        // Worker 1 drains its own deque (1, 3) and then steals the highest task of worker 0 (4).
+        Assert.assertEquals(tasks[1], scheduler.pollReadyTask(1));
+        Assert.assertEquals(tasks[3], scheduler.pollReadyTask(1));
+        Assert.assertEquals(tasks[4], scheduler.pollReadyTask(1));
+        Assert.assertFalse(scheduler.isEmpty());
+
+        // Worker 0 still sees the rest of its own tasks in order.
+        Assert.assertEquals(tasks[0], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[2], scheduler.pollReadyTask(0));
+        Assert.assertNull(scheduler.pollReadyTask(1));
+        Assert.assertTrue(scheduler.isEmpty());
+        Assert.assertEquals(0, scheduler.taskFinished(tasks[0]));
+
+        // Make sure that the scheduler can be reused for another batch.
+        TransactionTask[] nextTasks = buildTasks(1);
+        scheduler.addBatch(nextTasks);
+        Assert.assertEquals(nextTasks[0], scheduler.pollReadyTask(1));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void senderChainsStayOnOneWorker() {
+        WorkStealingTaskScheduler scheduler = new WorkStealingTaskScheduler(2, true);
+        Address usr1 = Address.wrap(Helpers.hexStringToBytes("1111111111111111111111111111111111111111111111111111111111111111"));
+        Address usr2 = Address.wrap(Helpers.hexStringToBytes("2222222222222222222222222222222222222222222222222222222222222222"));
+        Address usr3 = Address.wrap(Helpers.hexStringToBytes("3333333333333333333333333333333333333333333333333333333333333333"));
+        TransactionTask[] tasks = buildTasksFromSenders(new Address[] {usr1, usr2, usr1, usr1, usr3});
+        scheduler.addBatch(tasks);
+
+        // usr1 and usr3 are dealt to worker 0 and usr2 to worker 1.  Worker 1 can only steal usr3's task, the only one of its chain.
+        Assert.assertEquals(tasks[1], scheduler.pollReadyTask(1));
+        Assert.assertEquals(tasks[4], scheduler.pollReadyTask(1));
+        Assert.assertNull(scheduler.pollReadyTask(1));
+        Assert.assertFalse(scheduler.isEmpty());
+
+        // Worker 0 runs the usr1 chain in order.
+        Assert.assertEquals(tasks[0], scheduler.pollReadyTask(0));
+        Assert.assertEquals(tasks[2], scheduler.pollReadyTask(0));
+        Assert.assertNull(scheduler.pollReadyTask(1));
+        // Once the earlier usr1 tasks are finished, the last one can be stolen.
+        Assert.assertEquals(0, scheduler.taskFinished(tasks[0]));
+        Assert.assertEquals(0, scheduler.taskFinished(tasks[2]));
+        Assert.assertEquals(tasks[3], scheduler.pollReadyTask(1));
+        Assert.assertNull(scheduler.pollReadyTask(0));
+        Assert.assertTrue(scheduler.isEmpty());
+        for (TransactionTask task : new TransactionTask[] {tasks[1], tasks[3], tasks[4]}) {
+            scheduler.taskFinished(task);
+        }
+
+        // A later batch starts fresh chains.
+        TransactionTask[] nextTasks = buildTasksFromSenders(new Address[] {usr2, usr1});
+        scheduler.addBatch(nextTasks);
+        Assert.assertEquals(nextTasks[0], scheduler.pollReadyTask(1));
+        Assert.assertEquals(nextTasks[1], scheduler.pollReadyTask(1));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+
+    private static TransactionTask[] buildTasks(int count) {
+        TransactionTask[] tasks = new TransactionTask[count];
+        for (int i = 0; i < tasks.length; ++i) {
+            Transaction tx = Transaction.call(Address.ZERO_ADDRESS(), Address.ZERO_ADDRESS(), BigInteger.valueOf(i), BigInteger.ZERO, new byte[0], 100_000L, 1L);
+            // (we don't consult the capabilities since there is no creation)
+            tasks[i] = new TransactionTask(null, AvmTransaction.from(null, tx), i, Address.ZERO_ADDRESS());
+        }
+        return tasks;
+    }
+
+    private static TransactionTask[] buildTasksFromSenders(Address[] senders) {
+        TransactionTask[] tasks = new TransactionTask[senders.length];
+        for (int i = 0; i < tasks.length; ++i) {
+            Transaction tx = Transaction.call(senders[i], Address.ZERO_ADDRESS(), BigInteger.valueOf(i), BigInteger.ZERO, new byte[0], 100_000L, 1L);
+            tasks[i] = new TransactionTask(null, AvmTransaction.from(null, tx), i, senders[i]);
+        }
+        return tasks;
+    }
+}
@@ -33,6 +33,7 @@ public class CommonInstrumentation implements IInstrumentation {
         }
 
         newFrame.internedClassWrappers = classWrappers;
+        newFrame.writtenInstances = new BitSet();
 
         // setting up a default stack watcher.
         newFrame.stackWatcher = new StackWatcher();
@@ -260,6 +261,28 @@ public class CommonInstrumentation implements IInstrumentation {
         return (userClass.getClassLoader() == this.currentFrame.lateLoader);
     }
 
+    @Override
+    public void noteInstanceWrite(int readIndex) {
+        this.currentFrame.writtenInstances.set(readIndex);
+    }
+
+    @Override
+    public BitSet getWrittenInstances() {
+        return this.currentFrame.writtenInstances;
+    }
+
+    @Override
+    public void attachInstanceLoader(IInstanceLoader loader) {
+        this.currentFrame.instanceLoader = loader;
+    }
+
+    @Override
+    public void loadInstance(Object instance, int readIndex) {
+        // Stubs only exist in graphs loaded lazily, which always attach their loader.
+        RuntimeAssertionError.assertTrue(null != this.currentFrame.instanceLoader);
+        this.currentFrame.instanceLoader.loadInstance(instance, readIndex);
+    }
+
     // Private helpers used internally.
     private org.aion.avm.shadow.java.lang.Throwable convertVmGeneratedException(Throwable t) throws Exception {
         // First step is to convert the message and cause into shadow objects, as well.
@@ -306,6 +329,10 @@ public class CommonInstrumentation implements IInstrumentation {
          */
         private IdentityHashMap<String, org.aion.avm.shadow.java.lang.String> internedStringWrappers;
         private InternedClasses internedClassWrappers;
+        // The readIndex of each loaded instance written in this frame (so saving the graph can skip the others).
+        private BitSet writtenInstances;
+        // Populates the stubs of the graph loaded for this frame (null unless it was loaded lazily).
+        private IInstanceLoader instanceLoader;
 
         // Set forceExitState to non-null to re-throw at the entry to every block (forces the contract to exit).
         private AvmThrowable forceExitState;
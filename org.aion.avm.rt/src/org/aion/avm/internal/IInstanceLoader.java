@@ -0,0 +1,16 @@
+package org.aion.avm.internal;
+
+
+/**
+ * Populates the instances which were installed as stubs when a graph was loaded lazily.
+ * A stub is only populated, from the graph it was loaded from, when it is first used (see shadow Object.lazyLoad()).
+ */
+public interface IInstanceLoader {
+    /**
+     * Populates the fields of the given stub.
+     * 
+     * @param instance The stub to populate.
+     * @param readIndex The index of the instance within the graph it was loaded from.
+     */
+    void loadInstance(Object instance, int readIndex);
+}
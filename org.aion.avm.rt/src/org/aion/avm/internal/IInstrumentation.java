@@ -55,4 +55,31 @@ public interface IInstrumentation {
      * @return id the class has been loaded by the classloader associated to stackFrame
      */
     boolean isLoadedByCurrentClassLoader(Class userClass);
+
+    /**
+     * Called by the write barrier before a field of an instance, loaded from the graph, is written within the current frame.
+     * 
+     * @param readIndex The index of the instance within the graph it was loaded from.
+     */
+    void noteInstanceWrite(int readIndex);
+
+    /**
+     * @return The readIndex of every loaded instance written within the current frame.
+     */
+    java.util.BitSet getWrittenInstances();
+
+    /**
+     * Attaches the loader which populates the stubs of the graph loaded for the current frame (if it was loaded lazily).
+     * 
+     * @param loader The loader for the graph's stubs (null if the graph was loaded entirely).
+     */
+    void attachInstanceLoader(IInstanceLoader loader);
+
+    /**
+     * Called by a stub, when it is first used, to populate it from the graph loaded for the current frame.
+     * 
+     * @param instance The stub to populate.
+     * @param readIndex The index of the instance within the graph it was loaded from.
+     */
+    void loadInstance(Object instance, int readIndex);
 }
@@ -14,11 +14,18 @@ public class Object extends java.lang.Object implements IObject {
         IInstrumentation.attachedThreadInstrumentation.get().bootstrapOnly();
     }
     public static final int NEW_INSTANCE_READ_INDEX = -1;
+    // A stub (an instance created, but not yet populated, when the graph is loaded lazily) has this added to its readIndex until it is loaded.
+    // This can't be confused with a real readIndex:  those are either negative (new instances and constants) or the position of an instance
+    // in a graph, and every instance takes at least one byte of a graph which is never more than StorageFees.MAX_GRAPH_SIZE (500,000) bytes
+    // (a compact graph's payload is written in a buffer of that size, before any compression), so they stay far below 2^30.
+    public static final int STUB_READ_INDEX_BASE = 0x40000000;
 
     private int hashCode;
 
     // The readIndex is only used in cases of reentrant calls (this is the serialization index of the instance in the caller frame when serialized for the reentrant call).
-    public final int readIndex;
+    // It is also the instance's position in the graph it was loaded from, offset by STUB_READ_INDEX_BASE while it is a stub, so it isn't
+    // final:  lazyLoad() removes the offset when the stub is populated.
+    public int readIndex;
 
     public Object() {
         this.hashCode = IInstrumentation.attachedThreadInstrumentation.get().getNextHashCodeAndIncrement();
@@ -100,11 +107,30 @@ public class Object extends java.lang.Object implements IObject {
 
     /**
      * The call which causes this instance to become loaded.
+     * If this is a stub (its readIndex is at least STUB_READ_INDEX_BASE), the offset is removed from its readIndex and its fields are
+     * populated from the graph it was loaded from, at that index.  Any other instance is already loaded so this does nothing.
      * Note that this is final since the protected "deserializeSelf" should be over-ridden.
      */
     public final void lazyLoad() {
-        // This now does nothing - will be removed later if we are certain we don't want the lazy loading.
-        // It was originally how the lazy loading system worked when we had the incremental loading design.
+        // Only stubs need to be loaded - every other instance is either new or was populated when its graph was loaded.
+        if (this.readIndex >= STUB_READ_INDEX_BASE) {
+            // Clear the flag before loading so that the load can't recurse into this instance.
+            this.readIndex -= STUB_READ_INDEX_BASE;
+            IInstrumentation.attachedThreadInstrumentation.get().loadInstance(this, this.readIndex);
+        }
+    }
+
+    /**
+     * The write barrier, called instead of lazyLoad() before a field of this instance is written.
+     * If this instance was loaded from the graph, the write is noted so that saving the graph knows it has changed.
+     * Note that this is final for the same reason as lazyLoad().
+     */
+    public final void lazyLoadForWrite() {
+        lazyLoad();
+        // (new instances and constants have a negative readIndex - only loaded instances need to be tracked)
+        if (this.readIndex >= 0) {
+            IInstrumentation.attachedThreadInstrumentation.get().noteInstanceWrite(this.readIndex);
+        }
     }
 
     public void deserializeSelf(java.lang.Class<?> firstRealImplementation, IObjectDeserializer deserializer) {
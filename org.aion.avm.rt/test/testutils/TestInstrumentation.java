@@ -94,4 +94,20 @@ public class TestInstrumentation implements IInstrumentation {
     public boolean isLoadedByCurrentClassLoader(java.lang.Class userClass) {
         throw RuntimeAssertionError.unreachable("Not expected in this test");
     }
+    @Override
+    public void noteInstanceWrite(int readIndex) {
+        throw RuntimeAssertionError.unreachable("Not expected in this test");
+    }
+    @Override
+    public java.util.BitSet getWrittenInstances() {
+        throw RuntimeAssertionError.unreachable("Not expected in this test");
+    }
+    @Override
+    public void attachInstanceLoader(org.aion.avm.internal.IInstanceLoader loader) {
+        throw RuntimeAssertionError.unreachable("Not expected in this test");
+    }
+    @Override
+    public void loadInstance(java.lang.Object instance, int readIndex) {
+        throw RuntimeAssertionError.unreachable("Not expected in this test");
+    }
 }
@@ -36,7 +36,7 @@ public class AvmCLI {
 
         File storageFile = new File(storagePath);
 
-        TestingKernel kernel = new TestingKernel(storageFile, block);
+        TestingKernel kernel = openStorage(storageFile);
 
         Path path = Paths.get(jarPath);
         byte[] jar;
@@ -93,7 +93,7 @@ public class AvmCLI {
 
         File storageFile = new File(storagePath);
 
-        TestingKernel kernel = new TestingKernel(storageFile, block);
+        TestingKernel kernel = openStorage(storageFile);
 
         // Note that we can remove this bias when/if we change this to no longer send all transactions from the same account.
         BigInteger biasedNonce = kernel.getNonce(sender).add(BigInteger.valueOf(nonceBias));
@@ -164,7 +164,7 @@ public class AvmCLI {
         env.logLine("Creating Account " + toOpen);
 
         File storageFile = new File(storagePath);
-        TestingKernel kernel = new TestingKernel(storageFile, block);
+        TestingKernel kernel = openStorage(storageFile);
 
         kernel.createAccount(toOpen);
         kernel.adjustBalance(toOpen, BigInteger.valueOf(100000000000L));
@@ -305,7 +305,7 @@ public class AvmCLI {
                 
                 // Run them in a single batch.
                 File storageFile = new File(invocation.storagePath);
-                TestingKernel kernel = new TestingKernel(storageFile, block);
+                TestingKernel kernel = openStorage(storageFile);
                 AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(capabilities, new AvmConfiguration());
                 SimpleFuture<TransactionResult>[] futures = avm.run(kernel, transactions);
                 TransactionResult[] results = new AvmTransactionResult[futures.length];
@@ -352,4 +352,11 @@ public class AvmCLI {
             }
         }
     }
+
+    private static TestingKernel openStorage(File storageFile) {
+        // This keeps the directory-backed store, rather than LogStructuredDataStore:  each command opens its own kernel on the storage
+        // directory (to read nonces, for example) while the batch's kernel is also open, and each must see the others' writes, which a
+        // store with its own in-memory index can't offer.
+        return new TestingKernel(storageFile, block);
+    }
 }